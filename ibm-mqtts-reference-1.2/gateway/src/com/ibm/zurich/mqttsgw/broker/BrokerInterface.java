@@ -45,4 +45,18 @@ public interface BrokerInterface {
 	 * The method that disconnects from the broker.
 	 */
 	public void disconnect();
+
+
+	/**
+	 * The method that starts or stops reading Mqtt messages from the broker.
+	 * @param running False for stopping reading.
+	 */
+	public void setRunning(boolean running);
+
+
+	/**
+	 * The method that sets the client id of the client that uses this interface.
+	 * @param clientId The client id.
+	 */
+	public void setClientId(String clientId);
 }
\ No newline at end of file
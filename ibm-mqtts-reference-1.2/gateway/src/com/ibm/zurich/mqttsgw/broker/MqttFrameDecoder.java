@@ -0,0 +1,271 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2013 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License v2.0
+ * which is available at:
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *******************************************************************************/
+
+package com.ibm.zurich.mqttsgw.broker;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import com.ibm.zurich.mqttsgw.exceptions.MqttsException;
+import com.ibm.zurich.mqttsgw.messages.mqtt.MqttConnack;
+import com.ibm.zurich.mqttsgw.messages.mqtt.MqttMessage;
+import com.ibm.zurich.mqttsgw.messages.mqtt.MqttPingReq;
+import com.ibm.zurich.mqttsgw.messages.mqtt.MqttPingResp;
+import com.ibm.zurich.mqttsgw.messages.mqtt.MqttPubComp;
+import com.ibm.zurich.mqttsgw.messages.mqtt.MqttPubRec;
+import com.ibm.zurich.mqttsgw.messages.mqtt.MqttPubRel;
+import com.ibm.zurich.mqttsgw.messages.mqtt.MqttPuback;
+import com.ibm.zurich.mqttsgw.messages.mqtt.MqttPublish;
+import com.ibm.zurich.mqttsgw.messages.mqtt.MqttSuback;
+import com.ibm.zurich.mqttsgw.messages.mqtt.MqttUnsuback;
+
+/**
+ * This class splits the byte stream that is received from the broker into Mqtt frames.
+ * The bytes that are read from the stream are kept in an internal buffer, so a single
+ * read may deliver several frames (or only a part of a frame, which is completed by the
+ * next read).
+ *
+ * Parts of this code were imported from com.ibm.mqttdirect.modules.common.StreamDeframer.java
+ *
+ */
+public class MqttFrameDecoder {
+
+	//the maximum length of a Mqtt fixed header
+	public static final int MAX_HDR_LENGTH = 5;
+
+	//the maximum length of the remaining part of a Mqtt message
+	public static final int MAX_MSG_LENGTH = 268435455;
+
+	//the default size of the internal buffer
+	public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+	private byte[] buffer;
+
+	//the position of the first byte that has not been decoded yet
+	private int start;
+
+	//the position after the last byte that has been read
+	private int end;
+
+
+	/**
+	 * Constructor of the decoder.
+	 */
+	public MqttFrameDecoder() {
+		this(DEFAULT_BUFFER_SIZE);
+	}
+
+
+	/**
+	 * Constructor of the decoder.
+	 *
+	 * @param bufferSize The initial size of the internal buffer.
+	 */
+	public MqttFrameDecoder(int bufferSize) {
+		this.buffer = new byte[bufferSize];
+		this.start = 0;
+		this.end = 0;
+	}
+
+
+	/**
+	 * This method reads the available bytes from the stream directly into the internal
+	 * buffer.It blocks until at least one byte is available.
+	 *
+	 * @param in The stream to read from.
+	 * @return The number of bytes read or -1 if the end of the stream has been reached.
+	 * @throws IOException
+	 */
+	public int readFrom(InputStream in) throws IOException {
+		ensureSpace(1);
+		int n = in.read(buffer, end, buffer.length - end);
+		if (n > 0)
+			end += n;
+		return n;
+	}
+
+
+	/**
+	 * This method reads the available bytes from a channel directly into the internal
+	 * buffer.If the channel is in non-blocking mode, it returns immediately.
+	 *
+	 * @param channel The channel to read from.
+	 * @return The number of bytes read (possibly 0) or -1 if the end of the stream has been reached.
+	 * @throws IOException
+	 */
+	public int readFrom(ReadableByteChannel channel) throws IOException {
+		ensureSpace(1);
+		int n = channel.read(ByteBuffer.wrap(buffer, end, buffer.length - end));
+		if (n > 0)
+			end += n;
+		return n;
+	}
+
+
+	/**
+	 * This method appends bytes to the internal buffer.
+	 *
+	 * @param data The array that contains the bytes.
+	 * @param offset The position of the first byte.
+	 * @param length The number of bytes.
+	 */
+	public void append(byte[] data, int offset, int length) {
+		ensureSpace(length);
+		System.arraycopy(data, offset, buffer, end, length);
+		end += length;
+	}
+
+
+	/**
+	 * This method returns the next complete Mqtt frame (fixed header included) from the
+	 * internal buffer.
+	 *
+	 * @return The Mqtt frame or null if no complete frame is available yet.
+	 * @throws MqttsException If the fixed header of the frame is not valid.
+	 */
+	public byte[] nextFrame() throws MqttsException {
+		int available = end - start;
+		if (available < 2)
+			return null;
+
+		//decode the remaining length
+		int headerLength = 1;
+		int remainingLength = 0;
+		int multiplier = 1;
+		int digit;
+		do {
+			if (headerLength >= available)
+				return null;
+			if (headerLength >= MAX_HDR_LENGTH)
+				throw new MqttsException("Not a valid Mqtt message - remaining length exceeds "+(MAX_HDR_LENGTH - 1)+" bytes");
+			digit = buffer[start + headerLength] & 0xFF;
+			headerLength++;
+			remainingLength += (digit & 127) * multiplier;
+			multiplier *= 128;
+		} while ((digit & 128) != 0);
+
+		if (remainingLength > MAX_MSG_LENGTH || remainingLength < 0)
+			throw new MqttsException("Not a valid Mqtt message - invalid remaining length "+remainingLength);
+
+		int frameLength = headerLength + remainingLength;
+		if (available < frameLength){
+			//make sure that the rest of the frame fits in the buffer
+			ensureSpace(frameLength - available);
+			return null;
+		}
+
+		byte[] frame = new byte[frameLength];
+		System.arraycopy(buffer, start, frame, 0, frameLength);
+		start += frameLength;
+		if (start == end) {
+			start = 0;
+			end = 0;
+		}
+		return frame;
+	}
+
+
+	/**
+	 * This method decodes a Mqtt frame that was received from the broker.
+	 *
+	 * @param data The Mqtt frame (fixed header included).
+	 * @return The Mqtt message or null if the broker is not expected to send
+	 * messages of this type.
+	 */
+	public static MqttMessage decodeMsg(byte[] data) {
+		MqttMessage mqttMsg = null;
+		int msgType = (data[0] >>> 4) & 0x0F;
+		switch (msgType) {
+		case MqttMessage.CONNACK:
+			mqttMsg = new MqttConnack(data);
+			break;
+
+		case MqttMessage.PUBLISH:
+			mqttMsg = new MqttPublish(data);
+			break;
+
+		case MqttMessage.PUBACK:
+			mqttMsg = new MqttPuback(data);
+			break;
+
+		case MqttMessage.PUBREC:
+			mqttMsg = new MqttPubRec(data);
+			break;
+
+		case MqttMessage.PUBREL:
+			mqttMsg = new MqttPubRel(data);
+			break;
+
+		case MqttMessage.PUBCOMP:
+			mqttMsg = new MqttPubComp(data);
+			break;
+
+		case MqttMessage.SUBACK:
+			mqttMsg = new MqttSuback(data);
+			break;
+
+		case MqttMessage.UNSUBACK:
+			mqttMsg = new MqttUnsuback(data);
+			break;
+
+		case MqttMessage.PINGREQ:
+			mqttMsg = new MqttPingReq(data);
+			break;
+
+		case MqttMessage.PINGRESP:
+			mqttMsg = new MqttPingResp(data);
+			break;
+
+		default:
+			//CONNECT, SUBSCRIBE, UNSUBSCRIBE and DISCONNECT are never sent by the broker
+			break;
+		}
+		return mqttMsg;
+	}
+
+
+	/**
+	 * This method discards all bytes of the internal buffer.
+	 */
+	public void reset() {
+		start = 0;
+		end = 0;
+	}
+
+
+	/**
+	 * This method makes room for at least the given number of bytes after the last
+	 * byte of the internal buffer, by compacting or growing the buffer.
+	 *
+	 * @param length The number of bytes.
+	 */
+	private void ensureSpace(int length) {
+		if (buffer.length - end >= length)
+			return;
+
+		int pending = end - start;
+		if (buffer.length - pending >= length) {
+			//compact
+			System.arraycopy(buffer, start, buffer, 0, pending);
+		} else {
+			//grow
+			int size = buffer.length * 2;
+			while (size - pending < length)
+				size *= 2;
+			byte[] newBuffer = new byte[size];
+			System.arraycopy(buffer, start, newBuffer, 0, pending);
+			buffer = newBuffer;
+		}
+		start = 0;
+		end = pending;
+	}
+}
@@ -0,0 +1,203 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2013 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License v2.0
+ * which is available at:
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *******************************************************************************/
+
+package com.ibm.zurich.mqttsgw.broker.aggregating;
+
+import java.util.Hashtable;
+
+import com.ibm.zurich.mqttsgw.broker.BrokerInterface;
+import com.ibm.zurich.mqttsgw.exceptions.MqttsException;
+import com.ibm.zurich.mqttsgw.messages.mqtt.MqttConnack;
+import com.ibm.zurich.mqttsgw.messages.mqtt.MqttConnect;
+import com.ibm.zurich.mqttsgw.messages.mqtt.MqttMessage;
+import com.ibm.zurich.mqttsgw.messages.mqtt.MqttPingResp;
+import com.ibm.zurich.mqttsgw.messages.mqtt.MqttPubRel;
+import com.ibm.zurich.mqttsgw.messages.mqtt.MqttPublish;
+import com.ibm.zurich.mqttsgw.messages.mqtt.MqttSubscribe;
+import com.ibm.zurich.mqttsgw.messages.mqtt.MqttUnsubscribe;
+import com.ibm.zurich.mqttsgw.utils.ClientAddress;
+import com.ibm.zurich.mqttsgw.utils.GatewayLogger;
+
+/**
+ * This class represents the interface to the broker of a client when the gateway runs in
+ * aggregating mode.Instead of opening its own TCP/IP connection, the client uses one of
+ * the connections of the {@link BrokerConnectionPool}.
+ * The Mqtt CONNECT, PINGREQ and DISCONNECT messages of the client are handled by the
+ * gateway itself.The will of the client is kept by the gateway and published if the
+ * client is disconnected without a Mqtt DISCONNECT message.
+ * For every client there is one instance of this class.
+ *
+ */
+public class AggregatingBrokerInterface implements BrokerInterface {
+
+	private ClientAddress address;
+	private String clientId;
+
+	private PooledBrokerConnection connection;
+
+	//whether the client is attached to the connection
+	private boolean attached;
+
+	//the will message of the client (if any)
+	private MqttPublish will;
+
+	//message ids of the gateway for the QoS 2 PUBLISH messages of the client
+	//that wait for the Mqtt PUBREL message, indexed by the message id of the client
+	private Hashtable<Integer, Integer> releaseIds;
+
+
+	/**
+	 * Constructor of the broker interface.
+	 */
+	public AggregatingBrokerInterface(ClientAddress address) {
+		this.address = address;
+		this.attached = false;
+		this.will = null;
+		this.releaseIds = new Hashtable<Integer, Integer>();
+	}
+
+
+	/**
+	 * This method attaches the client to a connection of the pool.The connection is
+	 * established if necessary.
+	 *
+	 * @throws MqttsException
+	 */
+	public void initialize() throws MqttsException {
+		if(connection == null)
+			connection = BrokerConnectionPool.getInstance().getConnection(address);
+		connection.attach(address);
+		attached = true;
+	}
+
+
+	/**
+	 * Nothing to do here, the messages of the broker are read by the pooled connection.
+	 */
+	public void readMsg() {
+	}
+
+
+	/**
+	 * This method sends a Mqtt message of the client over the pooled connection or,
+	 * if the message concerns only the connection of the client, handles it locally.
+	 *
+	 * @param message The Mqtt message.
+	 * @throws MqttsException
+	 */
+	public void sendMsg(MqttMessage message) throws MqttsException {
+		if(!attached)
+			throw new MqttsException("Client is not attached to a broker connection");
+
+		switch(message.getMsgType()){
+		case MqttMessage.CONNECT:
+			MqttConnect connect = (MqttConnect)message;
+			if(connect.isWill()){
+				will = new MqttPublish();
+				will.setTopicName(connect.getWillTopic());
+				will.setPayload(connect.getWillMessage() == null ?
+						new byte[0] : connect.getWillMessage().getBytes());
+				will.setQos(connect.getWillQoS());
+				will.setRetain(connect.isWillRetain());
+			}else
+				will = null;
+
+			//the connection with the broker is already established
+			MqttConnack connack = new MqttConnack();
+			connack.setReturnCode(MqttMessage.RETURN_CODE_CONNECTION_ACCEPTED);
+			connection.deliverToClient(address, connack);
+			break;
+
+		case MqttMessage.PINGREQ:
+			connection.deliverToClient(address, new MqttPingResp());
+			break;
+
+		case MqttMessage.DISCONNECT:
+			//a normal disconnection, the will is not published
+			will = null;
+			break;
+
+		case MqttMessage.PUBLISH:
+			MqttPublish publish = (MqttPublish)message;
+			int gwMsgId = connection.publish(address, publish);
+			if(publish.getQos() == 2)
+				releaseIds.put(Integer.valueOf(publish.getMsgId()), Integer.valueOf(gwMsgId));
+			break;
+
+		case MqttMessage.PUBREL:
+			MqttPubRel pubrel = (MqttPubRel)message;
+			Integer id = releaseIds.remove(Integer.valueOf(pubrel.getMsgId()));
+			if(id == null){
+				GatewayLogger.log(GatewayLogger.WARN, "AggregatingBrokerInterface [{}]/[{}] - Unknown message id of Mqtt PUBREL message. The message cannot be sent to the broker.", this.address.getAddress(), clientId);
+				break;
+			}
+			connection.release(pubrel, id.intValue());
+			break;
+
+		case MqttMessage.SUBSCRIBE:
+			connection.subscribe(address, (MqttSubscribe)message);
+			break;
+
+		case MqttMessage.UNSUBSCRIBE:
+			connection.unsubscribe(address, (MqttUnsubscribe)message);
+			break;
+
+		case MqttMessage.PUBACK:
+		case MqttMessage.PUBREC:
+		case MqttMessage.PUBCOMP:
+		case MqttMessage.PINGRESP:
+			//the PUBLISH messages of the broker are acknowledged by the pooled connection
+			break;
+
+		default:
+			GatewayLogger.log(GatewayLogger.WARN, "AggregatingBrokerInterface [{}]/[{}] - Mqtt message of unexpected type \"{}\". The message cannot be sent to the broker.", this.address.getAddress(), clientId, message.getMsgType());
+			break;
+		}
+	}
+
+
+	/**
+	 * This method detaches the client from the pooled connection.If the client has a will
+	 * and did not send a Mqtt DISCONNECT message, the will is published.
+	 */
+	public void disconnect() {
+		if(!attached)
+			return;
+		attached = false;
+		releaseIds.clear();
+
+		if(will != null){
+			GatewayLogger.log(GatewayLogger.INFO, "AggregatingBrokerInterface [{}]/[{}] - Publishing the will of the client.", this.address.getAddress(), clientId);
+			try {
+				connection.publish(null, will);
+			} catch (MqttsException e) {
+				GatewayLogger.log(GatewayLogger.WARN, "AggregatingBrokerInterface [{}]/[{}] - Failed publishing the will of the client.", this.address.getAddress(), clientId);
+			}
+			will = null;
+		}
+		connection.detach(address);
+	}
+
+
+	/* (non-Javadoc)
+	 * @see com.ibm.zurich.mqttsgw.broker.BrokerInterface#setRunning(boolean)
+	 */
+	public void setRunning(boolean running) {
+		//the reading thread belongs to the pooled connection
+	}
+
+
+	/* (non-Javadoc)
+	 * @see com.ibm.zurich.mqttsgw.broker.BrokerInterface#setClientId(java.lang.String)
+	 */
+	public void setClientId(String clientId) {
+		this.clientId = clientId;
+	}
+}
@@ -0,0 +1,87 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2013 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License v2.0
+ * which is available at:
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *******************************************************************************/
+
+package com.ibm.zurich.mqttsgw.broker.aggregating;
+
+import com.ibm.zurich.mqttsgw.utils.ClientAddress;
+import com.ibm.zurich.mqttsgw.utils.GWParameters;
+
+/**
+ * This class represents the pool of Mqtt connections with the broker that are shared
+ * by all clients when the gateway runs in aggregating mode.The number of connections
+ * is given by {@link GWParameters#getBrokerConnections()}.A client always uses the same
+ * connection, which is selected by hashing its address.
+ *
+ */
+public class BrokerConnectionPool {
+
+	private static BrokerConnectionPool instance = null;
+
+	private PooledBrokerConnection[] connections;
+
+
+	/**
+	 * Constructor of the pool.The connections with the broker are established when
+	 * the first client is attached to them.
+	 */
+	private BrokerConnectionPool() {
+		int size = GWParameters.getBrokerConnections();
+		if(size < 1)
+			size = 1;
+		connections = new PooledBrokerConnection[size];
+		for(int i = 0; i < size; i++)
+			connections[i] = new PooledBrokerConnection(i);
+	}
+
+
+	/**
+	 * This method returns the instance of this object.If there no such an instance
+	 * a new object is created.
+	 *
+	 * @return The instance of this object.
+	 */
+	public static synchronized BrokerConnectionPool getInstance() {
+		if (instance == null) {
+			instance = new BrokerConnectionPool();
+		}
+		return instance;
+	}
+
+
+	/**
+	 * This method returns the connection that is used by a client.
+	 *
+	 * @param address The address of the client.
+	 * @return The connection.
+	 */
+	public PooledBrokerConnection getConnection(ClientAddress address) {
+		int hash = address.hashCode();
+		hash ^= (hash >>> 16);
+		return connections[(hash & 0x7fffffff) % connections.length];
+	}
+
+
+	/**
+	 * This method sends a Mqtt PINGREQ message over every established connection.
+	 */
+	public void sendKeepAlive() {
+		for(int i = 0; i < connections.length; i++)
+			connections[i].sendKeepAlive();
+	}
+
+
+	/**
+	 * This method disconnects all connections from the broker.
+	 */
+	public void shutDown() {
+		for(int i = 0; i < connections.length; i++)
+			connections[i].shutDown();
+	}
+}
@@ -0,0 +1,922 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2013 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License v2.0
+ * which is available at:
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *******************************************************************************/
+
+package com.ibm.zurich.mqttsgw.broker.aggregating;
+
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Vector;
+
+import com.ibm.zurich.mqttsgw.broker.tcp.TCPBrokerInterface;
+import com.ibm.zurich.mqttsgw.core.Dispatcher;
+import com.ibm.zurich.mqttsgw.exceptions.MqttsException;
+import com.ibm.zurich.mqttsgw.messages.Message;
+import com.ibm.zurich.mqttsgw.messages.control.ControlMessage;
+import com.ibm.zurich.mqttsgw.messages.mqtt.MqttConnack;
+import com.ibm.zurich.mqttsgw.messages.mqtt.MqttConnect;
+import com.ibm.zurich.mqttsgw.messages.mqtt.MqttDisconnect;
+import com.ibm.zurich.mqttsgw.messages.mqtt.MqttMessage;
+import com.ibm.zurich.mqttsgw.messages.mqtt.MqttPingReq;
+import com.ibm.zurich.mqttsgw.messages.mqtt.MqttPubComp;
+import com.ibm.zurich.mqttsgw.messages.mqtt.MqttPubRec;
+import com.ibm.zurich.mqttsgw.messages.mqtt.MqttPubRel;
+import com.ibm.zurich.mqttsgw.messages.mqtt.MqttPuback;
+import com.ibm.zurich.mqttsgw.messages.mqtt.MqttPublish;
+import com.ibm.zurich.mqttsgw.messages.mqtt.MqttSuback;
+import com.ibm.zurich.mqttsgw.messages.mqtt.MqttSubscribe;
+import com.ibm.zurich.mqttsgw.messages.mqtt.MqttUnsuback;
+import com.ibm.zurich.mqttsgw.messages.mqtt.MqttUnsubscribe;
+import com.ibm.zurich.mqttsgw.utils.ClientAddress;
+import com.ibm.zurich.mqttsgw.utils.GWParameters;
+import com.ibm.zurich.mqttsgw.utils.GatewayLogger;
+
+/**
+ * This class represents one Mqtt connection with the broker that is shared by many
+ * clients when the gateway runs in aggregating mode.
+ * The gateway is the Mqtt client of this connection.It replaces the message ids of the
+ * clients with its own ones and maps the responses of the broker back to the clients.
+ * It also keeps the subscriptions of the clients and delivers every PUBLISH message that
+ * is received from the broker to all clients with a matching subscription.
+ * A topic filter is subscribed with the broker only once, with the highest QoS that a client
+ * requested; a client that subscribes to a filter that is already subscribed with a QoS at
+ * least as high gets its Mqtt SUBACK message from the gateway (and no retained messages).
+ *
+ * @see com.ibm.zurich.mqttsgw.broker.aggregating.BrokerConnectionPool
+ * @see com.ibm.zurich.mqttsgw.broker.aggregating.AggregatingBrokerInterface
+ *
+ */
+public class PooledBrokerConnection {
+
+	//the client id that the gateway uses for this connection
+	private String clientId;
+
+	//the current TCP/IP connection with the broker (a new one is opened for every reconnection,
+	//so the reading thread of a lost connection cannot deliver messages of the new one)
+	private volatile Link link;
+
+	//whether the Mqtt CONNECT message has been sent over the current TCP/IP connection
+	private volatile boolean connected;
+
+	//lock for opening the TCP/IP connection; the lock of this object is not held while connecting
+	private final Object connectLock = new Object();
+
+	//the next message id that will be used by the gateway on this connection
+	private int nextMsgId;
+
+	//requests of the clients (or of the gateway itself) that wait for a response
+	//from the broker, indexed by the message id that the gateway used
+	private Hashtable<Integer, PendingRequest> pendingRequests;
+
+	//the clients that use this connection and the topic filters they have subscribed to
+	private Hashtable<ClientAddress, Vector<String>> clientFilters;
+
+	//the clients that have subscribed to a topic filter, indexed by the topic filter
+	private Hashtable<String, Vector<ClientAddress>> filterSubscribers;
+
+	//the topic filters that contain wildcards
+	private Vector<String> wildcardFilters;
+
+	//the subscriptions of this connection with the broker, indexed by the topic filter
+	private Hashtable<String, Subscription> subscriptions;
+
+	//whether a Mqtt PUBLISH message with QoS 2 has been delivered with QoS 1 (it is logged once)
+	private boolean qos2Logged = false;
+
+	//lock for writing to the socket; it is never acquired before the lock of this object
+	private final Object writeLock = new Object();
+
+	private Dispatcher dispatcher;
+
+
+	/**
+	 * Constructor of the pooled connection.
+	 *
+	 * @param index The index of this connection in the pool.
+	 */
+	public PooledBrokerConnection(int index) {
+		this.clientId = "Gateway_" + GWParameters.getGwId() + "_" + index;
+		this.connected = false;
+		this.nextMsgId = 1;
+		this.pendingRequests = new Hashtable<Integer, PendingRequest>();
+		this.clientFilters = new Hashtable<ClientAddress, Vector<String>>();
+		this.filterSubscribers = new Hashtable<String, Vector<ClientAddress>>();
+		this.wildcardFilters = new Vector<String>();
+		this.subscriptions = new Hashtable<String, Subscription>();
+		this.dispatcher = Dispatcher.getInstance();
+	}
+
+
+	/**
+	 * This method attaches a client to this connection.If there is no connection with
+	 * the broker, a new TCP/IP connection is opened and a Mqtt CONNECT message is sent.
+	 *
+	 * @param address The address of the client.
+	 * @throws MqttsException
+	 */
+	public void attach(ClientAddress address) throws MqttsException {
+		synchronized (connectLock) {
+			if(!connected){
+				GatewayLogger.log(GatewayLogger.INFO, "PooledBrokerConnection [{}] - Establishing Mqtt connection with the broker.", clientId);
+				Link newLink = new Link();
+				newLink.setClientId(clientId);
+				newLink.initialize();
+				link = newLink;
+
+				MqttConnect mqttConnect = new MqttConnect();
+				mqttConnect.setProtocolName(GWParameters.getProtocolName());
+				mqttConnect.setProtocolVersion(GWParameters.getProtocolVersion());
+				mqttConnect.setWill(false);
+				mqttConnect.setCleanStart(true);
+				mqttConnect.setKeepAlive(GWParameters.getKeepAlivePeriod());
+				mqttConnect.setClientId(clientId);
+				write(mqttConnect);
+				connected = true;
+			}
+		}
+		synchronized (this) {
+			if(!clientFilters.containsKey(address))
+				clientFilters.put(address, new Vector<String>());
+		}
+	}
+
+
+	/**
+	 * This method detaches a client from this connection.The topic filters that are
+	 * no more used by any client are unsubscribed.
+	 *
+	 * @param address The address of the client.
+	 */
+	public void detach(ClientAddress address) {
+		Vector<MqttUnsubscribe> unsubscribes = new Vector<MqttUnsubscribe>();
+		Vector<Integer> releases = new Vector<Integer>();
+		synchronized (this) {
+			Vector<String> filters = clientFilters.remove(address);
+			if(filters != null){
+				for(int i = 0; i < filters.size(); i++){
+					String filter = filters.get(i);
+					if(removeSubscriber(filter, address)){
+						MqttUnsubscribe unsubscribe = new MqttUnsubscribe();
+						unsubscribe.setTopicName(filter);
+						try {
+							unsubscribe.setMsgId(putPendingRequest(null, 0));
+						} catch (MqttsException e) {
+							continue;
+						}
+						unsubscribes.add(unsubscribe);
+					}
+				}
+			}
+
+			//forget the requests of this client (the QoS 2 flows that wait for the
+			//Mqtt PUBREL message of the client are completed by the gateway)
+			Iterator<Map.Entry<Integer, PendingRequest>> iter = pendingRequests.entrySet().iterator();
+			while (iter.hasNext()) {
+				Map.Entry<Integer, PendingRequest> entry = iter.next();
+				PendingRequest request = entry.getValue();
+				if(request.address != null && request.address.equal(address)){
+					request.address = null;
+					if(request.received)
+						releases.add(entry.getKey());
+				}
+			}
+			Iterator<Subscription> subs = subscriptions.values().iterator();
+			while (subs.hasNext()) {
+				Vector<PendingRequest> waiting = subs.next().waiting;
+				for(int i = 0; i < waiting.size(); i++){
+					PendingRequest request = waiting.get(i);
+					if(request.address != null && request.address.equal(address))
+						request.address = null;
+				}
+			}
+		}
+
+		for(int i = 0; i < unsubscribes.size(); i++){
+			try {
+				write(unsubscribes.get(i));
+			} catch (MqttsException e) {
+				return;
+			}
+		}
+		for(int i = 0; i < releases.size(); i++)
+			releaseOrphan(releases.get(i).intValue());
+	}
+
+
+	/**
+	 * This method sends a Mqtt PUBLISH message of a client to the broker.If the QoS
+	 * of the message is greater than 0, the message id of the client is replaced by
+	 * one of the gateway.
+	 *
+	 * @param address The address of the client (null for a message of the gateway itself).
+	 * @param publish The Mqtt PUBLISH message.
+	 * @return The message id that was used by the gateway (0 if QoS is 0).
+	 * @throws MqttsException
+	 */
+	public int publish(ClientAddress address, MqttPublish publish) throws MqttsException {
+		if(publish.getQos() == 0){
+			write(publish);
+			return 0;
+		}
+
+		int clientMsgId = publish.getMsgId();
+		int gwMsgId;
+		synchronized (this) {
+			gwMsgId = putPendingRequest(address, clientMsgId);
+		}
+		publish.setMsgId(gwMsgId);
+		try{
+			write(publish);
+		}finally{
+			publish.setMsgId(clientMsgId);
+		}
+		return gwMsgId;
+	}
+
+
+	/**
+	 * This method sends a Mqtt PUBREL message of a client to the broker.
+	 *
+	 * @param pubrel The Mqtt PUBREL message.
+	 * @param gwMsgId The message id that the gateway used for the corresponding PUBLISH message.
+	 * @throws MqttsException
+	 */
+	public void release(MqttPubRel pubrel, int gwMsgId) throws MqttsException {
+		int clientMsgId = pubrel.getMsgId();
+		pubrel.setMsgId(gwMsgId);
+		try{
+			write(pubrel);
+		}finally{
+			pubrel.setMsgId(clientMsgId);
+		}
+	}
+
+
+	/**
+	 * This method subscribes a client to a topic filter.The Mqtt SUBSCRIBE message is sent
+	 * to the broker only if the topic filter is not subscribed yet or the client requests
+	 * a higher QoS, otherwise the Mqtt SUBACK message is generated by the gateway (as soon
+	 * as the broker has granted the QoS of the filter).
+	 *
+	 * @param address The address of the client.
+	 * @param subscribe The Mqtt SUBSCRIBE message of the client.
+	 * @throws MqttsException
+	 */
+	public void subscribe(ClientAddress address, MqttSubscribe subscribe) throws MqttsException {
+		int clientMsgId = subscribe.getMsgId();
+		int qos = subscribe.getRequestedQoS();
+		int gwMsgId = 0;
+		int grantedQoS = -1;
+		synchronized (this) {
+			String filter = subscribe.getTopicName();
+			Vector<String> filters = clientFilters.get(address);
+			if(filters == null){
+				filters = new Vector<String>();
+				clientFilters.put(address, filters);
+			}
+			if(!filters.contains(filter)){
+				filters.add(filter);
+				Vector<ClientAddress> subscribers = filterSubscribers.get(filter);
+				if(subscribers == null){
+					subscribers = new Vector<ClientAddress>();
+					filterSubscribers.put(filter, subscribers);
+					if(filter.indexOf('+') >= 0 || filter.indexOf('#') >= 0)
+						wildcardFilters.add(filter);
+				}
+				subscribers.add(address);
+			}
+
+			Subscription subscription = subscriptions.get(filter);
+			if(subscription == null){
+				subscription = new Subscription();
+				subscriptions.put(filter, subscription);
+			}
+			if(qos <= subscription.qos){
+				if(subscription.grantedQoS < 0){
+					//wait for the Mqtt SUBACK message of the broker
+					PendingRequest request = new PendingRequest(address, clientMsgId);
+					request.qos = qos;
+					subscription.waiting.add(request);
+					return;
+				}
+				grantedQoS = Math.min(qos, subscription.grantedQoS);
+			}else{
+				//a higher QoS does not downgrade the other subscribers of the filter
+				PendingRequest request = new PendingRequest(address, clientMsgId);
+				request.filter = filter;
+				request.qos = qos;
+				gwMsgId = putPendingRequest(request);
+				subscription.qos = qos;
+				subscription.grantedQoS = -1;
+				subscription.msgId = gwMsgId;
+				subscription.retainedRecipients.clear();
+				subscription.retainedRecipients.add(address);
+			}
+		}
+
+		if(gwMsgId == 0){
+			MqttSuback suback = new MqttSuback();
+			suback.setMsgId(clientMsgId);
+			suback.setGrantedQoS(grantedQoS);
+			deliverToClient(address, suback);
+			return;
+		}
+
+		subscribe.setMsgId(gwMsgId);
+		try{
+			write(subscribe);
+		}finally{
+			subscribe.setMsgId(clientMsgId);
+		}
+	}
+
+
+	/**
+	 * This method unsubscribes a client from a topic filter.The Mqtt UNSUBSCRIBE message
+	 * is sent to the broker only if no other client uses the topic filter, otherwise the
+	 * Mqtt UNSUBACK message is generated by the gateway.
+	 *
+	 * @param address The address of the client.
+	 * @param unsubscribe The Mqtt UNSUBSCRIBE message of the client.
+	 * @throws MqttsException
+	 */
+	public void unsubscribe(ClientAddress address, MqttUnsubscribe unsubscribe) throws MqttsException {
+		int clientMsgId = unsubscribe.getMsgId();
+		int gwMsgId = 0;
+		synchronized (this) {
+			String filter = unsubscribe.getTopicName();
+			Vector<String> filters = clientFilters.get(address);
+			if(filters != null)
+				filters.remove(filter);
+			if(removeSubscriber(filter, address))
+				gwMsgId = putPendingRequest(address, clientMsgId);
+		}
+
+		if(gwMsgId == 0){
+			MqttUnsuback unsuback = new MqttUnsuback();
+			unsuback.setMsgId(clientMsgId);
+			deliverToClient(address, unsuback);
+			return;
+		}
+
+		unsubscribe.setMsgId(gwMsgId);
+		try{
+			write(unsubscribe);
+		}finally{
+			unsubscribe.setMsgId(clientMsgId);
+		}
+	}
+
+
+	/**
+	 * This method sends a Mqtt PINGREQ message to the broker, if the connection is established.
+	 */
+	public void sendKeepAlive() {
+		if(!connected)
+			return;
+		try {
+			write(new MqttPingReq());
+		} catch (MqttsException e) {
+			GatewayLogger.log(GatewayLogger.ERROR, "PooledBrokerConnection [{}] - Failed sending Mqtt PINGREQ message to the broker.", clientId);
+		}
+	}
+
+
+	/**
+	 * This method sends a Mqtt DISCONNECT message to the broker and closes the connection.
+	 */
+	public void shutDown() {
+		if(!connected)
+			return;
+		connected = false;
+		Link l = link;
+		l.setRunning(false);
+		synchronized (writeLock) {
+			try {
+				l.sendMsg(new MqttDisconnect());
+			} catch (MqttsException e) {
+				// do nothing
+			}
+		}
+		l.disconnect();
+	}
+
+
+	/**
+	 * This method writes a Mqtt message to the socket.If writing fails, all clients of
+	 * this connection are informed that the connection with the broker was lost.
+	 *
+	 * @param message The Mqtt message.
+	 * @throws MqttsException
+	 */
+	private void write(MqttMessage message) throws MqttsException {
+		Link l = link;
+		if(l == null)
+			throw new MqttsException("No connection with the broker");
+		MqttsException failure = null;
+		synchronized (writeLock) {
+			try {
+				l.sendMsg(message);
+			} catch (MqttsException e) {
+				failure = e;
+			}
+		}
+		if(failure != null){
+			connectionLost(l);
+			throw failure;
+		}
+	}
+
+
+	/**
+	 * This method handles a Mqtt message that was received from the broker.
+	 *
+	 * @param mqttMsg The Mqtt message.
+	 */
+	private void deliverMsg(MqttMessage mqttMsg) {
+		if(mqttMsg == null)
+			return;
+
+		PendingRequest request;
+		switch(mqttMsg.getMsgType()){
+		case MqttMessage.CONNACK:
+			if(((MqttConnack)mqttMsg).getReturnCode() != MqttMessage.RETURN_CODE_CONNECTION_ACCEPTED){
+				GatewayLogger.log(GatewayLogger.ERROR, "PooledBrokerConnection [{}] - Return Code of Mqtt CONNACK message it is not \"Connection Accepted\".", clientId);
+				Link l = link;
+				l.setRunning(false);
+				connectionLost(l);
+			}else
+				GatewayLogger.log(GatewayLogger.INFO, "PooledBrokerConnection [{}] - Mqtt connection established.", clientId);
+			break;
+
+		case MqttMessage.PUBLISH:
+			handlePublish((MqttPublish)mqttMsg);
+			break;
+
+		case MqttMessage.PUBREL:
+			//the gateway has already delivered the message to the clients, complete the flow
+			MqttPubComp pubcomp = new MqttPubComp();
+			pubcomp.setMsgId(((MqttPubRel)mqttMsg).getMsgId());
+			try {
+				write(pubcomp);
+			} catch (MqttsException e) {
+				// the connection is lost
+			}
+			break;
+
+		case MqttMessage.PUBACK:
+			MqttPuback puback = (MqttPuback)mqttMsg;
+			request = removePendingRequest(puback.getMsgId());
+			if(request != null && request.address != null){
+				puback.setMsgId(request.msgId);
+				deliverToClient(request.address, puback);
+			}
+			break;
+
+		case MqttMessage.PUBREC:
+			//keep the request until the Mqtt PUBCOMP message is received
+			MqttPubRec pubrec = (MqttPubRec)mqttMsg;
+			ClientAddress recipient;
+			synchronized (this) {
+				request = pendingRequests.get(Integer.valueOf(pubrec.getMsgId()));
+				if(request == null)
+					break;
+				request.received = true;
+				recipient = request.address;
+			}
+			if(recipient != null){
+				pubrec.setMsgId(request.msgId);
+				deliverToClient(recipient, pubrec);
+			}else
+				//the message was sent by the gateway itself or its client is gone
+				releaseOrphan(pubrec.getMsgId());
+			break;
+
+		case MqttMessage.PUBCOMP:
+			MqttPubComp comp = (MqttPubComp)mqttMsg;
+			request = removePendingRequest(comp.getMsgId());
+			if(request != null && request.address != null){
+				comp.setMsgId(request.msgId);
+				deliverToClient(request.address, comp);
+			}
+			break;
+
+		case MqttMessage.SUBACK:
+			handleSuback((MqttSuback)mqttMsg);
+			break;
+
+		case MqttMessage.UNSUBACK:
+			MqttUnsuback unsuback = (MqttUnsuback)mqttMsg;
+			request = removePendingRequest(unsuback.getMsgId());
+			if(request != null && request.address != null){
+				unsuback.setMsgId(request.msgId);
+				deliverToClient(request.address, unsuback);
+			}
+			break;
+
+		case MqttMessage.PINGRESP:
+			//nothing to do
+			break;
+
+		default:
+			GatewayLogger.log(GatewayLogger.WARN, "PooledBrokerConnection [{}] - Mqtt message of unexpected type \"{}\" received.", clientId, mqttMsg.getMsgType());
+			break;
+		}
+	}
+
+
+	/**
+	 * This method sends a Mqtt PUBREL message to the broker for a QoS 2 PUBLISH message
+	 * that no client will release.The request is removed when the Mqtt PUBCOMP message
+	 * is received.
+	 *
+	 * @param gwMsgId The message id that the gateway used for the PUBLISH message.
+	 */
+	private void releaseOrphan(int gwMsgId) {
+		MqttPubRel pubrel = new MqttPubRel();
+		pubrel.setMsgId(gwMsgId);
+		try {
+			write(pubrel);
+		} catch (MqttsException e) {
+			// the connection is lost
+		}
+	}
+
+
+	/**
+	 * This method delivers a Mqtt SUBACK message of the broker to the client that sent
+	 * the subscription and to the clients that wait for the same topic filter.
+	 *
+	 * @param suback The Mqtt SUBACK message.
+	 */
+	private void handleSuback(MqttSuback suback) {
+		int gwMsgId = suback.getMsgId();
+		int grantedQoS = suback.getGrantedQoS();
+		PendingRequest request;
+		Vector<PendingRequest> waiting = null;
+		synchronized (this) {
+			request = pendingRequests.remove(Integer.valueOf(gwMsgId));
+			if(request == null)
+				return;
+			Subscription subscription = (request.filter == null) ? null : subscriptions.get(request.filter);
+			if(subscription != null && subscription.msgId == gwMsgId){
+				subscription.grantedQoS = grantedQoS;
+				waiting = new Vector<PendingRequest>(subscription.waiting);
+				subscription.waiting.clear();
+				for(int i = 0; i < waiting.size(); i++){
+					ClientAddress address = waiting.get(i).address;
+					if(address != null && !subscription.retainedRecipients.contains(address))
+						subscription.retainedRecipients.add(address);
+				}
+			}
+		}
+
+		if(request.address != null){
+			suback.setMsgId(request.msgId);
+			deliverToClient(request.address, suback);
+		}
+		if(waiting == null)
+			return;
+		for(int i = 0; i < waiting.size(); i++){
+			PendingRequest w = waiting.get(i);
+			if(w.address == null)
+				continue;
+			MqttSuback localSuback = new MqttSuback();
+			localSuback.setMsgId(w.msgId);
+			localSuback.setGrantedQoS(Math.min(w.qos, grantedQoS));
+			deliverToClient(w.address, localSuback);
+		}
+	}
+
+
+	/**
+	 * This method acknowledges a Mqtt PUBLISH message of the broker and delivers it to all
+	 * clients with a matching subscription.The gateway acknowledges the message before the
+	 * clients have received it, so a message with QoS 2 is delivered to the clients with
+	 * QoS 1 (the broker does not know about the delivery to every client).
+	 *
+	 * @param publish The Mqtt PUBLISH message.
+	 */
+	private void handlePublish(MqttPublish publish) {
+		MqttMessage ack = null;
+		if(publish.getQos() == 1){
+			MqttPuback puback = new MqttPuback();
+			puback.setMsgId(publish.getMsgId());
+			ack = puback;
+		}else if(publish.getQos() == 2){
+			MqttPubRec pubrec = new MqttPubRec();
+			pubrec.setMsgId(publish.getMsgId());
+			ack = pubrec;
+			if(!qos2Logged){
+				GatewayLogger.log(GatewayLogger.WARN, "PooledBrokerConnection [{}] - Mqtt PUBLISH message with \"QoS\" = \"2\" received. The messages of the broker are delivered to the clients with \"QoS\" = \"1\" in aggregating mode.", clientId);
+				qos2Logged = true;
+			}
+			publish = copyWithQos(publish, 1);
+		}
+		if(ack != null){
+			try {
+				write(ack);
+			} catch (MqttsException e) {
+				return;
+			}
+		}
+
+		//the broker sends a retained message only as the result of a new subscription,
+		//so it is delivered only to the clients that caused the last Mqtt SUBSCRIBE message
+		Vector<ClientAddress> recipients = new Vector<ClientAddress>();
+		synchronized (this) {
+			String topic = publish.getTopicName();
+			boolean retained = publish.isRetain();
+			addRecipients(recipients, topic, retained);
+			for(int i = 0; i < wildcardFilters.size(); i++){
+				String filter = wildcardFilters.get(i);
+				if(topicMatches(filter, topic))
+					addRecipients(recipients, filter, retained);
+			}
+		}
+
+		//the same message object is delivered to all recipients, the handlers only read it
+		for(int i = 0; i < recipients.size(); i++)
+			deliverToClient(recipients.get(i), publish);
+	}
+
+
+	/**
+	 * This method returns a copy of a Mqtt PUBLISH message with another QoS.
+	 *
+	 * @param publish The Mqtt PUBLISH message.
+	 * @param qos The QoS of the copy.
+	 * @return The copy.
+	 */
+	private static MqttPublish copyWithQos(MqttPublish publish, int qos) {
+		MqttPublish copy = new MqttPublish();
+		copy.setDup(publish.isDup());
+		copy.setQos(qos);
+		copy.setRetain(publish.isRetain());
+		copy.setTopicName(publish.getTopicName());
+		copy.setMsgId(publish.getMsgId());
+		copy.setPayload(publish.getPayload());
+		return copy;
+	}
+
+
+	/**
+	 * This method closes a TCP/IP connection with the broker that was lost and informs
+	 * all clients of this connection.It has no effect if the connection has already been
+	 * replaced by a new one.
+	 *
+	 * @param lost The lost connection.
+	 */
+	private void connectionLost(Link lost) {
+		Vector<ClientAddress> clients = new Vector<ClientAddress>();
+		synchronized (this) {
+			if(!connected || lost != link)
+				return;
+			connected = false;
+			Enumeration<ClientAddress> keys = clientFilters.keys();
+			while(keys.hasMoreElements())
+				clients.add(keys.nextElement());
+			clientFilters.clear();
+			filterSubscribers.clear();
+			wildcardFilters.clear();
+			subscriptions.clear();
+			pendingRequests.clear();
+		}
+		GatewayLogger.log(GatewayLogger.ERROR, "PooledBrokerConnection [{}] - TCP/IP connection with the broker was lost. {} client(s) affected.", clientId, clients.size());
+		lost.disconnect();
+
+		for(int i = 0; i < clients.size(); i++){
+			ControlMessage controlMsg = new ControlMessage();
+			controlMsg.setMsgType(ControlMessage.CONNECTION_LOST);
+			Message msg = new Message(clients.get(i));
+			msg.setType(Message.CONTROL_MSG);
+			msg.setControlMessage(controlMsg);
+			dispatcher.putMessage(msg);
+		}
+	}
+
+
+	/**
+	 * This method puts a Mqtt message to the dispatcher's queue for the handler of a client.
+	 * The reading thread is never blocked by a full queue, since it serves the clients of all
+	 * lanes; instead the Mqtt PUBLISH messages for a client whose queue is full are dropped.
+	 *
+	 * @param address The address of the client.
+	 * @param mqttMsg The Mqtt message.
+	 */
+	void deliverToClient(ClientAddress address, MqttMessage mqttMsg) {
+		Message msg = new Message(address);
+		msg.setType(Message.MQTT_MSG);
+		msg.setMqttMessage(mqttMsg);
+		dispatcher.offerMessage(msg, null);
+	}
+
+
+	/**
+	 * This method stores a pending request under a new message id of the gateway.
+	 * It should be called while holding the lock of this object.
+	 *
+	 * @param address The address of the client (null for a request of the gateway itself).
+	 * @param msgId The message id of the client.
+	 * @return The message id of the gateway.
+	 * @throws MqttsException If all message ids are in use.
+	 */
+	private int putPendingRequest(ClientAddress address, int msgId) throws MqttsException {
+		return putPendingRequest(new PendingRequest(address, msgId));
+	}
+
+
+	/**
+	 * This method stores a pending request under a new message id of the gateway.
+	 * It should be called while holding the lock of this object.
+	 *
+	 * @param request The request.
+	 * @return The message id of the gateway.
+	 * @throws MqttsException If all message ids are in use.
+	 */
+	private int putPendingRequest(PendingRequest request) throws MqttsException {
+		if(pendingRequests.size() >= 65535)
+			throw new MqttsException("No free message id on connection "+clientId);
+		Integer key;
+		do{
+			key = Integer.valueOf(nextMsgId);
+			nextMsgId = (nextMsgId == 65535) ? 1 : nextMsgId + 1;
+		}while(pendingRequests.containsKey(key));
+		pendingRequests.put(key, request);
+		return key.intValue();
+	}
+
+
+	/**
+	 * @param gwMsgId The message id of the gateway.
+	 * @return The pending request or null if there is no such a request.
+	 */
+	private synchronized PendingRequest removePendingRequest(int gwMsgId) {
+		return pendingRequests.remove(Integer.valueOf(gwMsgId));
+	}
+
+
+	/**
+	 * This method removes a client from the subscribers of a topic filter.
+	 * It should be called while holding the lock of this object.
+	 *
+	 * @return True if the topic filter is no more used by any client.
+	 */
+	private boolean removeSubscriber(String filter, ClientAddress address) {
+		Vector<ClientAddress> subscribers = filterSubscribers.get(filter);
+		if(subscribers == null)
+			return false;
+		subscribers.remove(address);
+		Subscription subscription = subscriptions.get(filter);
+		if(subscription != null)
+			subscription.retainedRecipients.remove(address);
+		if(!subscribers.isEmpty())
+			return false;
+		filterSubscribers.remove(filter);
+		wildcardFilters.remove(filter);
+		subscriptions.remove(filter);
+		return true;
+	}
+
+
+	/**
+	 * This method adds the subscribers of a topic filter (or, for a retained message, the
+	 * clients that receive the retained messages of the filter) to the recipients of a
+	 * message, so that every client receives the message only once.
+	 * It should be called while holding the lock of this object.
+	 */
+	private void addRecipients(Vector<ClientAddress> recipients, String filter, boolean retained) {
+		Vector<ClientAddress> subscribers;
+		if(retained){
+			Subscription subscription = subscriptions.get(filter);
+			subscribers = (subscription == null) ? null : subscription.retainedRecipients;
+		}else
+			subscribers = filterSubscribers.get(filter);
+		if(subscribers == null)
+			return;
+		for(int i = 0; i < subscribers.size(); i++){
+			ClientAddress address = subscribers.get(i);
+			if(!recipients.contains(address))
+				recipients.add(address);
+		}
+	}
+
+
+	/**
+	 * This method checks whether a topic name matches a topic filter that may contain
+	 * the wildcards '+' (single level) and '#' (multiple levels).
+	 *
+	 * @param filter The topic filter.
+	 * @param topic The topic name.
+	 * @return True if the topic name matches the filter.
+	 */
+	public static boolean topicMatches(String filter, String topic) {
+		int f = 0;
+		int t = 0;
+		int fLength = filter.length();
+		int tLength = topic.length();
+		while(f < fLength){
+			char c = filter.charAt(f);
+			if(c == '#')
+				return true;
+			if(c == '+'){
+				//skip one level of the topic name
+				while(t < tLength && topic.charAt(t) != '/')
+					t++;
+				f++;
+				continue;
+			}
+			if(t >= tLength){
+				//"a/#" matches also "a"
+				return (filter.regionMatches(f, "/#", 0, 2) && f + 2 == fLength);
+			}
+			if(c != topic.charAt(t))
+				return false;
+			f++;
+			t++;
+		}
+		return t == tLength;
+	}
+
+
+	/**
+	 * This class represents one TCP/IP connection with the broker.The messages of its
+	 * reading thread are handled only while it is the current connection.
+	 */
+	private class Link extends TCPBrokerInterface {
+
+		public Link() {
+			super(GWParameters.getGatewayAddress());
+		}
+
+		/* (non-Javadoc)
+		 * @see com.ibm.zurich.mqttsgw.broker.tcp.TCPBrokerInterface#deliverMsg(com.ibm.zurich.mqttsgw.messages.mqtt.MqttMessage)
+		 */
+		protected void deliverMsg(MqttMessage mqttMsg) {
+			if(this == link)
+				PooledBrokerConnection.this.deliverMsg(mqttMsg);
+		}
+
+		/* (non-Javadoc)
+		 * @see com.ibm.zurich.mqttsgw.broker.tcp.TCPBrokerInterface#connectionLost()
+		 */
+		protected void connectionLost() {
+			PooledBrokerConnection.this.connectionLost(this);
+		}
+	}
+
+
+	/**
+	 * This class represents a request that waits for a response from the broker.
+	 */
+	private static class PendingRequest {
+
+		//the address of the client (null if the request was made by the gateway itself)
+		private ClientAddress address;
+
+		//the message id that the client used
+		private int msgId;
+
+		//the topic filter and the QoS that the client requested (for a subscription)
+		private String filter = null;
+		private int qos = 0;
+
+		//true when the Mqtt PUBREC message of the broker was received (for a QoS 2 PUBLISH)
+		private boolean received = false;
+
+		public PendingRequest(ClientAddress address, int msgId) {
+			this.address = address;
+			this.msgId = msgId;
+		}
+	}
+
+
+	/**
+	 * This class represents the subscription of a topic filter with the broker.
+	 */
+	private static class Subscription {
+
+		//the highest QoS that was requested from the broker
+		private int qos = -1;
+
+		//the QoS that the broker granted (-1 while the last Mqtt SUBSCRIBE message waits for its SUBACK)
+		private int grantedQoS = -1;
+
+		//the message id of the last Mqtt SUBSCRIBE message
+		private int msgId = 0;
+
+		//the requests of the clients that wait for the SUBACK of the last Mqtt SUBSCRIBE message
+		private Vector<PendingRequest> waiting = new Vector<PendingRequest>();
+
+		//the clients that receive the retained messages of the last Mqtt SUBSCRIBE message
+		private Vector<ClientAddress> retainedRecipients = new Vector<ClientAddress>();
+	}
+}
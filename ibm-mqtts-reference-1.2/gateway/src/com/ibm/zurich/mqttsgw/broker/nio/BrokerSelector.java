@@ -0,0 +1,198 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2013 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License v2.0
+ * which is available at:
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *******************************************************************************/
+
+package com.ibm.zurich.mqttsgw.broker.nio;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.ibm.zurich.mqttsgw.exceptions.MqttsException;
+import com.ibm.zurich.mqttsgw.utils.GWParameters;
+import com.ibm.zurich.mqttsgw.utils.GatewayLogger;
+
+/**
+ * This class represents an event loop that serves the TCP/IP connections of many
+ * {@link NIOBrokerInterface} objects with a single thread.
+ * The number of event loops is given by {@link GWParameters#getBrokerSelectors()}.
+ * The connections are assigned to the event loops in a round-robin fashion.
+ *
+ */
+public class BrokerSelector implements Runnable {
+
+	private static BrokerSelector[] selectors = null;
+	private static int next = 0;
+
+	private Selector selector;
+	private Thread selectorThread;
+
+	//broker interfaces that wait to be registered with the selector
+	private ConcurrentLinkedQueue<NIOBrokerInterface> registrations;
+
+	//broker interfaces that have pending data to write
+	private ConcurrentLinkedQueue<NIOBrokerInterface> writeRequests;
+
+	//broker interfaces whose reading was paused and can be resumed
+	private ConcurrentLinkedQueue<NIOBrokerInterface> readRequests;
+
+
+	/**
+	 * Constructor of the event loop.
+	 *
+	 * @param name The name of the thread of the event loop.
+	 * @throws MqttsException
+	 */
+	private BrokerSelector(String name) throws MqttsException {
+		try {
+			selector = Selector.open();
+		} catch (IOException e) {
+			throw new MqttsException(e.getMessage());
+		}
+		registrations = new ConcurrentLinkedQueue<NIOBrokerInterface>();
+		writeRequests = new ConcurrentLinkedQueue<NIOBrokerInterface>();
+		readRequests = new ConcurrentLinkedQueue<NIOBrokerInterface>();
+		selectorThread = new Thread(this, name);
+		selectorThread.setDaemon(true);
+		selectorThread.start();
+	}
+
+
+	/**
+	 * This method returns the next event loop.The event loops are created the first
+	 * time this method is called.
+	 *
+	 * @return The event loop.
+	 * @throws MqttsException
+	 */
+	public static synchronized BrokerSelector getNext() throws MqttsException {
+		if(selectors == null){
+			int size = GWParameters.getBrokerSelectors();
+			if(size < 1)
+				size = 1;
+			BrokerSelector[] s = new BrokerSelector[size];
+			for(int i = 0; i < size; i++)
+				s[i] = new BrokerSelector(size == 1 ? "BrokerSelector" : "BrokerSelector-"+i);
+			selectors = s;
+		}
+		BrokerSelector selector = selectors[next];
+		next = (next + 1) % selectors.length;
+		return selector;
+	}
+
+
+	/**
+	 * This method registers the channel of a broker interface with this event loop.
+	 *
+	 * @param brokerInterface The broker interface.
+	 */
+	void register(NIOBrokerInterface brokerInterface) {
+		registrations.add(brokerInterface);
+		selector.wakeup();
+	}
+
+
+	/**
+	 * This method informs the event loop that a broker interface has pending data to write.
+	 *
+	 * @param brokerInterface The broker interface.
+	 */
+	void requestWrite(NIOBrokerInterface brokerInterface) {
+		writeRequests.add(brokerInterface);
+		selector.wakeup();
+	}
+
+
+	/**
+	 * This method informs the event loop that a broker interface can resume reading, since
+	 * the queue of the dispatcher has drained.
+	 *
+	 * @param brokerInterface The broker interface.
+	 */
+	void requestRead(NIOBrokerInterface brokerInterface) {
+		readRequests.add(brokerInterface);
+		selector.wakeup();
+	}
+
+
+	/* (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	public void run() {
+		while (true) {
+			try {
+				selector.select();
+			} catch (IOException e) {
+				GatewayLogger.log(GatewayLogger.ERROR, "BrokerSelector - Selector failed: {}", e.getMessage());
+				return;
+			}
+
+			//register the new channels
+			NIOBrokerInterface brokerInterface;
+			while((brokerInterface = registrations.poll()) != null){
+				SocketChannel channel = brokerInterface.getChannel();
+				if(channel == null)
+					//the broker interface has been disconnected in the meantime
+					continue;
+				try {
+					int ops = SelectionKey.OP_READ;
+					if(brokerInterface.hasPendingWrites())
+						ops |= SelectionKey.OP_WRITE;
+					SelectionKey key = channel.register(selector, ops, brokerInterface);
+					brokerInterface.setSelectionKey(key);
+				} catch (ClosedChannelException e) {
+					//the broker interface has been disconnected in the meantime
+				}
+			}
+
+			//enable writing for the channels with pending data
+			while((brokerInterface = writeRequests.poll()) != null){
+				SelectionKey key = brokerInterface.getSelectionKey();
+				if(key == null)
+					//not registered yet, the registration checks for pending data
+					continue;
+				try {
+					key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+				} catch (CancelledKeyException e) {
+					//the broker interface has been disconnected in the meantime
+				}
+			}
+
+			//resume the reading of the channels that were paused
+			while((brokerInterface = readRequests.poll()) != null){
+				try {
+					brokerInterface.resumeReading();
+				} catch (CancelledKeyException e) {
+					//the broker interface has been disconnected in the meantime
+				}
+			}
+
+			//serve the ready channels
+			Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+			while(iter.hasNext()){
+				SelectionKey key = iter.next();
+				iter.remove();
+				brokerInterface = (NIOBrokerInterface)key.attachment();
+				try {
+					if(key.isWritable())
+						brokerInterface.writePending();
+					if(key.isValid() && key.isReadable())
+						brokerInterface.readMsg();
+				} catch (CancelledKeyException e) {
+					//the broker interface has been disconnected in the meantime
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,407 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2013 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License v2.0
+ * which is available at:
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *******************************************************************************/
+
+package com.ibm.zurich.mqttsgw.broker.nio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+
+import com.ibm.zurich.mqttsgw.broker.BrokerInterface;
+import com.ibm.zurich.mqttsgw.broker.MqttFrameDecoder;
+import com.ibm.zurich.mqttsgw.core.Dispatcher;
+import com.ibm.zurich.mqttsgw.exceptions.MqttsException;
+import com.ibm.zurich.mqttsgw.messages.Message;
+import com.ibm.zurich.mqttsgw.messages.control.ControlMessage;
+import com.ibm.zurich.mqttsgw.messages.mqtt.MqttMessage;
+import com.ibm.zurich.mqttsgw.utils.Address;
+import com.ibm.zurich.mqttsgw.utils.GWParameters;
+import com.ibm.zurich.mqttsgw.utils.GatewayLogger;
+
+/**
+ * This class represents the interface to the broker and is instantiated by the
+ * MessageHandler.Is is used for opening a TCP/IP connection with the broker
+ * and sending/receiving Mqtt Messages.
+ * Unlike {@link com.ibm.zurich.mqttsgw.broker.tcp.TCPBrokerInterface} it does not create
+ * a reading thread.The connection is served by one of the {@link BrokerSelector} event loops.
+ * For every client there is one instance of this class.
+ *
+ * @see com.ibm.zurich.core.ClientMsgHandler
+ *
+ */
+public class NIOBrokerInterface implements BrokerInterface {
+
+	private SocketChannel channel;
+	private volatile SelectionKey key;
+
+	private Address address;
+	private String brokerURL;
+	private int port;
+	private String clientId;
+
+	private volatile boolean running;
+
+	private Dispatcher dispatcher;
+	private BrokerSelector selector;
+
+	//splits the received byte stream into Mqtt messages
+	private MqttFrameDecoder frameDecoder;
+
+	//data that could not be written to the socket without blocking
+	private LinkedList<ByteBuffer> writeQueue;
+
+	//true while the reading is paused because the queue of the dispatcher is full
+	//(changed only by the thread of the event loop)
+	private boolean paused = false;
+
+	//asks the event loop to resume the reading when the queue of the dispatcher has drained
+	private final Runnable resumeReading = new Runnable() {
+		public void run() {
+			selector.requestRead(NIOBrokerInterface.this);
+		}
+	};
+
+
+	/**
+	 * Constructor of the broker interface.
+	 */
+	public NIOBrokerInterface(Address address) {
+		this.address = address;
+		this.brokerURL = GWParameters.getBrokerURL();
+		this.port = GWParameters.getBrokerTcpPort();
+		this.running = false;
+		this.dispatcher = Dispatcher.getInstance();
+		this.writeQueue = new LinkedList<ByteBuffer>();
+	}
+
+
+	/**
+	 * This method opens the TCP/IP connection with the broker and registers it
+	 * with an event loop.
+	 *
+	 * @throws MqttsException
+	 */
+	public void initialize() throws MqttsException{
+		try {
+			//the connection is established in blocking mode, like in TCPBrokerInterface
+			channel = SocketChannel.open(new InetSocketAddress(brokerURL, port));
+			channel.configureBlocking(false);
+			frameDecoder = new MqttFrameDecoder();
+			selector = BrokerSelector.getNext();
+		} catch (IOException e) {
+			disconnect();
+			throw new MqttsException(e.getMessage());
+		} catch (MqttsException e) {
+			disconnect();
+			throw e;
+		}
+
+		this.running = true;
+		selector.register(this);
+	}
+
+
+	/**
+	 * This method sends a Mqtt message to the broker over the already established
+	 * TCP/IP connection.If the message cannot be written without blocking, the rest
+	 * of it is written by the event loop.
+	 *
+	 * @param message The MqttMessage to be send to the broker.
+	 * @throws MqttsException
+	 */
+	public void sendMsg(MqttMessage message) throws MqttsException{
+		SocketChannel ch = this.channel;
+		if (ch == null) {
+			disconnect();
+			throw new MqttsException("Channel is null!");
+		}
+
+		ByteBuffer buffer = ByteBuffer.wrap(message.toBytes());
+		boolean requestWrite = false;
+		synchronized (writeQueue) {
+			try {
+				//keep the order of the messages
+				if (writeQueue.isEmpty())
+					ch.write(buffer);
+			} catch (IOException e) {
+				disconnect();
+				throw new MqttsException(e.getMessage());
+			}
+			if (buffer.hasRemaining()) {
+				requestWrite = writeQueue.isEmpty();
+				writeQueue.addLast(buffer);
+			}
+		}
+		if (requestWrite)
+			selector.requestWrite(this);
+	}
+
+
+	/**
+	 * This method is called by the event loop when the channel is writable.It writes
+	 * the pending data and stops listening for write readiness when all data are written.
+	 */
+	void writePending() {
+		SocketChannel ch = this.channel;
+		SelectionKey k = this.key;
+		if (ch == null || k == null)
+			return;
+
+		synchronized (writeQueue) {
+			try {
+				while (!writeQueue.isEmpty()) {
+					ByteBuffer buffer = writeQueue.getFirst();
+					ch.write(buffer);
+					if (buffer.hasRemaining())
+						return;
+					writeQueue.removeFirst();
+				}
+				k.interestOps(k.interestOps() & ~SelectionKey.OP_WRITE);
+			} catch (IOException e) {
+				writeQueue.clear();
+				if (this.running) {
+					this.running = false;
+					connectionLost();
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * This method is called by the event loop when the channel is readable.It reads the
+	 * available data without blocking and decodes all the complete Mqtt messages that
+	 * have been received so far.
+	 */
+	public void readMsg(){
+		SocketChannel ch = this.channel;
+		if (ch == null)
+			return;
+
+		try{
+			int res = frameDecoder.readFrom(ch);
+			if(res == -1) {
+				//EOF detected
+				closeChannel();
+				if(this.running == true){
+					this.running = false;
+					connectionLost();
+				}
+				return;
+			}
+
+			//the messages are dropped after setRunning(false), like the reading thread
+			//of TCPBrokerInterface stops reading
+			if(!this.running)
+				return;
+
+			decodeFrames();
+		}catch(MqttsException e){
+			//the stream cannot be resynchronized after an invalid frame
+			GatewayLogger.log(GatewayLogger.WARN, "NIOBrokerInterface [{}]/[{}] - Not a valid Mqtt message: {}", this.address.getAddress(), clientId, e.getMessage());
+			closeChannel();
+			if(this.running == true){
+				this.running = false;
+				connectionLost();
+			}
+		}catch(IOException e){
+			closeChannel();
+			if(this.running == true){
+				this.running = false;
+				connectionLost();
+			}
+		}
+	}
+
+
+	/**
+	 * This method is called by the event loop when the queue of the dispatcher has drained.
+	 * It decodes the Mqtt messages that were received before the reading was paused and
+	 * reads again from the channel.
+	 */
+	void resumeReading(){
+		if(!paused)
+			return;
+		paused = false;
+		if(this.channel == null || !this.running)
+			return;
+
+		try{
+			decodeFrames();
+		}catch(MqttsException e){
+			GatewayLogger.log(GatewayLogger.WARN, "NIOBrokerInterface [{}]/[{}] - Not a valid Mqtt message: {}", this.address.getAddress(), clientId, e.getMessage());
+			closeChannel();
+			if(this.running == true){
+				this.running = false;
+				connectionLost();
+			}
+			return;
+		}
+		SelectionKey k = this.key;
+		if(!paused && k != null)
+			k.interestOps(k.interestOps() | SelectionKey.OP_READ);
+	}
+
+
+	/**
+	 * This method decodes the complete Mqtt messages that have been received so far.If the
+	 * queue of the dispatcher is full, it stops reading from this channel only (the event loop
+	 * keeps serving its other channels) and leaves the rest of the messages in the decoder.
+	 *
+	 * @throws MqttsException
+	 */
+	private void decodeFrames() throws MqttsException{
+		byte[] body;
+		while((body = frameDecoder.nextFrame()) != null){
+			if(!decodeMsg(body)){
+				paused = true;
+				SelectionKey k = this.key;
+				if(k != null)
+					k.interestOps(k.interestOps() & ~SelectionKey.OP_READ);
+				return;
+			}
+		}
+	}
+
+
+	/**
+	 * This method informs the handler of this interface that the connection with the
+	 * broker was lost.
+	 */
+	private void connectionLost(){
+		//generate a control message
+		ControlMessage controlMsg = new ControlMessage();
+		controlMsg.setMsgType(ControlMessage.CONNECTION_LOST);
+
+		//construct an "internal" message and put it to dispatcher's queue
+		//@see com.ibm.zurich.mqttsgw.core.Message
+		Message msg = new Message(this.address);
+		msg.setType(Message.CONTROL_MSG);
+		msg.setControlMessage(controlMsg);
+		this.dispatcher.putMessage(msg);
+	}
+
+
+	/**
+	 * This method is used for decoding the received Mqtt message from the broker.
+	 * @param data The Mqtt message as it was received from the socket (byte array).
+	 * @return False if the queue of the dispatcher is full and the reading has to be paused.
+	 */
+	private boolean decodeMsg(byte[] data){
+		MqttMessage mqttMsg = MqttFrameDecoder.decodeMsg(data);
+		if(mqttMsg == null){
+			GatewayLogger.log(GatewayLogger.WARN, "NIOBrokerInterface [{}]/[{}] - Mqtt message of unexpected type \"{}\" received.", this.address.getAddress(), clientId, ((data[0] >>> 4) & 0x0F));
+			return true;
+		}
+
+		//construct an "internal" message and put it to dispatcher's queue
+		//@see com.ibm.zurich.mqttsgw.core.Message
+		Message msg = new Message(this.address);
+		msg.setType(Message.MQTT_MSG);
+		msg.setMqttMessage(mqttMsg);
+		return this.dispatcher.offerMessage(msg, resumeReading);
+	}
+
+
+	/**
+	 * This method is used to close the TCP/IP connection with the broker.
+	 */
+	public void disconnect() {
+		this.running = false;
+
+		//try to write the pending data (e.g. a Mqtt DISCONNECT message) before closing
+		SocketChannel ch = this.channel;
+		if (ch != null) {
+			synchronized (writeQueue) {
+				try {
+					while (!writeQueue.isEmpty()) {
+						ByteBuffer buffer = writeQueue.getFirst();
+						ch.write(buffer);
+						if (buffer.hasRemaining())
+							break;
+						writeQueue.removeFirst();
+					}
+				} catch (IOException e) {
+					// ignore it
+				}
+				writeQueue.clear();
+			}
+		}
+		closeChannel();
+	}
+
+
+	/**
+	 * This method closes the channel.The key of the channel is cancelled as well.
+	 */
+	private void closeChannel() {
+		SocketChannel ch = this.channel;
+		this.channel = null;
+		if (ch != null) {
+			try {
+				ch.close();
+			} catch (IOException e) {
+				// ignore it
+			}
+		}
+	}
+
+
+	/**
+	 * @return True if there are data waiting to be written to the socket.
+	 */
+	boolean hasPendingWrites() {
+		synchronized (writeQueue) {
+			return !writeQueue.isEmpty();
+		}
+	}
+
+
+	/**
+	 * @return The channel of this interface or null if it has been closed.
+	 */
+	SocketChannel getChannel() {
+		return channel;
+	}
+
+
+	/**
+	 * @return The selection key of the channel.
+	 */
+	SelectionKey getSelectionKey() {
+		return key;
+	}
+
+
+	/**
+	 * @param key The selection key of the channel.
+	 */
+	void setSelectionKey(SelectionKey key) {
+		this.key = key;
+	}
+
+
+	/**
+	 * @param running
+	 */
+	public void setRunning(boolean running) {
+		this.running = running;
+	}
+
+	/**
+	 * @param clientId
+	 */
+	public void setClientId(String clientId) {
+		this.clientId = clientId;
+	}
+}
@@ -19,21 +19,12 @@ import java.net.Socket;
 import java.net.UnknownHostException;
 
 import com.ibm.zurich.mqttsgw.broker.BrokerInterface;
+import com.ibm.zurich.mqttsgw.broker.MqttFrameDecoder;
 import com.ibm.zurich.mqttsgw.core.Dispatcher;
 import com.ibm.zurich.mqttsgw.exceptions.MqttsException;
 import com.ibm.zurich.mqttsgw.messages.Message;
 import com.ibm.zurich.mqttsgw.messages.control.ControlMessage;
-import com.ibm.zurich.mqttsgw.messages.mqtt.MqttConnack;
 import com.ibm.zurich.mqttsgw.messages.mqtt.MqttMessage;
-import com.ibm.zurich.mqttsgw.messages.mqtt.MqttPingReq;
-import com.ibm.zurich.mqttsgw.messages.mqtt.MqttPingResp;
-import com.ibm.zurich.mqttsgw.messages.mqtt.MqttPubComp;
-import com.ibm.zurich.mqttsgw.messages.mqtt.MqttPubRec;
-import com.ibm.zurich.mqttsgw.messages.mqtt.MqttPubRel;
-import com.ibm.zurich.mqttsgw.messages.mqtt.MqttPuback;
-import com.ibm.zurich.mqttsgw.messages.mqtt.MqttPublish;
-import com.ibm.zurich.mqttsgw.messages.mqtt.MqttSuback;
-import com.ibm.zurich.mqttsgw.messages.mqtt.MqttUnsuback;
 import com.ibm.zurich.mqttsgw.utils.Address;
 import com.ibm.zurich.mqttsgw.utils.GWParameters;
 import com.ibm.zurich.mqttsgw.utils.GatewayLogger;
@@ -48,8 +39,7 @@ import com.ibm.zurich.mqttsgw.utils.Utils;
  * 
  * @see com.ibm.zurich.core.ClientMsgHandler
  * 
- * Parts of this code were imported from com.ibm.mqttdirect.modules.common.StreamDeframer.java
- * 
+ * @see com.ibm.zurich.mqttsgw.broker.MqttFrameDecoder
  *
  */
 public class TCPBrokerInterface implements BrokerInterface, Runnable {
@@ -68,11 +58,14 @@ public class TCPBrokerInterface implements BrokerInterface, Runnable {
 
 	private Dispatcher dispatcher;
 
+	//splits the received byte stream into Mqtt messages
+	private MqttFrameDecoder frameDecoder;
+
 	//the maximum length of a Mqtt fixed header
-	public static final int MAX_HDR_LENGTH = 5;
+	public static final int MAX_HDR_LENGTH = MqttFrameDecoder.MAX_HDR_LENGTH;
 
 	//the maximum length of the remaining part of a Mqtt message
-	public static final int MAX_MSG_LENGTH = 268435455;
+	public static final int MAX_MSG_LENGTH = MqttFrameDecoder.MAX_MSG_LENGTH;
 
 
 	/**
@@ -98,6 +91,7 @@ public class TCPBrokerInterface implements BrokerInterface, Runnable {
 			socket = new Socket(brokerURL, port);
 			streamIn = new DataInputStream(socket.getInputStream());
 			streamOut = new DataOutputStream(socket.getOutputStream());			
+			frameDecoder = new MqttFrameDecoder();
 
 		} catch (UnknownHostException e) {
 			disconnect();
@@ -124,11 +118,13 @@ public class TCPBrokerInterface implements BrokerInterface, Runnable {
 	 */
 	public void sendMsg(MqttMessage message) throws MqttsException{
 		// send the message over the TCP/IP socket
-		if (this.streamOut != null) {
+		//(the stream may be closed by the reading thread in the meantime)
+		DataOutputStream out = this.streamOut;
+		if (out != null) {
 			try {
 				//System.out.println(">> sending msg: " + Utils.hexString(message.toBytes()));
-				this.streamOut.write(message.toBytes());
-				this.streamOut.flush();
+				out.write(message.toBytes());
+				out.flush();
 			} catch (IOException e) {
 				disconnect();
 				throw new MqttsException(e.getMessage());
@@ -140,73 +136,32 @@ public class TCPBrokerInterface implements BrokerInterface, Runnable {
 	}
 
 	/**
-	 * This method is used for reading a Mqtt message from the socket.It blocks on the 
-	 * reading stream until a message arrives.
+	 * This method is used for reading Mqtt messages from the socket.It blocks on the 
+	 * reading stream until data arrives and then decodes all the complete Mqtt messages
+	 * that have been received so far.
 	 */
 	public void readMsg(){
-		byte [] body = null;
-
-		// read the header from the input stream
-		MqttHeader hdr = new MqttHeader();
-		hdr.header = new byte[MAX_HDR_LENGTH];
-
 		if (this.streamIn == null){
 			return;
 		}
 
 		try{
-			int res = streamIn.read();
-			hdr.header[0]=(byte) res;
-			hdr.headerLength=1; 
+			int res = frameDecoder.readFrom(streamIn);
 			if(res==-1) {
 				// if EOF detected
 				throw new EOFException();
 			}
-			// read the Mqtt length
-			int multiplier = 1;
-			hdr.remainingLength=0;
-			do {
-				//read MsgLength bytes
-				res = streamIn.read();
-				if(res==-1) {
-					// if EOF detected.
-					throw new EOFException();
-				}
-				hdr.header[hdr.headerLength++] = (byte) res;
-				hdr.remainingLength += (res & 127) * multiplier;
-				multiplier *= 128;
-			} while ((res & 128) != 0 && hdr.headerLength<MAX_HDR_LENGTH);
-
-			//some checks
-			if (hdr.headerLength > MAX_HDR_LENGTH || hdr.remainingLength > MAX_MSG_LENGTH || hdr.remainingLength < 0) {
-				GatewayLogger.log(GatewayLogger.WARN, "TCPBrokerInterface ["+Utils.hexString(this.address.getAddress())+"]/["+clientId+"] - Not a valid Mqtts message.");
-				return;
-			}			
-
-			body = new byte[hdr.remainingLength+hdr.headerLength]; 
-
-			for (int i = 0; i < hdr.headerLength; i++) {
-				body[i] = hdr.header[i]; 
-			}
-
-			if (hdr.remainingLength >= 0) {
-				streamIn.readFully(body, hdr.headerLength, hdr.remainingLength);
-			}
-
 
-			//start:just for the testing purposes we simulate here a network delay
-			//TODO This will NOT be included in the final version
-			try {
-				Thread.sleep(20);
-			} catch (InterruptedException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-			//end			
-
-
-			if(body!=null)
+			byte[] body;
+			while((body = frameDecoder.nextFrame()) != null)
 				decodeMsg(body);
+		}catch(MqttsException e){
+			//the stream cannot be resynchronized after an invalid frame
+			GatewayLogger.log(GatewayLogger.WARN, "TCPBrokerInterface [{}]/[{}] - Not a valid Mqtt message: {}", this.address.getAddress(), clientId, e.getMessage());
+			if(this.running == true){
+				this.running = false;
+				connectionLost();
+			}
 		}catch(IOException e){
 			if(e instanceof InterruptedIOException) {
 				//do nothing
@@ -214,90 +169,49 @@ public class TCPBrokerInterface implements BrokerInterface, Runnable {
 				//an error occurred
 				//stop the reading thread
 				this.running = false;
-
-				//generate a control message 
-				ControlMessage controlMsg = new ControlMessage();
-				controlMsg.setMsgType(ControlMessage.CONNECTION_LOST);
-
-				//construct an "internal" message and put it to dispatcher's queue
-				//@see com.ibm.zurich.mqttsgw.core.Message
-				Message msg = new Message(this.address);
-				msg.setType(Message.CONTROL_MSG);
-				msg.setControlMessage(controlMsg);
-				this.dispatcher.putMessage(msg);
+				connectionLost();
 			}
 		} 
 	}
 
+
+	/**
+	 * This method informs the handler of this interface that the connection with the
+	 * broker was lost.
+	 */
+	protected void connectionLost(){
+		//generate a control message 
+		ControlMessage controlMsg = new ControlMessage();
+		controlMsg.setMsgType(ControlMessage.CONNECTION_LOST);
+
+		//construct an "internal" message and put it to dispatcher's queue
+		//@see com.ibm.zurich.mqttsgw.core.Message
+		Message msg = new Message(this.address);
+		msg.setType(Message.CONTROL_MSG);
+		msg.setControlMessage(controlMsg);
+		this.dispatcher.putMessage(msg);
+	}
+
 	/**
 	 * This method is used for decoding the received Mqtt message from the broker.
 	 * @param data The Mqtt message as it was received from the socket (byte array).
 	 */
 	private void decodeMsg(byte[] data){
-		MqttMessage mqttMsg = null;
-		int msgType = (data[0] >>> 4) & 0x0F;
-		switch (msgType) {
-		case MqttMessage.CONNECT:
-			// we will never receive such a message from the broker
-			break;
-
-		case MqttMessage.CONNACK:
-			mqttMsg = new MqttConnack(data);
-			break;
-
-		case MqttMessage.PUBLISH:
-			mqttMsg = new MqttPublish(data);
-			break;
-
-		case MqttMessage.PUBACK:
-			mqttMsg = new MqttPuback(data);
-			break;
-
-		case MqttMessage.PUBREC:
-			mqttMsg = new MqttPubRec(data);
-			break;
-
-		case MqttMessage.PUBREL:
-			mqttMsg = new MqttPubRel(data);
-			break;
-
-		case MqttMessage.PUBCOMP:
-			mqttMsg = new MqttPubComp(data);
-			break;
-
-		case MqttMessage.SUBSCRIBE:
-			//we will never receive such a message from the broker
-			break;
-
-		case MqttMessage.SUBACK:
-			mqttMsg = new MqttSuback(data);
-			break;
-
-		case MqttMessage.UNSUBSCRIBE:
-			//we will never receive such a message from the broker
-			break;
-
-		case MqttMessage.UNSUBACK:
-			mqttMsg = new MqttUnsuback(data);
-			break;
-
-		case MqttMessage.PINGREQ:
-			mqttMsg = new MqttPingReq(data);
-			break;
-
-		case MqttMessage.PINGRESP:
-			mqttMsg = new MqttPingResp(data);
-			break;
-
-		case MqttMessage.DISCONNECT:
-			//we will never receive such a message from the broker
-			break;
-
-		default:
-			GatewayLogger.log(GatewayLogger.WARN, "TCPBrokerInterface ["+Utils.hexString(this.address.getAddress())+"]/["+clientId+"] - Mqtt message of unknown type \"" + msgType+"\" received.");
-			break;				
+		MqttMessage mqttMsg = MqttFrameDecoder.decodeMsg(data);
+		if(mqttMsg == null){
+			GatewayLogger.log(GatewayLogger.WARN, "TCPBrokerInterface [{}]/[{}] - Mqtt message of unexpected type \"{}\" received.", this.address.getAddress(), clientId, ((data[0] >>> 4) & 0x0F));
+			return;
 		}
+		deliverMsg(mqttMsg);
+	}
 
+
+	/**
+	 * This method delivers a decoded Mqtt message to the handler of this interface.
+	 * 
+	 * @param mqttMsg The decoded Mqtt message.
+	 */
+	protected void deliverMsg(MqttMessage mqttMsg){
 		//construct an "internal" message and put it to dispatcher's queue
 		//@see com.ibm.zurich.mqttsgw.core.Message
 		Message msg = new Message(this.address);
@@ -369,15 +283,4 @@ public class TCPBrokerInterface implements BrokerInterface, Runnable {
 	public void setClientId(String clientId) {
 		this.clientId = clientId;
 	}
-
-
-	/**
-	 * This class represents a Mqtt header and is used for decoding a Mqtt message
-	 * from the broker.
-	 */
-	public static class MqttHeader {
-		public byte[]	header;
-		public int remainingLength;
-		public int headerLength;
-	}
 }    	
\ No newline at end of file
@@ -0,0 +1,249 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2013 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License v2.0
+ * which is available at:
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *******************************************************************************/
+
+package com.ibm.zurich.mqttsgw.client.udp;
+
+import java.net.InetAddress;
+
+import com.ibm.zurich.mqttsgw.client.udp.UDPClientInterface.Forwarder;
+
+/**
+ * This class holds the forwarders from which the gateway receives datagrams.
+ * The forwarders are stored in an open addressing hash table (linear probing) indexed
+ * by IP address and port.The table is read without locking, by the receiving threads
+ * on every datagram and by the broadcasting threads, and it is modified under the lock
+ * of this object only when a new forwarder is added or inactive forwarders are removed.
+ * A removed forwarder leaves a marker in its slot, so the forwarders never move while
+ * the table is read; the table is rebuilt when it gets half full.
+ * The inactive forwarders are removed by a thread that runs once per {@link #SWEEP_PERIOD}
+ * and also updates the clock that marks the last activity of the forwarders, so a
+ * received datagram costs neither a call to System.currentTimeMillis() nor an allocation.
+ *
+ */
+public class ForwarderTable implements Runnable {
+
+	//the period (in milliseconds) of the removal of the inactive forwarders
+	public static final long SWEEP_PERIOD = 1000;
+
+	//the initial number of slots (a power of 2)
+	private static final int INITIAL_CAPACITY = 16;
+
+	//marks the slot of a removed forwarder
+	private static final Forwarder REMOVED = new Forwarder(null, 0);
+
+	//the slots of the table (written only under the lock of this object)
+	private volatile Forwarder[] slots;
+
+	//the number of forwarders and the number of removed markers in the slots
+	private int size;
+	private int removed;
+
+	//the time (in milliseconds) of the last sweep
+	private volatile long now;
+
+	//the time (in milliseconds) that a forwarder can remain inactive
+	private final long timeout;
+
+	private Thread sweepThread;
+
+
+	/**
+	 * Constructor.It creates the table and starts the thread that removes the
+	 * inactive forwarders.
+	 *
+	 * @param timeout The time (in seconds) that a forwarder can remain inactive.
+	 */
+	public ForwarderTable(long timeout) {
+		this.timeout = timeout * 1000;
+		this.slots = new Forwarder[INITIAL_CAPACITY];
+		this.size = 0;
+		this.removed = 0;
+		this.now = System.currentTimeMillis();
+		sweepThread = new Thread(this, "ForwarderTable");
+		sweepThread.start();
+	}
+
+
+	private static int slot(InetAddress addr, int port, int mask) {
+		return ((addr.hashCode() * 31 + port) * 0x9E3779B9) >>> 16 & mask;
+	}
+
+
+	/**
+	 * This method marks a forwarder as active.If the forwarder is not in the table
+	 * yet it is added.
+	 *
+	 * @param addr The IP address of the forwarder.
+	 * @param port The port of the forwarder.
+	 * @return The forwarder.
+	 */
+	public Forwarder update(InetAddress addr, int port) {
+		Forwarder[] tab = slots;
+		int mask = tab.length - 1;
+		int i = slot(addr, port, mask);
+		Forwarder fr;
+		while ((fr = tab[i]) != null) {
+			if (fr != REMOVED && fr.port == port && addr.equals(fr.addr)) {
+				//avoid writing the shared forwarder when the clock did not move
+				long time = now;
+				if (fr.lastActivity != time)
+					fr.lastActivity = time;
+				return fr;
+			}
+			i = (i + 1) & mask;
+		}
+
+		//not found (or just added by another thread), look again under the lock
+		return add(addr, port);
+	}
+
+
+	private synchronized Forwarder add(InetAddress addr, int port) {
+		Forwarder[] tab = slots;
+		int mask = tab.length - 1;
+		int i = slot(addr, port, mask);
+		int free = -1;
+		Forwarder fr;
+		while ((fr = tab[i]) != null) {
+			if (fr == REMOVED) {
+				if (free < 0)
+					free = i;
+			} else if (fr.port == port && addr.equals(fr.addr)) {
+				fr.lastActivity = now;
+				return fr;
+			}
+			i = (i + 1) & mask;
+		}
+
+		fr = new Forwarder(addr, port);
+		fr.lastActivity = now;
+		//GatewayLogger.log(GatewayLogger.INFO, "UDPClientInterface -  New forwarder:addr = " + addr+ " port = "+port);
+		if (free >= 0) {
+			tab[free] = fr;
+			removed--;
+		} else {
+			tab[i] = fr;
+		}
+		size++;
+
+		if ((size + removed) * 2 > tab.length)
+			rebuild(size * 4 > tab.length ? tab.length * 2 : tab.length);
+		else
+			slots = tab;//publish the new forwarder to the threads that read the table
+		return fr;
+	}
+
+
+	/**
+	 * This method copies the forwarders to a new array of slots, without the removed markers.
+	 *
+	 * @param capacity The number of slots (a power of 2).
+	 */
+	private void rebuild(int capacity) {
+		Forwarder[] oldTab = slots;
+		Forwarder[] tab = new Forwarder[capacity];
+		int mask = capacity - 1;
+		for (int i = 0; i < oldTab.length; i++) {
+			Forwarder fr = oldTab[i];
+			if (fr != null && fr != REMOVED) {
+				int j = slot(fr.addr, fr.port, mask);
+				while (tab[j] != null)
+					j = (j + 1) & mask;
+				tab[j] = fr;
+			}
+		}
+		removed = 0;
+		slots = tab;
+	}
+
+
+	/**
+	 * @param fr The forwarder.
+	 * @return True if the forwarder sent a datagram within the timeout.
+	 */
+	public boolean isActive(Forwarder fr) {
+		//the clock is updated once per sweep, so allow one more period
+		return now - fr.lastActivity <= timeout + SWEEP_PERIOD;
+	}
+
+
+	/**
+	 * This method returns the active forwarders.
+	 *
+	 * @return A new array that contains the active forwarders.
+	 */
+	public Forwarder[] getActiveForwarders() {
+		Forwarder[] tab = slots;
+		Forwarder[] active = new Forwarder[size];
+		int count = 0;
+		for (int i = 0; i < tab.length && count < active.length; i++) {
+			Forwarder fr = tab[i];
+			if (fr != null && fr != REMOVED && isActive(fr))
+				active[count++] = fr;
+		}
+		if (count == active.length)
+			return active;
+		Forwarder[] result = new Forwarder[count];
+		System.arraycopy(active, 0, result, 0, count);
+		return result;
+	}
+
+
+	/**
+	 * @return The number of forwarders in the table.
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+
+	/**
+	 * This method removes the inactive forwarders from the table and the full
+	 * token buckets of the clients of the active ones.
+	 */
+	private synchronized void removeInactive() {
+		Forwarder[] tab = slots;
+		long nanoTime = System.nanoTime();
+		for (int i = 0; i < tab.length; i++) {
+			Forwarder fr = tab[i];
+			if (fr != null && fr != REMOVED) {
+				if (!isActive(fr)) {
+					tab[i] = REMOVED;
+					size--;
+					removed++;
+				} else if (fr.nodes != null) {
+					fr.nodes.removeFull(nanoTime);
+				}
+			}
+		}
+		if (size == 0 && removed > 0)
+			rebuild(INITIAL_CAPACITY);
+		else if (size * 8 < tab.length && tab.length > INITIAL_CAPACITY)
+			rebuild(tab.length / 2);
+		else if ((size + removed) * 2 > tab.length)
+			rebuild(tab.length);
+	}
+
+
+	/* (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	public void run() {
+		while (true) {
+			try {
+				Thread.sleep(SWEEP_PERIOD);
+			} catch (InterruptedException e) {
+				return;
+			}
+			now = System.currentTimeMillis();
+			removeInactive();
+		}
+	}
+}
@@ -0,0 +1,230 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2013 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License v2.0
+ * which is available at:
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *******************************************************************************/
+
+package com.ibm.zurich.mqttsgw.client.udp;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+import com.ibm.zurich.mqttsgw.core.Dispatcher;
+import com.ibm.zurich.mqttsgw.exceptions.MqttsException;
+import com.ibm.zurich.mqttsgw.utils.GWParameters;
+import com.ibm.zurich.mqttsgw.utils.GatewayLogger;
+
+/**
+ * This class implements a UDP interface to Mqtts clients with non-blocking
+ * DatagramChannels.Each receiving thread drains its channel into a buffer that wraps
+ * the byte array from which the datagrams are decoded, every time the channel becomes readable.
+ * If more than one receiving thread is configured (see {@link GWParameters#getUdpReceiveThreads()}),
+ * every thread has its own channel bound to the same port with SO_REUSEPORT, so that the
+ * kernel spreads the datagrams of different forwarders over the threads while the datagrams
+ * of the same forwarder are always received by the same thread.
+ * There is only one instance of this class.
+ *
+ */
+public class NIOUDPClientInterface extends UDPClientInterface {
+
+	//the size of the receiving buffers (as the buffer of UDPClientInterface)
+	private static final int RECEIVE_BUFFER_SIZE = 512;
+
+	private DatagramChannel[] channels;
+
+
+	/**
+	 * This method initializes the interface.It creates the channels and one
+	 * reading thread for every channel.
+	 * @throws MqttsException
+	 */
+	public void initialize() throws MqttsException {
+		try {
+			//get the Dispatcher
+			dispatcher = Dispatcher.getInstance();
+
+			forwarders = new ForwarderTable(GWParameters.getForwarderTimeout());
+
+			int threads = GWParameters.getUdpReceiveThreads();
+			SocketOption<Boolean> reusePort = null;
+			if(threads > 1){
+				reusePort = getReusePortOption();
+				if(reusePort == null){
+					GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - SO_REUSEPORT is not supported. Only one receiving thread will be used.");
+					threads = 1;
+				}
+			}
+
+			channels = new DatagramChannel[threads];
+			for(int i = 0; i < threads; i++){
+				DatagramChannel channel = DatagramChannel.open();
+				if(reusePort != null)
+					channel.setOption(reusePort, Boolean.TRUE);
+				channel.bind(new InetSocketAddress(GWParameters.getUdpPort()));
+				channel.configureBlocking(false);
+				channels[i] = channel;
+			}
+
+			//create threads for reading
+			this.running = true;
+			for(int i = 0; i < threads; i++){
+				Thread readThread = new Thread(new Receiver(channels[i]), threads == 1 ? "UDPClientInterface" : "UDPClientInterface-"+i);
+				readThread.start();
+			}
+		} catch (Exception e) {
+			throw new MqttsException ("UDPClientInterface - Error initializing :" +e);
+		}
+	}
+
+
+	/**
+	 * Nothing to do here, the channels are read by the receiving threads.
+	 */
+	public void readMsg() {
+	}
+
+
+	/**
+	 * The messages are sent from direct buffers, so the channel does not copy them.
+	 * 
+	 * @see com.ibm.zurich.mqttsgw.client.udp.UDPClientInterface#createSendBuffer()
+	 */
+	protected ByteBuffer createSendBuffer() {
+		return ByteBuffer.allocateDirect(SEND_BUFFER_SIZE);
+	}
+
+
+	/* (non-Javadoc)
+	 * @see com.ibm.zurich.mqttsgw.client.udp.UDPClientInterface#send(java.nio.ByteBuffer, java.net.InetSocketAddress)
+	 */
+	protected void send(ByteBuffer buffer, InetSocketAddress target) throws IOException {
+		int sent = channels[0].send(buffer, target);
+		if(sent == 0)
+			GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - The send buffer of the UDP socket is full. The datagram was dropped.");
+	}
+
+
+	/**
+	 * The same direct buffer is sent to all forwarders, one send per forwarder (the channel
+	 * has no call for sending a batch of datagrams), and only one warning is logged for the
+	 * datagrams that are dropped.
+	 * 
+	 * @see com.ibm.zurich.mqttsgw.client.udp.UDPClientInterface#send(java.nio.ByteBuffer, com.ibm.zurich.mqttsgw.client.udp.UDPClientInterface.Forwarder[])
+	 */
+	protected void send(ByteBuffer buffer, Forwarder[] targets) {
+		int dropped = 0;
+		for(int i = 0; i < targets.length; i++) {
+			buffer.rewind();
+			try {
+				if(channels[0].send(buffer, targets[i].getSocketAddress()) == 0)
+					dropped++;
+			} catch (IOException e) {
+				GatewayLogger.log(GatewayLogger.ERROR, "UDPClientInterface - Error while writing on the UDP socket.");
+			}
+		}
+		if(dropped > 0)
+			GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - The send buffer of the UDP socket is full. {} of {} broadcast datagrams were dropped.", dropped, targets.length);
+	}
+
+
+	/* (non-Javadoc)
+	 * @see com.ibm.zurich.mqttsgw.client.udp.UDPClientInterface#send(byte[], int, java.net.InetAddress, int)
+	 */
+	protected void send(byte[] data, int length, InetAddress addr, int port) throws IOException {
+		int sent = channels[0].send(ByteBuffer.wrap(data, 0, length), new InetSocketAddress(addr, port));
+		if(sent == 0)
+			GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - The send buffer of the UDP socket is full. The datagram was dropped.");
+	}
+
+
+	/**
+	 * This method returns the SO_REUSEPORT socket option if it is supported by the platform.
+	 *
+	 * @return The socket option or null.
+	 */
+	@SuppressWarnings("unchecked")
+	private static SocketOption<Boolean> getReusePortOption() {
+		try {
+			//available since Java 9
+			Field field = StandardSocketOptions.class.getField("SO_REUSEPORT");
+			SocketOption<Boolean> option = (SocketOption<Boolean>)field.get(null);
+			DatagramChannel channel = DatagramChannel.open();
+			try {
+				if(channel.supportedOptions().contains(option))
+					return option;
+			} finally {
+				channel.close();
+			}
+		} catch (Exception e) {
+			//not supported
+		}
+		return null;
+	}
+
+
+	/**
+	 * This class represents a receiving thread.
+	 */
+	private class Receiver implements Runnable {
+
+		private DatagramChannel channel;
+
+		//the datagrams are received directly into the array of this buffer
+		private ByteBuffer buffer;
+		private byte[] data;
+
+		public Receiver(DatagramChannel channel) {
+			this.channel = channel;
+			this.data = new byte[RECEIVE_BUFFER_SIZE];
+			this.buffer = ByteBuffer.wrap(data);
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.Runnable#run()
+		 */
+		public void run() {
+			Selector selector;
+			try {
+				selector = Selector.open();
+				channel.register(selector, SelectionKey.OP_READ);
+			} catch (IOException e) {
+				GatewayLogger.log(GatewayLogger.ERROR, "UDPClientInterface - Failed to register the UDP channel: {}", e.getMessage());
+				return;
+			}
+
+			while (running) {
+				try {
+					selector.select();
+					selector.selectedKeys().clear();
+
+					//read all datagrams that are available
+					SocketAddress source;
+					while (true) {
+						buffer.clear();
+						source = channel.receive(buffer);
+						if (source == null)
+							break;
+						InetSocketAddress fwAddress = (InetSocketAddress)source;
+						handleDatagram(data, 0, buffer.position(), fwAddress.getAddress(), fwAddress.getPort());
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+					GatewayLogger.log(GatewayLogger.ERROR, "UDPClientInterface - An I/O error occurred while reading from the socket.");
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,166 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2013 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License v2.0
+ * which is available at:
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *******************************************************************************/
+
+package com.ibm.zurich.mqttsgw.client.udp;
+
+/**
+ * This class holds the token buckets of the clients behind a forwarder, indexed by the
+ * wireless node id of the client (an empty node id stands for a client that sends
+ * non-encapsulated datagrams, that is the forwarder itself).
+ * The node id is looked up directly in the received datagram, so only the first datagram
+ * of a client allocates its key and its bucket.
+ * A bucket that is full behaves exactly as a new one, so the full buckets are removed
+ * by {@link #removeFull(long)}.When the table holds {@link #MAX_NODES} clients, the new
+ * clients share one bucket until some buckets are removed.
+ *
+ */
+public class NodeBucketTable {
+
+	//the maximum number of clients per forwarder that get their own bucket
+	public static final int MAX_NODES = 1024;
+
+	//the initial number of slots (a power of 2)
+	private static final int INITIAL_CAPACITY = 8;
+
+	private final int rate;
+	private final int burst;
+
+	//the node ids and the buckets of the clients (linear probing)
+	private byte[][] keys;
+	private TokenBucket[] buckets;
+	private int size;
+
+	//the bucket of the clients that do not fit in the table
+	private TokenBucket overflow = null;
+
+
+	/**
+	 * Constructor.
+	 *
+	 * @param rate The number of datagrams per second that a client may send.
+	 * @param burst The number of datagrams that a client may send at once.
+	 */
+	public NodeBucketTable(int rate, int burst) {
+		this.rate = rate;
+		this.burst = burst;
+		this.keys = new byte[INITIAL_CAPACITY][];
+		this.buckets = new TokenBucket[INITIAL_CAPACITY];
+		this.size = 0;
+	}
+
+
+	private static int hash(byte[] buf, int offset, int length) {
+		int h = length;
+		for (int i = 0; i < length; i++)
+			h = h * 31 + buf[offset + i];
+		return (h * 0x9E3779B9) >>> 16;
+	}
+
+
+	private static boolean matches(byte[] key, byte[] buf, int offset, int length) {
+		if (key.length != length)
+			return false;
+		for (int i = 0; i < length; i++) {
+			if (key[i] != buf[offset + i])
+				return false;
+		}
+		return true;
+	}
+
+
+	/**
+	 * This method returns the bucket of a client.If the client has no bucket yet it is created.
+	 *
+	 * @param buf The buffer that contains the node id of the client.
+	 * @param offset The position of the node id in the buffer.
+	 * @param length The length of the node id.
+	 * @param now The current time (in nanoseconds, see System.nanoTime()).
+	 * @return The bucket.
+	 */
+	public synchronized TokenBucket getBucket(byte[] buf, int offset, int length, long now) {
+		int mask = keys.length - 1;
+		int i = hash(buf, offset, length) & mask;
+		byte[] key;
+		while ((key = keys[i]) != null) {
+			if (matches(key, buf, offset, length))
+				return buckets[i];
+			i = (i + 1) & mask;
+		}
+
+		if (size >= MAX_NODES) {
+			if (overflow == null)
+				overflow = new TokenBucket(rate, burst, now);
+			return overflow;
+		}
+
+		key = new byte[length];
+		System.arraycopy(buf, offset, key, 0, length);
+		TokenBucket bucket = new TokenBucket(rate, burst, now);
+		keys[i] = key;
+		buckets[i] = bucket;
+		size++;
+		if (size * 2 > keys.length)
+			rebuild(keys.length * 2);
+		return bucket;
+	}
+
+
+	/**
+	 * This method copies the buckets to a new array of slots.
+	 *
+	 * @param capacity The number of slots (a power of 2).
+	 */
+	private void rebuild(int capacity) {
+		byte[][] oldKeys = keys;
+		TokenBucket[] oldBuckets = buckets;
+		keys = new byte[capacity][];
+		buckets = new TokenBucket[capacity];
+		int mask = capacity - 1;
+		for (int i = 0; i < oldKeys.length; i++) {
+			byte[] key = oldKeys[i];
+			if (key != null) {
+				int j = hash(key, 0, key.length) & mask;
+				while (keys[j] != null)
+					j = (j + 1) & mask;
+				keys[j] = key;
+				buckets[j] = oldBuckets[i];
+			}
+		}
+	}
+
+
+	/**
+	 * This method removes the buckets that are full.
+	 *
+	 * @param now The current time (in nanoseconds, see System.nanoTime()).
+	 * @return The number of buckets that remain in the table.
+	 */
+	public synchronized int removeFull(long now) {
+		int removed = 0;
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != null && buckets[i].isFull(now)) {
+				keys[i] = null;
+				buckets[i] = null;
+				removed++;
+			}
+		}
+		if (overflow != null && overflow.isFull(now))
+			overflow = null;
+		if (removed > 0) {
+			size -= removed;
+			//the slots are rebuilt, since the probe sequences may have been broken
+			int capacity = keys.length;
+			while (capacity > INITIAL_CAPACITY && size * 8 < capacity)
+				capacity = capacity / 2;
+			rebuild(capacity);
+		}
+		return size;
+	}
+}
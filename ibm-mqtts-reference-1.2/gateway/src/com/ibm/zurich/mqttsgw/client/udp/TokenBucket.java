@@ -0,0 +1,87 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2013 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License v2.0
+ * which is available at:
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *******************************************************************************/
+
+package com.ibm.zurich.mqttsgw.client.udp;
+
+/**
+ * This class implements a token bucket that limits the rate of the datagrams of a
+ * client or a forwarder.The bucket holds up to "burst" tokens and gains "rate" tokens
+ * per second; every datagram takes one token.
+ * Instead of the number of tokens the bucket keeps the time at which it will be full
+ * again, so taking a token costs neither a division nor an allocation.
+ *
+ */
+public class TokenBucket {
+
+	//the time (in nanoseconds) in which the bucket gains a token
+	private final long interval;
+
+	//the time (in nanoseconds) in which an empty bucket gets full
+	private final long capacity;
+
+	//the time (in nanoseconds, see System.nanoTime()) at which the bucket will be full
+	private long full;
+
+	//the number of datagrams that were throttled since the bucket was full
+	private long throttled = 0;
+
+
+	/**
+	 * Constructor.The bucket is full.
+	 *
+	 * @param rate The number of tokens per second (greater than 0).
+	 * @param burst The maximum number of tokens (greater than 0).
+	 * @param now The current time (in nanoseconds, see System.nanoTime()).
+	 */
+	public TokenBucket(int rate, int burst, long now) {
+		this.interval = 1000000000L / rate;
+		this.capacity = this.interval * burst;
+		this.full = now;
+	}
+
+
+	/**
+	 * This method takes a token from the bucket.
+	 *
+	 * @param now The current time (in nanoseconds, see System.nanoTime()).
+	 * @return True if there was a token, false if the datagram should be throttled.
+	 */
+	public synchronized boolean tryAcquire(long now) {
+		long time = full;
+		if (time - now <= 0) {
+			//a full bucket does not gain more tokens
+			time = now;
+			throttled = 0;
+		}
+		if (time + interval - now > capacity) {
+			throttled++;
+			return false;
+		}
+		full = time + interval;
+		return true;
+	}
+
+
+	/**
+	 * @return The number of datagrams that were throttled since the bucket was full.
+	 */
+	public synchronized long getThrottled() {
+		return throttled;
+	}
+
+
+	/**
+	 * @param now The current time (in nanoseconds, see System.nanoTime()).
+	 * @return True if the bucket is full, that is it would behave as a new bucket.
+	 */
+	public synchronized boolean isFull(long now) {
+		return full - now <= 0;
+	}
+}
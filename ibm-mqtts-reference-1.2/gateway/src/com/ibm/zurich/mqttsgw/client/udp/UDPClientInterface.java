@@ -14,8 +14,10 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
 //import java.net.SocketException;
-import java.util.Vector;
 
 import com.ibm.zurich.mqttsgw.client.ClientInterface;
 //import com.ibm.zurich.mqttsgw.client.udp.UDPClientInterface.Forwarder;
@@ -25,6 +27,7 @@ import com.ibm.zurich.mqttsgw.messages.Message;
 import com.ibm.zurich.mqttsgw.messages.mqtts.MqttsAdvertise;
 import com.ibm.zurich.mqttsgw.messages.mqtts.MqttsConnect;
 import com.ibm.zurich.mqttsgw.messages.mqtts.MqttsDisconnect;
+import com.ibm.zurich.mqttsgw.messages.mqtts.MqttsFlyweight;
 import com.ibm.zurich.mqttsgw.messages.mqtts.MqttsGWInfo;
 import com.ibm.zurich.mqttsgw.messages.mqtts.MqttsMessage;
 import com.ibm.zurich.mqttsgw.messages.mqtts.MqttsPingReq;
@@ -58,12 +61,33 @@ import com.ibm.zurich.mqttsgw.utils.Utils;
 public class UDPClientInterface implements ClientInterface, Runnable {
 
 	private DatagramSocket udpSocket;
-	private volatile boolean running;
+	protected volatile boolean running;
 	private Thread readThread;
-	private Vector<Forwarder> forwarders;
-	private Dispatcher dispatcher;
+	protected ForwarderTable forwarders;
+	protected Dispatcher dispatcher;
 	private byte[] recData = new byte[512];
 
+	//the size of the buffers that are used for sending (a Mqtts message and the encapsulation header)
+	protected static final int SEND_BUFFER_SIZE = 512;
+
+	//the buffers that are used for sending the messages (one per sending thread)
+	private ThreadLocal<ByteBuffer> sendBuffers = new ThreadLocal<ByteBuffer>() {
+		protected ByteBuffer initialValue() {
+			return createSendBuffer();
+		}
+	};
+
+	//the number of datagrams that were throttled by the rate limit of their client or forwarder
+	private final AtomicLong throttledByClient = new AtomicLong();
+	private final AtomicLong throttledByForwarder = new AtomicLong();
+
+	//the views that are used for decoding the received messages (one per reading thread)
+	private ThreadLocal<MqttsFlyweight> views = new ThreadLocal<MqttsFlyweight>() {
+		protected MqttsFlyweight initialValue() {
+			return new MqttsFlyweight();
+		}
+	};
+
 
 	/**
 	 * This method initializes the interface.It creates an new UDP socket and
@@ -78,7 +102,7 @@ public class UDPClientInterface implements ClientInterface, Runnable {
 			//get the Dispatcher
 			dispatcher = Dispatcher.getInstance();
 
-			forwarders = new Vector<Forwarder>();
+			forwarders = new ForwarderTable(GWParameters.getForwarderTimeout());
 
 			//create thread for reading
 			this.readThread = new Thread (this, "UDPClientInterface");
@@ -94,25 +118,8 @@ public class UDPClientInterface implements ClientInterface, Runnable {
 	 */
 	public void broadcastMsg(MqttsMessage msg) {
 		//		GatewayLogger.log(GatewayLogger.INFO, "UDPClientInterface - Broadcasting Mqtts \"" +Utils.hexString(msg.toBytes())+"\" message to the network.");
-		for(int i = forwarders.size() - 1; i >= 0; i--) {
-			Forwarder fr = (Forwarder)forwarders.get(i);
-			//check also if this forwarder is inactive
-			if (System.currentTimeMillis() > fr.timeout)
-				forwarders.remove(i);
-			else{
-				try {
-					byte[] wireMsg = msg.toBytes();
-					byte[] data = new byte[wireMsg.length + 2];
-					data[0] = (byte)0x00;//0x00 means broadcast to all network
-					data[1] = (byte)0x00;
-					System.arraycopy(wireMsg, 0, data, 2, wireMsg.length);
-					DatagramPacket packet = new DatagramPacket(data, data.length, fr.addr, fr.port);
-					udpSocket.send(packet);
-				} catch (IOException e) {
-					GatewayLogger.log(GatewayLogger.ERROR, "UDPClientInterface - Error while writing on the UDP socket.");
-				}
-			}
-		}
+		//0x00 means broadcast to all network
+		broadcast(0x00, msg);
 	}		
 
 	/* (non-Javadoc)
@@ -120,25 +127,30 @@ public class UDPClientInterface implements ClientInterface, Runnable {
 	 */
 	public void broadcastMsg(int radius, MqttsMessage msg) {
 		//		GatewayLogger.log(GatewayLogger.INFO, "UDPClientInterface - Broadcasting Mqtts \"" +Utils.hexString(msg.toBytes())+"\" message to the network with broadcast radius "+radius+".");
-		for(int i = forwarders.size() - 1; i >= 0; i--) {
-			Forwarder fr = (Forwarder)forwarders.get(i);
-			//check also if this forwarder is inactive
-			if (System.currentTimeMillis() > fr.timeout)
-				forwarders.remove(i);
-			else{
-				try {
-					byte[] wireMsg = msg.toBytes();
-					byte[] data = new byte[wireMsg.length + 2];
-					data[0] = (byte)radius;//broadcast to the specified radius
-					data[1] = (byte)0x00;
-					System.arraycopy(wireMsg, 0, data, 2, wireMsg.length);
-					DatagramPacket packet = new DatagramPacket(data, data.length, fr.addr, fr.port);
-					udpSocket.send(packet);
-				} catch (IOException e) {
-					GatewayLogger.log(GatewayLogger.ERROR, "UDPClientInterface - Error while writing on the UDP socket.");
-				}
-			}
-		}
+		//broadcast to the specified radius
+		broadcast(radius, msg);
+	}
+
+	/**
+	 * This method encodes a broadcast message once and sends the same datagram
+	 * to all active forwarders.
+	 * 
+	 * @param radius The broadcast radius (0x00 means broadcast to all network).
+	 * @param msg The Mqtts message.
+	 */
+	protected void broadcast(int radius, MqttsMessage msg) {
+		//the inactive forwarders are skipped (and removed by the forwarder table)
+		Forwarder[] active = forwarders.getActiveForwarders();
+		if(active.length == 0)
+			return;
+
+		ByteBuffer buffer = sendBuffers.get();
+		buffer.clear();
+		buffer.put((byte)radius);
+		buffer.put((byte)0x00);
+		msg.encodeTo(buffer);
+		buffer.flip();
+		send(buffer, active);
 	}
 
 	/* (non-Javadoc)
@@ -149,92 +161,164 @@ public class UDPClientInterface implements ClientInterface, Runnable {
 		try {
 			packet.setLength(recData.length);
 			udpSocket.receive(packet);
-
-			//add the forwarder from which we received the message to the list
-			//if it is already on the list just update its timeout
-			Forwarder forw = new Forwarder();
-			forw.addr = packet.getAddress();
-			forw.port = packet.getPort();
-			forw.timeout = System.currentTimeMillis() + GWParameters.getForwarderTimeout()*1000;
-			//GatewayLogger.log(GatewayLogger.INFO, "UDPClientInterface -  New forwarder:addr = " + forw.addr+ " port = "+forw.port);
-
-			boolean found = false;
-			for(int i = 0 ; i < forwarders.size(); i++) {
-				Forwarder fr = (Forwarder)forwarders.get(i);
-				if(forw.equals(fr)){
-					found = true;
-					fr.timeout = System.currentTimeMillis() + GWParameters.getForwarderTimeout()*1000;
-					break;
-				}				
-			}			
-			if (!found) forwarders.add(forw);
-		
-//			if(packet.getLength() > 3) { // not a keep alive packet
-				byte[] data = new byte[packet.getLength()];
-				System.arraycopy(packet.getData(), packet.getOffset(), data, 0, packet.getLength());
-				
-				//old encaps v1.1
-//				byte[] clAddr = new byte[data[1]];  //data[1] contains length of clAddr (wireless node id)
-//				System.arraycopy(data, 2, clAddr, 0, clAddr.length);
-//				ClientAddress address = new ClientAddress(clAddr, packet.getAddress(), packet.getPort());
-//				byte[] mqttsData = new byte[data.length - clAddr.length - 2];
-//				System.arraycopy(data, clAddr.length + 2, mqttsData, 0, mqttsData.length);
-				//end old encaps v1.1
-				
-				byte[] mqttsData = null;
-				ClientAddress address = null;
-				
-				if (data[0] == (byte)0x00) {  //old encaps v 1.1
-					byte[] clAddr = new byte[data[1]];  //data[1] contains length of clAddr (wireless node id)
-					System.arraycopy(data, 2, clAddr, 0, clAddr.length);
-					byte[] encaps = new byte[data[1]+2];
-					System.arraycopy(data, 0, encaps, 0, encaps.length);
-					address = new ClientAddress(clAddr, packet.getAddress(), packet.getPort(), true, encaps);
-					mqttsData = new byte[data.length - clAddr.length - 2];
-					System.arraycopy(data, clAddr.length + 2, mqttsData, 0, mqttsData.length);
-				} else if (data[1] == (byte)MqttsMessage.ENCAPSMSG) { //new encaps v1.2
-					//we have an encapsulated msg
-					byte[] clAddr = new byte[((int)data[0]&0xFF) - 3];  //data[0]: length of encaps
-					System.arraycopy(data, 3, clAddr, 0, clAddr.length);
-					byte[] encaps = new byte[data[0]];
-					System.arraycopy(data, 0, encaps, 0, encaps.length);
-					address = new ClientAddress(clAddr, packet.getAddress(), packet.getPort(), true, encaps);
-					mqttsData = new byte[(int)data[data[0]]];
-					System.arraycopy(data, data[0], mqttsData, 0, mqttsData.length);
-				} else {
-					//we have a non-encapsulated mqtts msg
-					//we will create an address out of the forwarder address
-					byte[] a1 = packet.getAddress().getAddress();
-					byte[] a2 = new byte[2];
-					a2[0] = (byte)((packet.getPort() >> 8) & 0xFF);
-					a2[1] = (byte) ( packet.getPort() & 0xFF);
-					byte[] clAddr = new byte[a1.length+a2.length];
-					System.arraycopy(a1, 0, clAddr, 0, a1.length);
-					System.arraycopy(a2, 0, clAddr, a1.length, a2.length);
-					address = new ClientAddress(clAddr, packet.getAddress(), packet.getPort(), false, null);
-					mqttsData = new byte[(int)data[0]];
-					System.arraycopy(data, 0, mqttsData, 0, mqttsData.length);
-				}
-				
-				
-//start-just for the testing purposes we simulate here a network delay
-//This will NOT be included in the final version
-//				try {
-//					Thread.sleep(10);
-//				} catch (InterruptedException e) {
-//					// TODO Auto-generated catch block
-//					e.printStackTrace();
-//				}
-
-				//end
-				decodeMsg(mqttsData,address);
-//			}
+			handleDatagram(packet.getData(), packet.getOffset(), packet.getLength(), packet.getAddress(), packet.getPort());
 		}catch (IOException ex){
 			ex.printStackTrace();
 			GatewayLogger.log(GatewayLogger.ERROR, "UDPClientInterface - An I/O error occurred while reading from the socket.");
 		}
 	}
 
+	/**
+	 * This method handles a received datagram.It updates the list of forwarders, extracts
+	 * the address of the client and the Mqtts message from the (possibly encapsulated)
+	 * datagram and decodes the message.
+	 * The rate limits of the forwarder and of the client are checked on the header of the 
+	 * datagram, before anything is copied from it.
+	 * 
+	 * @param buf The buffer that contains the datagram.
+	 * @param offset The position of the datagram in the buffer.
+	 * @param length The length of the datagram.
+	 * @param fwAddr The IP address of the forwarder.
+	 * @param fwPort The port of the forwarder.
+	 */
+	protected void handleDatagram(byte[] buf, int offset, int length, InetAddress fwAddr, int fwPort) {
+		//add the forwarder from which we received the message to the table
+		//if it is already in the table just mark it as active
+		Forwarder fr = updateForwarder(fwAddr, fwPort);
+
+		long now = (fr.bucket != null || fr.nodes != null) ? System.nanoTime() : 0;
+		if(fr.bucket != null && isThrottled(fr, now))
+			return;
+
+		if(length < 2) {
+			GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - Not a valid Mqtts message. The received data packet is too short (length = {}). The packet cannot be processed.", length);
+			return;
+		}
+
+		int msgOffset;
+		int msgLength;
+		ClientAddress address = null;
+
+		if (buf[offset] == (byte)0x00) {  //old encaps v 1.1
+			int addrLength = buf[offset+1] & 0xFF;  //buf[offset+1] contains length of clAddr (wireless node id)
+			if(addrLength + 2 > length) {
+				GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - Not a valid encapsulated Mqtts message (length = {}). The packet cannot be processed.", length);
+				return;
+			}
+			if(fr.nodes != null && isThrottled(fr, buf, offset+2, addrLength, now))
+				return;
+			byte[] clAddr = new byte[addrLength];
+			System.arraycopy(buf, offset+2, clAddr, 0, clAddr.length);
+			byte[] encaps = new byte[addrLength+2];
+			System.arraycopy(buf, offset, encaps, 0, encaps.length);
+			address = new ClientAddress(clAddr, fwAddr, fwPort, true, encaps);
+			msgOffset = offset + clAddr.length + 2;
+			msgLength = length - clAddr.length - 2;
+		} else if (buf[offset+1] == (byte)MqttsMessage.ENCAPSMSG) { //new encaps v1.2
+			//we have an encapsulated msg
+			int encapsLength = buf[offset] & 0xFF;  //buf[offset]: length of encaps
+			if(encapsLength < 3 || encapsLength >= length || encapsLength + (buf[offset+encapsLength] & 0xFF) > length) {
+				GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - Not a valid encapsulated Mqtts message (length = {}). The packet cannot be processed.", length);
+				return;
+			}
+			if(fr.nodes != null && isThrottled(fr, buf, offset+3, encapsLength-3, now))
+				return;
+			byte[] clAddr = new byte[encapsLength - 3];
+			System.arraycopy(buf, offset+3, clAddr, 0, clAddr.length);
+			byte[] encaps = new byte[encapsLength];
+			System.arraycopy(buf, offset, encaps, 0, encaps.length);
+			address = new ClientAddress(clAddr, fwAddr, fwPort, true, encaps);
+			msgOffset = offset + encapsLength;
+			msgLength = buf[offset+encapsLength] & 0xFF;
+		} else {
+			//we have a non-encapsulated mqtts msg
+			//we will create an address out of the forwarder address
+			//(the client is the forwarder itself, so it has an empty node id in the table of buckets)
+			if(fr.nodes != null && isThrottled(fr, buf, offset, 0, now))
+				return;
+			byte[] a1 = fwAddr.getAddress();
+			byte[] clAddr = new byte[a1.length+2];
+			System.arraycopy(a1, 0, clAddr, 0, a1.length);
+			clAddr[a1.length] = (byte)((fwPort >> 8) & 0xFF);
+			clAddr[a1.length+1] = (byte) (fwPort & 0xFF);
+			address = new ClientAddress(clAddr, fwAddr, fwPort, false, null);
+			msgLength = buf[offset] & 0xFF;
+			if(msgLength > length) {
+				GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - Not a valid Mqtts message. Field \"Length\" in the received data packet does not match the actual length of the packet. The packet cannot be processed.");
+				return;
+			}
+			msgOffset = offset;
+		}
+
+		//decode the message directly from the buffer (only the fields that are kept are copied)
+		decodeMsg(views.get().wrap(buf, msgOffset, msgLength), address);
+	}
+
+	/**
+	 * This method adds a forwarder to the table of forwarders or, if it is already
+	 * in the table, marks it as active.
+	 * 
+	 * @param fwAddr The IP address of the forwarder.
+	 * @param fwPort The port of the forwarder.
+	 */
+	protected Forwarder updateForwarder(InetAddress fwAddr, int fwPort) {
+		return forwarders.update(fwAddr, fwPort);
+	}
+
+	/**
+	 * This method takes a token from the bucket of a forwarder.
+	 * 
+	 * @param fr The forwarder.
+	 * @param now The current time (in nanoseconds, see System.nanoTime()).
+	 * @return True if the datagram exceeds the rate limit of the forwarder.
+	 */
+	private boolean isThrottled(Forwarder fr, long now) {
+		if(fr.bucket.tryAcquire(now))
+			return false;
+		throttledByForwarder.incrementAndGet();
+		//report only the first throttled datagram until the bucket gets full again
+		if(fr.bucket.getThrottled() == 1)
+			GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - Forwarder {}:{} exceeds the rate limit of {} datagrams per second. Its datagrams are dropped ({} datagram(s) throttled by the forwarder rate limit in total).", 
+					fr.addr.getHostAddress(), fr.port, GWParameters.getForwarderRateLimit(), throttledByForwarder.get());
+		return true;
+	}
+
+	/**
+	 * This method takes a token from the bucket of a client.
+	 * 
+	 * @param fr The forwarder of the client.
+	 * @param buf The buffer that contains the node id of the client.
+	 * @param offset The position of the node id in the buffer.
+	 * @param length The length of the node id (0 if the client is the forwarder itself).
+	 * @param now The current time (in nanoseconds, see System.nanoTime()).
+	 * @return True if the datagram exceeds the rate limit of the client.
+	 */
+	private boolean isThrottled(Forwarder fr, byte[] buf, int offset, int length, long now) {
+		TokenBucket bucket = fr.nodes.getBucket(buf, offset, length, now);
+		if(bucket.tryAcquire(now))
+			return false;
+		throttledByClient.incrementAndGet();
+		//report only the first throttled datagram until the bucket gets full again
+		if(bucket.getThrottled() == 1)
+			GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - Client [{}] behind forwarder {}:{} exceeds the rate limit of {} datagrams per second. Its datagrams are dropped ({} datagram(s) throttled by the client rate limit in total).", 
+					Utils.SliceByteArray(buf, offset, length), fr.addr.getHostAddress(), fr.port, GWParameters.getClientRateLimit(), throttledByClient.get());
+		return true;
+	}
+
+	/**
+	 * @return The number of datagrams that were dropped because of the rate limit of their client.
+	 */
+	public long getThrottledByClient() {
+		return throttledByClient.get();
+	}
+
+	/**
+	 * @return The number of datagrams that were dropped because of the rate limit of their forwarder.
+	 */
+	public long getThrottledByForwarder() {
+		return throttledByForwarder.get();
+	}
+
 	/**
 	 * This method decodes the received Mqtts message and then constructs a 
 	 * general "internal" message {@link com.ibm.zurich.mqttsgw.messages.Message}
@@ -244,66 +328,81 @@ public class UDPClientInterface implements ClientInterface, Runnable {
 	 * @param address The address of the SA client.
 	 */
 	public void decodeMsg(byte[] data, ClientAddress address) {
-		MqttsMessage mqttsMsg = null;
-
 		//do some checks for the received packet
 		if(data == null) {
 			GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - The received data packet is null. The packet cannot be processed.");
 			return;
 		}
 
-		if(data.length < GWParameters.getMinMqttsLength()) {
-			GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - Not a valid Mqtts message. The received data packet is too short (length = "+data.length +"). The packet cannot be processed.");
+		decodeMsg(new MqttsFlyweight().wrap(data, 0, data.length), address);
+	}
+
+	/**
+	 * This method decodes the received Mqtts message from a view of the buffer that contains it
+	 * and then constructs a general "internal" message {@link com.ibm.zurich.mqttsgw.messages.Message}
+	 * which puts it to Dispatcher's queue {@link  com.ibm.zurich.mqttsgw.core.Dispatcher.
+	 * The messages of the publish procedures are constructed directly from the view, the others
+	 * from a copy of the received message.
+	 * 
+	 * @param view The view of the received Mqtts packet.
+	 * @param address The address of the SA client.
+	 */
+	protected void decodeMsg(MqttsFlyweight view, ClientAddress address) {
+		MqttsMessage mqttsMsg = null;
+		int length = view.getDataLength();
+
+		if(length < GWParameters.getMinMqttsLength()) {
+			GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - Not a valid Mqtts message. The received data packet is too short (length = {}). The packet cannot be processed.", length);
 			return;
 		}
 
-		if(data.length > GWParameters.getMaxMqttsLength()){
-			GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - Not a valid Mqtts message. The received data packet is too long (length = "+data.length +"). The packet cannot be processed.");
+		if(length > GWParameters.getMaxMqttsLength()){
+			GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - Not a valid Mqtts message. The received data packet is too long (length = {}). The packet cannot be processed.", length);
 			return;
 
 		}
 
-		if(data[0] < GWParameters.getMinMqttsLength()) {
-			GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - Not a valid Mqtts message. Field \"Length\" in the received data packet is less than "+GWParameters.getMinMqttsLength()+" . The packet cannot be processed.");
+		if(view.getLength() < GWParameters.getMinMqttsLength()) {
+			GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - Not a valid Mqtts message. Field \"Length\" in the received data packet is less than {} . The packet cannot be processed.", GWParameters.getMinMqttsLength());
 			return;
 		}
 
-		if(data[0] != data.length) {
+		if(view.getLength() != length) {
 			GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - Not a valid Mqtts message. Field \"Length\" in the received data packet does not match the actual length of the packet. The packet cannot be processed.");
 			return;
 		}
 
 
-		int msgType = (data[1] & 0xFF);
+		int msgType = view.getMsgType();
 		switch (msgType) {
 		case MqttsMessage.ADVERTISE:
-			if(data.length != 5) {
-				GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - Not a valid Mqtts ADVERTISE message. Wrong packet length (length = "+data.length +"). The packet cannot be processed.");
+			if(length != 5) {
+				GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - Not a valid Mqtts ADVERTISE message. Wrong packet length (length = {}). The packet cannot be processed.", length);
 				return;
 			}
-			mqttsMsg = new MqttsAdvertise(data);
+			mqttsMsg = new MqttsAdvertise(view.toBytes());
 			//TODO Handle this case for load balancing issues
 			break;
 
 		case MqttsMessage.SEARCHGW:
-			if(data.length != 3) {
-				GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - Not a valid Mqtts SEARCHGW message. Wrong packet length (length = "+data.length +"). The packet cannot be processed.");
+			if(length != 3) {
+				GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - Not a valid Mqtts SEARCHGW message. Wrong packet length (length = {}). The packet cannot be processed.", length);
 				return;
 			}
-			mqttsMsg = new MqttsSearchGW(data);
+			mqttsMsg = new MqttsSearchGW(view.toBytes());
 			break;
 
 		case MqttsMessage.GWINFO:
-			mqttsMsg = new MqttsGWInfo(data);
+			mqttsMsg = new MqttsGWInfo(view.toBytes());
 			//TODO Handle this case for load balancing issues
 			break;
 
 		case MqttsMessage.CONNECT:
-			if(data.length < 7) {
-				GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - Not a valid Mqtts CONNECT message. Wrong packet length (length = "+data.length +"). The packet cannot be processed.");
+			if(length < 7) {
+				GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - Not a valid Mqtts CONNECT message. Wrong packet length (length = {}). The packet cannot be processed.", length);
 				return;
 			}
-			mqttsMsg = new MqttsConnect(data);
+			mqttsMsg = new MqttsConnect(view.toBytes());
 			break;
 
 		case MqttsMessage.CONNACK:
@@ -315,11 +414,11 @@ public class UDPClientInterface implements ClientInterface, Runnable {
 			break;
 
 		case MqttsMessage.WILLTOPIC:
-			if(data.length < 2) {
-				GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - Not a valid Mqtts WILLTOPIC message. Wrong packet length (length = "+data.length +"). The packet cannot be processed.");
+			if(length < 2) {
+				GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - Not a valid Mqtts WILLTOPIC message. Wrong packet length (length = {}). The packet cannot be processed.", length);
 				return;
 			}
-			mqttsMsg = new MqttsWillTopic(data);
+			mqttsMsg = new MqttsWillTopic(view.toBytes());
 			break;
 
 		case MqttsMessage.WILLMSGREQ:
@@ -327,79 +426,79 @@ public class UDPClientInterface implements ClientInterface, Runnable {
 			break;
 
 		case MqttsMessage.WILLMSG:
-			if(data.length < 3) {
-				GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - Not a valid Mqtts WILLMSG message. Wrong packet length (length = "+data.length +"). The packet cannot be processed.");
+			if(length < 3) {
+				GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - Not a valid Mqtts WILLMSG message. Wrong packet length (length = {}). The packet cannot be processed.", length);
 				return;
 			}
-			mqttsMsg = new MqttsWillMsg(data);
+			mqttsMsg = new MqttsWillMsg(view.toBytes());
 			break;
 
 		case MqttsMessage.REGISTER:
-			if(data.length < 7) {
-				GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - Not a valid Mqtts REGISTER message. Wrong packet length (length = "+data.length +"). The packet cannot be processed.");
+			if(length < 7) {
+				GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - Not a valid Mqtts REGISTER message. Wrong packet length (length = {}). The packet cannot be processed.", length);
 				return;
 			}
-			mqttsMsg = new MqttsRegister(data);
+			mqttsMsg = new MqttsRegister(view.toBytes());
 			break;
 
 		case MqttsMessage.REGACK:
-			if(data.length != 7) {
-				GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - Not a valid Mqtts REGACK message. Wrong packet length (length = "+data.length +"). The packet cannot be processed.");
+			if(length != 7) {
+				GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - Not a valid Mqtts REGACK message. Wrong packet length (length = {}). The packet cannot be processed.", length);
 				return;
 			}
-			mqttsMsg = new MqttsRegack(data);
+			mqttsMsg = new MqttsRegack(view);
 			break;
 
 		case MqttsMessage.PUBLISH:
-			if(data.length < 8) {
-				GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - Not a valid Mqtts PUBLISH message. Wrong packet length (length = "+data.length +"). The packet cannot be processed.");
+			if(length < 8) {
+				GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - Not a valid Mqtts PUBLISH message. Wrong packet length (length = {}). The packet cannot be processed.", length);
 				return;
 			}
-			mqttsMsg = new MqttsPublish(data);
+			mqttsMsg = new MqttsPublish(view);
 			break;
 
 		case MqttsMessage.PUBACK:
-			if(data.length != 7) {
-				GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - Not a valid Mqtts PUBACK message. Wrong packet length (length = "+data.length +"). The packet cannot be processed.");
+			if(length != 7) {
+				GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - Not a valid Mqtts PUBACK message. Wrong packet length (length = {}). The packet cannot be processed.", length);
 				return;
 			}
-			mqttsMsg = new MqttsPuback(data);
+			mqttsMsg = new MqttsPuback(view);
 			break;
 
 		case MqttsMessage.PUBCOMP:
-			if(data.length != 4) {
-				GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - Not a valid Mqtts PUBCOMP message. Wrong packet length (length = "+data.length +"). The packet cannot be processed.");
+			if(length != 4) {
+				GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - Not a valid Mqtts PUBCOMP message. Wrong packet length (length = {}). The packet cannot be processed.", length);
 				return;
 			}
-			mqttsMsg = new MqttsPubComp(data);
+			mqttsMsg = new MqttsPubComp(view);
 			break;
 
 		case MqttsMessage.PUBREC:
-			if(data.length != 4) {
-				GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - Not a valid Mqtts PUBREC message. Wrong packet length (length = "+data.length +"). The packet cannot be processed.");
+			if(length != 4) {
+				GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - Not a valid Mqtts PUBREC message. Wrong packet length (length = {}). The packet cannot be processed.", length);
 				return;
 			}
-			mqttsMsg = new MqttsPubRec(data);
+			mqttsMsg = new MqttsPubRec(view);
 			break;
 
 		case MqttsMessage.PUBREL:
-			if(data.length != 4) {
-				GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - Not a valid Mqtts PUBREL message. Wrong packet length (length = "+data.length +"). The packet cannot be processed.");
+			if(length != 4) {
+				GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - Not a valid Mqtts PUBREL message. Wrong packet length (length = {}). The packet cannot be processed.", length);
 				return;
 			}
-			mqttsMsg = new MqttsPubRel(data);
+			mqttsMsg = new MqttsPubRel(view);
 			break;
 
 		case MqttsMessage.SUBSCRIBE:
-			if(data.length < 6) {
-				GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - Not a valid Mqtts SUBSCRIBE message. Wrong packet length (length = "+data.length +"). The packet cannot be processed.");
+			if(length < 6) {
+				GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - Not a valid Mqtts SUBSCRIBE message. Wrong packet length (length = {}). The packet cannot be processed.", length);
 				return;
 			}
 
 			try {
-				mqttsMsg = new MqttsSubscribe(data);
+				mqttsMsg = new MqttsSubscribe(view.toBytes());
 			} catch (MqttsException e) {
-				GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - Not a valid Mqtts SUBSCRIBE message. "+e.getMessage());
+				GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - Not a valid Mqtts SUBSCRIBE message. {}", e.getMessage());
 				return;
 			}
 			break;
@@ -409,15 +508,15 @@ public class UDPClientInterface implements ClientInterface, Runnable {
 			break;
 
 		case MqttsMessage.UNSUBSCRIBE :
-			if(data.length < 6) {
-				GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - Not a valid Mqtts UNSUBSCRIBE message. Wrong packet length (length = "+data.length +"). The packet cannot be processed.");
+			if(length < 6) {
+				GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - Not a valid Mqtts UNSUBSCRIBE message. Wrong packet length (length = {}). The packet cannot be processed.", length);
 				return;
 			}
 
 			try {
-				mqttsMsg = new MqttsUnsubscribe(data);
+				mqttsMsg = new MqttsUnsubscribe(view.toBytes());
 			} catch (MqttsException e) {
-				GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - Not a valid Mqtts UNSUBSCRIBE message. "+e.getMessage());
+				GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - Not a valid Mqtts UNSUBSCRIBE message. {}", e.getMessage());
 				return;
 			}
 			break;
@@ -427,24 +526,24 @@ public class UDPClientInterface implements ClientInterface, Runnable {
 			break;
 
 		case MqttsMessage.PINGREQ:
-			mqttsMsg = new MqttsPingReq(data);
+			mqttsMsg = new MqttsPingReq(view.toBytes());
 			break;
 
 		case MqttsMessage.PINGRESP:
-			mqttsMsg = new MqttsPingResp(data);
+			mqttsMsg = new MqttsPingResp(view.toBytes());
 			break;
 
 		case MqttsMessage.DISCONNECT :
-			mqttsMsg = new MqttsDisconnect(data);
+			mqttsMsg = new MqttsDisconnect(view.toBytes());
 			break;
 
 		case MqttsMessage.WILLTOPICUPD:
-			if(data.length < 2) {
-				GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - Not a valid Mqtts WILLTOPICUPD message. Wrong packet length (length = "+data.length +"). The packet cannot be processed.");
+			if(length < 2) {
+				GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - Not a valid Mqtts WILLTOPICUPD message. Wrong packet length (length = {}). The packet cannot be processed.", length);
 				return;
 			}
 
-			mqttsMsg = new MqttsWillTopicUpd(data);
+			mqttsMsg = new MqttsWillTopicUpd(view.toBytes());
 			break;
 
 		case MqttsMessage.WILLTOPICRESP:
@@ -452,12 +551,12 @@ public class UDPClientInterface implements ClientInterface, Runnable {
 			break;
 
 		case MqttsMessage.WILLMSGUPD:
-			if(data.length < 3) {
-				GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - Not a valid Mqtts WILLMSGUPD message. Wrong packet length (length = "+data.length +"). The packet cannot be processed.");
+			if(length < 3) {
+				GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - Not a valid Mqtts WILLMSGUPD message. Wrong packet length (length = {}). The packet cannot be processed.", length);
 				return;
 			}
 
-			mqttsMsg = new MqttsWillMsgUpd(data);
+			mqttsMsg = new MqttsWillMsgUpd(view.toBytes());
 			break;
 
 		case MqttsMessage.WILLMSGRESP:
@@ -465,7 +564,18 @@ public class UDPClientInterface implements ClientInterface, Runnable {
 			break;
 
 		default:
-			GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - Mqtts message of unknown type \"" + msgType+"\" received.");
+			GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - Mqtts message of unknown type \"{}\" received.", msgType);
+			return;
+		}
+
+		//a Mqtts PUBLISH message with QoS -1 needs no state of its sender, so it is addressed
+		//directly to the GatewayMsgHandler that publishes it (no ClientMsgHandler is created);
+		//a sender that has a ClientMsgHandler goes through it, so that its activity is recorded
+		if(msgType == MqttsMessage.PUBLISH && view.getQos() == -1 && !this.dispatcher.hasHandler(address)) {
+			Message msg = new Message(GWParameters.getGatewayAddress());
+			msg.setType(Message.MQTTS_MSG);
+			msg.setMqttsMessage(mqttsMsg);
+			this.dispatcher.putMessage(msg);
 			return;
 		}
 
@@ -484,41 +594,21 @@ public class UDPClientInterface implements ClientInterface, Runnable {
 		//		GatewayLogger.log(GatewayLogger.INFO, "UDPClientInterface - Sending Mqtts \"" + Utils.hexString(msg.toBytes())+ "\" message to the client with address \"" +Utils.hexString(address.getAddress())+"\".");
 
 		if(address == null) {
-			GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - The address of the receiver is null.The Mqtts message " + Utils.hexString(msg.toBytes())+ " cannot be sent.");
+			GatewayLogger.log(GatewayLogger.WARN, "UDPClientInterface - The address of the receiver is null.The Mqtts message {} cannot be sent.", msg.toBytes());
 			return;
 		}
 
 		try {
-			byte[] addr = address.getAddress();
-			byte[] wireMsg = msg.toBytes();
-			
-			//old encaps v1.1
-//			byte[] data = new byte[wireMsg.length + addr.length + 2];
-//			data[0] = (byte)0x00;
-//			data[1] = (byte)addr.length;
-//			System.arraycopy(addr, 0, data, 2, addr.length);
-//			System.arraycopy(wireMsg,  0, data, addr.length + 2, wireMsg.length);
-			//end old encaps v1.1
-			
-			//new encaps v1.2
-			byte[] data = null;
-			if (address.isEncaps()) {
-//				byte[] encaps = new byte[3+addr.length];
-//				encaps[0] = (byte)(addr.length + 3);
-//				encaps[1] = (byte) MqttsMessage.ENCAPSMSG;
-//				encaps[2] = 0x00;
-				byte[] encaps = address.getEncaps();
-				System.arraycopy(addr, 0, encaps, 0, addr.length);
-				data = new byte[encaps.length + wireMsg.length];
-				System.arraycopy(encaps, 0, data, 0, encaps.length);
-				System.arraycopy(wireMsg, 0, data, encaps.length, wireMsg.length);				
-			} else {
-				data = wireMsg;
-			}
-			//end new encaps v1.2
-			
-			DatagramPacket packet = new DatagramPacket(data, data.length, address.getIPaddress(), address.getPort());
-			udpSocket.send(packet);
+			ByteBuffer buffer = sendBuffers.get();
+			buffer.clear();
+
+			//new encaps v1.2 (the received encapsulation header already contains the address of the client)
+			if (address.isEncaps())
+				buffer.put(address.getEncaps());
+
+			msg.encodeTo(buffer);
+			buffer.flip();
+			send(buffer, address.getSocketAddress());
 		} catch (IOException e) {
 			e.printStackTrace();
 			GatewayLogger.log(GatewayLogger.ERROR, "UDPClientInterface - Error while writing on the UDP socket.");
@@ -526,6 +616,63 @@ public class UDPClientInterface implements ClientInterface, Runnable {
 	}
 
 
+	/**
+	 * This method creates a buffer for sending the messages.
+	 * 
+	 * @return The buffer (a heap buffer, since the datagram socket sends byte arrays).
+	 */
+	protected ByteBuffer createSendBuffer() {
+		return ByteBuffer.allocate(SEND_BUFFER_SIZE);
+	}
+
+
+	/**
+	 * This method sends a datagram over the UDP socket.
+	 * 
+	 * @param buffer The buffer that contains the datagram (between its position and its limit).
+	 * @param target The IP address and the port of the receiver.
+	 * @throws IOException
+	 */
+	protected void send(ByteBuffer buffer, InetSocketAddress target) throws IOException {
+		send(buffer.array(), buffer.limit(), target.getAddress(), target.getPort());
+	}
+
+
+	/**
+	 * This method sends the same datagram to several forwarders over the UDP socket.
+	 * The packet is reused for all forwarders.
+	 * 
+	 * @param buffer The buffer that contains the datagram (between its position and its limit).
+	 * @param targets The forwarders.
+	 */
+	protected void send(ByteBuffer buffer, Forwarder[] targets) {
+		DatagramPacket packet = new DatagramPacket(buffer.array(), buffer.limit());
+		for(int i = 0; i < targets.length; i++) {
+			try {
+				packet.setSocketAddress(targets[i].getSocketAddress());
+				udpSocket.send(packet);
+			} catch (IOException e) {
+				GatewayLogger.log(GatewayLogger.ERROR, "UDPClientInterface - Error while writing on the UDP socket.");
+			}
+		}
+	}
+
+
+	/**
+	 * This method sends a datagram over the UDP socket.
+	 * 
+	 * @param data The buffer that contains the datagram.
+	 * @param length The length of the datagram.
+	 * @param addr The IP address of the receiver.
+	 * @param port The port of the receiver.
+	 * @throws IOException
+	 */
+	protected void send(byte[] data, int length, InetAddress addr, int port) throws IOException {
+		DatagramPacket packet = new DatagramPacket(data, length, addr, port);
+		udpSocket.send(packet);
+	}
+
+
 	/* (non-Javadoc)
 	 * @see java.lang.Runnable#run()
 	 */
@@ -541,9 +688,40 @@ public class UDPClientInterface implements ClientInterface, Runnable {
 	 * Mqtts protocol.
 	 */
 	public static class Forwarder {
-		private InetAddress addr = null;
-		private int port = 0;
-		private long timeout = 0;
+		final InetAddress addr;
+		final int port;
+
+		//the time (in milliseconds) of the last datagram (see ForwarderTable)
+		volatile long lastActivity = 0;
+		private InetSocketAddress socketAddress = null;
+
+		//the token bucket of the forwarder and the token buckets of its clients (null if there is no limit)
+		final TokenBucket bucket;
+		final NodeBucketTable nodes;
+
+		public Forwarder(InetAddress addr, int port) {
+			this.addr = addr;
+			this.port = port;
+			long now = System.nanoTime();
+			this.bucket = (GWParameters.getForwarderRateLimit() > 0) ?
+					new TokenBucket(GWParameters.getForwarderRateLimit(), GWParameters.getForwarderRateBurst(), now) : null;
+			this.nodes = (GWParameters.getClientRateLimit() > 0) ?
+					new NodeBucketTable(GWParameters.getClientRateLimit(), GWParameters.getClientRateBurst()) : null;
+		}
+
+		public InetAddress getAddress() {
+			return addr;
+		}
+
+		public int getPort() {
+			return port;
+		}
+
+		public InetSocketAddress getSocketAddress() {
+			if(socketAddress == null)
+				socketAddress = new InetSocketAddress(addr, port);
+			return socketAddress;
+		}
 
 		public boolean equals(Object o) {
 			boolean same = false;
@@ -557,5 +735,9 @@ public class UDPClientInterface implements ClientInterface, Runnable {
 			}
 			return same;
 		}
+
+		public int hashCode() {
+			return (addr == null ? 0 : addr.hashCode()) * 31 + port;
+		}
 	}
 }
\ No newline at end of file
@@ -10,6 +10,12 @@
 
 package com.ibm.zurich.mqttsgw.core;
 
+import java.util.Hashtable;
+import java.util.Vector;
+
+import com.ibm.zurich.mqttsgw.broker.BrokerInterface;
+import com.ibm.zurich.mqttsgw.broker.aggregating.AggregatingBrokerInterface;
+import com.ibm.zurich.mqttsgw.broker.nio.NIOBrokerInterface;
 import com.ibm.zurich.mqttsgw.broker.tcp.TCPBrokerInterface;
 import com.ibm.zurich.mqttsgw.client.ClientInterface;
 import com.ibm.zurich.mqttsgw.exceptions.MqttsException;
@@ -59,6 +65,7 @@ import com.ibm.zurich.mqttsgw.utils.ClientAddress;
 import com.ibm.zurich.mqttsgw.utils.GWParameters;
 import com.ibm.zurich.mqttsgw.utils.GatewayAddress;
 import com.ibm.zurich.mqttsgw.utils.GatewayLogger;
+import com.ibm.zurich.mqttsgw.utils.TopicRegistry;
 import com.ibm.zurich.mqttsgw.utils.Utils;
 
 /**
@@ -81,7 +88,7 @@ public class ClientMsgHandler extends MsgHandler{
 	private ClientInterface clientInterface = null;
 
 	//the BrokerInterface which represents an interface for communication with the broker
-	private TCPBrokerInterface brokerInterface = null;
+	private BrokerInterface brokerInterface = null;
 
 	//a timer service which is used for timeouts
 	private TimerService timer = null;
@@ -102,6 +109,15 @@ public class ClientMsgHandler extends MsgHandler{
 	//in order to remove it from Dispatcher's mapping table
 	private long timeout;
 
+	//variables for checking the keep alive period of the client in "local" ping mode: the time
+	//(in milliseconds) after which the client is considered lost and the time that is added on
+	//every message of the client (1.5 times its keep alive period, 0 if it is not checked)
+	private long keepAliveTimeout = 0;
+	private long keepAliveDuration = 0;
+
+	//true while a Mqtt PINGREQ message of the gateway waits for a Mqtt PINGRESP from the broker
+	private boolean waitingPingResp = false;
+
 	//messages for storing the information while on a connection procedure  
 	private MqttsConnect mqttsConnect = null;
 	private MqttsWillTopic mqttsWillTopic = null;	
@@ -110,14 +126,20 @@ public class ClientMsgHandler extends MsgHandler{
 	private MqttsSubscribe mqttsSubscribe = null;
 	private MqttsUnsubscribe mqttsUnsubscribe = null;
 
-	//message for storing information while on registration procedure initiated by the gateway
-	private MqttsRegister mqttsRegister = null;
+	//the registration procedures initiated by the gateway that wait for a Mqtts REGACK from the client,
+	//indexed by the message id of their Mqtts REGISTER and by their topic name
+	//(at most GWParameters.getMaxPendingRegisters())
+	private Hashtable<Integer, PendingRegister> pendingRegisters = null;
+	private Hashtable<String, PendingRegister> pendingTopics = null;
 
-	//message for storing information (if necessary) when we receive a Mqtt PUBLISH message
-	private MqttPublish mqttPublish = null;
+	//the Mqtts PUBLISH messages with QoS 1 that wait for a Mqtt PUBACK from the broker,
+	//indexed by their message id (at most GWParameters.getMaxInflightPublishes())
+	private Hashtable<Integer, MqttsPublish> inflightPublishes = null;
 
-	//message for storing information (if necessary) when we receive a Mqtts PUBLISH message
-	private MqttsPublish mqttsPublish = null;
+	//the QoS 2 exchanges of the Mqtts PUBLISH messages from the client to the broker and of the
+	//Mqtt PUBLISH messages from the broker to the client, indexed by their message id
+	private Hashtable<Integer, Qos2Exchange> clientQos2Exchanges = null;
+	private Hashtable<Integer, Qos2Exchange> brokerQos2Exchanges = null;
 
 
 	//variables for handling Mqtts messages WILLTOPICUPD and WILLMSGUPD
@@ -143,7 +165,7 @@ public class ClientMsgHandler extends MsgHandler{
 	 * @see com.ibm.zurich.mqttsgw.core.MsgHandler#initialize()
 	 */
 	public void initialize() {
-		brokerInterface = new TCPBrokerInterface(this.clientAddress);
+		brokerInterface = createBrokerInterface();
 		brokerInterface.setClientId(clientId);
 		timer = TimerService.getInstance();
 		dispatcher = Dispatcher.getInstance();
@@ -152,6 +174,11 @@ public class ClientMsgHandler extends MsgHandler{
 		timeout = 0;
 		client = new ClientState();
 		gateway = new GatewayState();
+		inflightPublishes = new Hashtable<Integer, MqttsPublish>();
+		clientQos2Exchanges = new Hashtable<Integer, Qos2Exchange>();
+		brokerQos2Exchanges = new Hashtable<Integer, Qos2Exchange>();
+		pendingRegisters = new Hashtable<Integer, PendingRegister>();
+		pendingTopics = new Hashtable<String, PendingRegister>();
 		msgId = 1;
 		topicId = GWParameters.getPredfTopicIdSize()+1;
 	}
@@ -167,7 +194,12 @@ public class ClientMsgHandler extends MsgHandler{
 	 */
 	public void handleMqttsMessage(MqttsMessage receivedMsg){		
 		//update this handler's timeout
-		timeout = System.currentTimeMillis() + GWParameters.getHandlerTimeout()*1000;
+		long now = System.currentTimeMillis();
+		timeout = now + GWParameters.getHandlerTimeout()*1000;
+
+		//update the keep alive timeout of the client (if any)
+		if(keepAliveDuration > 0)
+			keepAliveTimeout = now + keepAliveDuration;
 
 		//get the type of the Mqtts message and handle the message according to that type	
 		switch(receivedMsg.getMsgType()){
@@ -280,7 +312,7 @@ public class ClientMsgHandler extends MsgHandler{
 			break;
 
 		default:
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Mqtts message of unknown type \"" + receivedMsg.getMsgType()+"\" received.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Mqtts message of unknown type \"{}\" received.", this.clientAddress.getAddress(), clientId, receivedMsg.getMsgType());
 			break;
 		}
 	}	
@@ -311,24 +343,24 @@ public class ClientMsgHandler extends MsgHandler{
 	 * @param receivedMsg The received MqttsConnect message.
 	 */
 	private void handleMqttsConnect(MqttsConnect receivedMsg) {		
-		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Mqtts CONNECT message with \"Will\" = \"" +receivedMsg.isWill()+"\" and \"CleanSession\" = \"" +receivedMsg.isCleanSession()+"\" received.");
+		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Mqtts CONNECT message with \"Will\" = \"{}\" and \"CleanSession\" = \"{}\" received.", this.clientAddress.getAddress(), clientId, receivedMsg.isWill(), receivedMsg.isCleanSession());
 
 		this.clientId = receivedMsg.getClientId();
 		brokerInterface.setClientId(clientId);
 
 		//if the client is already connected return a Mqtts CONNACK 
 		if(client.isConnected()){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Client is already connected. Mqtts CONNACK message will be send to the client.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Client is already connected. Mqtts CONNACK message will be send to the client.", this.clientAddress.getAddress(), clientId);
 			MqttsConnack connack = new MqttsConnack();
 			connack.setReturnCode(MqttsMessage.RETURN_CODE_ACCEPTED);
-			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Sending Mqtts CONNACK message to the client.");
+			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Sending Mqtts CONNACK message to the client.", this.clientAddress.getAddress(), clientId);
 			clientInterface.sendMsg(this.clientAddress, connack);	
 			return;
 		}
 
 		//if the gateway is already in process of establishing a connection with the client, drop the message 
 		if(gateway.isEstablishingConnection()){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Client is already establishing a connection. The received Mqtts CONNECT message cannot be processed.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Client is already establishing a connection. The received Mqtts CONNECT message cannot be processed.", this.clientAddress.getAddress(), clientId);
 			return;
 		}
 
@@ -340,7 +372,7 @@ public class ClientMsgHandler extends MsgHandler{
 			mqttConnect.setProtocolVersion (receivedMsg.getProtocolVersion());
 			mqttConnect.setWill (receivedMsg.isWill());	
 			mqttConnect.setCleanStart (receivedMsg.isCleanSession());
-			mqttConnect.setKeepAlive(receivedMsg.getDuration());
+			mqttConnect.setKeepAlive(getBrokerKeepAlive(receivedMsg.getDuration()));
 			mqttConnect.setClientId (receivedMsg.getClientId());
 
 			//open a new TCP/IP connection with the broker 
@@ -348,22 +380,23 @@ public class ClientMsgHandler extends MsgHandler{
 				brokerInterface.initialize();
 			} catch (MqttsException e) {
 				e.printStackTrace();
-				GatewayLogger.log(GatewayLogger.ERROR, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - An error occurred while TCP/IP connection setup with the broker.");
+				GatewayLogger.log(GatewayLogger.ERROR, "ClientMsgHandler [{}]/[{}] - An error occurred while TCP/IP connection setup with the broker.", this.clientAddress.getAddress(), clientId);
 				return;
 			}
 
 			//send the Mqtt CONNECT message to the broker
-			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Sending Mqtt CONNECT message to the broker.");
+			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Sending Mqtt CONNECT message to the broker.", this.clientAddress.getAddress(), clientId);
 			try {
 				brokerInterface.sendMsg(mqttConnect);
 			} catch (MqttsException e) {
 				e.printStackTrace();
-				GatewayLogger.log(GatewayLogger.ERROR, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Failed sending Mqtt CONNECT message to the broker.");
+				GatewayLogger.log(GatewayLogger.ERROR, "ClientMsgHandler [{}]/[{}] - Failed sending Mqtt CONNECT message to the broker.", this.clientAddress.getAddress(), clientId);
 				return;
 			}
 
 			//set the state of the client as "Connected"
 			client.setConnected();
+			startClientKeepAlive(receivedMsg.getDuration());
 			return;
 		}
 
@@ -372,7 +405,7 @@ public class ClientMsgHandler extends MsgHandler{
 		this.mqttsConnect = receivedMsg;
 		MqttsWillTopicReq willTopicReq = new MqttsWillTopicReq();
 
-		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Sending Mqtts WILLTOPICREQ message to the client.");
+		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Sending Mqtts WILLTOPICREQ message to the client.", this.clientAddress.getAddress(), clientId);
 		clientInterface.sendMsg(this.clientAddress, willTopicReq);
 
 		//set the gateway on "waitingWillTopic" state and increase 
@@ -391,10 +424,10 @@ public class ClientMsgHandler extends MsgHandler{
 	 * @param receivedMsg The received MqttsWillTopic message.
 	 */
 	private void handleMqttsWillTopic(MqttsWillTopic receivedMsg) {
-		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Mqtts WILLTOPIC message with \"WillTopic\" = \""+receivedMsg.getWillTopic()+"\" received.");
+		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Mqtts WILLTOPIC message with \"WillTopic\" = \"{}\" received.", this.clientAddress.getAddress(), clientId, receivedMsg.getWillTopic());
 		//if the gateway is not expecting a Mqtts WILLTOPIC at this time, drop the received message and return
 		if(!gateway.isWaitingWillTopic()){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Gateway is not waiting a Mqtts WILLTOPIC message from the client. The received message cannot be processed.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Gateway is not waiting a Mqtts WILLTOPIC message from the client. The received message cannot be processed.", this.clientAddress.getAddress(), clientId);
 			return;
 		}
 
@@ -409,7 +442,7 @@ public class ClientMsgHandler extends MsgHandler{
 		this.mqttsWillTopic = receivedMsg;
 		MqttsWillMsgReq willMsgReq = new MqttsWillMsgReq();
 
-		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Sending Mqtts WILLMSGREQ message to the client.");
+		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Sending Mqtts WILLMSGREQ message to the client.", this.clientAddress.getAddress(), clientId);
 		clientInterface.sendMsg(this.clientAddress, willMsgReq);
 
 		//set the gateway on "waitingWillMsg" state and increase 
@@ -427,10 +460,10 @@ public class ClientMsgHandler extends MsgHandler{
 	 * @param receivedMsg The received MqttsWillMsg message.
 	 */
 	private void handleMqttsWillMsg(MqttsWillMsg receivedMsg) {
-		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Mqtts WILLMSG message with \"WillMsg\" = \""+receivedMsg.getWillMsg()+"\" received.");
+		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Mqtts WILLMSG message with \"WillMsg\" = \"{}\" received.", this.clientAddress.getAddress(), clientId, receivedMsg.getWillMsg());
 		//if the gateway is not expecting a Mqtts WILLMSG at this time, drop the received message and return
 		if(!gateway.isWaitingWillMsg()){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Gateway is not waiting a Mqtts WILLMSG message from the client.The received message cannot be processed.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Gateway is not waiting a Mqtts WILLMSG message from the client.The received message cannot be processed.", this.clientAddress.getAddress(), clientId);
 			return;
 		}
 
@@ -443,12 +476,12 @@ public class ClientMsgHandler extends MsgHandler{
 		//assure that the stored Mqtts CONNECT and Mqtts WILLTOPIC messages that we received before are not null
 		//if one of them is null delete the other and return (debugging checks)
 		if (this.mqttsConnect == null){				
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - The stored Mqtts CONNECT message is null. The received Mqtts WILLMSG message cannot be processed.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - The stored Mqtts CONNECT message is null. The received Mqtts WILLMSG message cannot be processed.", this.clientAddress.getAddress(), clientId);
 			this.mqttsWillTopic = null;
 			return;
 		}
 		if (this.mqttsWillTopic == null){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - The stored Mqtts WILLTOPIC message is null. The received Mqtts WILLMSG message cannot be processed.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - The stored Mqtts WILLTOPIC message is null. The received Mqtts WILLMSG message cannot be processed.", this.clientAddress.getAddress(), clientId);
 			this.mqttsConnect = null;
 			return;
 		}
@@ -464,7 +497,7 @@ public class ClientMsgHandler extends MsgHandler{
 		mqttConnect.setWillQoS (this.mqttsWillTopic.getQos());
 		mqttConnect.setWill (this.mqttsConnect.isWill());	
 		mqttConnect.setCleanStart (this.mqttsConnect.isCleanSession());
-		mqttConnect.setKeepAlive(this.mqttsConnect.getDuration());
+		mqttConnect.setKeepAlive(getBrokerKeepAlive(this.mqttsConnect.getDuration()));
 		mqttConnect.setClientId (this.mqttsConnect.getClientId());
 		mqttConnect.setWillTopic (this.mqttsWillTopic.getWillTopic());
 		mqttConnect.setWillMessage (receivedMsg.getWillMsg());
@@ -474,22 +507,23 @@ public class ClientMsgHandler extends MsgHandler{
 			brokerInterface.initialize();
 		} catch (MqttsException e) {
 			e.printStackTrace();
-			GatewayLogger.log(GatewayLogger.ERROR, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - An error occurred while TCP/IP connection setup with the broker.");
+			GatewayLogger.log(GatewayLogger.ERROR, "ClientMsgHandler [{}]/[{}] - An error occurred while TCP/IP connection setup with the broker.", this.clientAddress.getAddress(), clientId);
 			return;
 		}
 
-		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Sending Mqtt CONNECT message to the broker.");
+		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Sending Mqtt CONNECT message to the broker.", this.clientAddress.getAddress(), clientId);
 		//send the Mqtt CONNECT message to the broker
 		try {
 			brokerInterface.sendMsg(mqttConnect);
 		} catch (MqttsException e) {
 			e.printStackTrace();
-			GatewayLogger.log(GatewayLogger.ERROR, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Failed sending Mqtt CONNECT message to the broker.");
+			GatewayLogger.log(GatewayLogger.ERROR, "ClientMsgHandler [{}]/[{}] - Failed sending Mqtt CONNECT message to the broker.", this.clientAddress.getAddress(), clientId);
 			return;
 		}
 
 		//set the state of the client as "Connected"
 		client.setConnected();
+		startClientKeepAlive(this.mqttsConnect.getDuration());
 
 		//delete the stored Mqtts CONNECT and Mqtts WILLTOPIC messages
 		this.mqttsConnect = null;
@@ -503,11 +537,11 @@ public class ClientMsgHandler extends MsgHandler{
 	 * @param receivedMsg The received MqttsRegister message.
 	 */
 	private void handleMqttsRegister(MqttsRegister receivedMsg) {
-		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Mqtts REGISTER message with \"TopicName\" = \"" +receivedMsg.getTopicName()+"\" received.");
+		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Mqtts REGISTER message with \"TopicName\" = \"{}\" received.", this.clientAddress.getAddress(), clientId, receivedMsg.getTopicName());
 
 		//if the client is not in state "Connected" send to it a Mqtts DISCONNECT message and return
 		if(!client.isConnected()){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Client is not connected. The received Mqtts REGISTER message cannot be processed.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Client is not connected. The received Mqtts REGISTER message cannot be processed.", this.clientAddress.getAddress(), clientId);
 			sendClientDisconnect();
 			return;
 		}
@@ -526,7 +560,7 @@ public class ClientMsgHandler extends MsgHandler{
 		regack.setReturnCode(MqttsMessage.RETURN_CODE_ACCEPTED);
 
 		//send the Mqtts REGACK message to the client	
-		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Sending Mqtts REGACK message with \"TopicId\" = \"" +topicId+"\" to the client.");
+		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Sending Mqtts REGACK message with \"TopicId\" = \"{}\" to the client.", this.clientAddress.getAddress(), clientId, topicId);
 		clientInterface.sendMsg(this.clientAddress, regack);
 	}
 
@@ -536,84 +570,55 @@ public class ClientMsgHandler extends MsgHandler{
 	 * @param receivedMsg The received MqttsRegack message.
 	 */
 	private void handleMqttsRegack(MqttsRegack receivedMsg) {
-		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Mqtts REGACK message with \"TopicId\" = \"" +receivedMsg.getTopicId()+"\" received.");
+		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Mqtts REGACK message with \"TopicId\" = \"{}\" received.", this.clientAddress.getAddress(), clientId, receivedMsg.getTopicId());
 
 		//if the client is not in state "Connected" send to it a Mqtts DISCONNECT message and return
 		if(!client.isConnected()){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Client is not connected. The received Mqtts REGACK message cannot be processed.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Client is not connected. The received Mqtts REGACK message cannot be processed.", this.clientAddress.getAddress(), clientId);
 			sendClientDisconnect();
 			return;
 		}
 
-		//if the gateway is not expecting a Mqtts REGACK at this time, drop the received message and return
-		if(!gateway.isWaitingRegack()){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Gateway is not waiting a Mqtts REGACK message from the client. The received message cannot be processed.");
-			return;
-		}
-
-		//assure that the stored Mqtts REGISTER and Mqtt PUBLISH messages are not null
-		//if one of them is null delete the other and return (debugging checks)
-		if (this.mqttsRegister == null){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - The stored Mqtts REGISTER message is null. The received Mqtts REGACK message cannot be processed.");
+		//get (and delete) the registration procedure with the MsgId of the received Mqtts REGACK
+		PendingRegister pending = pendingRegisters.remove(Integer.valueOf(receivedMsg.getMsgId()));
 
-			//"reset" the "waitingRegack" state of the gateway, "reset" the tries of sending 
-			//Mqtts REGISTER message to the client and unregister from the timer
-			gateway.resetWaitingRegack();
-			gateway.resetTriesSendingRegister();
-			timer.unregister(this.clientAddress, ControlMessage.WAITING_REGACK_TIMEOUT);
-
-			this.mqttPublish = null;
+		//if the gateway is not expecting this Mqtts REGACK, drop the received message and return
+		if(pending == null){
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Gateway is not waiting a Mqtts REGACK message with \"MsgId\" = \"{}\" from the client. The received message cannot be processed.", this.clientAddress.getAddress(), clientId, receivedMsg.getMsgId());
 			return;
 		}
-		if (this.mqttPublish == null){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - The stored Mqtt PUBLISH message is null. The received Mqtts REGACK message cannot be processed.");
+		pendingTopics.remove(pending.getRegister().getTopicName());
 
-			//"reset" the "waitingRegack" state of the gateway, "reset" the tries of sending 
-			//Mqtts REGISTER message to the client and unregister from the timer
+		//if there is no other registration procedure, "reset" the "waitingRegack" 
+		//state of the gateway and unregister from the timer
+		if(pendingRegisters.isEmpty()){
 			gateway.resetWaitingRegack();
-			gateway.resetTriesSendingRegister();
 			timer.unregister(this.clientAddress, ControlMessage.WAITING_REGACK_TIMEOUT);
-
-			this.mqttsRegister = null;
-			return;
-		}
-
-		//if the MsgId of the received Mqtt REGACK is not the same with MsgId of the stored Mqtts 
-		//REGISTER message drop the received message and return (don't delete any stored message)
-		if(receivedMsg.getMsgId() != this.mqttsRegister.getMsgId()){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - MsgId (\""+receivedMsg.getMsgId()+"\") of the received Mqtts REGACK message does not match the MsgId (\""+this.mqttsRegister.getMsgId()+"\") of the stored Mqtts REGISTER message. The message cannot be processed.");
-			return;
 		}
 
-		//assign the topicId of the Mqtts REGACK message to the received topicName of 
-		//the Mqtt PUBLISH message (topicId is the same as in the stored Mqtts REGISTER message)
+		//assign the topicId of the Mqtts REGACK message to the topicName of the stored 
+		//Mqtts REGISTER message (topicId is the same as in the stored Mqtts REGISTER message)
+		topicIdMappingTable.assignTopicId(receivedMsg.getTopicId(), pending.getRegister().getTopicName());
 
-		topicIdMappingTable.assignTopicId(receivedMsg.getTopicId(), this.mqttPublish.getTopicName());
+		//now we have a topicId, so send the queued Mqtt PUBLISH messages to the client (in the order they were received)
+		Vector<MqttPublish> publishes = pending.getPublishes();
+		for(int i = 0; i < publishes.size(); i++){
+			MqttPublish mqttPublish = publishes.get(i);
 
-		//now we have a topicId, so construct a Mqtts PUBLISH message
-		MqttsPublish publish = new MqttsPublish();
-
-		//populate the Mqtts PUBLISH message with the information of the stored Mqtt PUBLISH message
-		publish.setDup(mqttPublish.isDup());
-		publish.setQos(mqttPublish.getQos());
-		publish.setRetain(mqttPublish.isRetain());
-		publish.setTopicIdType(MqttsMessage.NORMAL_TOPIC_ID);
-		publish.setTopicId(receivedMsg.getTopicId());
-		publish.setMsgId(mqttPublish.getMsgId());
-		publish.setData(mqttPublish.getPayload());
-
-		//send the Mqtts PUBLISH message to the client
-		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Sending Mqtts PUBLISH message with \"QoS\" = \""+mqttPublish.getQos()+"\" and \"TopicId\" = \"" +receivedMsg.getTopicId()+"\" to the client.");
-		clientInterface.sendMsg(this.clientAddress, publish);
+			//construct a Mqtts PUBLISH message and populate it with the information of the stored Mqtt PUBLISH message
+			MqttsPublish publish = new MqttsPublish();
+			publish.setDup(mqttPublish.isDup());
+			publish.setQos(mqttPublish.getQos());
+			publish.setRetain(mqttPublish.isRetain());
+			publish.setTopicIdType(MqttsMessage.NORMAL_TOPIC_ID);
+			publish.setTopicId(receivedMsg.getTopicId());
+			publish.setMsgId(mqttPublish.getMsgId());
+			publish.setData(mqttPublish.getPayload());
 
-		//"reset" the "waitingRegack" state of the gateway, "reset" the tries of sending 
-		//Mqtts REGISTER message to the client, unregister from the timer and delete
-		//the stored Mqtts REGISTER and Mqtt PUBLISH messages		
-		gateway.resetWaitingRegack();
-		gateway.resetTriesSendingRegister();
-		timer.unregister(this.clientAddress, ControlMessage.WAITING_REGACK_TIMEOUT);
-		this.mqttsRegister = null;
-		this.mqttPublish = null;		
+			//send the Mqtts PUBLISH message to the client
+			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Sending Mqtts PUBLISH message with \"QoS\" = \"{}\" and \"TopicId\" = \"{}\" to the client.", this.clientAddress.getAddress(), clientId, mqttPublish.getQos(), receivedMsg.getTopicId());
+			sendPublishToClient(publish);
+		}
 	}
 
 
@@ -624,13 +629,13 @@ public class ClientMsgHandler extends MsgHandler{
 	 */
 	private void handleMqttsPublish(MqttsPublish receivedMsg) {
 		if(receivedMsg.getTopicIdType() == MqttsMessage.NORMAL_TOPIC_ID)
-			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Mqtts PUBLISH message with \"QoS\" = \""+receivedMsg.getQos()+"\" and \"TopicId\" = \""+receivedMsg.getTopicId()+"\" received.");
+			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Mqtts PUBLISH message with \"QoS\" = \"{}\" and \"TopicId\" = \"{}\" received.", this.clientAddress.getAddress(), clientId, receivedMsg.getQos(), receivedMsg.getTopicId());
 		else if (receivedMsg.getTopicIdType() == MqttsMessage.PREDIFINED_TOPIC_ID)
-			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Mqtts PUBLISH message with \"QoS\" = \""+receivedMsg.getQos()+"\" and \"TopicId\" = \""+receivedMsg.getTopicId()+"\" (predefined topid Id) received.");
+			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Mqtts PUBLISH message with \"QoS\" = \"{}\" and \"TopicId\" = \"{}\" (predefined topid Id) received.", this.clientAddress.getAddress(), clientId, receivedMsg.getQos(), receivedMsg.getTopicId());
 		else if (receivedMsg.getTopicIdType() == MqttsMessage.SHORT_TOPIC_NAME)
-			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Mqtts PUBLISH message with \"QoS\" = \""+receivedMsg.getQos()+"\" and \"TopicId\" = \""+receivedMsg.getShortTopicName()+"\" (short topic name) received.");
+			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Mqtts PUBLISH message with \"QoS\" = \"{}\" and \"TopicId\" = \"{}\" (short topic name) received.", this.clientAddress.getAddress(), clientId, receivedMsg.getQos(), receivedMsg.getShortTopicName());
 		else{
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Mqtts PUBLISH message with unknown topicIdType (\"" + receivedMsg.getTopicIdType()+"\") received. The message cannot be processed.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Mqtts PUBLISH message with unknown topicIdType (\"{}\") received. The message cannot be processed.", this.clientAddress.getAddress(), clientId, receivedMsg.getTopicIdType());
 			return;
 		}
 
@@ -638,7 +643,7 @@ public class ClientMsgHandler extends MsgHandler{
 		//if Mqtts PUBLISH message has QoS = -1, construct an "internal" message (see com.ibm.zurich.mqttsgw.core.Message)
 		//for the GatewayMsgHandler and put it to the dispatcher's queue 
 		if(receivedMsg.getQos()== -1){
-			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - The received Mqtts PUBLISH message with \"QoS\" = \"-1\" will be handled by GatewayMsgHandler.");
+			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - The received Mqtts PUBLISH message with \"QoS\" = \"-1\" will be handled by GatewayMsgHandler.", this.clientAddress.getAddress(), clientId);
 
 			Message msg = new Message(GWParameters.getGatewayAddress());
 
@@ -650,18 +655,57 @@ public class ClientMsgHandler extends MsgHandler{
 
 		//if the client is not in state "Connected" send to it a Mqtts DISCONNECT message and return
 		if(!client.isConnected()){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Client is not connected. The received Mqtts PUBLISH message cannot be processed.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Client is not connected. The received Mqtts PUBLISH message cannot be processed.", this.clientAddress.getAddress(), clientId);
 			sendClientDisconnect();
 			return;
 		}
 
-		//if there is already a publish procedure from the client with QoS 1 and the 
-		//gateway is expecting a Mqtt PUBACK from the broker, then drop the message if it has QoS 1 
-		if(gateway.isWaitingPuback() && receivedMsg.getQos() == 1){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Client is already in a publish procedure with \"QoS\" = \"1\". The received Mqtts PUBLISH message with \"QoS\" = \""+receivedMsg.getQos()+"\" cannot be processed.");
+		//if a Mqtts PUBLISH message with QoS 1 and the same MsgId is already waiting for a Mqtt
+		//PUBACK from the broker, this is a retransmission of the client and the message is dropped
+		if(receivedMsg.getQos() == 1 && inflightPublishes.containsKey(Integer.valueOf(receivedMsg.getMsgId()))){
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - A Mqtts PUBLISH message with \"MsgId\" = \"{}\" is already waiting for a Mqtt PUBACK message from the broker. The received Mqtts PUBLISH message cannot be processed.", this.clientAddress.getAddress(), clientId, receivedMsg.getMsgId());
 			return;
 		}
 
+		//if there is already a QoS 2 exchange with the same MsgId, this is a retransmission of the client
+		if(receivedMsg.getQos() == 2){
+			Qos2Exchange exchange = clientQos2Exchanges.get(Integer.valueOf(receivedMsg.getMsgId()));
+			if(exchange != null){
+				//if the broker has already received the message, the Mqtts PUBREC was lost, so send it again
+				if(exchange.getState() == Qos2Exchange.WAITING_PUBREL){
+					MqttsPubRec pubrec = new MqttsPubRec();
+					pubrec.setMsgId(receivedMsg.getMsgId());
+					GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Mqtts PUBLISH message with \"MsgId\" = \"{}\" already received by the broker. Sending Mqtts PUBREC message to the client.", this.clientAddress.getAddress(), clientId, receivedMsg.getMsgId());
+					clientInterface.sendMsg(this.clientAddress, pubrec);
+				}else
+					GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - A Mqtts PUBLISH message with \"MsgId\" = \"{}\" is already in a QoS 2 exchange with the broker. The received Mqtts PUBLISH message cannot be processed.", this.clientAddress.getAddress(), clientId, receivedMsg.getMsgId());
+				return;
+			}
+		}
+
+		if(receivedMsg.getQos() == 1 || receivedMsg.getQos() == 2){
+			//if the window of Mqtts PUBLISH messages with QoS 1 or 2 is full, reject the message
+			int inflight = inflightPublishes.size() + clientQos2Exchanges.size();
+			if(inflight >= GWParameters.getMaxInflightPublishes()){
+				GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Client has already {} Mqtts PUBLISH message(s) with \"QoS\" > \"0\" in progress. Mqtts PUBACK with rejection reason will be sent to the client.", this.clientAddress.getAddress(), clientId, inflight);
+
+				//construct a Mqtts PUBACK message with ReturnCode = "Rejected: congestion"
+				MqttsPuback puback = new MqttsPuback();
+				if(receivedMsg.getTopicIdType() == MqttsMessage.SHORT_TOPIC_NAME){
+					puback.setShortTopicName(receivedMsg.getShortTopicName());
+					puback.setByteTopicId(receivedMsg.getByteTopicId());
+				}else
+					puback.setTopicId(receivedMsg.getTopicId());
+				puback.setMsgId(receivedMsg.getMsgId());
+				puback.setReturnCode(MqttsMessage.RETURN_CODE_REJECTED_CONGESTION);
+
+				//send the Mqtts PUBACK message to the client
+				GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Sending Mqtts PUBACK message with \"MsgId\" = \"{}\" and \"ReturnCode\" = \"Rejected: congestion\" to the client.", this.clientAddress.getAddress(), clientId, receivedMsg.getMsgId());
+				clientInterface.sendMsg(this.clientAddress, puback);
+				return;
+			}
+		}
+
 		//else construct a Mqtt PUBLISH message
 		MqttPublish publish = new MqttPublish();
 
@@ -671,7 +715,7 @@ public class ClientMsgHandler extends MsgHandler{
 		//if the TopicIdType is a normal TopicId
 		case MqttsMessage.NORMAL_TOPIC_ID:
 			if(receivedMsg.getTopicId() <= GWParameters.getPredfTopicIdSize()){
-				GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - TopicId (\"" + receivedMsg.getTopicId() + "\") of the received Mqtts PUBLISH message is in the range of predefined topic Ids [1,"+GWParameters.getPredfTopicIdSize()+"]. The message cannot be processed. Mqtts PUBACK with rejection reason will be sent to the client.");
+				GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - TopicId (\"{}\") of the received Mqtts PUBLISH message is in the range of predefined topic Ids [1,{}]. The message cannot be processed. Mqtts PUBACK with rejection reason will be sent to the client.", this.clientAddress.getAddress(), clientId, receivedMsg.getTopicId(), GWParameters.getPredfTopicIdSize());
 
 				//construct a Mqtts PUBACK message with ReturnCode = "Rejected:Invalid TopicId"
 				MqttsPuback puback = new MqttsPuback();
@@ -680,17 +724,17 @@ public class ClientMsgHandler extends MsgHandler{
 				puback.setReturnCode(MqttsMessage.RETURN_CODE_INVALID_TOPIC_ID);
 
 				//send the Mqtts PUBACK message to the client	
-				GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Sending Mqtts PUBACK message with \"TopicId\" = \"" +receivedMsg.getTopicId()+"\" and \"ReturnCode\" = \"Rejected: invalid TopicId\" to the client.");
+				GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Sending Mqtts PUBACK message with \"TopicId\" = \"{}\" and \"ReturnCode\" = \"Rejected: invalid TopicId\" to the client.", this.clientAddress.getAddress(), clientId, receivedMsg.getTopicId());
 				clientInterface.sendMsg(this.clientAddress, puback);
 				return;
 			}
 
-			//get the TopicName by TopicId
-			String topicName = topicIdMappingTable.getTopicName(receivedMsg.getTopicId());
+			//get the topic (name) by TopicId
+			TopicRegistry.Topic topic = topicIdMappingTable.getTopic(receivedMsg.getTopicId());
 
 			//if there is no such an entry
-			if(topicName == null){
-				GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - TopicId (\"" + receivedMsg.getTopicId() + "\") of the received Mqtts PUBLISH message does not exist. The message cannot be processed. Mqtts PUBACK with rejection reason will be sent to the client.");
+			if(topic == null){
+				GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - TopicId (\"{}\") of the received Mqtts PUBLISH message does not exist. The message cannot be processed. Mqtts PUBACK with rejection reason will be sent to the client.", this.clientAddress.getAddress(), clientId, receivedMsg.getTopicId());
 
 				//construct a Mqtts PUBACK message with ReturnCode = "Rejected:Invalid TopicId"
 				MqttsPuback puback = new MqttsPuback();
@@ -699,13 +743,13 @@ public class ClientMsgHandler extends MsgHandler{
 				puback.setReturnCode(MqttsMessage.RETURN_CODE_INVALID_TOPIC_ID);
 
 				//send the Mqtts PUBACK message to the client	
-				GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Sending Mqtts PUBACK message with \"TopicId\" = \"" +receivedMsg.getTopicId()+"\" and \"ReturnCode\" = \"Rejected: invalid TopicId\" to the client.");
+				GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Sending Mqtts PUBACK message with \"TopicId\" = \"{}\" and \"ReturnCode\" = \"Rejected: invalid TopicId\" to the client.", this.clientAddress.getAddress(), clientId, receivedMsg.getTopicId());
 				clientInterface.sendMsg(this.clientAddress, puback);
 				return;
 			}
 
 			//we found a topicName corresponding to the received topicId
-			publish.setTopicName(topicName);				
+			publish.setTopicName(topic.getName(), topic.getEncodedName());
 			break;
 
 			//if the TopicIdType is a shortTopicName then simply copy it to the topicName field of the Mqtt PUBLISH message
@@ -716,7 +760,7 @@ public class ClientMsgHandler extends MsgHandler{
 			//if the TopicIdType is a predifinedTopiId
 		case MqttsMessage.PREDIFINED_TOPIC_ID:
 			if(receivedMsg.getTopicId() > GWParameters.getPredfTopicIdSize()){
-				GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Predefined topicId (\"" + receivedMsg.getTopicId() + "\") of the received Mqtts PUBLISH message is out of the range of predefined topic Ids [1,"+GWParameters.getPredfTopicIdSize()+"]. The message cannot be processed. Mqtts PUBACK with rejection reason will be sent to the client.");
+				GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Predefined topicId (\"{}\") of the received Mqtts PUBLISH message is out of the range of predefined topic Ids [1,{}]. The message cannot be processed. Mqtts PUBACK with rejection reason will be sent to the client.", this.clientAddress.getAddress(), clientId, receivedMsg.getTopicId(), GWParameters.getPredfTopicIdSize());
 
 				//construct a Mqtts PUBACK message with ReturnCode = "Rejected:Invalid TopicId"
 				MqttsPuback puback = new MqttsPuback();
@@ -725,17 +769,17 @@ public class ClientMsgHandler extends MsgHandler{
 				puback.setReturnCode(MqttsMessage.RETURN_CODE_INVALID_TOPIC_ID);
 
 				//send the Mqtts PUBACK message to the client	
-				GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Sending Mqtts PUBACK message with \"TopicId\" = \"" +receivedMsg.getTopicId()+"\" and \"ReturnCode\" = \"Rejected: invalid TopicId\" to the client.");
+				GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Sending Mqtts PUBACK message with \"TopicId\" = \"{}\" and \"ReturnCode\" = \"Rejected: invalid TopicId\" to the client.", this.clientAddress.getAddress(), clientId, receivedMsg.getTopicId());
 				clientInterface.sendMsg(this.clientAddress, puback);
 				return;
 			}
 
-			//get the predefined topic name that corresponds to the received predefined topicId
-			topicName = topicIdMappingTable.getTopicName(receivedMsg.getTopicId());
+			//get the predefined topic (name) that corresponds to the received predefined topicId
+			topic = topicIdMappingTable.getTopic(receivedMsg.getTopicId());
 
 			//this should not happen as predefined topic ids are already stored
-			if(topicName == null){
-				GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Predefined topicId (\"" + receivedMsg.getTopicId() + "\") of the received Mqtts PUBLISH message does not exist. The message cannot be processed. Mqtts PUBACK with rejection reason will be sent to the client.");
+			if(topic == null){
+				GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Predefined topicId (\"{}\") of the received Mqtts PUBLISH message does not exist. The message cannot be processed. Mqtts PUBACK with rejection reason will be sent to the client.", this.clientAddress.getAddress(), clientId, receivedMsg.getTopicId());
 
 				//construct a Mqtts PUBACK message with ReturnCode = "Rejected:Invalid TopicId"
 				MqttsPuback puback = new MqttsPuback();
@@ -744,16 +788,16 @@ public class ClientMsgHandler extends MsgHandler{
 				puback.setReturnCode(MqttsMessage.RETURN_CODE_INVALID_TOPIC_ID);
 
 				//send the Mqtts PUBACK message to the client	
-				GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Sending Mqtts PUBACK message with \"TopicId\" = \"" +receivedMsg.getTopicId()+"\" and \"ReturnCode\" = \"Rejected: invalid TopicId\" to the client.");
+				GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Sending Mqtts PUBACK message with \"TopicId\" = \"{}\" and \"ReturnCode\" = \"Rejected: invalid TopicId\" to the client.", this.clientAddress.getAddress(), clientId, receivedMsg.getTopicId());
 				clientInterface.sendMsg(this.clientAddress, puback);
 				return;
 			}
 
-			publish.setTopicName(topicName);
+			publish.setTopicName(topic.getName(), topic.getEncodedName());
 			break;
 
 		default:
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Unknown topicIdType (\"" + receivedMsg.getTopicIdType()+"\"). The received Mqtts PUBLISH message cannot be processed.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Unknown topicIdType (\"{}\"). The received Mqtts PUBLISH message cannot be processed.", this.clientAddress.getAddress(), clientId, receivedMsg.getTopicIdType());
 			return;	
 		}
 
@@ -764,23 +808,21 @@ public class ClientMsgHandler extends MsgHandler{
 		publish.setMsgId(receivedMsg.getMsgId());
 		publish.setPayload(receivedMsg.getData());		
 
-		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Sending Mqtt PUBLISH message with \"QoS\" = \""+receivedMsg.getQos()+"\" and \"TopicName\" = \""+publish.getTopicName()+ "\" to the broker.");
+		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Sending Mqtt PUBLISH message with \"QoS\" = \"{}\" and \"TopicName\" = \"{}\" to the broker.", this.clientAddress.getAddress(), clientId, receivedMsg.getQos(), publish.getTopicName());
 		//send the Mqtt PUBLISH message to the broker
 		try {
 			brokerInterface.sendMsg(publish);
 		} catch (MqttsException e) {
 			e.printStackTrace();
-			GatewayLogger.log(GatewayLogger.ERROR, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Failed sending Mqtt PUBLISH message to the broker.");
+			GatewayLogger.log(GatewayLogger.ERROR, "ClientMsgHandler [{}]/[{}] - Failed sending Mqtt PUBLISH message to the broker.", this.clientAddress.getAddress(), clientId);
 			connectionLost();
 			return;
 		}
 
-		//TODO handle qos 2
-		if(receivedMsg.getQos() == 1){
-			gateway.setWaitingPuback();
-			this.mqttsPublish = receivedMsg;
-		}
-		//if(receivedMsg.getQos() == 2)				
+		if(receivedMsg.getQos() == 1)
+			inflightPublishes.put(Integer.valueOf(receivedMsg.getMsgId()), receivedMsg);
+		else if(receivedMsg.getQos() == 2)
+			clientQos2Exchanges.put(Integer.valueOf(receivedMsg.getMsgId()), new Qos2Exchange());
 	}
 
 
@@ -790,11 +832,11 @@ public class ClientMsgHandler extends MsgHandler{
 	 * @param receivedMsg The received MqttsPuback message.
 	 */
 	private void handleMqttsPuback(MqttsPuback receivedMsg) {
-		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Mqtts PUBACK message received.");
+		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Mqtts PUBACK message received.", this.clientAddress.getAddress(), clientId);
 
 		//if the client is not in state "Connected" send to it a Mqtts DISCONNECT message and return
 		if(!client.isConnected()){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Client is not connected. The received Mqtts PUBACK message cannot be processed.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Client is not connected. The received Mqtts PUBACK message cannot be processed.", this.clientAddress.getAddress(), clientId);
 			sendClientDisconnect();
 			return;
 		}
@@ -802,7 +844,7 @@ public class ClientMsgHandler extends MsgHandler{
 		//if the return code of the Mqtts PUBACK message is "Rejected: Invalid topic ID", then
 		//delete this topicId(and the associate topic name)from the mapping table 
 		if(receivedMsg.getReturnCode() == MqttsMessage.RETURN_CODE_INVALID_TOPIC_ID){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - The received Mqtts PUBACK has \"ReturnCode\" = \"Rejected: invalid TopicId\". TopicId \"" +receivedMsg.getTopicId()+"\" will be deleted from mapping table.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - The received Mqtts PUBACK has \"ReturnCode\" = \"Rejected: invalid TopicId\". TopicId \"{}\" will be deleted from mapping table.", this.clientAddress.getAddress(), clientId, receivedMsg.getTopicId());
 			topicIdMappingTable.removeTopicId(receivedMsg.getTopicId());
 			return;
 		}
@@ -811,13 +853,13 @@ public class ClientMsgHandler extends MsgHandler{
 		MqttPuback puback = new MqttPuback();
 		puback.setMsgId(receivedMsg.getMsgId());
 
-		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Sending Mqtt PUBACK message to the broker.");
+		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Sending Mqtt PUBACK message to the broker.", this.clientAddress.getAddress(), clientId);
 		//send the Mqtt PUBACK message to the broker
 		try {
 			brokerInterface.sendMsg(puback);
 		} catch (MqttsException e) {
 			e.printStackTrace();
-			GatewayLogger.log(GatewayLogger.ERROR, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Failed sending Mqtt PUBACK message to the broker.");
+			GatewayLogger.log(GatewayLogger.ERROR, "ClientMsgHandler [{}]/[{}] - Failed sending Mqtt PUBACK message to the broker.", this.clientAddress.getAddress(), clientId);
 			connectionLost();
 		}
 	}
@@ -829,27 +871,34 @@ public class ClientMsgHandler extends MsgHandler{
 	 * @param receivedMsg The received MqttsPubComp message.
 	 */
 	private void handleMqttsPubComp(MqttsPubComp receivedMsg) {	
-		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Mqtts PUBCOMP message received.");
+		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Mqtts PUBCOMP message received.", this.clientAddress.getAddress(), clientId);
 
 		//if the client is not in state "Connected" send to it a Mqtts DISCONNECT message and return
 		if(!client.isConnected()){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Client is not connected. The received Mqtts PUBCOMP message cannot be processed.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Client is not connected. The received Mqtts PUBCOMP message cannot be processed.", this.clientAddress.getAddress(), clientId);
 			sendClientDisconnect();
 			return;
 		}
 
+		//delete the QoS 2 exchange of the Mqtt PUBLISH message from the broker
+		Qos2Exchange exchange = brokerQos2Exchanges.remove(Integer.valueOf(receivedMsg.getMsgId()));
+		if(exchange == null){
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - There is no QoS 2 exchange with \"MsgId\" = \"{}\". The received Mqtts PUBCOMP message cannot be processed.", this.clientAddress.getAddress(), clientId, receivedMsg.getMsgId());
+			return;
+		}
+
 		//else construct a Mqtt PUBCOMP message
 		MqttPubComp pubcomp = new MqttPubComp();
 		pubcomp.setMsgId(receivedMsg.getMsgId());
 
-		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Sending Mqtt PUBCOMP message to the broker.");
+		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Sending Mqtt PUBCOMP message to the broker.", this.clientAddress.getAddress(), clientId);
 		//send the Mqtt PUBCOMP message to the broker
 		try {
 			brokerInterface.sendMsg(pubcomp);
 		} catch (MqttsException e) {
 			e.printStackTrace();
 			//if failed sending the message
-			GatewayLogger.log(GatewayLogger.ERROR, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Failed sending Mqtt PUBCOMP message to the broker.");
+			GatewayLogger.log(GatewayLogger.ERROR, "ClientMsgHandler [{}]/[{}] - Failed sending Mqtt PUBCOMP message to the broker.", this.clientAddress.getAddress(), clientId);
 			connectionLost();
 		}	
 	}
@@ -861,27 +910,36 @@ public class ClientMsgHandler extends MsgHandler{
 	 * @param receivedMsg The received MqttsPubRec message.
 	 */
 	private void handleMqttsPubRec(MqttsPubRec receivedMsg) {		
-		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Mqtts PUBREC message received.");
+		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Mqtts PUBREC message received.", this.clientAddress.getAddress(), clientId);
 
 		//if the client is not in state "Connected" send to it a Mqtts DISCONNECT message and return
 		if(!client.isConnected()){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Client is not connected. The received Mqtts PUBREC message cannot be processed.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Client is not connected. The received Mqtts PUBREC message cannot be processed.", this.clientAddress.getAddress(), clientId);
 			sendClientDisconnect();
 			return;
 		}
 
+		//the client has received the Mqtt PUBLISH message of the broker, wait for the Mqtt PUBREL
+		Qos2Exchange exchange = brokerQos2Exchanges.get(Integer.valueOf(receivedMsg.getMsgId()));
+		if(exchange == null){
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - There is no QoS 2 exchange with \"MsgId\" = \"{}\". The received Mqtts PUBREC message cannot be processed.", this.clientAddress.getAddress(), clientId, receivedMsg.getMsgId());
+			return;
+		}
+		if(exchange.getState() == Qos2Exchange.WAITING_PUBREC)
+			exchange.setState(Qos2Exchange.WAITING_PUBREL);
+
 		//construct a Mqtt PUBREC message
 		MqttPubRec pubrec = new MqttPubRec();
 		pubrec.setMsgId(receivedMsg.getMsgId());
 
-		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Sending Mqtt PUBREC message to the broker.");
+		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Sending Mqtt PUBREC message to the broker.", this.clientAddress.getAddress(), clientId);
 		//send the Mqtt PUBREC message to the broker	
 		try {
 			brokerInterface.sendMsg(pubrec);
 		} catch (MqttsException e) {
 			e.printStackTrace();
 			//if failed sending the message
-			GatewayLogger.log(GatewayLogger.ERROR, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Failed sending Mqtt PUBREC message to the broker.");
+			GatewayLogger.log(GatewayLogger.ERROR, "ClientMsgHandler [{}]/[{}] - Failed sending Mqtt PUBREC message to the broker.", this.clientAddress.getAddress(), clientId);
 			connectionLost();
 		}
 	}
@@ -893,27 +951,45 @@ public class ClientMsgHandler extends MsgHandler{
 	 * @param receivedMsg The received MqttsPubRel message.
 	 */
 	private void handleMqttsPubRel(MqttsPubRel receivedMsg) {		
-		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Mqtts PUBREL message received.");
+		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Mqtts PUBREL message received.", this.clientAddress.getAddress(), clientId);
 
 		//if the client is not in state "Connected" send to it a Mqtts DISCONNECT message and return
 		if(!client.isConnected()){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Client is not connected. The received Mqtts PUBREL message cannot be processed.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Client is not connected. The received Mqtts PUBREL message cannot be processed.", this.clientAddress.getAddress(), clientId);
 			sendClientDisconnect();
 			return;
 		}
 
+		Qos2Exchange exchange = clientQos2Exchanges.get(Integer.valueOf(receivedMsg.getMsgId()));
+
+		//if there is no such exchange, the message was already released, so complete it again
+		if(exchange == null){
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - There is no QoS 2 exchange with \"MsgId\" = \"{}\". Sending Mqtts PUBCOMP message to the client.", this.clientAddress.getAddress(), clientId, receivedMsg.getMsgId());
+			MqttsPubComp pubcomp = new MqttsPubComp();
+			pubcomp.setMsgId(receivedMsg.getMsgId());
+			clientInterface.sendMsg(this.clientAddress, pubcomp);
+			return;
+		}
+
+		//the client cannot release a message that the broker has not received yet
+		if(exchange.getState() == Qos2Exchange.WAITING_PUBREC){
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Gateway is waiting a Mqtt PUBREC message with \"MsgId\" = \"{}\" from the broker. The received Mqtts PUBREL message cannot be processed.", this.clientAddress.getAddress(), clientId, receivedMsg.getMsgId());
+			return;
+		}
+		exchange.setState(Qos2Exchange.WAITING_PUBCOMP);
+
 		//construct a Mqtt PUBREL message
 		MqttPubRel pubrel = new MqttPubRel();
 		pubrel.setMsgId(receivedMsg.getMsgId());
 
-		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Sending Mqtt PUBREL message to the broker.");
+		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Sending Mqtt PUBREL message to the broker.", this.clientAddress.getAddress(), clientId);
 		//send the Mqtt PUBREL message to the broker
 		try {
 			brokerInterface.sendMsg(pubrel);
 		} catch (MqttsException e) {
 			e.printStackTrace();
 			//if failed sending the message
-			GatewayLogger.log(GatewayLogger.ERROR, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Failed sending Mqtt PUBREL message to the broker.");
+			GatewayLogger.log(GatewayLogger.ERROR, "ClientMsgHandler [{}]/[{}] - Failed sending Mqtt PUBREL message to the broker.", this.clientAddress.getAddress(), clientId);
 			connectionLost();
 		}		
 	}
@@ -926,27 +1002,27 @@ public class ClientMsgHandler extends MsgHandler{
 	 */
 	private void handleMqttsSubscribe(MqttsSubscribe receivedMsg) {
 		if(receivedMsg.getTopicIdType() == MqttsMessage.TOPIC_NAME)
-			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Mqtts SUBSCRIBE message with \"TopicName\" = \""+receivedMsg.getTopicName()+"\" received.");
+			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Mqtts SUBSCRIBE message with \"TopicName\" = \"{}\" received.", this.clientAddress.getAddress(), clientId, receivedMsg.getTopicName());
 		else if(receivedMsg.getTopicIdType() == MqttsMessage.PREDIFINED_TOPIC_ID)
-			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Mqtts SUBSCRIBE message with \"TopicId\" = \""+receivedMsg.getPredefinedTopicId()+"\" (predefined topid Id) received.");
+			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Mqtts SUBSCRIBE message with \"TopicId\" = \"{}\" (predefined topid Id) received.", this.clientAddress.getAddress(), clientId, receivedMsg.getPredefinedTopicId());
 		else if(receivedMsg.getTopicIdType() == MqttsMessage.SHORT_TOPIC_NAME)
-			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Mqtts SUBSCRIBE message with \"TopicId\" = \""+receivedMsg.getShortTopicName()+"\" (short topic name) received.");
+			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Mqtts SUBSCRIBE message with \"TopicId\" = \"{}\" (short topic name) received.", this.clientAddress.getAddress(), clientId, receivedMsg.getShortTopicName());
 		else{
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Mqtts SUBSCRIBE message with unknown topicIdType (\"" + receivedMsg.getTopicIdType()+"\") received. The message cannot be processed.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Mqtts SUBSCRIBE message with unknown topicIdType (\"{}\") received. The message cannot be processed.", this.clientAddress.getAddress(), clientId, receivedMsg.getTopicIdType());
 			return;
 		}
 
 
 		//if the client is not in state "Connected" send to it a Mqtts DISCONNECT message and return
 		if(!client.isConnected()){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Client is not connected. The received Mqtts SUBSCRIBE message cannot be processed.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Client is not connected. The received Mqtts SUBSCRIBE message cannot be processed.", this.clientAddress.getAddress(), clientId);
 			sendClientDisconnect();
 			return;
 		}
 
 		//if we are already in a subscription process, drop the received message and return
 		if(gateway.isWaitingSuback()){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Client is already in a subscription procedure. The received Mqtts SUBSCRIBE message cannot be processed.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Client is already in a subscription procedure. The received Mqtts SUBSCRIBE message cannot be processed.", this.clientAddress.getAddress(), clientId);
 			return;
 		}
 
@@ -969,7 +1045,7 @@ public class ClientMsgHandler extends MsgHandler{
 			//if the TopicIdType is a predifinedTopiId
 		case MqttsMessage.PREDIFINED_TOPIC_ID:
 			if(receivedMsg.getPredefinedTopicId() > GWParameters.getPredfTopicIdSize()){
-				GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Predefined topicId (\"" + + receivedMsg.getPredefinedTopicId() + "\") of the received Mqtts SUBSCRIBE message is out of the range of predefined topic Ids [1,"+GWParameters.getPredfTopicIdSize()+"]. The message cannot be processed. Mqtts SUBACK with rejection reason will be sent to the client.");
+				GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Predefined topicId (\"{}\") of the received Mqtts SUBSCRIBE message is out of the range of predefined topic Ids [1,{}]. The message cannot be processed. Mqtts SUBACK with rejection reason will be sent to the client.", this.clientAddress.getAddress(), clientId, receivedMsg.getPredefinedTopicId(), GWParameters.getPredfTopicIdSize());
 
 				//construct a Mqtts SUBACK message with ReturnCode = "Rejected:Invalid TopicId"
 				MqttsSuback suback = new MqttsSuback();
@@ -979,7 +1055,7 @@ public class ClientMsgHandler extends MsgHandler{
 				suback.setReturnCode(MqttsMessage.RETURN_CODE_INVALID_TOPIC_ID);
 
 				//send the Mqtts SUBACK message to the client	
-				GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Sending Mqtts SUBACK message with \"TopicId\" = \"" +receivedMsg.getPredefinedTopicId()+"\" and \"ReturnCode\" = \"Rejected: invalid TopicId\" to the client.");
+				GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Sending Mqtts SUBACK message with \"TopicId\" = \"{}\" and \"ReturnCode\" = \"Rejected: invalid TopicId\" to the client.", this.clientAddress.getAddress(), clientId, receivedMsg.getPredefinedTopicId());
 
 				clientInterface.sendMsg(this.clientAddress, suback);			
 
@@ -991,7 +1067,7 @@ public class ClientMsgHandler extends MsgHandler{
 
 			//this should not happen as predefined topic ids are already stored
 			if(topicName == null){
-				GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Predefined topicId (\"" + receivedMsg.getPredefinedTopicId() + "\") of the received Mqtts SUBSCRIBE message does not exist. The message cannot be processed. Mqtts SUBACK with rejection reason will be sent to the client.");
+				GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Predefined topicId (\"{}\") of the received Mqtts SUBSCRIBE message does not exist. The message cannot be processed. Mqtts SUBACK with rejection reason will be sent to the client.", this.clientAddress.getAddress(), clientId, receivedMsg.getPredefinedTopicId());
 
 				//construct a Mqtts SUBACK message with ReturnCode = "Rejected:Invalid TopicId"
 				MqttsSuback suback = new MqttsSuback();
@@ -1001,7 +1077,7 @@ public class ClientMsgHandler extends MsgHandler{
 				suback.setReturnCode(MqttsMessage.RETURN_CODE_INVALID_TOPIC_ID);
 
 				//send the Mqtts SUBACK message to the client	
-				GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Sending Mqtts SUBACK message with \"TopicId\" = \"" +receivedMsg.getPredefinedTopicId()+"\" and \"ReturnCode\" = \"Rejected: invalid TopicId\" to the client.");
+				GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Sending Mqtts SUBACK message with \"TopicId\" = \"{}\" and \"ReturnCode\" = \"Rejected: invalid TopicId\" to the client.", this.clientAddress.getAddress(), clientId, receivedMsg.getPredefinedTopicId());
 
 				clientInterface.sendMsg(this.clientAddress, suback);					
 				return;
@@ -1010,7 +1086,7 @@ public class ClientMsgHandler extends MsgHandler{
 			break;
 
 		default:
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Unknown topicIdType (\"" + receivedMsg.getTopicIdType()+"\"). The received Mqtts SUBSCRIBE message cannot be processed.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Unknown topicIdType (\"{}\"). The received Mqtts SUBSCRIBE message cannot be processed.", this.clientAddress.getAddress(), clientId, receivedMsg.getTopicIdType());
 			return;				
 		}
 
@@ -1025,14 +1101,14 @@ public class ClientMsgHandler extends MsgHandler{
 		//set the requested QoS for the specific topic name
 		mqttSubscribe.setRequestedQoS(receivedMsg.getQos());
 
-		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Sending Mqtt SUBSCRIBE message with \"TopicName\" = \""+mqttSubscribe.getTopicName()+ "\" to the broker.");
+		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Sending Mqtt SUBSCRIBE message with \"TopicName\" = \"{}\" to the broker.", this.clientAddress.getAddress(), clientId, mqttSubscribe.getTopicName());
 		//send the Mqtt SUBSCRIBE message to the broker
 		try {
 			brokerInterface.sendMsg(mqttSubscribe);
 		} catch (MqttsException e) {
 			e.printStackTrace();
 			//if failed sending the message
-			GatewayLogger.log(GatewayLogger.ERROR, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Failed sending Mqtt SUBSCRIBE message to the broker.");
+			GatewayLogger.log(GatewayLogger.ERROR, "ClientMsgHandler [{}]/[{}] - Failed sending Mqtt SUBSCRIBE message to the broker.", this.clientAddress.getAddress(), clientId);
 			connectionLost();
 			return;
 		}
@@ -1049,27 +1125,27 @@ public class ClientMsgHandler extends MsgHandler{
 	 */
 	private void handleMqttsUnsubscribe(MqttsUnsubscribe receivedMsg) {				
 		if(receivedMsg.getTopicIdType() == MqttsMessage.TOPIC_NAME)
-			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Mqtts UNSUBSCRIBE message with \"TopicName\" = \""+receivedMsg.getTopicName()+"\" received.");
+			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Mqtts UNSUBSCRIBE message with \"TopicName\" = \"{}\" received.", this.clientAddress.getAddress(), clientId, receivedMsg.getTopicName());
 		else if(receivedMsg.getTopicIdType() == MqttsMessage.PREDIFINED_TOPIC_ID)
-			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Mqtts UNSUBSCRIBE message with \"TopicId\" = \""+receivedMsg.getPredefinedTopicId()+"\" (predefined topid Id) received.");
+			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Mqtts UNSUBSCRIBE message with \"TopicId\" = \"{}\" (predefined topid Id) received.", this.clientAddress.getAddress(), clientId, receivedMsg.getPredefinedTopicId());
 		else if(receivedMsg.getTopicIdType() == MqttsMessage.SHORT_TOPIC_NAME)
-			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Mqtts UNSUBSCRIBE message with \"TopicId\" = \""+receivedMsg.getShortTopicName()+"\" (short topic name) received.");
+			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Mqtts UNSUBSCRIBE message with \"TopicId\" = \"{}\" (short topic name) received.", this.clientAddress.getAddress(), clientId, receivedMsg.getShortTopicName());
 		else{
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Mqtts UNSUBSCRIBE message with unknown topicIdType (\"" + receivedMsg.getTopicIdType()+"\") received. The message cannot be processed.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Mqtts UNSUBSCRIBE message with unknown topicIdType (\"{}\") received. The message cannot be processed.", this.clientAddress.getAddress(), clientId, receivedMsg.getTopicIdType());
 			return;
 		}
 
 
 		//if the client is not in state "Connected" send to it a Mqtts DISCONNECT message and return
 		if(!client.isConnected()){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Client is not connected. The received Mqtts UNSUBSCRIBE message cannot be processed.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Client is not connected. The received Mqtts UNSUBSCRIBE message cannot be processed.", this.clientAddress.getAddress(), clientId);
 			sendClientDisconnect();
 			return;
 		}
 
 		//if we are already in an un-subscription process, drop the received message and return
 		if(gateway.isWaitingUnsuback()){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Client is already in a un-subscription procedure. The received Mqtts UNSUBSCRIBE message cannot be processed.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Client is already in a un-subscription procedure. The received Mqtts UNSUBSCRIBE message cannot be processed.", this.clientAddress.getAddress(), clientId);
 			return;
 		}
 
@@ -1092,7 +1168,7 @@ public class ClientMsgHandler extends MsgHandler{
 			//if the TopicIdType is a predifinedTopiId
 		case MqttsMessage.PREDIFINED_TOPIC_ID:
 			if(receivedMsg.getPredefinedTopicId() > GWParameters.getPredfTopicIdSize()){
-				GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Predefined topicId (\"" + + receivedMsg.getPredefinedTopicId() + "\") of the received Mqtts UNSUBSCRIBE message is out of the range of predefined topic Ids [1,"+GWParameters.getPredfTopicIdSize()+"]. The message cannot be processed.");
+				GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Predefined topicId (\"{}\") of the received Mqtts UNSUBSCRIBE message is out of the range of predefined topic Ids [1,{}]. The message cannot be processed.", this.clientAddress.getAddress(), clientId, receivedMsg.getPredefinedTopicId(), GWParameters.getPredfTopicIdSize());
 				return;
 			}				
 
@@ -1100,14 +1176,14 @@ public class ClientMsgHandler extends MsgHandler{
 
 			//this should not happen
 			if(topicName == null){
-				GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Predefined topicId (\"" + + receivedMsg.getPredefinedTopicId() + "\") does not exist. The received Mqtts UNSUBSCRIBE message cannot be processed.");
+				GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Predefined topicId (\"{}\") does not exist. The received Mqtts UNSUBSCRIBE message cannot be processed.", this.clientAddress.getAddress(), clientId, receivedMsg.getPredefinedTopicId());
 				return;
 			}
 			mqttUnsubscribe.setTopicName(topicName);
 			break;
 
 		default:
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Unknown topicIdType (\"" + receivedMsg.getTopicIdType()+"\"). The received Mqtts UNSUBSCRIBE message cannot be processed.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Unknown topicIdType (\"{}\"). The received Mqtts UNSUBSCRIBE message cannot be processed.", this.clientAddress.getAddress(), clientId, receivedMsg.getTopicIdType());
 			return;				
 		}
 
@@ -1119,14 +1195,14 @@ public class ClientMsgHandler extends MsgHandler{
 
 		mqttUnsubscribe.setMsgId(receivedMsg.getMsgId());
 
-		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Sending Mqtt UNSUBSCRIBE message with \"TopicName\" = \""+mqttUnsubscribe.getTopicName()+ "\" to the broker.");
+		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Sending Mqtt UNSUBSCRIBE message with \"TopicName\" = \"{}\" to the broker.", this.clientAddress.getAddress(), clientId, mqttUnsubscribe.getTopicName());
 		//send the Mqtt UNSUBSCRIBE message to the broker
 		try {
 			brokerInterface.sendMsg(mqttUnsubscribe);
 		} catch (MqttsException e) {
 			e.printStackTrace();
 			//if failed sending the message
-			GatewayLogger.log(GatewayLogger.ERROR, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Failed sending Mqtt UNSUBSCRIBE message to the broker.");
+			GatewayLogger.log(GatewayLogger.ERROR, "ClientMsgHandler [{}]/[{}] - Failed sending Mqtt UNSUBSCRIBE message to the broker.", this.clientAddress.getAddress(), clientId);
 			connectionLost();
 			return;
 		}
@@ -1142,42 +1218,72 @@ public class ClientMsgHandler extends MsgHandler{
 	 * @param receivedMsg The received MqttsPingReq message.
 	 */
 	private void handleMqttsPingReq(MqttsPingReq receivedMsg) {		
-		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Mqtts PINGREQ message received.");
+		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Mqtts PINGREQ message received.", this.clientAddress.getAddress(), clientId);
 
 		//if the client is not in state "Connected" send to it a Mqtts DISCONNECT message and return
 		if(!client.isConnected()){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Client is not connected. The received Mqtts PINGREQ message cannot be processed.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Client is not connected. The received Mqtts PINGREQ message cannot be processed.", this.clientAddress.getAddress(), clientId);
 			sendClientDisconnect();
 			return;
 		}
 
+		//in "local" ping mode the client is alive (the timeout of this handler was just updated)
+		//and its broker connection is kept alive by the gateway, so answer the client directly
+		if(GWParameters.isLocalPingResp()){
+			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Sending Mqtts PINGRESP message to the client.", this.clientAddress.getAddress(), clientId);
+			clientInterface.sendMsg(this.clientAddress, new MqttsPingResp());
+			return;
+		}
+
+		sendMqttPingReq();
+	}
+
+
+	/**
+	 * This method sends a Mqtt PINGREQ message over the broker connection of the client.
+	 */
+	private void sendMqttPingReq() {
 		//construct a Mqtt PINGREQ message
 		MqttPingReq pingreq = new MqttPingReq();
 
-		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Sending Mqtt PINGREQ message to the broker.");
+		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Sending Mqtt PINGREQ message to the broker.", this.clientAddress.getAddress(), clientId);
 		//send the Mqtt PINGREQ message to the broker
 		try {
 			brokerInterface.sendMsg(pingreq);
 		} catch (MqttsException e) {
 			e.printStackTrace();
 			//if failed sending the message
-			GatewayLogger.log(GatewayLogger.ERROR, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Failed sending Mqtt PINGREQ message to the broker.");
+			GatewayLogger.log(GatewayLogger.ERROR, "ClientMsgHandler [{}]/[{}] - Failed sending Mqtt PINGREQ message to the broker.", this.clientAddress.getAddress(), clientId);
 			connectionLost();		
 		}
 	}
 
 
+	/**
+	 * This method returns the keep alive period of the broker connection of the client.
+	 * 
+	 * @param duration The keep alive period that the client requested.
+	 * @return The keep alive period (in seconds).
+	 */
+	private int getBrokerKeepAlive(int duration) {
+		//in "local" ping mode the connection is kept alive by the gateway
+		if(GWParameters.isLocalPingResp())
+			return GWParameters.getBrokerKeepAlive();
+		return duration;
+	}
+
+
 	/**
 	 * The method that handles a Mqtts PINGRESP message.
 	 * 
 	 * @param receivedMsg The received MqttsPingResp message.
 	 */
 	private void handleMqttsPingResp(MqttsPingResp receivedMsg) {		
-		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Mqtts PINGRESP message received.");
+		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Mqtts PINGRESP message received.", this.clientAddress.getAddress(), clientId);
 
 		//if the client is not in state "Connected" send to it a Mqtts DISCONNECT message and return
 		if(!client.isConnected()){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Client is not connected. The received Mqtts PINGRESP message cannot be processed.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Client is not connected. The received Mqtts PINGRESP message cannot be processed.", this.clientAddress.getAddress(), clientId);
 			sendClientDisconnect();
 			return;
 		}
@@ -1185,14 +1291,14 @@ public class ClientMsgHandler extends MsgHandler{
 		//construct a Mqtt PINGRESP message
 		MqttPingResp pingresp = new MqttPingResp();
 
-		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Sending Mqtt PINGRESP message to the broker.");
+		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Sending Mqtt PINGRESP message to the broker.", this.clientAddress.getAddress(), clientId);
 		//send the Mqtt PINGRESP message to the broker
 		try {
 			brokerInterface.sendMsg(pingresp);
 		} catch (MqttsException e) {
 			e.printStackTrace();
 			//if failed sending the message
-			GatewayLogger.log(GatewayLogger.ERROR, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Failed sending Mqtt PINGRESP message to the broker.");
+			GatewayLogger.log(GatewayLogger.ERROR, "ClientMsgHandler [{}]/[{}] - Failed sending Mqtt PINGRESP message to the broker.", this.clientAddress.getAddress(), clientId);
 			connectionLost();
 		}
 	}
@@ -1204,11 +1310,11 @@ public class ClientMsgHandler extends MsgHandler{
 	 * @param receivedMsg The received MqttsDisconnect message.
 	 */
 	private void handleMqttsDisconnect(MqttsDisconnect receivedMsg) {
-		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Mqtts DISCONNECT message received.");
+		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Mqtts DISCONNECT message received.", this.clientAddress.getAddress(), clientId);
 
 		//if the client is not in state "Connected" return
 		if(!client.isConnected()){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Client is not connected. The received Mqtts DISCONNECT message cannot be processed.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Client is not connected. The received Mqtts DISCONNECT message cannot be processed.", this.clientAddress.getAddress(), clientId);
 			return;
 		}
 
@@ -1219,7 +1325,7 @@ public class ClientMsgHandler extends MsgHandler{
 		//construct a Mqtt DISCONNECT message
 		MqttDisconnect mqttDisconnect = new MqttDisconnect();
 
-		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Sending Mqtt DISCONNECT message to the broker.");
+		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Sending Mqtt DISCONNECT message to the broker.", this.clientAddress.getAddress(), clientId);
 		//send the Mqtt DISCONNECT message to the broker
 		//(no checks - don't bother if the sending of Mqtt DISCONNECT message to the broker was successful or not)
 		try {
@@ -1239,7 +1345,7 @@ public class ClientMsgHandler extends MsgHandler{
 	 * @param receivedMsg The received MqttsWillTopicUpd message.
 	 */
 	private void handleMqttsWillTopicUpd(MqttsWillTopicUpd receivedMsg) {
-		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Mqtts WILLTOPICUPD message received.");
+		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Mqtts WILLTOPICUPD message received.", this.clientAddress.getAddress(), clientId);
 	}
 
 
@@ -1249,7 +1355,7 @@ public class ClientMsgHandler extends MsgHandler{
 	 * @param receivedMsg The received MqttsWillMsgUpd message.
 	 */
 	private void handleMqttsWillMsgUpd(MqttsWillMsgUpd receivedMsg) {
-		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Mqtts WILLMSGUPD received.");
+		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Mqtts WILLMSGUPD received.", this.clientAddress.getAddress(), clientId);
 	}
 
 
@@ -1324,7 +1430,7 @@ public class ClientMsgHandler extends MsgHandler{
 			break;
 
 		default:
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Mqtt message of unknown type \"" + receivedMsg.getMsgType()+"\" received.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Mqtt message of unknown type \"{}\" received.", this.clientAddress.getAddress(), clientId, receivedMsg.getMsgType());
 			break;
 		}
 	}
@@ -1336,17 +1442,17 @@ public class ClientMsgHandler extends MsgHandler{
 	 * @param receivedMsg The received MqttConnack message.
 	 */
 	private void handleMqttConnack(MqttConnack receivedMsg) {
-		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Mqtt CONNACK message received.");
+		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Mqtt CONNACK message received.", this.clientAddress.getAddress(), clientId);
 
 		//if the client is not in state "Connected" drop the received message
 		if(!client.isConnected()){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Client is not connected. The received Mqtt CONNACK message cannot be processed.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Client is not connected. The received Mqtt CONNACK message cannot be processed.", this.clientAddress.getAddress(), clientId);
 			return;
 		}
 
 		//if the return code of the Mqtt CONNACK message is not "Connection Accepted", drop the message
 		if (receivedMsg.getReturnCode() != MqttMessage.RETURN_CODE_CONNECTION_ACCEPTED){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Return Code of Mqtt CONNACK message it is not \"Connection Accepted\". The received Mqtt CONNACK message cannot be processed.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Return Code of Mqtt CONNACK message it is not \"Connection Accepted\". The received Mqtt CONNACK message cannot be processed.", this.clientAddress.getAddress(), clientId);
 			sendClientDisconnect();
 			return;
 		}
@@ -1356,7 +1462,7 @@ public class ClientMsgHandler extends MsgHandler{
 		msg.setReturnCode(MqttsMessage.RETURN_CODE_ACCEPTED);
 
 		//send the Mqtts CONNACK message to the client	
-		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Sending Mqtts CONNACK message to the client.");
+		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Sending Mqtts CONNACK message to the client.", this.clientAddress.getAddress(), clientId);
 		clientInterface.sendMsg(this.clientAddress, msg);	
 	}
 
@@ -1367,23 +1473,42 @@ public class ClientMsgHandler extends MsgHandler{
 	 * @param receivedMsg The received MqttPublish message
 	 */
 	private void handleMqttPublish(MqttPublish receivedMsg) {
-		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Mqtt PUBLISH message with \"QoS\" = \""+receivedMsg.getQos()+ "\" and \"TopicName\" = \""+receivedMsg.getTopicName()+"\" received.");
+		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Mqtt PUBLISH message with \"QoS\" = \"{}\" and \"TopicName\" = \"{}\" received.", this.clientAddress.getAddress(), clientId, receivedMsg.getQos(), receivedMsg.getTopicName());
 
 		//if the client is not in state "Connected" drop the received message
 		if(!client.isConnected()){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Client is not connected. The received Mqtt PUBLISH message cannot be processed.");
-			return;
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Client is not connected. The received Mqtt PUBLISH message cannot be processed.", this.clientAddress.getAddress(), clientId);
+			return;
+		}
+
+		//if the client has already received a Mqtt PUBLISH message with QoS 2 and the same MsgId,
+		//the Mqtt PUBREC was lost, so send it again to the broker without delivering the message twice
+		if(receivedMsg.getQos() == 2){
+			Qos2Exchange exchange = brokerQos2Exchanges.get(Integer.valueOf(receivedMsg.getMsgId()));
+			if(exchange != null && exchange.getState() != Qos2Exchange.WAITING_PUBREC){
+				MqttPubRec pubrec = new MqttPubRec();
+				pubrec.setMsgId(receivedMsg.getMsgId());
+				GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Mqtt PUBLISH message with \"MsgId\" = \"{}\" already received by the client. Sending Mqtt PUBREC message to the broker.", this.clientAddress.getAddress(), clientId, receivedMsg.getMsgId());
+				try {
+					brokerInterface.sendMsg(pubrec);
+				} catch (MqttsException e) {
+					e.printStackTrace();
+					GatewayLogger.log(GatewayLogger.ERROR, "ClientMsgHandler [{}]/[{}] - Failed sending Mqtt PUBREC message to the broker.", this.clientAddress.getAddress(), clientId);
+					connectionLost();
+				}
+				return;
+			}
 		}
 
 		//if the data is too long to fit into a Mqtts PUBLISH message or the topic name is too
 		//long to fit into a Mqtts REGISTER message then drop the received message 
 		if (receivedMsg.getPayload().length > GWParameters.getMaxMqttsLength() - 7){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - The payload in the received Mqtt PUBLISH message does not fit into a Mqtts PUBLISH message (payload length = "+receivedMsg.getPayload().length+ ". The message cannot be processed.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - The payload in the received Mqtt PUBLISH message does not fit into a Mqtts PUBLISH message (payload length = {}. The message cannot be processed.", this.clientAddress.getAddress(), clientId, receivedMsg.getPayload().length);
 			return;
 		}
 
 		if (receivedMsg.getTopicName().length() > GWParameters.getMaxMqttsLength() - 6){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - The topic name in the received Mqtt PUBLISH message does not fit into a Mqtts REGISTER message (topic name length = "+receivedMsg.getTopicName().length()+ ". The message cannot be processed.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - The topic name in the received Mqtt PUBLISH message does not fit into a Mqtts REGISTER message (topic name length = {}. The message cannot be processed.", this.clientAddress.getAddress(), clientId, receivedMsg.getTopicName().length());
 			return;
 		}
 
@@ -1408,69 +1533,89 @@ public class ClientMsgHandler extends MsgHandler{
 			if(topicId > GWParameters.getPredfTopicIdSize()){
 				publish.setTopicIdType(MqttsMessage.NORMAL_TOPIC_ID);
 				publish.setTopicId(topicId);
-				GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Sending Mqtts PUBLISH message with \"QoS\" = \""+receivedMsg.getQos()+ "\" and \"TopicId\" = \"" + topicId + "\" to the client.");
+				GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Sending Mqtts PUBLISH message with \"QoS\" = \"{}\" and \"TopicId\" = \"{}\" to the client.", this.clientAddress.getAddress(), clientId, receivedMsg.getQos(), topicId);
 
 			}
 			//or a predefined topic Id
 			else if (topicId>0 && topicId<=GWParameters.getPredfTopicIdSize()){
 				publish.setTopicIdType(MqttsMessage.PREDIFINED_TOPIC_ID);
 				publish.setTopicId(topicId);
-				GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Sending Mqtts PUBLISH message with \"QoS\" = \""+receivedMsg.getQos()+ "\" and \"TopicId\" = \"" + topicId + "\" to the client.");
+				GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Sending Mqtts PUBLISH message with \"QoS\" = \"{}\" and \"TopicId\" = \"{}\" to the client.", this.clientAddress.getAddress(), clientId, receivedMsg.getQos(), topicId);
 
 			}
 			//send the Mqtts PUBLISH message to the client
-			clientInterface.sendMsg(this.clientAddress, publish);
+			sendPublishToClient(publish);
 			return;
 		}		
 
-		//handle the case of short topic names
-		if (topicId == 0 && receivedMsg.getTopicName().length() == 2){
+		//handle the case of short topic names (topic names that are encoded in 2 bytes)
+		byte[] shortTopicName = null;
+		if (topicId == 0 && receivedMsg.getTopicName().length() <= 2)
+			shortTopicName = Utils.shortTopicNameToBytes(receivedMsg.getTopicName());
+		if (shortTopicName != null){
 			publish.setTopicIdType(MqttsMessage.SHORT_TOPIC_NAME);
 			publish.setShortTopicName(receivedMsg.getTopicName());
+			publish.setByteTopicId(shortTopicName);
 			publish.setDup(receivedMsg.isDup());
 			publish.setQos(receivedMsg.getQos());
 			publish.setRetain(receivedMsg.isRetain());
 			publish.setMsgId(receivedMsg.getMsgId());
 			publish.setData(receivedMsg.getPayload());
-			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Sending Mqtts PUBLISH message with \"QoS\" = \""+receivedMsg.getQos()+ "\" and \"TopicId\" = \"" + receivedMsg.getTopicName() + "\" (short topic name) to the client.");
+			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Sending Mqtts PUBLISH message with \"QoS\" = \"{}\" and \"TopicId\" = \"{}\" (short topic name) to the client.", this.clientAddress.getAddress(), clientId, receivedMsg.getQos(), receivedMsg.getTopicName());
+			sendPublishToClient(publish);
 			return;
 		}
 
-		//if topicId doesn't exist and we are not already in a register procedure initiated by 
-		//the gateway, then store the Mqtts PUBLISH and send a Mqtts REGISTER to the client
-		if (topicId == 0 && !gateway.isWaitingRegack()){
-			//store the Mqtt PUBLISH message
-			this.mqttPublish = receivedMsg;
-
-			//get a new topicId (don't assign it until we get the REGACK message!)
-			topicId = getNewTopicId();
-
-			//construct a Mqtts REGISTER message and store it (for comparing later the MsgId)
-			this.mqttsRegister = new MqttsRegister();
-			this.mqttsRegister.setTopicId(topicId);
-			this.mqttsRegister.setMsgId(getNewMsgId());
-			this.mqttsRegister.setTopicName(receivedMsg.getTopicName());
+		//if topicId doesn't exist and the gateway is already registering the topic name 
+		//to the client, then queue the received Mqtt PUBLISH message until the Mqtts REGACK arrives
+		PendingRegister pending = pendingTopics.get(receivedMsg.getTopicName());
+		if (pending != null){
+			//drop a retransmission of a Mqtt PUBLISH message that is already queued
+			if (receivedMsg.getQos() > 0 && pending.containsPublish(receivedMsg.getMsgId())){
+				GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Mqtt PUBLISH message with \"MsgId\" = \"{}\" is already waiting for the Mqtts REGACK message. The received Mqtt PUBLISH message will be dropped.", this.clientAddress.getAddress(), clientId, receivedMsg.getMsgId());
+				return;
+			}
+			if (pending.getPublishes().size() >= GWParameters.getMaxQueuedPublishes()){
+				GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Maximum number of Mqtt PUBLISH messages waiting for the registration of topic name (\"{}\") was reached. The received Mqtt PUBLISH message cannot be processed.", this.clientAddress.getAddress(), clientId, receivedMsg.getTopicName());
+				return;
+			}
+			pending.getPublishes().add(receivedMsg);
+			return;
+		}
 
-			//send the Mqtts REGISTER message to the client
-			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Sending Mqtts REGISTER message with \"TopicId\" = \"" +topicId+"\"  and \"TopicName\" = \"" +receivedMsg.getTopicName()+"\" to the client.");
-			clientInterface.sendMsg(this.clientAddress, mqttsRegister);
+		//if topicId doesn't exist and the gateway cannot start another register procedure,
+		//then drop the received Mqtt PUBLISH message
+		if (pendingRegisters.size() >= GWParameters.getMaxPendingRegisters()){
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Topic name (\"{}\") does not exist in the mapping table and the gateway is waiting {} Mqtts REGACK message(s) from the client. The received Mqtt PUBLISH message cannot be processed.", this.clientAddress.getAddress(), clientId, receivedMsg.getTopicName(), pendingRegisters.size());
+			return;	
+		}
 
-			//set the gateway on "waitingRegack" state and increase 
-			//the tries of sending Mqtts REGISTER message to the client
+		//else store the Mqtt PUBLISH message and send a Mqtts REGISTER to the client
+		//get a new topicId (don't assign it until we get the REGACK message!)
+		topicId = getNewTopicId();
+
+		//construct a Mqtts REGISTER message and store it (for comparing later the MsgId)
+		MqttsRegister register = new MqttsRegister();
+		register.setTopicId(topicId);
+		register.setMsgId(getNewMsgId());
+		register.setTopicName(receivedMsg.getTopicName());
+		pending = new PendingRegister(register);
+		pending.getPublishes().add(receivedMsg);
+		pendingRegisters.put(Integer.valueOf(register.getMsgId()), pending);
+		pendingTopics.put(receivedMsg.getTopicName(), pending);
+
+		//send the Mqtts REGISTER message to the client
+		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Sending Mqtts REGISTER message with \"TopicId\" = \"{}\"  and \"TopicName\" = \"{}\" to the client.", this.clientAddress.getAddress(), clientId, topicId, receivedMsg.getTopicName());
+		clientInterface.sendMsg(this.clientAddress, register);
+		pending.increaseTries();
+
+		//if this is the only registration procedure, set the gateway on "waitingRegack" state and set a 
+		//timeout for waiting a Mqtts REGACK message from the client by registering to the timer
+		//(the timer is periodic and checks all registration procedures)
+		if (!gateway.isWaitingRegack()){
 			gateway.setWaitingRegack();
-			gateway.increaseTriesSendingRegister();
-
-			//set a timeout for waiting a Mqtts REGACK message from the client by registering to the timer
 			timer.register(this.clientAddress, ControlMessage.WAITING_REGACK_TIMEOUT, GWParameters.getWaitingTime());
-			return;
 		}
-
-		//if topicId doesn't exist and we are already in a register procedure initiated by 
-		//the gateway, then drop the received Mqtt PUBLISH message
-		if (topicId == 0 && gateway.isWaitingRegack()){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Topic name (\"" +receivedMsg.getTopicName()+"\") does not exist in the mapping table and the gateway is waiting a Mqtts REGACK message from the client. The received Mqtt PUBLISH message cannot be processed.");
-			return;	
-		}		
 	}
 
 
@@ -1480,35 +1625,22 @@ public class ClientMsgHandler extends MsgHandler{
 	 * @param receivedMsg The received MqttPuback message.
 	 */
 	private void handleMqttPuback(MqttPuback receivedMsg) {
-		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Mqtt PUBACK message received.");
+		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Mqtt PUBACK message received.", this.clientAddress.getAddress(), clientId);
 
 		//if the client is not in state "Connected" drop the received message
 		if(!client.isConnected()){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Client is not connected. The received Mqtt PUBACK message cannot be processed.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Client is not connected. The received Mqtt PUBACK message cannot be processed.", this.clientAddress.getAddress(), clientId);
 			return;
 		}		
 
-		//if the gateway is not expecting a Mqtt PUBACK at this time, drop the received message and return
-		if(!gateway.isWaitingPuback()){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Gateway is not waiting a Mqtt PUBACK message from the broker.The received message cannot be processed.");
-			return;
-		}
-
-		//else, assure that the stored Mqtts PUBLISH is not null (debugging checks)
-		if (this.mqttsPublish == null){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - The stored Mqtts PUBLISH message is null.The received Mqtt PUBACK message cannot be processed.");
+		//get (and delete) the stored Mqtts PUBLISH message with the MsgId of the received Mqtt PUBACK
+		MqttsPublish mqttsPublish = inflightPublishes.remove(Integer.valueOf(receivedMsg.getMsgId()));
 
-			//"reset" the "waitingPuback" state of the gateway
-			gateway.resetWaitingPuback();
+		//if the gateway is not expecting this Mqtt PUBACK, drop the received message and return
+		if(mqttsPublish == null){
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Gateway is not waiting a Mqtt PUBACK message with \"MsgId\" = \"{}\" from the broker.The received message cannot be processed.", this.clientAddress.getAddress(), clientId, receivedMsg.getMsgId());
 			return;
-		} 
-
-		//if the MsgId of the received Mqtt PUBACK is not the same with MsgId of the stored 
-		//Mqtts PUBLISH message, drop the received message and return (don't delete any stored message)
-		if(receivedMsg.getMsgId() != this.mqttsPublish.getMsgId()){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Message ID of the received Mqtt PUBACK does not match the message ID of the stored Mqtts PUBLISH message.The message cannot be processed.");
-			return;
-		}		
+		}
 
 		//construct a Mqtts PUBACK message
 		MqttsPuback puback = new MqttsPuback();
@@ -1518,41 +1650,38 @@ public class ClientMsgHandler extends MsgHandler{
 
 
 		//check the TopicIdType in the stored Mqtts PUBLISH message
-		switch(this.mqttsPublish.getTopicIdType()){
+		switch(mqttsPublish.getTopicIdType()){
 
 		//if the TopicIdType is a normal TopicId
 		case MqttsMessage.NORMAL_TOPIC_ID:
-			puback.setTopicId(this.mqttsPublish.getTopicId());
-			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Sending Mqtts PUBACK message with \"TopicId\" = \"" + puback.getTopicId() + "\" to the client.");
+			puback.setTopicId(mqttsPublish.getTopicId());
+			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Sending Mqtts PUBACK message with \"TopicId\" = \"{}\" to the client.", this.clientAddress.getAddress(), clientId, puback.getTopicId());
 			break;
 
 			//if the TopicIdType is a shortTopicName 
 		case MqttsMessage.SHORT_TOPIC_NAME:
-			puback.setShortTopicName(this.mqttsPublish.getShortTopicName());
-			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Sending Mqtts PUBACK message with \"TopicId\" = \"" + puback.getShortTopicName() + "\" (short topic name) to the client.");
+			puback.setShortTopicName(mqttsPublish.getShortTopicName());
+			puback.setByteTopicId(mqttsPublish.getByteTopicId());
+			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Sending Mqtts PUBACK message with \"TopicId\" = \"{}\" (short topic name) to the client.", this.clientAddress.getAddress(), clientId, puback.getShortTopicName());
 
 			break;
 
 			//if the TopicIdType is a predifinedTopiId
 		case MqttsMessage.PREDIFINED_TOPIC_ID:
-			puback.setTopicId(this.mqttsPublish.getTopicId());
-			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Sending Mqtts PUBACK message with \"TopicId\" = \"" + puback.getTopicId() + "\" to the client.");
+			puback.setTopicId(mqttsPublish.getTopicId());
+			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Sending Mqtts PUBACK message with \"TopicId\" = \"{}\" to the client.", this.clientAddress.getAddress(), clientId, puback.getTopicId());
 
 			break;
 
 			//should never reach here because topicIdType was checked 
 			//already when we received the Mqtts PUBLISH message 
 		default:
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Unknown topicIdType of the stored Mqtts PUBLISH message: " + this.mqttsPublish.getTopicIdType()+". The received Mqtt PUBACK message cannot be processed.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Unknown topicIdType of the stored Mqtts PUBLISH message: {}. The received Mqtt PUBACK message cannot be processed.", this.clientAddress.getAddress(), clientId, mqttsPublish.getTopicIdType());
 			return;				
 		}		
 
 		//send the Mqtts PUBACK message to the client
 		clientInterface.sendMsg(this.clientAddress, puback);
-
-		//"reset" the "waitingPuback" state of the gateway and delete Mqtts PUBLISH message
-		gateway.resetWaitingPuback();
-		this.mqttsPublish = null;
 	}
 
 
@@ -1562,20 +1691,42 @@ public class ClientMsgHandler extends MsgHandler{
 	 * @param receivedMsg The received MqttPubRec message.
 	 */
 	private void handleMqttPubRec(MqttPubRec receivedMsg) {
-		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Mqtt PUBREC message received.");
+		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Mqtt PUBREC message received.", this.clientAddress.getAddress(), clientId);
 
 		//if the client is not in state "Connected" drop the received message
 		if(!client.isConnected()){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Client is not connected. The received Mqtt PUBREC message cannot be processed.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Client is not connected. The received Mqtt PUBREC message cannot be processed.", this.clientAddress.getAddress(), clientId);
 			return;
 		}
 
+		Qos2Exchange exchange = clientQos2Exchanges.get(Integer.valueOf(receivedMsg.getMsgId()));
+		if(exchange == null){
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - There is no QoS 2 exchange with \"MsgId\" = \"{}\". The received Mqtt PUBREC message cannot be processed.", this.clientAddress.getAddress(), clientId, receivedMsg.getMsgId());
+			return;
+		}
+
+		//if the message is already released, the Mqtt PUBREL was lost, so send it again to the broker
+		if(exchange.getState() == Qos2Exchange.WAITING_PUBCOMP){
+			MqttPubRel pubrel = new MqttPubRel();
+			pubrel.setMsgId(receivedMsg.getMsgId());
+			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Mqtts PUBLISH message with \"MsgId\" = \"{}\" already released by the client. Sending Mqtt PUBREL message to the broker.", this.clientAddress.getAddress(), clientId, receivedMsg.getMsgId());
+			try {
+				brokerInterface.sendMsg(pubrel);
+			} catch (MqttsException e) {
+				e.printStackTrace();
+				GatewayLogger.log(GatewayLogger.ERROR, "ClientMsgHandler [{}]/[{}] - Failed sending Mqtt PUBREL message to the broker.", this.clientAddress.getAddress(), clientId);
+				connectionLost();
+			}
+			return;
+		}
+		exchange.setState(Qos2Exchange.WAITING_PUBREL);
+
 		//construct a Mqtts PUBREC message
 		MqttsPubRec msg = new MqttsPubRec();
 		msg.setMsgId(receivedMsg.getMsgId());
 
 		//send the Mqtts PUBREC message to the client	
-		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Sending Mqtts PUBREC message to the client.");
+		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Sending Mqtts PUBREC message to the client.", this.clientAddress.getAddress(), clientId);
 		clientInterface.sendMsg(this.clientAddress, msg);
 	}
 
@@ -1586,20 +1737,38 @@ public class ClientMsgHandler extends MsgHandler{
 	 * @param receivedMsg The received MqttPubRel message.
 	 */
 	private void handleMqttPubRel(MqttPubRel receivedMsg) {
-		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Mqtt PUBREL message received.");
+		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Mqtt PUBREL message received.", this.clientAddress.getAddress(), clientId);
 
 		//if the client is not in state "Connected" drop the received message
 		if(!client.isConnected()){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Client is not connected. The received Mqtt PUBREL message cannot be processed.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Client is not connected. The received Mqtt PUBREL message cannot be processed.", this.clientAddress.getAddress(), clientId);
+			return;
+		}
+
+		Qos2Exchange exchange = brokerQos2Exchanges.get(Integer.valueOf(receivedMsg.getMsgId()));
+
+		//if there is no such exchange, the message was already completed, so complete it again
+		if(exchange == null){
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - There is no QoS 2 exchange with \"MsgId\" = \"{}\". Sending Mqtt PUBCOMP message to the broker.", this.clientAddress.getAddress(), clientId, receivedMsg.getMsgId());
+			MqttPubComp pubcomp = new MqttPubComp();
+			pubcomp.setMsgId(receivedMsg.getMsgId());
+			try {
+				brokerInterface.sendMsg(pubcomp);
+			} catch (MqttsException e) {
+				e.printStackTrace();
+				GatewayLogger.log(GatewayLogger.ERROR, "ClientMsgHandler [{}]/[{}] - Failed sending Mqtt PUBCOMP message to the broker.", this.clientAddress.getAddress(), clientId);
+				connectionLost();
+			}
 			return;
 		}
+		exchange.setState(Qos2Exchange.WAITING_PUBCOMP);
 
 		//construct a Mqtts PUBREL message
 		MqttsPubRel msg = new MqttsPubRel();
 		msg.setMsgId(receivedMsg.getMsgId());
 
 		//send the Mqtts PUBREL message to the client
-		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Sending Mqtts PUBREL message to the client.");
+		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Sending Mqtts PUBREL message to the client.", this.clientAddress.getAddress(), clientId);
 		clientInterface.sendMsg(this.clientAddress, msg);
 
 	}
@@ -1611,11 +1780,17 @@ public class ClientMsgHandler extends MsgHandler{
 	 * @param receivedMsg The received MqttPubComp message.
 	 */
 	private void handleMqttPubComp(MqttPubComp receivedMsg) {
-		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Mqtt PUBCOMP message received.");
+		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Mqtt PUBCOMP message received.", this.clientAddress.getAddress(), clientId);
 
 		//if the client is not in state "Connected" drop the received message
 		if(!client.isConnected()){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Client is not connected. The received Mqtt PUBCOMP message cannot be processed.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Client is not connected. The received Mqtt PUBCOMP message cannot be processed.", this.clientAddress.getAddress(), clientId);
+			return;
+		}
+
+		//delete the QoS 2 exchange of the Mqtts PUBLISH message from the client
+		if(clientQos2Exchanges.remove(Integer.valueOf(receivedMsg.getMsgId())) == null){
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - There is no QoS 2 exchange with \"MsgId\" = \"{}\". The received Mqtt PUBCOMP message cannot be processed.", this.clientAddress.getAddress(), clientId, receivedMsg.getMsgId());
 			return;
 		}
 
@@ -1624,7 +1799,7 @@ public class ClientMsgHandler extends MsgHandler{
 		msg.setMsgId(receivedMsg.getMsgId());
 
 		//send the Mqtts PUBCOMP message to the client
-		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Sending Mqtts PUBCOMP message to the client.");
+		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Sending Mqtts PUBCOMP message to the client.", this.clientAddress.getAddress(), clientId);
 		clientInterface.sendMsg(this.clientAddress, msg);		
 	}
 
@@ -1635,23 +1810,23 @@ public class ClientMsgHandler extends MsgHandler{
 	 * @param receivedMsg The received MqttSuback message.
 	 */
 	private void handleMqttSuback(MqttSuback receivedMsg) {
-		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Mqtt SUBACK message received.");
+		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Mqtt SUBACK message received.", this.clientAddress.getAddress(), clientId);
 
 		//if the client is not in state "Connected" drop the received message
 		if(!client.isConnected()){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Client is not connected. The received Mqtt SUBACK message cannot be processed.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Client is not connected. The received Mqtt SUBACK message cannot be processed.", this.clientAddress.getAddress(), clientId);
 			return;
 		}
 
 		//if the gateway is not expecting a Mqtt SUBACK at this time, drop the received message and return
 		if(!gateway.isWaitingSuback()){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Gateway is not waiting a Mqtt SUBACK message from the broker. The received message cannot be processed.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Gateway is not waiting a Mqtt SUBACK message from the broker. The received message cannot be processed.", this.clientAddress.getAddress(), clientId);
 			return;
 		}
 
 		//else, assure that the stored Mqtts SUBSCRIBE is not null (debugging checks)
 		if (this.mqttsSubscribe == null){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - The stored Mqtts SUBSCRIBE is null. The received Mqtt SUBACK message cannot be processed.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - The stored Mqtts SUBSCRIBE is null. The received Mqtt SUBACK message cannot be processed.", this.clientAddress.getAddress(), clientId);
 
 			//"reset" the "waitingSuback" state of the gateway
 			gateway.resetWaitingSuback();
@@ -1661,7 +1836,7 @@ public class ClientMsgHandler extends MsgHandler{
 		//if the MsgId of the received Mqtt SUBACK is not the same with MsgId of the stored 
 		//Mqtts SUBSCRIBE message, drop the received message and return (don't delete any stored message)
 		if(receivedMsg.getMsgId() != this.mqttsSubscribe.getMsgId()){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - MsgId (\""+receivedMsg.getMsgId()+"\") of the received Mqtts SUBACK message does not match the MsgId (\""+this.mqttsSubscribe.getMsgId()+"\") of the stored Mqtts SUBSCRIBE message. The message cannot be processed.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - MsgId (\"{}\") of the received Mqtts SUBACK message does not match the MsgId (\"{}\") of the stored Mqtts SUBSCRIBE message. The message cannot be processed.", this.clientAddress.getAddress(), clientId, receivedMsg.getMsgId(), this.mqttsSubscribe.getMsgId());
 			return;
 		}
 
@@ -1701,7 +1876,7 @@ public class ClientMsgHandler extends MsgHandler{
 				topicIdMappingTable.assignTopicId(topicId, this.mqttsSubscribe.getTopicName());
 				suback.setTopicId(topicId);
 			}
-			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Sending Mqtts SUBACK message with \"TopicId\" = \"" + suback.getTopicId() + "\" to the client.");
+			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Sending Mqtts SUBACK message with \"TopicId\" = \"{}\" to the client.", this.clientAddress.getAddress(), clientId, suback.getTopicId());
 
 			break;
 
@@ -1709,7 +1884,7 @@ public class ClientMsgHandler extends MsgHandler{
 		case MqttsMessage.SHORT_TOPIC_NAME:
 			suback.setTopicIdType(MqttsMessage.SHORT_TOPIC_NAME);
 			suback.setShortTopicName(this.mqttsSubscribe.getShortTopicName());
-			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Sending Mqtts SUBACK message with \"TopicId\" = \"" + suback.getShortTopicName() + "\" (short topic name) to the client.");
+			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Sending Mqtts SUBACK message with \"TopicId\" = \"{}\" (short topic name) to the client.", this.clientAddress.getAddress(), clientId, suback.getShortTopicName());
 
 			break;
 
@@ -1717,14 +1892,14 @@ public class ClientMsgHandler extends MsgHandler{
 		case MqttsMessage.PREDIFINED_TOPIC_ID:
 			suback.setTopicIdType(MqttsMessage.PREDIFINED_TOPIC_ID);
 			suback.setPredefinedTopicId(this.mqttsSubscribe.getPredefinedTopicId());
-			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Sending Mqtts SUBACK message with \"TopicId\" = \"" + suback.getPredefinedTopicId() + "\" to the client.");
+			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Sending Mqtts SUBACK message with \"TopicId\" = \"{}\" to the client.", this.clientAddress.getAddress(), clientId, suback.getPredefinedTopicId());
 
 			break;
 
 			//should never reach here because topicIdType was checked 
 			//already when we received the Mqtts SUBSCRIBE message 
 		default:
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - UnknownTopicId type of the stored Mqtts SUBSCRIBE message: " + this.mqttsSubscribe.getTopicIdType()+". The received Mqtt SUBACK message cannot be processed.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - UnknownTopicId type of the stored Mqtts SUBSCRIBE message: {}. The received Mqtt SUBACK message cannot be processed.", this.clientAddress.getAddress(), clientId, this.mqttsSubscribe.getTopicIdType());
 			return;				
 		}
 
@@ -1743,23 +1918,23 @@ public class ClientMsgHandler extends MsgHandler{
 	 * @param receivedMsg The received MqttUnsuback message.
 	 */
 	private void handleMqttUnsuback(MqttUnsuback receivedMsg) {
-		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Mqtt UNSUBACK message received.");
+		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Mqtt UNSUBACK message received.", this.clientAddress.getAddress(), clientId);
 
 		//if the client is not in state "Connected" drop the received message
 		if(!client.isConnected()){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Client is not connected. The received Mqtt UNSUBACK message cannot be processed.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Client is not connected. The received Mqtt UNSUBACK message cannot be processed.", this.clientAddress.getAddress(), clientId);
 			return;
 		}
 
 		//if the gateway is not expecting a Mqtt UNSUBACK at this time, drop the received message and return
 		if(!gateway.isWaitingUnsuback()){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Gateway is not waiting a Mqtt UNSUBACK message from the broker.The received message cannot be processed.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Gateway is not waiting a Mqtt UNSUBACK message from the broker.The received message cannot be processed.", this.clientAddress.getAddress(), clientId);
 			return;
 		}
 
 		//else, assure that the stored Mqtts UNSUBSCRIBE is not null (debugging checks)
 		if (this.mqttsUnsubscribe == null){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - The stored Mqtts UNSUBSCRIBE is null.The received Mqtt UNSUBACK message cannot be processed.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - The stored Mqtts UNSUBSCRIBE is null.The received Mqtt UNSUBACK message cannot be processed.", this.clientAddress.getAddress(), clientId);
 
 			//"reset" the "waitingUnsuback" state of the gateway
 			gateway.resetWaitingUnsuback();
@@ -1769,7 +1944,7 @@ public class ClientMsgHandler extends MsgHandler{
 		//if the MsgId of the received Mqtt UNSUBACK is not the same with MsgId of the stored 
 		//Mqtts UNSUBSCRIBE message, drop the received message and return (don't delete any stored message)
 		if(receivedMsg.getMsgId() != this.mqttsUnsubscribe.getMsgId()){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - MsgId (\""+receivedMsg.getMsgId()+"\") of the received Mqtts UNSUBACK message does not match the MsgId (\""+this.mqttsUnsubscribe.getMsgId()+"\") of the stored Mqtts UNSUBSCRIBE message. The message cannot be processed.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - MsgId (\"{}\") of the received Mqtts UNSUBACK message does not match the MsgId (\"{}\") of the stored Mqtts UNSUBSCRIBE message. The message cannot be processed.", this.clientAddress.getAddress(), clientId, receivedMsg.getMsgId(), this.mqttsUnsubscribe.getMsgId());
 			return;
 		}
 
@@ -1784,7 +1959,7 @@ public class ClientMsgHandler extends MsgHandler{
 		unsuback.setMsgId(receivedMsg.getMsgId());
 
 		//send the Mqtts SUBACK message to the client
-		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Sending Mqtts UNSUBACK message to the client.");
+		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Sending Mqtts UNSUBACK message to the client.", this.clientAddress.getAddress(), clientId);
 		clientInterface.sendMsg(this.clientAddress, unsuback);
 
 		//"reset" the "waitingUnsuback" state of the gateway and delete Mqtts UNSUBSCRIBE message
@@ -1799,11 +1974,11 @@ public class ClientMsgHandler extends MsgHandler{
 	 * @param receivedMsg The received MqttPingReq message.
 	 */
 	private void handleMqttPingReq(MqttPingReq receivedMsg) {
-		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Mqtt PINGREQ message received.");
+		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Mqtt PINGREQ message received.", this.clientAddress.getAddress(), clientId);
 
 		//if the client is not in state "Connected" drop the received message
 		if(!client.isConnected()){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Client is not connected. The received Mqtt PINGREQ message cannot be processed.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Client is not connected. The received Mqtt PINGREQ message cannot be processed.", this.clientAddress.getAddress(), clientId);
 			return;
 		}
 
@@ -1811,7 +1986,7 @@ public class ClientMsgHandler extends MsgHandler{
 		MqttsPingReq msg = new MqttsPingReq();
 
 		//send the Mqtts PINGREQ message to the client
-		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Sending Mqtts PINGREQ message to the client.");
+		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Sending Mqtts PINGREQ message to the client.", this.clientAddress.getAddress(), clientId);
 		clientInterface.sendMsg(this.clientAddress, msg);
 	}
 
@@ -1822,11 +1997,17 @@ public class ClientMsgHandler extends MsgHandler{
 	 * @param receivedMsg The received MqttPingResp message.
 	 */
 	private void handleMqttPingResp(MqttPingResp receivedMsg) {
-		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Mqtt PINGRESP message received.");
+		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Mqtt PINGRESP message received.", this.clientAddress.getAddress(), clientId);
 
 		//if the client is not in state "Connected" drop the received message
 		if(!client.isConnected()){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Client is not connected. The received Mqtt PINGRESP message cannot be processed.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Client is not connected. The received Mqtt PINGRESP message cannot be processed.", this.clientAddress.getAddress(), clientId);
+			return;
+		}
+
+		//in "local" ping mode this is the answer to a keep alive of the gateway
+		if(GWParameters.isLocalPingResp()){
+			waitingPingResp = false;
 			return;
 		}
 
@@ -1834,7 +2015,7 @@ public class ClientMsgHandler extends MsgHandler{
 		MqttsPingResp msg = new MqttsPingResp();
 
 		//send the Mqtts PINGRESP message to the client
-		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Sending Mqtts PINGRESP message to the client.");
+		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Sending Mqtts PINGRESP message to the client.", this.clientAddress.getAddress(), clientId);
 		clientInterface.sendMsg(this.clientAddress, msg);	
 	}
 
@@ -1874,12 +2055,20 @@ public class ClientMsgHandler extends MsgHandler{
 			//we will never receive such a message 
 			break;				
 
+		case ControlMessage.BROKER_KEEP_ALIVE:
+			handleControlKeepAlive();
+			break;
+
+		case ControlMessage.CLIENT_KEEP_ALIVE_TIMEOUT:
+			handleClientKeepAliveTimeout();
+			break;
+
 		case ControlMessage.SHUT_DOWN:
 			shutDown();
 			break;			
 
 		default:
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Control message of unknown type \"" + receivedMsg.getMsgType()+"\" received.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Control message of unknown type \"{}\" received.", this.clientAddress.getAddress(), clientId, receivedMsg.getMsgType());
 			break;
 		}
 	}
@@ -1889,15 +2078,15 @@ public class ClientMsgHandler extends MsgHandler{
 	 * The method that is invoked when the TCP/IP connection with the broker was lost.
 	 */
 	private void connectionLost() {
-		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Control CONNECTION_LOST message received.");
+		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Control CONNECTION_LOST message received.", this.clientAddress.getAddress(), clientId);
 
 		//if the client is not in state "Connected" return
 		if(!client.isConnected()){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Client is not connected. The call on connectionLost() method has no effect.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Client is not connected. The call on connectionLost() method has no effect.", this.clientAddress.getAddress(), clientId);
 			return;
 		}
 
-		GatewayLogger.log(GatewayLogger.ERROR, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - TCP/IP connection with the broker was lost.");
+		GatewayLogger.log(GatewayLogger.ERROR, "ClientMsgHandler [{}]/[{}] - TCP/IP connection with the broker was lost.", this.clientAddress.getAddress(), clientId);
 
 		//call the sendClientDisconnect method of this handler
 		sendClientDisconnect();
@@ -1909,17 +2098,17 @@ public class ClientMsgHandler extends MsgHandler{
 	 * the client has timeout.
 	 */
 	private void handleWaitingWillTopicTimeout(){
-		GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Control WAITING_WILLTOPIC_TIMEOUT message received.");
+		GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Control WAITING_WILLTOPIC_TIMEOUT message received.", this.clientAddress.getAddress(), clientId);
 
 		//check if the gateway is still in state of waiting for a WILLTOPIC message from the client
 		if(!gateway.isWaitingWillTopic()){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Gateway is not waiting a Mqtts WILLTOPIC message from the client. The received control WAITING_WILLTOPIC_TIMEOUT message cannot be processed.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Gateway is not waiting a Mqtts WILLTOPIC message from the client. The received control WAITING_WILLTOPIC_TIMEOUT message cannot be processed.", this.clientAddress.getAddress(), clientId);
 			return;
 		}
 
 		//if we have reached the maximum tries of sending Mqtts WILLTOPICREQ message
 		if(gateway.getTriesSendingWillTopicReq() > GWParameters.getMaxRetries()){
-			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Maximum retries of sending Mqtts WILLTOPICREQ message to the client were reached. The message will not be sent again.");		
+			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Maximum retries of sending Mqtts WILLTOPICREQ message to the client were reached. The message will not be sent again.", this.clientAddress.getAddress(), clientId);		
 
 			//"reset" the "waitingWillTopic" state of the gateway, "reset" the tries of sending 
 			//Mqtts WILLTOPICREQ message to the client, unregister from the timer and and delete 
@@ -1933,7 +2122,7 @@ public class ClientMsgHandler extends MsgHandler{
 		}else{			
 			MqttsWillTopicReq willTopicReq = new MqttsWillTopicReq();
 
-			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Re-sending Mqtts WILLTOPICREQ message to the client. Retry: "+gateway.getTriesSendingWillTopicReq()+".");		
+			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Re-sending Mqtts WILLTOPICREQ message to the client. Retry: {}.", this.clientAddress.getAddress(), clientId, gateway.getTriesSendingWillTopicReq());		
 			clientInterface.sendMsg(this.clientAddress, willTopicReq);	
 
 			//increase the tries of sending Mqtts WILLTOPICREQ message to the client
@@ -1947,17 +2136,17 @@ public class ClientMsgHandler extends MsgHandler{
 	 * the client has timeout.
 	 */
 	private void handleWaitingWillMsgTimeout(){
-		GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Control WAITING_WILLMSG_TIMEOUT message received.");
+		GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Control WAITING_WILLMSG_TIMEOUT message received.", this.clientAddress.getAddress(), clientId);
 
 		//check if the gateway is still in state of waiting for a WILLMSG message from the client
 		if(!gateway.isWaitingWillMsg()){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Gateway is not waiting a Mqtts WILLMSG message from the client. The received control WAITING_WILLMSG_TIMEOUT message cannot be processed.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Gateway is not waiting a Mqtts WILLMSG message from the client. The received control WAITING_WILLMSG_TIMEOUT message cannot be processed.", this.clientAddress.getAddress(), clientId);
 			return;
 		}
 
 		//if we have reached the maximum tries of sending Mqtts WILLMSGREQ message
 		if(gateway.getTriesSendingWillMsgReq() > GWParameters.getMaxRetries()){
-			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Maximum retries of sending Mqtts WILLMSGREQ message to the client were reached. The message will not be sent again.");
+			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Maximum retries of sending Mqtts WILLMSGREQ message to the client were reached. The message will not be sent again.", this.clientAddress.getAddress(), clientId);
 			//"reset" the "waitingWillMsg" state of the gateway, "reset" the tries of sending
 			//Mqtts WILLMSGREQ message to the client, unregister from the timer and delete 
 			//the stored Mqtts CONNECT and Mqtts WILLTOPIC messages
@@ -1971,7 +2160,7 @@ public class ClientMsgHandler extends MsgHandler{
 		}else{			
 			MqttsWillMsgReq willMsgReq = new MqttsWillMsgReq();
 
-			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Re-sending Mqtts WILLMSGREQ message to the client. Retry: "+gateway.getTriesSendingWillMsgReq()+".");
+			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Re-sending Mqtts WILLMSGREQ message to the client. Retry: {}.", this.clientAddress.getAddress(), clientId, gateway.getTriesSendingWillMsgReq());
 			clientInterface.sendMsg(this.clientAddress, willMsgReq);
 
 			//increase the tries of sending Mqtts WILLMSGREQ message to the client
@@ -1985,35 +2174,49 @@ public class ClientMsgHandler extends MsgHandler{
 	 * the client has timeout.
 	 */
 	private void handleWaitingRegackTimeout(){
-		GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Control WAITING_REGACK_TIMEOUT message received.");
+		GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Control WAITING_REGACK_TIMEOUT message received.", this.clientAddress.getAddress(), clientId);
 
 		//check if the gateway is still in state of waiting for a REGACK message from the client
 		if(!gateway.isWaitingRegack()){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Gateway is not in state of waiting a Mqtts REGACK message from the client. The received control REGACK_TIMEOUT message cannot be processed.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Gateway is not in state of waiting a Mqtts REGACK message from the client. The received control REGACK_TIMEOUT message cannot be processed.", this.clientAddress.getAddress(), clientId);
 			return;
 		}
 
-		//if we have reached the maximum tries of sending the Mqtts REGISTER message
-		if(gateway.getTriesSendingRegister() > GWParameters.getMaxRetries()){
-			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Maximum retries of sending Mqtts REGISTER message to the client were reached. The message will not be sent again.");
-			//"reset" the 'waitingRegack" state of the gateway, "reset" the tries of sending
-			//Mqtts REGISTER message to the client, unregister from the timer and delete
-			//the stored Mqtt PUBLISH and Mqtts REGISTER messages
-			gateway.resetWaitingRegack();
-			gateway.resetTriesSendingRegister();
-			timer.unregister(this.clientAddress, ControlMessage.WAITING_REGACK_TIMEOUT);
-			this.mqttPublish = null;
-			this.mqttsRegister = null;
-		}	
+		long now = System.currentTimeMillis();
+		PendingRegister[] pendings = pendingRegisters.values().toArray(new PendingRegister[pendingRegisters.size()]);
+		for(int i = 0; i < pendings.length; i++){
+			PendingRegister pending = pendings[i];
+
+			//the timer is shared by all registration procedures, so skip the ones
+			//whose Mqtts REGISTER message was sent during the last half period
+			if(now - pending.getSentTime() < GWParameters.getWaitingTime() * 500L)
+				continue;
+			pendingRegisters.remove(Integer.valueOf(pending.getRegister().getMsgId()));
 
-		//else modify the MsgId (get a new one) of the stored Mqtts 
-		//REGISTER message, and send it to the client
-		else{			
-			this.mqttsRegister.setMsgId(getNewMsgId());
+			//if we have reached the maximum tries of sending the Mqtts REGISTER message
+			//delete the registration procedure and the queued Mqtt PUBLISH messages
+			if(pending.getTries() > GWParameters.getMaxRetries()){
+				GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Maximum retries of sending Mqtts REGISTER message with \"TopicName\" = \"{}\" to the client were reached. The message will not be sent again and {} queued Mqtt PUBLISH message(s) will be dropped.", this.clientAddress.getAddress(), clientId, pending.getRegister().getTopicName(), pending.getPublishes().size());
+				pendingTopics.remove(pending.getRegister().getTopicName());
+			}	
 
-			GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Re-sending Mqtts REGISTER message to the client. Retry: "+gateway.getTriesSendingRegister()+".");
-			clientInterface.sendMsg(this.clientAddress, this.mqttsRegister);
-			gateway.increaseTriesSendingRegister();
+			//else modify the MsgId (get a new one) of the stored Mqtts 
+			//REGISTER message, and send it to the client
+			else{			
+				pending.getRegister().setMsgId(getNewMsgId());
+				pendingRegisters.put(Integer.valueOf(pending.getRegister().getMsgId()), pending);
+
+				GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Re-sending Mqtts REGISTER message with \"TopicName\" = \"{}\" to the client. Retry: {}.", this.clientAddress.getAddress(), clientId, pending.getRegister().getTopicName(), pending.getTries());
+				clientInterface.sendMsg(this.clientAddress, pending.getRegister());
+				pending.increaseTries();
+			}
+		}
+
+		//if there is no other registration procedure, "reset" the "waitingRegack" 
+		//state of the gateway and unregister from the timer
+		if(pendingRegisters.isEmpty()){
+			gateway.resetWaitingRegack();
+			timer.unregister(this.clientAddress, ControlMessage.WAITING_REGACK_TIMEOUT);
 		}
 	}
 
@@ -2023,29 +2226,97 @@ public class ClientMsgHandler extends MsgHandler{
 	 * in order to remove it from Dispatcher's mapping table.
 	 */
 	private void handleCheckInactivity() {
-		GatewayLogger.log(GatewayLogger.INFO, 
-				"ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+
-				"]/["+clientId+"] - Control CHECK_INACTIVITY message received.");
+		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Control CHECK_INACTIVITY message received.", this.clientAddress.getAddress(), clientId);
 
 		if(System.currentTimeMillis() > this.timeout){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Client is inactive for more than "+ GWParameters.getHandlerTimeout()/60+ " minutes. The associated ClientMsgHandler will be removed from Dispatcher's mapping table.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Client is inactive for more than {} minutes. The associated ClientMsgHandler will be removed from Dispatcher's mapping table.", this.clientAddress.getAddress(), clientId, GWParameters.getHandlerTimeout()/60);
+
+			//stop the timers of the client, otherwise a timeout would create a new handler
+			timer.unregister(this.clientAddress);
+			keepAliveDuration = 0;
 
 			//close broker connection (if any)
 			brokerInterface.disconnect();
 
+			//give back the topics of the client to the registry
+			topicIdMappingTable.clear();
+
 			dispatcher.removeHandler(this.clientAddress);
 		}
 	}
 
+	/**
+	 * This method is invoked in regular intervals (in "local" ping mode) to keep alive
+	 * the broker connection of the client.
+	 */
+	private void handleControlKeepAlive() {
+		//the connections that are shared by the clients are kept alive by the gateway
+		if(!GWParameters.isLocalPingResp() || GWParameters.isAggregatingMode() || !client.isConnected())
+			return;
+
+		//if the previous Mqtt PINGREQ message was not answered, the broker connection is lost
+		if(waitingPingResp){
+			GatewayLogger.log(GatewayLogger.ERROR, "ClientMsgHandler [{}]/[{}] - No Mqtt PINGRESP message received from the broker for {} seconds.", this.clientAddress.getAddress(), clientId, GWParameters.getBrokerKeepAlive());
+			waitingPingResp = false;
+			connectionLost();
+			return;
+		}
+
+		waitingPingResp = true;
+		sendMqttPingReq();
+	}
+
+	/**
+	 * This method starts checking the keep alive period of the client (in "local" ping mode),
+	 * since the broker connection of the client is kept alive by the gateway.
+	 * 
+	 * @param duration The keep alive period (in seconds) that the client requested.
+	 */
+	private void startClientKeepAlive(int duration) {
+		waitingPingResp = false;
+		if(!GWParameters.isLocalPingResp() || duration <= 0)
+			return;
+
+		keepAliveDuration = duration * 1500L;
+		keepAliveTimeout = System.currentTimeMillis() + keepAliveDuration;
+		timer.register(this.clientAddress, ControlMessage.CLIENT_KEEP_ALIVE_TIMEOUT, Math.max(1, duration / 4));
+	}
+
+	/**
+	 * This method is invoked in regular intervals (in "local" ping mode) to check whether the
+	 * client has sent a message within 1.5 times its keep alive period.
+	 */
+	private void handleClientKeepAliveTimeout() {
+		if(!client.isConnected() || keepAliveDuration == 0){
+			timer.unregister(this.clientAddress, ControlMessage.CLIENT_KEEP_ALIVE_TIMEOUT);
+			return;
+		}
+
+		if(System.currentTimeMillis() <= keepAliveTimeout)
+			return;
+
+		GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - No message received from the client for {} seconds. The client is considered lost and the associated ClientMsgHandler will be removed from Dispatcher's mapping table.", this.clientAddress.getAddress(), clientId, keepAliveDuration/1000);
+
+		//close the broker connection without a Mqtt DISCONNECT message, so that the will of the client is published
+		client.setDisconnected();
+		timer.unregister(this.clientAddress);
+		gateway.reset();
+		keepAliveDuration = 0;
+		brokerInterface.disconnect();
+		topicIdMappingTable.clear();
+
+		dispatcher.removeHandler(this.clientAddress);
+	}
+
 	/**
 	 * This method is invoked when the gateway is shutting down.
 	 */
 	private void shutDown(){
-		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Control SHUT_DOWN message received.");
+		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Control SHUT_DOWN message received.", this.clientAddress.getAddress(), clientId);
 
 		//if the client is not in state "Connected" return
 		if(!client.isConnected()){
-			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Client is not connected. The received Control SHUT_DOWN message cannot be processed.");
+			GatewayLogger.log(GatewayLogger.WARN, "ClientMsgHandler [{}]/[{}] - Client is not connected. The received Control SHUT_DOWN message cannot be processed.", this.clientAddress.getAddress(), clientId);
 			return;
 		}
 
@@ -2056,7 +2327,7 @@ public class ClientMsgHandler extends MsgHandler{
 		//construct a Mqtt DISCONNECT message
 		MqttDisconnect mqttDisconnect = new MqttDisconnect();
 
-		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Sending Mqtt DISCONNECT message to the broker.");
+		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Sending Mqtt DISCONNECT message to the broker.", this.clientAddress.getAddress(), clientId);
 		//send the Mqtt DISCONNECT message to the broker
 		//(don't bother if the sending of Mqtt DISCONNECT message to the broker was successful or not)
 		try {
@@ -2083,6 +2354,23 @@ public class ClientMsgHandler extends MsgHandler{
 	}
 
 
+	/**
+	 * This method creates the interface to the broker according to the mode of the gateway.
+	 * In transparent mode the client has its own TCP/IP connection with the broker (served either
+	 * by a reading thread or by a selector thread), while in aggregating mode it shares a
+	 * connection of the pool with other clients.
+	 * 
+	 * @return The broker interface
+	 */
+	private BrokerInterface createBrokerInterface() {
+		if(GWParameters.isAggregatingMode())
+			return new AggregatingBrokerInterface(this.clientAddress);
+		if(GWParameters.isNioBrokerInterface())
+			return new NIOBrokerInterface(this.clientAddress);
+		return new TCPBrokerInterface(this.clientAddress);
+	}
+
+
 	/**
 	 * This method sends a Mqtts DISCONNECT message to the client.
 	 */
@@ -2091,7 +2379,7 @@ public class ClientMsgHandler extends MsgHandler{
 		MqttsDisconnect mqttsDisconnect = new MqttsDisconnect();
 
 		//send the Mqtts DISCONNECT message to the client	
-		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler ["+Utils.hexString(this.clientAddress.getAddress())+"]/["+clientId+"] - Sending Mqtts DISCONNECT message to the client.");
+		GatewayLogger.log(GatewayLogger.INFO, "ClientMsgHandler [{}]/[{}] - Sending Mqtts DISCONNECT message to the client.", this.clientAddress.getAddress(), clientId);
 		clientInterface.sendMsg(this.clientAddress, mqttsDisconnect);
 
 		//set the state of the client to "Disconnected"
@@ -2128,6 +2416,19 @@ public class ClientMsgHandler extends MsgHandler{
 	}
 
 
+	/**
+	 * This method sends a Mqtts PUBLISH message (that corresponds to a Mqtt PUBLISH message
+	 * of the broker) to the client.If the message has QoS 2, a new QoS 2 exchange is started.
+	 * 
+	 * @param publish The Mqtts PUBLISH message.
+	 */
+	private void sendPublishToClient(MqttsPublish publish){
+		clientInterface.sendMsg(this.clientAddress, publish);
+		if(publish.getQos() == 2 && !brokerQos2Exchanges.containsKey(Integer.valueOf(publish.getMsgId())))
+			brokerQos2Exchanges.put(Integer.valueOf(publish.getMsgId()), new Qos2Exchange());
+	}
+
+
 	/**
 	 * The class that represents the state of the client at any given time.
 	 *
@@ -2184,12 +2485,10 @@ public class ClientMsgHandler extends MsgHandler{
 		//waiting message from the broker
 		private boolean waitingSuback;
 		private boolean waitingUnsuback;
-		private boolean waitingPuback;
 
 		//counters
 		private int triesSendingWillTopicReq;
 		private int triesSendingWillMsgReq;
-		private int triesSendingRegister;
 
 		public GatewayState(){
 			this.waitingWillTopic = false;
@@ -2198,11 +2497,9 @@ public class ClientMsgHandler extends MsgHandler{
 
 			this.waitingSuback = false;
 			this.waitingUnsuback = false;
-			this.waitingPuback = false;
 
 			this.triesSendingWillTopicReq = 0;
 			this.triesSendingWillMsgReq = 0;
-			this.triesSendingRegister = 0;
 		}
 
 
@@ -2213,21 +2510,21 @@ public class ClientMsgHandler extends MsgHandler{
 
 			this.waitingSuback = false;
 			this.waitingUnsuback = false;
-			this.waitingPuback = false;
 
 
 			this.triesSendingWillTopicReq = 0;
 			this.triesSendingWillMsgReq = 0;
-			this.triesSendingRegister = 0;
 
 			//delete also all stored messages (if any)  
 			mqttsConnect = null;
 			mqttsWillTopic = null;	
 			mqttsSubscribe = null;
 			mqttsUnsubscribe = null;
-			mqttsRegister = null;
-			mqttsPublish = null;
-			mqttPublish = null;
+			inflightPublishes.clear();
+			clientQos2Exchanges.clear();
+			brokerQos2Exchanges.clear();
+			pendingRegisters.clear();
+			pendingTopics.clear();
 		}
 
 
@@ -2301,20 +2598,6 @@ public class ClientMsgHandler extends MsgHandler{
 		}
 
 
-		public boolean isWaitingPuback() {
-			return this.waitingPuback;
-		}
-
-		public void setWaitingPuback() {
-			this.waitingPuback = true;
-		}
-
-		public void resetWaitingPuback() {
-			this.waitingPuback = false;
-		}
-
-
-
 		public int getTriesSendingWillTopicReq() {
 			return this.triesSendingWillTopicReq;
 		}
@@ -2340,19 +2623,83 @@ public class ClientMsgHandler extends MsgHandler{
 		public void resetTriesSendingWillMsgReq() {
 			this.triesSendingWillMsgReq = 0;
 		}
+	}
+
+	/**
+	 * The class that represents the state of a QoS 2 exchange (PUBLISH, PUBREC, PUBREL, PUBCOMP).
+	 * The same states are used for both directions: the sender of the PUBLISH message
+	 * waits for PUBREC, the gateway then waits for PUBREL and finally for PUBCOMP.
+	 *
+	 */
+	private static class Qos2Exchange {
+
+		private static final int WAITING_PUBREC  = 1;
+		private static final int WAITING_PUBREL  = 2;
+		private static final int WAITING_PUBCOMP = 3;
+
+		private int state;
+
+		public Qos2Exchange() {
+			this.state = WAITING_PUBREC;
+		}
 
+		public int getState() {
+			return this.state;
+		}
 
+		public void setState(int state) {
+			this.state = state;
+		}
+	}
 
-		public int getTriesSendingRegister() {
-			return this.triesSendingRegister;
+	/**
+	 * The class that represents a registration procedure initiated by the gateway: the Mqtts REGISTER
+	 * message sent to the client and the Mqtt PUBLISH messages with its topic name that wait
+	 * for the Mqtts REGACK message (at most GWParameters.getMaxQueuedPublishes()).
+	 *
+	 */
+	private static class PendingRegister {
+
+		private MqttsRegister register;
+		private Vector<MqttPublish> publishes;
+
+		//the tries of sending the Mqtts REGISTER message and the time of the last one
+		private int tries;
+		private long sentTime;
+
+		public PendingRegister(MqttsRegister register) {
+			this.register = register;
+			this.publishes = new Vector<MqttPublish>();
+			this.tries = 0;
+			this.sentTime = 0;
 		}
 
-		public void increaseTriesSendingRegister() {
-			this.triesSendingRegister ++;
-		}	
+		public MqttsRegister getRegister() {
+			return this.register;
+		}
+
+		public Vector<MqttPublish> getPublishes() {
+			return this.publishes;
+		}
+
+		public boolean containsPublish(int msgId) {
+			for (int i = 0; i < publishes.size(); i++)
+				if (publishes.get(i).getMsgId() == msgId)
+					return true;
+			return false;
+		}
+
+		public int getTries() {
+			return this.tries;
+		}
+
+		public void increaseTries() {
+			this.tries ++;
+			this.sentTime = System.currentTimeMillis();
+		}
 
-		public void resetTriesSendingRegister() {
-			this.triesSendingRegister = 0;
+		public long getSentTime() {
+			return this.sentTime;
 		}
 	}
 
@@ -2367,14 +2714,12 @@ public class ClientMsgHandler extends MsgHandler{
 		System.out.println("gateway.triesSendingWillTopicReq = "+gateway.getTriesSendingWillTopicReq());
 		System.out.println("gateway.triesSendingWillMsgReq = "+gateway.getTriesSendingWillMsgReq());
 		System.out.println("gateway.waitingRegack = "+gateway.isWaitingRegack());
-		System.out.println("gateway.triesSendingRegister = "+gateway.getTriesSendingRegister());
 		System.out.println("gateway.waitingSuback = "+gateway.isWaitingSuback());
 		System.out.println("gateway.waitingUnsuback = "+gateway.isWaitingUnsuback());
 
 		System.out.println("handler.mqttsConnect = "+mqttsConnect);
 		System.out.println("handler.mqttsWillTopic = "+mqttsWillTopic);
-		System.out.println("handler.mqttsRegister = "+mqttsRegister);
-		System.out.println("handler.mqttPublish = "+mqttPublish);
+		System.out.println("handler.pendingRegisters = "+pendingRegisters.size());
 		System.out.println("handler.mqttsSubscribe = "+mqttsSubscribe);
 		System.out.println("handler.mqttsUnsubscribe  = "+mqttsUnsubscribe );
 	}*/
@@ -10,18 +10,21 @@
 
 package com.ibm.zurich.mqttsgw.core;
 
-import java.util.Enumeration;
-import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 //import com.ibm.zurich.mqttsgw.Gateway;
 import com.ibm.zurich.mqttsgw.messages.Message;
 import com.ibm.zurich.mqttsgw.messages.control.ControlMessage;
 import com.ibm.zurich.mqttsgw.messages.mqtt.MqttMessage;
+import com.ibm.zurich.mqttsgw.messages.mqtt.MqttPublish;
 import com.ibm.zurich.mqttsgw.messages.mqtts.MqttsMessage;
+import com.ibm.zurich.mqttsgw.messages.mqtts.MqttsPublish;
 import com.ibm.zurich.mqttsgw.utils.Address;
 import com.ibm.zurich.mqttsgw.utils.ClientAddress;
-//import com.ibm.zurich.mqttsgw.utils.GWParameters;
+import com.ibm.zurich.mqttsgw.utils.GWParameters;
 import com.ibm.zurich.mqttsgw.utils.GatewayLogger;
 import com.ibm.zurich.mqttsgw.utils.MsgQueue;
 
@@ -29,27 +32,70 @@ import com.ibm.zurich.mqttsgw.utils.MsgQueue;
  * This object dispatches messages to the appropriate MsgHandler according to the
  * client address they carry.
  * 
+ * Messages are distributed over a number of lanes (see {@link GWParameters#getDispatcherLanes()}).
+ * Each lane has its own queue and thread. The lane of a message is selected by hashing 
+ * the address it carries, so all messages of the same client are handled by the same lane 
+ * and in the order they were received, while different clients are handled in parallel.
+ * 
+ * The queues are bounded (see {@link GWParameters#getDispatcherQueueSize()}).When a queue
+ * fills up, the Mqtts and Mqtt PUBLISH messages with QoS -1 or 0 are dropped first (from half
+ * of its capacity), then the Mqtts CONNECT messages (from three quarters of its capacity) and
+ * then the other messages of the clients (at its capacity).The acknowledgments, the other
+ * messages of the broker and the control messages are never dropped: a thread that reads
+ * from a single broker connection and finds the queue full waits until the queue has drained
+ * below half of its capacity, so the gateway stops reading from the broker (and the broker from
+ * sending) while the clients cannot keep up.A thread that serves many broker connections is
+ * never blocked (see {@link #offerMessage(Message, Runnable)}): it stops reading only from the
+ * connection whose messages filled the queue, or drops the Mqtt PUBLISH messages of a connection
+ * that cannot be paused.
  *
  */
-public class Dispatcher implements Runnable{
+public class Dispatcher {
 
 	private static Dispatcher instance = null;
 
-	private MsgQueue dataQueue; 
-	private Hashtable<Address, MsgHandler> handlerTable;
+	//the maximum number of messages that a lane reads from its queue at once
+	private static final int BATCH_SIZE = 32;
+
+	private Lane[] lanes; 
 	private volatile boolean running;
-	private Thread readingThread;
+
+	//number of lanes that have not yet finished the shut down of their handlers
+	private int lanesShuttingDown;
+
+	//the capacity of the queue of every lane (0 means unbounded)
+	private int capacity;
+
+	//the number of messages that were dropped because a queue was full, per overload policy
+	private final AtomicLong droppedPublish = new AtomicLong();
+	private final AtomicLong droppedConnect = new AtomicLong();
+	private final AtomicLong droppedOther = new AtomicLong();
+
+	//the number of Mqtt PUBLISH messages of shared broker connections that were dropped
+	private final AtomicLong droppedShared = new AtomicLong();
+
+	//the number of times the reading from a broker connection was paused because of a full queue
+	private final AtomicLong brokerPauses = new AtomicLong();
 
 
 	/**
 	 * Initialization method.
 	 */
 	public void initialize(){
-		dataQueue = new MsgQueue();
-		handlerTable = new Hashtable<Address, MsgHandler>();				
 		this.running = true;
-		this.readingThread = new Thread(this,"Dispatcher");
-		this.readingThread.start();
+		this.capacity = GWParameters.getDispatcherQueueSize();
+
+		int laneCount = GWParameters.getDispatcherLanes();
+		if(laneCount < 1)
+			laneCount = 1;
+		lanes = new Lane[laneCount];
+		for(int i = 0; i < laneCount; i++){
+			//keep the original thread name if there is only one lane
+			String name = (laneCount == 1) ? "Dispatcher" : "Dispatcher-"+i;
+			lanes[i] = new Lane(i, name);
+		}
+		for(int i = 0; i < laneCount; i++)
+			lanes[i].start();
 	}
 
 
@@ -68,19 +114,13 @@ public class Dispatcher implements Runnable{
 
 
 	/**
-	 * The method that reads a message {@link com.ibm.zurich.mqttsgw.messages.Message} from 
-	 * the queue and dispatches it according to its type (Mqtts, Mqtt or Control message).
+	 * The method that dispatches a message {@link com.ibm.zurich.mqttsgw.messages.Message} read 
+	 * from the queue of a lane according to its type (Mqtts, Mqtt or Control message).
+	 * 
+	 * @param lane The lane whose queue was read
+	 * @param msg The message
 	 */
-	private void dispatch() {
-		//read the next available Message from queue
-
-		Message msg = null;
-		try {
-			msg = (Message)dataQueue.get();
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-		}
-
+	private void dispatch(Lane lane, Message msg) {
 		//get the type of the message that "internal" message carries
 		int type = msg.getType();
 		switch(type){		
@@ -93,7 +133,7 @@ public class Dispatcher implements Runnable{
 			break;
 
 		case Message.CONTROL_MSG:
-			dispatchControl(msg);
+			dispatchControl(lane, msg);
 			break;
 
 		default:
@@ -191,9 +231,10 @@ public class Dispatcher implements Runnable{
 	 * The method that handles a Control message.According to its address is dispatched
 	 * to the appropriate MsgHandler.
 	 * 
+	 * @param lane The lane that handles the message
 	 * @param msg
 	 */
-	private void dispatchControl(Message msg) {
+	private void dispatchControl(Lane lane, Message msg) {
 		//		GatewayLogger.log(GatewayLogger.INFO, "Dispatcher - New Control message arrived at queue.");
 
 		//get the address of the client from this message
@@ -212,7 +253,7 @@ public class Dispatcher implements Runnable{
 		if(address == null){
 			//this message applies to all message handlers
 			//			GatewayLogger.log(GatewayLogger.INFO, "Dispatcher - The received Control message is addressed to all handlers.");
-			deliverMessageToAll(controlMsg);
+			deliverMessageToAll(lane, controlMsg);
 			return;
 		}
 
@@ -235,97 +276,412 @@ public class Dispatcher implements Runnable{
 
 
 	/**
-	 * This method delivers a message to all MsgHandlers.
+	 * This method delivers a message to all MsgHandlers that belong to the given lane.
+	 * A message addressed to all handlers is put in the queue of every lane (see 
+	 * {@link #putMessage(Message)}), so each lane delivers it only to its own handlers.
+	 * 
+	 * @param lane The lane that handles the message
+	 * @param msg The control message
 	 */
-	private void deliverMessageToAll(ControlMessage msg) {
-		Enumeration<MsgHandler> values;
-		MsgHandler handler;
-
-		if(msg.getMsgType() == ControlMessage.SHUT_DOWN){			
+	private void deliverMessageToAll(Lane lane, ControlMessage msg) {
+		if(msg.getMsgType() == ControlMessage.SHUT_DOWN && lane.index == 0){			
 			GatewayLogger.info("-------- Mqtts Gateway shutting down --------");
 		}
-		for(values = handlerTable.elements(); values.hasMoreElements();){
-			handler = (MsgHandler)values.nextElement();
-			handler.handleControlMessage(msg);
-		}
+
+		//the iterator of the table tolerates handlers that remove themselves
+		//while the message is delivered
+		Iterator<HandlerEntry> iter = lane.handlers.values().iterator();
+		while (iter.hasNext())
+			iter.next().handler.handleControlMessage(msg);
 
 		if(msg.getMsgType() == ControlMessage.SHUT_DOWN){
-			GatewayLogger.info("-------- Mqtts Gateway stopped --------");
-			System.exit(0);
+			//the last lane that finishes stops the gateway
+			boolean last;
+			synchronized (this) {
+				lanesShuttingDown--;
+				last = (lanesShuttingDown == 0);
+			}
+			if(last){
+				running = false;
+				GatewayLogger.info("-------- Mqtts Gateway stopped --------");
+				System.exit(0);
+			}
 		}
 	}
 
 
 	/**
-	 * The method that puts a new created MsgHandler to the mapping table.
+	 * The method that puts a new created MsgHandler to the mapping table of the lane
+	 * that handles its address.
 	 * 
 	 * @param addr The address of the handler
 	 * @param handler The new created handler object
 	 */
 	public void putHandler(Address addr, MsgHandler handler) {
-		this.handlerTable.put(addr, handler);		
+		laneOf(addr).handlers.put(addr, new HandlerEntry(addr, handler));
 	}
 
 
 	/**
 	 * 
 	 * The method that gets a MsgHandler from the mapping table according to its address.
+	 * The lookup is done in constant time by hashing the address bytes. The IP address and 
+	 * port of the stored address are refreshed with the ones of the given address.
 	 * 
 	 * @param addr The address of the handler
 	 * @return The handler object
 	 */
 	private MsgHandler getHandler(Address addr) {
-		MsgHandler ret = null;
-		Iterator<Address> iter = handlerTable.keySet().iterator();
-		while (iter.hasNext()) {
-			Address currentAddress = (Address)(iter.next());
-			if(currentAddress.equal(addr) && addr.equal(currentAddress)) {
-				currentAddress.setIPaddress(addr);
-				ret = (MsgHandler)handlerTable.get(currentAddress);
-				break;
-			}
-		}
-		return ret;
+		HandlerEntry entry = laneOf(addr).handlers.get(addr);
+		if(entry == null)
+			return null;
+		entry.address.setIPaddress(addr);
+		return entry.handler;
 	}	
 
 
 	/**
-	 * The method that removes an MsgHandler from the mapping table.
+	 * The method that checks whether a MsgHandler exists for an address.It can be called 
+	 * from any thread.
+	 * 
+	 * @param addr The address of the handler
+	 * @return True if the mapping table contains a handler for this address
+	 */
+	public boolean hasHandler(Address addr) {
+		return laneOf(addr).handlers.containsKey(addr);
+	}
+
+
+	/**
+	 * The method that removes an MsgHandler from the mapping table of its lane.
 	 * 
 	 * @param addr The address of the handler
 	 */
 	public void removeHandler(Address address) {
-		Iterator<Address> iter  =  handlerTable.keySet().iterator();
-		while (iter.hasNext()) {	
-			Address currentAddress = (Address)(iter.next());
-			if(currentAddress.equal(address)){
-				iter.remove();
-				break;
-			}
-		}		
+		laneOf(address).handlers.remove(address);
 	}	
 
 
+	/**
+	 * The method that selects the lane of an address. The lane depends only on the 
+	 * address bytes (the wireless node id of a client or the id of the gateway), so 
+	 * all messages of a client are handled by the same lane.
+	 * 
+	 * @param addr The address of the handler
+	 * @return The lane that handles the messages of this address
+	 */
+	private Lane laneOf(Address addr) {
+		if(lanes.length == 1)
+			return lanes[0];
+		int hash = addr.hashCode();
+		//spread the bits of the hash before selecting the lane
+		hash ^= (hash >>> 16);
+		return lanes[(hash & 0x7fffffff) % lanes.length];
+	}
+
+
 	/**
 	 * The method that puts a message {@link com.ibm.zurich.mqttsgw.messages.Message}
-	 * to the queue.
+	 * to the queue of the appropriate lane.A control message that is addressed to all
+	 * handlers is put to the queue of every lane.
 	 * 
 	 * @param msg
 	 */
 	public void putMessage(Message msg) {
-		if(msg.getType() == Message.CONTROL_MSG)
-			dataQueue.addFirst(msg);
-		else
-			dataQueue.addLast(msg);
+		if(msg.getType() == Message.CONTROL_MSG){
+			if(msg.getAddress() == null){
+				if(msg.getControlMessage() != null 
+						&& msg.getControlMessage().getMsgType() == ControlMessage.SHUT_DOWN){
+					synchronized (this) {
+						lanesShuttingDown = lanes.length;
+					}
+				}
+				for(int i = 0; i < lanes.length; i++)
+					lanes[i].queue.addFirst(msg);
+			}else
+				laneOf(msg.getAddress()).queue.addFirst(msg);
+		}else{
+			Lane lane = laneOf(msg.getAddress());
+			if(isAdmitted(lane, msg)){
+				if(msg.getType() == Message.MQTT_MSG)
+					awaitCapacity(lane);
+				lane.queue.addLast(msg);
+			}
+		}
+	}
+
+
+	/**
+	 * The method that puts a Mqtt message that was read from a broker connection to the queue
+	 * of the appropriate lane without blocking the calling thread.It is used by the threads that
+	 * serve many broker connections (the event loops of the NIO broker interface and the reading
+	 * threads of the pooled connections), which must keep serving the clients of the other lanes.
+	 * If the queue is full, the message is queued anyway and the given object is run as soon as
+	 * the queue has drained below half of its capacity; the caller has to stop reading from its
+	 * connection until then.Without such an object (a connection that is shared by many clients),
+	 * the Mqtt PUBLISH messages are dropped while the queue is full.
+	 * 
+	 * @param msg The message
+	 * @param resume The object that resumes the reading from the connection (or null)
+	 * @return False if the caller has to stop reading until <code>resume</code> is run
+	 */
+	public boolean offerMessage(Message msg, Runnable resume) {
+		Lane lane = laneOf(msg.getAddress());
+		if(!isAdmitted(lane, msg))
+			return true;
+		if(capacity <= 0 || lane.queue.size() < capacity){
+			lane.queue.addLast(msg);
+			return true;
+		}
+
+		if(resume == null){
+			MqttMessage mqttMsg = msg.getMqttMessage();
+			if(mqttMsg != null && mqttMsg.getMsgType() == MqttMessage.PUBLISH){
+				droppedShared.incrementAndGet();
+				return true;
+			}
+			lane.queue.addLast(msg);
+			return true;
+		}
+
+		lane.queue.addLast(msg);
+		brokerPauses.incrementAndGet();
+		lane.paused.add(resume);
+		//the lane may have drained the queue before the object was added
+		lane.wakeUpWaiting();
+		return false;
+	}
+
+
+	/**
+	 * This method blocks the calling thread (a thread that reads from a broker connection)
+	 * while the queue of the given lane is full, until the queue has drained below half of
+	 * its capacity.The threads of the lanes are never blocked, since they drain the queues.
+	 * 
+	 * @param lane The lane of the message
+	 */
+	private void awaitCapacity(Lane lane) {
+		if(capacity <= 0 || lane.queue.size() < capacity)
+			return;
+		Thread current = Thread.currentThread();
+		for(int i = 0; i < lanes.length; i++){
+			if(lanes[i].readingThread == current)
+				return;
+		}
+
+		brokerPauses.incrementAndGet();
+		synchronized (lane.drained) {
+			lane.waiting++;
+			try {
+				while(running && lane.queue.size() >= capacity / 2){
+					try {
+						lane.drained.wait(100);
+					} catch (InterruptedException e) {
+						current.interrupt();
+						return;
+					}
+				}
+			} finally {
+				lane.waiting--;
+			}
+		}
+	}
+
+
+	/**
+	 * This method applies the overload policies to a message that is put to the queue of a lane.
+	 * 
+	 * @param lane The lane of the message
+	 * @param msg The message
+	 * @return True if the message can be put to the queue, false if it is dropped.
+	 */
+	private boolean isAdmitted(Lane lane, Message msg) {
+		if(capacity <= 0)
+			return true;
+		int size = lane.queue.size();
+		if(size < capacity / 2)
+			return true;
+
+		switch(msg.getType()){
+		case Message.MQTTS_MSG:
+			MqttsMessage mqttsMsg = msg.getMqttsMessage();
+			if(mqttsMsg == null)
+				return true;
+			switch(mqttsMsg.getMsgType()){
+			case MqttsMessage.PUBLISH:
+				if(((MqttsPublish) mqttsMsg).getQos() <= 0){
+					droppedPublish.incrementAndGet();
+					return false;
+				}
+				break;
+
+			case MqttsMessage.CONNECT:
+				if(size >= capacity - capacity / 4){
+					droppedConnect.incrementAndGet();
+					return false;
+				}
+				return true;
+
+			case MqttsMessage.PUBACK:
+			case MqttsMessage.PUBREC:
+			case MqttsMessage.PUBREL:
+			case MqttsMessage.PUBCOMP:
+			case MqttsMessage.REGACK:
+			case MqttsMessage.DISCONNECT:
+				return true;
+			}
+			//the client retransmits the other messages
+			if(size >= capacity){
+				droppedOther.incrementAndGet();
+				return false;
+			}
+			return true;
+
+		case Message.MQTT_MSG:
+			MqttMessage mqttMsg = msg.getMqttMessage();
+			if(mqttMsg != null && mqttMsg.getMsgType() == MqttMessage.PUBLISH 
+					&& ((MqttPublish) mqttMsg).getQos() == 0){
+				droppedPublish.incrementAndGet();
+				return false;
+			}
+			return true;
+
+		default:
+			return true;
+		}
+	}
+
+
+	/**
+	 * @return The number of Mqtts and Mqtt PUBLISH messages with QoS -1 or 0 that were dropped.
+	 */
+	public long getDroppedPublish() {
+		return droppedPublish.get();
+	}
+
+	/**
+	 * @return The number of Mqtts CONNECT messages that were dropped.
+	 */
+	public long getDroppedConnect() {
+		return droppedConnect.get();
+	}
+
+	/**
+	 * @return The number of the other messages of the clients that were dropped.
+	 */
+	public long getDroppedOther() {
+		return droppedOther.get();
 	}
 
+	/**
+	 * @return The number of the Mqtt PUBLISH messages of shared broker connections that were dropped.
+	 */
+	public long getDroppedShared() {
+		return droppedShared.get();
+	}
 
-	/* (non-Javadoc)
-	 * @see java.lang.Runnable#run()
+	/**
+	 * @return The number of times the reading from a broker connection was paused because of a full queue.
 	 */
-	public void run() {
-		while(running){
-			dispatch();
-		}		
+	public long getBrokerPauses() {
+		return brokerPauses.get();
+	}
+
+
+	/**
+	 * This class represents an entry of the mapping table.It keeps the address with which
+	 * the handler was inserted, so that its IP address and port can be refreshed.
+	 */
+	private static class HandlerEntry {
+
+		private final Address address;
+		private final MsgHandler handler;
+
+		public HandlerEntry(Address address, MsgHandler handler) {
+			this.address = address;
+			this.handler = handler;
+		}
+	}
+
+
+	/**
+	 * This class represents a lane of the Dispatcher, that is a queue and the 
+	 * thread that reads messages from it.
+	 */
+	private class Lane implements Runnable {
+
+		private final int index;
+		private final MsgQueue queue;
+		private final Thread readingThread;
+
+		//the handlers of the addresses that belong to this lane (the mapping table is split
+		//over the lanes, so that a message addressed to all handlers is delivered by every lane
+		//without walking through the handlers of the others)
+		private final ConcurrentHashMap<Address, HandlerEntry> handlers = 
+			new ConcurrentHashMap<Address, HandlerEntry>();
+
+		//the threads that read from broker connections wait on this object while the queue
+		//is full (see awaitCapacity()); the number of them is changed only while holding this object
+		private final Object drained = new Object();
+		private volatile int waiting = 0;
+
+		//the objects that resume the reading from the broker connections that were paused
+		//while the queue was full (see offerMessage())
+		private final ConcurrentLinkedQueue<Runnable> paused = new ConcurrentLinkedQueue<Runnable>();
+
+		public Lane(int index, String name) {
+			this.index = index;
+			this.queue = new MsgQueue(GWParameters.getDispatcherSpins());
+			this.readingThread = new Thread(this, name);
+		}
+
+		public void start() {
+			this.readingThread.start();
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.Runnable#run()
+		 */
+		public void run() {
+			Object[] batch = new Object[BATCH_SIZE];
+			while(running){
+				//read the next available messages from the queue
+				int count;
+				try {
+					count = queue.get(batch);
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+					continue;
+				}
+				for(int i = 0; i < count; i++){
+					Message msg = (Message) batch[i];
+					batch[i] = null;
+					//a message that cannot be handled must not stop the lane and its other clients
+					try {
+						dispatch(this, msg);
+					} catch (RuntimeException e) {
+						GatewayLogger.log(GatewayLogger.ERROR, "Dispatcher - Failed handling a message of type \"{}\" in lane {}: {}", msg.getType(), index, e);
+					}
+				}
+				wakeUpWaiting();
+			}
+		}
+
+		/**
+		 * This method wakes up the threads that wait for the queue to drain below half
+		 * of its capacity and resumes the paused broker connections (if any).
+		 */
+		private void wakeUpWaiting() {
+			if((waiting == 0 && paused.isEmpty()) || queue.size() >= capacity / 2)
+				return;
+			Runnable resume;
+			while((resume = paused.poll()) != null)
+				resume.run();
+			if(waiting == 0)
+				return;
+			synchronized (drained) {
+				drained.notifyAll();
+			}
+		}
 	}
 }
@@ -13,6 +13,7 @@ package com.ibm.zurich.mqttsgw.core;
 import java.util.StringTokenizer;
 import java.util.Vector;
 
+import com.ibm.zurich.mqttsgw.broker.aggregating.BrokerConnectionPool;
 import com.ibm.zurich.mqttsgw.broker.tcp.TCPBrokerInterface;
 import com.ibm.zurich.mqttsgw.client.ClientInterface;
 import com.ibm.zurich.mqttsgw.exceptions.MqttsException;
@@ -40,6 +41,7 @@ import com.ibm.zurich.mqttsgw.timer.TimerService;
 import com.ibm.zurich.mqttsgw.utils.GWParameters;
 import com.ibm.zurich.mqttsgw.utils.GatewayAddress;
 import com.ibm.zurich.mqttsgw.utils.GatewayLogger;
+import com.ibm.zurich.mqttsgw.utils.TopicRegistry;
 import com.ibm.zurich.mqttsgw.utils.Utils;
 
 public class GatewayMsgHandler extends MsgHandler{
@@ -50,12 +52,36 @@ public class GatewayMsgHandler extends MsgHandler{
 	private Dispatcher dispatcher;
 	private long advPeriodCounter = 0;
 	private long checkingCounter = 0;
+	private long brokerKeepAliveCounter = 0;
 	private TopicMappingTable topicIdMappingTable;
 	private String clientId;
 
 	private boolean connected;
 	private Vector<ClientInterface> clientInterfacesVector;
 
+	//the reply to the Mqtts SEARCHGW messages (it never changes, so it is constructed once)
+	private MqttsGWInfo gwInfo;
+
+	//the time (in milliseconds) of the last Mqtts GWINFO broadcast per radius
+	private long[] lastGwInfo = new long[256];
+
+	//the radiuses of the Mqtts SEARCHGW messages that were suppressed in the current interval
+	private boolean[] pendingGwInfo = new boolean[256];
+	private boolean searchGwTimer = false;
+
+	//the number of received Mqtts SEARCHGW messages, of Mqtts GWINFO broadcasts and
+	//of suppressed Mqtts SEARCHGW messages (only written by the thread of this handler)
+	private volatile long searchGwReceived = 0;
+	private volatile long gwInfoBroadcasts = 0;
+	private volatile long searchGwSuppressed = 0;
+	private long searchGwSuppressedLogged = 0;
+
+	//the number of messages that the Dispatcher had dropped at the last report
+	private long droppedLogged = 0;
+
+	//the number of times the Dispatcher had paused the reading from the broker at the last report
+	private long brokerPausesLogged = 0;
+
 
 	/**
 	 * 
@@ -211,7 +237,7 @@ public class GatewayMsgHandler extends MsgHandler{
 			break;
 
 		default:
-			GatewayLogger.log(GatewayLogger.WARN, "GatewayMsgHandler ["+Utils.hexString(GWParameters.getGatewayAddress().getAddress())+"]/["+clientId+"] - Mqtts message of unknown type \"" + receivedMsg.getMsgType()+"\" received.");
+			GatewayLogger.log(GatewayLogger.WARN, "GatewayMsgHandler [{}]/[{}] - Mqtts message of unknown type \"{}\" received.", GWParameters.getGatewayAddress().getAddress(), clientId, receivedMsg.getMsgType());
 			break;
 		}
 	}
@@ -222,7 +248,7 @@ public class GatewayMsgHandler extends MsgHandler{
 	 */
 	private void handleMqttsAdvertise(MqttsAdvertise receivedMsg) {
 		// TODO implement this method for load balancing issues
-		GatewayLogger.log(GatewayLogger.INFO, "GatewayMsgHandler ["+Utils.hexString(GWParameters.getGatewayAddress().getAddress())+"]/["+clientId+"] - Mqtts ADVERTISE message received.");
+		GatewayLogger.log(GatewayLogger.INFO, "GatewayMsgHandler [{}]/[{}] - Mqtts ADVERTISE message received.", GWParameters.getGatewayAddress().getAddress(), clientId);
 	}
 
 	/**
@@ -231,12 +257,42 @@ public class GatewayMsgHandler extends MsgHandler{
 	private void handleMqttsSearchGW(MqttsSearchGW receivedMsg) {		
 		//		GatewayLogger.log(GatewayLogger.INFO, "GatewayMsgHandler ["+Utils.hexString(GWParameters.getGatewayAddress().getAddress())+"]/["+clientId+"] - Mqtts SEARCHGW message with \"Radius\" = \""+receivedMsg.getRadius()+"\" received.");
 
-		//construct a Mqtts GWINFO message for the reply to the received Mqtts SEARCHGW message
-		MqttsGWInfo msg = new MqttsGWInfo();
-		msg.setGwId(GWParameters.getGwId());
+		searchGwReceived++;
 
 		//get the broadcast radius 
-		byte radius = (byte)receivedMsg.getRadius();
+		int radius = receivedMsg.getRadius() & 0xFF;
+
+		//if a Mqtts GWINFO was broadcast with this radius within the interval, this message is
+		//answered (if needed) by a single broadcast at the end of the interval
+		int interval = GWParameters.getSearchGwInterval();
+		if (interval > 0 && System.currentTimeMillis() - lastGwInfo[radius] < interval * 1000L) {
+			searchGwSuppressed++;
+			pendingGwInfo[radius] = true;
+			if (!searchGwTimer) {
+				timer.register(gatewayAddress, ControlMessage.SEARCHGW_INTERVAL, interval);
+				searchGwTimer = true;
+			}
+			return;
+		}
+
+		broadcastGwInfo(radius);
+	}
+
+	/**
+	 * This method broadcasts a Mqtts GWINFO message to the network.
+	 * 
+	 * @param radius The broadcast radius.
+	 */
+	private void broadcastGwInfo(int radius) {
+		//construct a Mqtts GWINFO message for the reply to the received Mqtts SEARCHGW messages
+		if (gwInfo == null) {
+			gwInfo = new MqttsGWInfo();
+			gwInfo.setGwId(GWParameters.getGwId());
+		}
+		MqttsGWInfo msg = gwInfo;
+		lastGwInfo[radius] = System.currentTimeMillis();
+		pendingGwInfo[radius] = false;
+		gwInfoBroadcasts++;
 
 		//broadcast the Mqtts GWINFO message to the network
 		//		GatewayLogger.log(GatewayLogger.INFO, "GatewayMsgHandler ["+Utils.hexString(this.gatewayAddress.getAddress())+"]/["+clientId+"] - Broadcasting Mqtts GWINFO message to the network with broadcast radius \""+radius+"\".");
@@ -252,7 +308,7 @@ public class GatewayMsgHandler extends MsgHandler{
 	 * @param receivedMsg
 	 */
 	private void handleMqttsGWInfo(MqttsGWInfo receivedMsg) {
-		GatewayLogger.log(GatewayLogger.INFO, "GatewayMsgHandler ["+Utils.hexString(GWParameters.getGatewayAddress().getAddress())+"]/["+clientId+"] - Mqtts GWINFO message received.");
+		GatewayLogger.log(GatewayLogger.INFO, "GatewayMsgHandler [{}]/[{}] - Mqtts GWINFO message received.", GWParameters.getGatewayAddress().getAddress(), clientId);
 
 		// TODO implement this method for load balancing issues
 
@@ -264,11 +320,11 @@ public class GatewayMsgHandler extends MsgHandler{
 	 */
 	private void handleMqttsPublish(MqttsPublish receivedMsg) {
 		if(receivedMsg.getTopicIdType() == MqttsMessage.NORMAL_TOPIC_ID)
-			GatewayLogger.log(GatewayLogger.INFO, "GatewayMsgHandler ["+Utils.hexString(this.gatewayAddress.getAddress())+"]/["+clientId+"] - Mqtts PUBLISH message with \"QoS\" = \""+receivedMsg.getQos()+"\" and \"TopicId\" = \""+receivedMsg.getTopicId()+"\" received.");
+			GatewayLogger.log(GatewayLogger.INFO, "GatewayMsgHandler [{}]/[{}] - Mqtts PUBLISH message with \"QoS\" = \"{}\" and \"TopicId\" = \"{}\" received.", this.gatewayAddress.getAddress(), clientId, receivedMsg.getQos(), receivedMsg.getTopicId());
 		else if (receivedMsg.getTopicIdType() == MqttsMessage.PREDIFINED_TOPIC_ID)
-			GatewayLogger.log(GatewayLogger.INFO, "GatewayMsgHandler ["+Utils.hexString(this.gatewayAddress.getAddress())+"]/["+clientId+"] - Mqtts PUBLISH message with \"QoS\" = \""+receivedMsg.getQos()+"\" and \"TopicId\" = \""+receivedMsg.getTopicId()+"\" (predefined topic Id) received.");
+			GatewayLogger.log(GatewayLogger.INFO, "GatewayMsgHandler [{}]/[{}] - Mqtts PUBLISH message with \"QoS\" = \"{}\" and \"TopicId\" = \"{}\" (predefined topic Id) received.", this.gatewayAddress.getAddress(), clientId, receivedMsg.getQos(), receivedMsg.getTopicId());
 		else
-			GatewayLogger.log(GatewayLogger.INFO, "GatewayMsgHandler ["+Utils.hexString(this.gatewayAddress.getAddress())+"]/["+clientId+"] - Mqtts PUBLISH message with \"QoS\" = \""+receivedMsg.getQos()+"\" and \"TopicId\" = \""+receivedMsg.getShortTopicName()+"\" (short topic name) received.");
+			GatewayLogger.log(GatewayLogger.INFO, "GatewayMsgHandler [{}]/[{}] - Mqtts PUBLISH message with \"QoS\" = \"{}\" and \"TopicId\" = \"{}\" (short topic name) received.", this.gatewayAddress.getAddress(), clientId, receivedMsg.getQos(), receivedMsg.getShortTopicName());
 
 		//construct a Mqtt PUBLISH message
 		MqttPublish publish = new MqttPublish();
@@ -278,7 +334,7 @@ public class GatewayMsgHandler extends MsgHandler{
 
 		//if the TopicIdType is a normal TopicId
 		case MqttsMessage.NORMAL_TOPIC_ID:
-			GatewayLogger.log(GatewayLogger.WARN, "GatewayMsgHandler ["+Utils.hexString(GWParameters.getGatewayAddress().getAddress())+"]/["+clientId+"] - Topic Id type "+ receivedMsg.getTopicIdType()+" is invalid. Publish with \"QoS\" = \"-1\" supports only predefined topis Ids (topic Id type = \"1\") or short topic names (topic Id type = \"2\").");
+			GatewayLogger.log(GatewayLogger.WARN, "GatewayMsgHandler [{}]/[{}] - Topic Id type {} is invalid. Publish with \"QoS\" = \"-1\" supports only predefined topis Ids (topic Id type = \"1\") or short topic names (topic Id type = \"2\").", GWParameters.getGatewayAddress().getAddress(), clientId, receivedMsg.getTopicIdType());
 			return;
 
 			//if the TopicIdType is a shortTopicName then simply copy it to the topicName field of the Mqtt PUBLISH message
@@ -289,23 +345,23 @@ public class GatewayMsgHandler extends MsgHandler{
 			//if the TopicIdType is a predifinedTopiId
 		case MqttsMessage.PREDIFINED_TOPIC_ID:
 			if(receivedMsg.getTopicId() > GWParameters.getPredfTopicIdSize()){
-				GatewayLogger.log(GatewayLogger.WARN, "GatewayMsgHandler ["+Utils.hexString(GWParameters.getGatewayAddress().getAddress())+"]/["+clientId+"] - Predefined topicId (\"" + receivedMsg.getTopicId() + "\") of the received Mqtts PUBLISH message is out of the range of predefined topic Ids [1,"+GWParameters.getPredfTopicIdSize()+"]. The message cannot be processed.");
+				GatewayLogger.log(GatewayLogger.WARN, "GatewayMsgHandler [{}]/[{}] - Predefined topicId (\"{}\") of the received Mqtts PUBLISH message is out of the range of predefined topic Ids [1,{}]. The message cannot be processed.", GWParameters.getGatewayAddress().getAddress(), clientId, receivedMsg.getTopicId(), GWParameters.getPredfTopicIdSize());
 				return;
 			}				
 
-			//get the predefined topic name that corresponds to the received predefined topicId
-			String topicName = topicIdMappingTable.getTopicName(receivedMsg.getTopicId());
+			//get the predefined topic (name) that corresponds to the received predefined topicId
+			TopicRegistry.Topic topic = topicIdMappingTable.getTopic(receivedMsg.getTopicId());
 
 			//this should not happen as predefined topic ids are already stored
-			if(topicName == null){
-				GatewayLogger.log(GatewayLogger.WARN, "GatewayMsgHandler ["+Utils.hexString(GWParameters.getGatewayAddress().getAddress())+"]/["+clientId+"] - Predefined topicId (\"" + receivedMsg.getTopicId() + "\") of the received Mqtts PUBLISH message does not exist. The message cannot be processed.");
+			if(topic == null){
+				GatewayLogger.log(GatewayLogger.WARN, "GatewayMsgHandler [{}]/[{}] - Predefined topicId (\"{}\") of the received Mqtts PUBLISH message does not exist. The message cannot be processed.", GWParameters.getGatewayAddress().getAddress(), clientId, receivedMsg.getTopicId());
 				return;
 			}
-			publish.setTopicName(topicName);
+			publish.setTopicName(topic.getName(), topic.getEncodedName());
 			break;
 
 		default:
-			GatewayLogger.log(GatewayLogger.WARN, "GatewayMsgHandler ["+Utils.hexString(GWParameters.getGatewayAddress().getAddress())+"]/["+clientId+"] - Unknown topicIdType (\"" + receivedMsg.getTopicIdType()+"\"). The received Mqtts PUBLISH message cannot be processed.");
+			GatewayLogger.log(GatewayLogger.WARN, "GatewayMsgHandler [{}]/[{}] - Unknown topicIdType (\"{}\"). The received Mqtts PUBLISH message cannot be processed.", GWParameters.getGatewayAddress().getAddress(), clientId, receivedMsg.getTopicIdType());
 			return;	
 		}
 
@@ -319,14 +375,14 @@ public class GatewayMsgHandler extends MsgHandler{
 		//there is no msg id in QoS = 0 publish messages
 
 		publish.setPayload(receivedMsg.getData());
-		GatewayLogger.log(GatewayLogger.INFO, "GatewayMsgHandler ["+Utils.hexString(this.gatewayAddress.getAddress())+"]/["+clientId+"] - Sending Mqtt PUBLISH message with \"QoS\" = \""+publish.getQos()+"\" and \"TopicName\" = \""+publish.getTopicName()+ "\" to the broker.");
+		GatewayLogger.log(GatewayLogger.INFO, "GatewayMsgHandler [{}]/[{}] - Sending Mqtt PUBLISH message with \"QoS\" = \"{}\" and \"TopicName\" = \"{}\" to the broker.", this.gatewayAddress.getAddress(), clientId, publish.getQos(), publish.getTopicName());
 
 		//send the Mqtt PUBLISH message to the broker
 		try {
 			brokerInterface.sendMsg(publish);
 		} catch (MqttsException e) {
 			e.printStackTrace();
-			GatewayLogger.log(GatewayLogger.ERROR, "GatewayMsgHandler ["+Utils.hexString(GWParameters.getGatewayAddress().getAddress())+"]/["+clientId+"] - Failed sending Mqtt PUBLISH message to the broker.");
+			GatewayLogger.log(GatewayLogger.ERROR, "GatewayMsgHandler [{}]/[{}] - Failed sending Mqtt PUBLISH message to the broker.", GWParameters.getGatewayAddress().getAddress(), clientId);
 			connectionLost();
 		}
 	}
@@ -399,7 +455,7 @@ public class GatewayMsgHandler extends MsgHandler{
 			break;
 
 		default:
-			GatewayLogger.log(GatewayLogger.WARN, "GatewayMsgHandler ["+Utils.hexString(GWParameters.getGatewayAddress().getAddress())+"]/["+clientId+"] - Mqtt message of unknown type \"" + receivedMsg.getMsgType()+"\" received.");
+			GatewayLogger.log(GatewayLogger.WARN, "GatewayMsgHandler [{}]/[{}] - Mqtt message of unknown type \"{}\" received.", GWParameters.getGatewayAddress().getAddress(), clientId, receivedMsg.getMsgType());
 			break;
 		}
 	}
@@ -408,18 +464,12 @@ public class GatewayMsgHandler extends MsgHandler{
 	 * @param receivedMsg
 	 */
 	private void handleMqttConnack(MqttConnack receivedMsg) {
-		GatewayLogger.log(GatewayLogger.INFO, "GatewayMsgHandler ["+
-				Utils.hexString(GWParameters.getGatewayAddress().getAddress())+
-				"]/["+clientId+"] - Mqtt CONNACK message received.");
+		GatewayLogger.log(GatewayLogger.INFO, "GatewayMsgHandler [{}]/[{}] - Mqtt CONNACK message received.", GWParameters.getGatewayAddress().getAddress(), clientId);
 
 		//if the return code of the Mqtt CONNACK message is not "Connection Accepted"
 		if (receivedMsg.getReturnCode() != MqttMessage.RETURN_CODE_CONNECTION_ACCEPTED){
-			GatewayLogger.log(GatewayLogger.ERROR, "GatewayMsgHandler ["+
-					Utils.hexString(GWParameters.getGatewayAddress().getAddress())+
-					"]/["+clientId+"] - Return Code of Mqtt CONNACK message it is not \"Connection Accepted\".");
-			GatewayLogger.log(GatewayLogger.ERROR, "GatewayMsgHandler ["+
-					Utils.hexString(GWParameters.getGatewayAddress().getAddress())+
-					"]/["+clientId+"] - Mqtt connection with the broker cannot be established. Gateway cannot start.");
+			GatewayLogger.log(GatewayLogger.ERROR, "GatewayMsgHandler [{}]/[{}] - Return Code of Mqtt CONNACK message it is not \"Connection Accepted\".", GWParameters.getGatewayAddress().getAddress(), clientId);
+			GatewayLogger.log(GatewayLogger.ERROR, "GatewayMsgHandler [{}]/[{}] - Mqtt connection with the broker cannot be established. Gateway cannot start.", GWParameters.getGatewayAddress().getAddress(), clientId);
 			System.exit(1);
 		}
 
@@ -500,7 +550,7 @@ public class GatewayMsgHandler extends MsgHandler{
 	 * @param receivedMsg
 	 */
 	private void handleMqttPingReq(MqttPingReq receivedMsg) {
-		GatewayLogger.log(GatewayLogger.INFO, "GatewayMsgHandler ["+Utils.hexString(GWParameters.getGatewayAddress().getAddress())+"]/["+clientId+"] - Mqtt PINGREQ message received.");
+		GatewayLogger.log(GatewayLogger.INFO, "GatewayMsgHandler [{}]/[{}] - Mqtt PINGREQ message received.", GWParameters.getGatewayAddress().getAddress(), clientId);
 
 		// TODO Auto-generated method stub
 
@@ -510,7 +560,7 @@ public class GatewayMsgHandler extends MsgHandler{
 	 * @param receivedMsg
 	 */
 	private void handleMqttUnsuback(MqttUnsuback receivedMsg) {
-		GatewayLogger.log(GatewayLogger.INFO, "GatewayMsgHandler ["+Utils.hexString(GWParameters.getGatewayAddress().getAddress())+"]/["+clientId+"] - Mqtt UNSUBACK message received.");
+		GatewayLogger.log(GatewayLogger.INFO, "GatewayMsgHandler [{}]/[{}] - Mqtt UNSUBACK message received.", GWParameters.getGatewayAddress().getAddress(), clientId);
 
 		// TODO Auto-generated method stub
 
@@ -520,7 +570,7 @@ public class GatewayMsgHandler extends MsgHandler{
 	 * @param receivedMsg
 	 */
 	private void handleMqttSuback(MqttSuback receivedMsg) {
-		GatewayLogger.log(GatewayLogger.INFO, "GatewayMsgHandler ["+Utils.hexString(GWParameters.getGatewayAddress().getAddress())+"]/["+clientId+"] - Mqtt SUBACK message received.");
+		GatewayLogger.log(GatewayLogger.INFO, "GatewayMsgHandler [{}]/[{}] - Mqtt SUBACK message received.", GWParameters.getGatewayAddress().getAddress(), clientId);
 
 		// TODO Auto-generated method stub
 
@@ -530,7 +580,7 @@ public class GatewayMsgHandler extends MsgHandler{
 	 * @param receivedMsg
 	 */
 	private void handleMqttPubComp(MqttPubComp receivedMsg) {
-		GatewayLogger.log(GatewayLogger.INFO, "GatewayMsgHandler ["+Utils.hexString(GWParameters.getGatewayAddress().getAddress())+"]/["+clientId+"] - Mqtt PUBCOMP message received.");
+		GatewayLogger.log(GatewayLogger.INFO, "GatewayMsgHandler [{}]/[{}] - Mqtt PUBCOMP message received.", GWParameters.getGatewayAddress().getAddress(), clientId);
 
 		// TODO Auto-generated method stub
 
@@ -540,7 +590,7 @@ public class GatewayMsgHandler extends MsgHandler{
 	 * @param receivedMsg
 	 */
 	private void handleMqttPubRel(MqttPubRel receivedMsg) {
-		GatewayLogger.log(GatewayLogger.INFO, "GatewayMsgHandler ["+Utils.hexString(GWParameters.getGatewayAddress().getAddress())+"]/["+clientId+"] - Mqtt PUBREL message received.");
+		GatewayLogger.log(GatewayLogger.INFO, "GatewayMsgHandler [{}]/[{}] - Mqtt PUBREL message received.", GWParameters.getGatewayAddress().getAddress(), clientId);
 
 		// TODO Auto-generated method stub
 
@@ -550,7 +600,7 @@ public class GatewayMsgHandler extends MsgHandler{
 	 * @param receivedMsg
 	 */
 	private void handleMqttPubRec(MqttPubRec receivedMsg) {
-		GatewayLogger.log(GatewayLogger.INFO, "GatewayMsgHandler ["+Utils.hexString(GWParameters.getGatewayAddress().getAddress())+"]/["+clientId+"] - Mqtt PUBREC message received.");
+		GatewayLogger.log(GatewayLogger.INFO, "GatewayMsgHandler [{}]/[{}] - Mqtt PUBREC message received.", GWParameters.getGatewayAddress().getAddress(), clientId);
 
 		// TODO Auto-generated method stub
 
@@ -560,7 +610,7 @@ public class GatewayMsgHandler extends MsgHandler{
 	 * @param receivedMsg
 	 */
 	private void handleMqttPuback(MqttPuback receivedMsg) {
-		GatewayLogger.log(GatewayLogger.INFO, "GatewayMsgHandler ["+Utils.hexString(GWParameters.getGatewayAddress().getAddress())+"]/["+clientId+"] - Mqtt PUBACK message received.");
+		GatewayLogger.log(GatewayLogger.INFO, "GatewayMsgHandler [{}]/[{}] - Mqtt PUBACK message received.", GWParameters.getGatewayAddress().getAddress(), clientId);
 
 		// TODO Auto-generated method stub
 
@@ -570,7 +620,7 @@ public class GatewayMsgHandler extends MsgHandler{
 	 * @param receivedMsg
 	 */
 	private void handleMqttPublish(MqttPublish receivedMsg) {
-		GatewayLogger.log(GatewayLogger.INFO, "GatewayMsgHandler ["+Utils.hexString(GWParameters.getGatewayAddress().getAddress())+"]/["+clientId+"] - Mqtt PUBLISH message received.");
+		GatewayLogger.log(GatewayLogger.INFO, "GatewayMsgHandler [{}]/[{}] - Mqtt PUBLISH message received.", GWParameters.getGatewayAddress().getAddress(), clientId);
 
 		// TODO Auto-generated method stub
 
@@ -614,8 +664,16 @@ public class GatewayMsgHandler extends MsgHandler{
 			shutDown();
 			break;			
 
+		case ControlMessage.SEARCHGW_INTERVAL:
+			handleControlSearchGwInterval();
+			break;
+
+		case ControlMessage.BROKER_KEEP_ALIVE:
+			//ignore it
+			break;
+
 		default:
-			GatewayLogger.log(GatewayLogger.WARN, "GatewayMsgHandler ["+Utils.hexString(GWParameters.getGatewayAddress().getAddress())+"]/["+clientId+"] - Control message of unknown type \"" + receivedMsg.getMsgType()+"\" received.");
+			GatewayLogger.log(GatewayLogger.WARN, "GatewayMsgHandler [{}]/[{}] - Control message of unknown type \"{}\" received.", GWParameters.getGatewayAddress().getAddress(), clientId, receivedMsg.getMsgType());
 			break;
 		}
 	}	
@@ -624,9 +682,7 @@ public class GatewayMsgHandler extends MsgHandler{
 	 * 
 	 */
 	private void connectionLost(){
-		GatewayLogger.log(GatewayLogger.INFO, "GatewayMsgHandler ["+
-				Utils.hexString(GWParameters.getGatewayAddress().getAddress())+
-				"]/["+clientId+"] - Control CONNECTION_LOST message received.");
+		GatewayLogger.log(GatewayLogger.INFO, "GatewayMsgHandler [{}]/[{}] - Control CONNECTION_LOST message received.", GWParameters.getGatewayAddress().getAddress(), clientId);
 
 		GatewayLogger.error("GatewayMsgHandler ["+
 				Utils.hexString(GWParameters.getGatewayAddress().getAddress())+
@@ -666,6 +722,10 @@ public class GatewayMsgHandler extends MsgHandler{
 		//send a Mqtts PINGREQ to the broker
 		sendMqttPingReq();
 
+		//keep alive also the connections that are shared by the clients (if any)
+		if(GWParameters.isAggregatingMode())
+			BrokerConnectionPool.getInstance().sendKeepAlive();
+
 		//update the advertising period counter
 		advPeriodCounter = advPeriodCounter + GWParameters.getKeepAlivePeriod();
 		if (advPeriodCounter >= GWParameters.getAdvPeriod()){
@@ -674,6 +734,42 @@ public class GatewayMsgHandler extends MsgHandler{
 			advPeriodCounter = 0;
 		}
 
+		//report the suppressed Mqtts SEARCHGW messages (if any)
+		if (searchGwSuppressed != searchGwSuppressedLogged) {
+			GatewayLogger.log(GatewayLogger.INFO, "GatewayMsgHandler [{}]/[{}] - {} Mqtts SEARCHGW message(s) suppressed since the last report ({} received and {} Mqtts GWINFO broadcast(s) in total).",
+					GWParameters.getGatewayAddress().getAddress(), clientId, searchGwSuppressed - searchGwSuppressedLogged, searchGwReceived, gwInfoBroadcasts);
+			searchGwSuppressedLogged = searchGwSuppressed;
+		}
+
+		//report the messages that the Dispatcher dropped because of overload (if any)
+		long droppedPublish = dispatcher.getDroppedPublish();
+		long droppedConnect = dispatcher.getDroppedConnect();
+		long droppedOther = dispatcher.getDroppedOther();
+		long droppedShared = dispatcher.getDroppedShared();
+		long dropped = droppedPublish + droppedConnect + droppedOther + droppedShared;
+		if (dropped != droppedLogged) {
+			GatewayLogger.log(GatewayLogger.WARN, "GatewayMsgHandler [{}]/[{}] - {} message(s) dropped since the last report because the Dispatcher queues were full ({} PUBLISH message(s) with \"QoS\" = \"-1\" or \"0\", {} Mqtts CONNECT message(s), {} other message(s) and {} PUBLISH message(s) of shared broker connections in total).",
+					GWParameters.getGatewayAddress().getAddress(), clientId, dropped - droppedLogged, droppedPublish, droppedConnect, droppedOther, droppedShared);
+			droppedLogged = dropped;
+		}
+		long brokerPauses = dispatcher.getBrokerPauses();
+		if (brokerPauses != brokerPausesLogged) {
+			GatewayLogger.log(GatewayLogger.WARN, "GatewayMsgHandler [{}]/[{}] - The reading from the broker was paused {} time(s) since the last report because the Dispatcher queues were full.",
+					GWParameters.getGatewayAddress().getAddress(), clientId, brokerPauses - brokerPausesLogged);
+			brokerPausesLogged = brokerPauses;
+		}
+
+		//update the broker keep alive counter
+		if(GWParameters.isLocalPingResp() && !GWParameters.isAggregatingMode()){
+			brokerKeepAliveCounter = brokerKeepAliveCounter + GWParameters.getKeepAlivePeriod();
+			//send before the period has elapsed, since the ticks may be late
+			if(brokerKeepAliveCounter + GWParameters.getKeepAlivePeriod() > GWParameters.getBrokerKeepAlive()){
+				//send a keep alive message to all ClientMsgHandlers
+				sendBrokerKeepAlive();
+				brokerKeepAliveCounter = 0;
+			}
+		}
+
 		//update the clean up period counter
 		checkingCounter = checkingCounter + GWParameters.getKeepAlivePeriod();
 		if(checkingCounter >= GWParameters.getCkeckingPeriod ()){
@@ -684,11 +780,55 @@ public class GatewayMsgHandler extends MsgHandler{
 	}
 
 
+	/**
+	 * This method answers the Mqtts SEARCHGW messages that were suppressed during the last
+	 * interval with one Mqtts GWINFO broadcast per radius.
+	 */
+	private void handleControlSearchGwInterval() {
+		long now = System.currentTimeMillis();
+		long interval = GWParameters.getSearchGwInterval() * 1000L;
+		boolean pending = false;
+		for (int radius = 0; radius < pendingGwInfo.length; radius++) {
+			if (!pendingGwInfo[radius])
+				continue;
+			//allow one tick of the timer
+			if (now - lastGwInfo[radius] >= interval - TimerService.TICK_DURATION)
+				broadcastGwInfo(radius);
+			else
+				pending = true;
+		}
+		if (!pending) {
+			timer.unregister(gatewayAddress, ControlMessage.SEARCHGW_INTERVAL);
+			searchGwTimer = false;
+		}
+	}
+
+	/**
+	 * @return The number of received Mqtts SEARCHGW messages.
+	 */
+	public long getSearchGwReceived() {
+		return searchGwReceived;
+	}
+
+	/**
+	 * @return The number of Mqtts GWINFO broadcasts.
+	 */
+	public long getGwInfoBroadcasts() {
+		return gwInfoBroadcasts;
+	}
+
+	/**
+	 * @return The number of Mqtts SEARCHGW messages that were not answered by their own broadcast.
+	 */
+	public long getSearchGwSuppressed() {
+		return searchGwSuppressed;
+	}
+
 	/**
 	 * 
 	 */
 	private void shutDown() {		
-		GatewayLogger.log(GatewayLogger.INFO, "GatewayMsgHandler ["+Utils.hexString(GWParameters.getGatewayAddress().getAddress())+"]/["+clientId+"] - Control SHUT_DOWN message received.");
+		GatewayLogger.log(GatewayLogger.INFO, "GatewayMsgHandler [{}]/[{}] - Control SHUT_DOWN message received.", GWParameters.getGatewayAddress().getAddress(), clientId);
 
 		//stop the reading thread of the BrokerInterface (if any)
 		//(this does not have any effect to the input and output streams which remain active)
@@ -699,7 +839,7 @@ public class GatewayMsgHandler extends MsgHandler{
 
 		//send the Mqtt DISCONNECT message to the broker
 		//(don't bother if the sending of Mqtt DISCONNECT message to the broker was successful or not)
-		GatewayLogger.log(GatewayLogger.INFO, "GatewayMsgHandler ["+Utils.hexString(this.gatewayAddress.getAddress())+"]/["+clientId+"] - Sending Mqtt DISCONNECT message to the broker.");
+		GatewayLogger.log(GatewayLogger.INFO, "GatewayMsgHandler [{}]/[{}] - Sending Mqtt DISCONNECT message to the broker.", this.gatewayAddress.getAddress(), clientId);
 		try {
 			brokerInterface.sendMsg(mqttDisconnect);
 		} catch (MqttsException e) {
@@ -708,6 +848,10 @@ public class GatewayMsgHandler extends MsgHandler{
 
 		//close the connection with the broker
 		brokerInterface.disconnect();
+
+		//close also the connections that are shared by the clients (if any)
+		if(GWParameters.isAggregatingMode())
+			BrokerConnectionPool.getInstance().shutDown();
 	}	
 
 
@@ -813,6 +957,22 @@ public class GatewayMsgHandler extends MsgHandler{
 		this.dispatcher.putMessage(msg);		
 	}
 
+	/**
+	 * This method sends a keep alive message to all ClientMsgHandlers, so that they keep
+	 * alive their broker connections (in "local" ping mode).
+	 */
+	private void sendBrokerKeepAlive() {
+		//generate a control message 
+		ControlMessage controlMsg = new ControlMessage();
+		controlMsg.setMsgType(ControlMessage.BROKER_KEEP_ALIVE);
+
+		//generate an "internal" message addressed to all ClientMsgHandlers
+		Message msg = new Message(null);
+		msg.setType(Message.CONTROL_MSG);
+		msg.setControlMessage(controlMsg);
+		this.dispatcher.putMessage(msg);		
+	}
+
 	/**
 	 * @param topicName
 	 */
@@ -10,31 +10,42 @@
 
 package com.ibm.zurich.mqttsgw.core;
 
-import java.util.Hashtable;
-import java.util.Iterator;
-
 import com.ibm.zurich.mqttsgw.utils.GWParameters;
+import com.ibm.zurich.mqttsgw.utils.PredefinedTopicTable;
+import com.ibm.zurich.mqttsgw.utils.TopicRegistry;
 
+/**
+ * This class maps topic ids to topic names and topic names to topic ids.
+ * The predefined topic ids are looked up in the {@link PredefinedTopicTable} that is
+ * shared by all mapping tables, so this table holds only the registered topic ids.
+ * The topic names are interned in the {@link TopicRegistry} and this table maps the
+ * topic ids to the ordinals of the topics and back, with two open addressing tables
+ * of primitive ints, so both lookups take constant time.The tables are created when
+ * the first topic id is registered.
+ * Every topic id holds a reference to its topic in the registry, which is given back
+ * when the topic id is removed or the table is cleared (see {@link #clear()}).
+ *
+ */
 public class TopicMappingTable {
 
-	private Hashtable<Integer, String> topicIdTable;
+	//the predefined topic ids (shared by all mapping tables)
+	private PredefinedTopicTable predefinedTopics;
+
+	private TopicRegistry registry;
+
+	//the ordinals of the topics indexed by topic id
+	private IntMap ordinals;
+
+	//the topic ids indexed by the ordinal of the topic
+	private IntMap topicIds;
 
 	public TopicMappingTable(){
-		topicIdTable = new Hashtable<Integer, String>();
 	}
 
 
 	public void initialize() {
-		Iterator<?> iter = GWParameters.getPredefTopicIdTable().keySet().iterator();
-		Iterator<?> iterVal = GWParameters.getPredefTopicIdTable().values().iterator();
-
-		Integer topicId;
-		String topicName;
-		while (iter.hasNext()) {
-			topicId = (Integer)iter.next();	
-			topicName = (String)iterVal.next();
-			topicIdTable.put(topicId, topicName);
-		}
+		predefinedTopics = GWParameters.getPredefinedTopicTable();
+		registry = TopicRegistry.getInstance();
 	}
 
 	/**
@@ -42,37 +53,71 @@ public class TopicMappingTable {
 	 * @param topicName
 	 */
 	public void assignTopicId(int topicId, String topicName) {
-		topicIdTable.put(new Integer (topicId), topicName);
+		if(ordinals == null){
+			ordinals = new IntMap();
+			topicIds = new IntMap();
+		}
+		int ordinal = registry.intern(topicName).getOrdinal();
+		int oldOrdinal = ordinals.put(topicId, ordinal);
+		if(oldOrdinal != 0 && oldOrdinal != ordinal && topicIds.get(oldOrdinal) == topicId)
+			topicIds.remove(oldOrdinal);
+		topicIds.put(ordinal, topicId);
+		if(oldOrdinal != 0)
+			registry.release(oldOrdinal);
+	}
+
+	/**
+	 * @param topicId
+	 * @return The topic or null if the topic id does not exist.
+	 */
+	public TopicRegistry.Topic getTopic(int topicId) {
+		if(predefinedTopics != null && topicId <= GWParameters.getPredfTopicIdSize())
+			return predefinedTopics.getTopic(topicId);
+		if(ordinals == null)
+			return null;
+		int ordinal = ordinals.get(topicId);
+		return ordinal == 0 ? null : registry.getTopic(ordinal);
 	}
 
 	public String getTopicName(int topicId) {
-		return (String)topicIdTable.get(new Integer(topicId));
+		TopicRegistry.Topic topic = getTopic(topicId);
+		return topic == null ? null : topic.getName();
 	}
 
 	/**
 	 * @param topicName
-	 * @return
+	 * @return The topic id or 0 if the topic name does not exist.
 	 */
 	public int getTopicId(String topicName) {
-		Iterator<Integer> iter = topicIdTable.keySet().iterator();
-		Iterator<String> iterVal = topicIdTable.values().iterator();
-		Integer ret = new Integer(0);
-		while (iter.hasNext()) {
-			Integer topicId = (Integer)iter.next();			
-			String tname = (String)(iterVal.next());
-			if(tname.equals(topicName)) {
-				ret = topicId;
-				break;
-			}
+		if(predefinedTopics != null){
+			int predefinedId = predefinedTopics.getTopicId(topicName);
+			if(predefinedId != 0)
+				return predefinedId;
 		}
-		return ret.intValue();
+		if(topicIds == null)
+			return 0;
+		TopicRegistry.Topic topic = registry.lookup(topicName);
+		if(topic == null)
+			return 0;
+		int topicId = topicIds.get(topic.getOrdinal());
+		//the ordinal may belong to another topic if the topic was removed in the meantime
+		return (topicId == 0 || registry.getTopic(topic.getOrdinal()) != topic) ? 0 : topicId;
 	}
 
 	/**
+	 * The predefined topic ids cannot be removed.
+	 *
 	 * @param topicId
 	 */
 	public void removeTopicId(int topicId) {
-		topicIdTable.remove(new Integer(topicId));		
+		if(ordinals == null)
+			return;
+		int ordinal = ordinals.remove(topicId);
+		if(ordinal == 0)
+			return;
+		if(topicIds.get(ordinal) == topicId)
+			topicIds.remove(ordinal);
+		registry.release(ordinal);
 	}
 
 
@@ -80,32 +125,157 @@ public class TopicMappingTable {
 	 * @param topicName
 	 */
 	public void removeTopicId(String topicName) {
-		Iterator<Integer> iter = topicIdTable.keySet().iterator();
-		Iterator<String> iterVal = topicIdTable.values().iterator();
-		while (iter.hasNext()) {
-			Integer topicId = (Integer)iter.next();			
-			String tname = (String)(iterVal.next());
-
-			//don't remove predefined topic ids
-			if(tname.equals(topicName) && topicId.intValue() > GWParameters.getPredfTopicIdSize()) {
-				topicIdTable.remove(topicId);
-				break;
-			}
-		}
+		if(topicIds == null)
+			return;
+		int topicId = getTopicId(topicName);
+
+		//don't remove predefined topic ids
+		if(topicId > GWParameters.getPredfTopicIdSize())
+			removeTopicId(topicId);
+	}
+
+
+	/**
+	 * This method removes all registered topic ids and gives back their references
+	 * to the registry.It must be called when the table is no more used.
+	 */
+	public void clear() {
+		if(ordinals == null)
+			return;
+		for (int i = 0; i < ordinals.keys.length; i++)
+			if (ordinals.keys[i] != 0)
+				registry.release(ordinals.values[i]);
+		ordinals = null;
+		topicIds = null;
 	}
 
 
 	/**
-	 * 
+	 *
 	 * Utility method. Prints the content of this mapping table
 	 */
 	public void printContent(){
-		Iterator<Integer> iter = topicIdTable.keySet().iterator();
-		Iterator<String> iterVal = topicIdTable.values().iterator();
-		while (iter.hasNext()) {
-			Integer topicId = (Integer)iter.next();			
-			String tname = (String)(iterVal.next());
-			System.out.println(topicId+" = "+ tname);
-		}		
+		for (int i = 1; i <= GWParameters.getPredfTopicIdSize(); i++)
+			if (predefinedTopics != null && predefinedTopics.getTopicName(i) != null)
+				System.out.println(i+" = "+ predefinedTopics.getTopicName(i));
+		if (ordinals == null)
+			return;
+		for (int i = 0; i < ordinals.keys.length; i++)
+			if (ordinals.keys[i] != 0)
+				System.out.println(ordinals.keys[i]+" = "+ registry.getTopic(ordinals.values[i]).getName());
+	}
+
+
+	/**
+	 * This class maps int keys to int values with an open addressing table (linear probing).
+	 * 0 is neither a valid key nor a valid value, it marks an empty slot and a missing key.
+	 *
+	 */
+	private static class IntMap {
+
+		//the initial number of slots (a power of 2)
+		private static final int INITIAL_CAPACITY = 8;
+
+		private int[] keys;
+		private int[] values;
+		private int size;
+		private int mask;
+
+		IntMap() {
+			keys = new int[INITIAL_CAPACITY];
+			values = new int[INITIAL_CAPACITY];
+			mask = INITIAL_CAPACITY - 1;
+			size = 0;
+		}
+
+		private int slot(int key) {
+			return (key * 0x9E3779B9) >>> 16 & mask;
+		}
+
+		/**
+		 * @return The value of the key or 0 if the key does not exist.
+		 */
+		int get(int key) {
+			int i = slot(key);
+			while (keys[i] != 0) {
+				if (keys[i] == key)
+					return values[i];
+				i = (i + 1) & mask;
+			}
+			return 0;
+		}
+
+		/**
+		 * @return The previous value of the key or 0.
+		 */
+		int put(int key, int value) {
+			int i = slot(key);
+			while (keys[i] != 0) {
+				if (keys[i] == key) {
+					int old = values[i];
+					values[i] = value;
+					return old;
+				}
+				i = (i + 1) & mask;
+			}
+			keys[i] = key;
+			values[i] = value;
+			size++;
+
+			//keep the table at most half full
+			if (size * 2 > keys.length)
+				resize(keys.length * 2);
+			return 0;
+		}
+
+		/**
+		 * @return The removed value or 0.
+		 */
+		int remove(int key) {
+			if (key == 0)
+				return 0;
+			int i = slot(key);
+			while (keys[i] != key) {
+				if (keys[i] == 0)
+					return 0;
+				i = (i + 1) & mask;
+			}
+			int old = values[i];
+			size--;
+
+			//shift back the following entries of the same cluster
+			int j = i;
+			while (true) {
+				j = (j + 1) & mask;
+				if (keys[j] == 0)
+					break;
+				int k = slot(keys[j]);
+				if ((j > i && (k <= i || k > j)) || (j < i && (k <= i && k > j))) {
+					keys[i] = keys[j];
+					values[i] = values[j];
+					i = j;
+				}
+			}
+			keys[i] = 0;
+			values[i] = 0;
+			return old;
+		}
+
+		private void resize(int capacity) {
+			int[] oldKeys = keys;
+			int[] oldValues = values;
+			keys = new int[capacity];
+			values = new int[capacity];
+			mask = capacity - 1;
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldKeys[i] != 0) {
+					int j = slot(oldKeys[i]);
+					while (keys[j] != 0)
+						j = (j + 1) & mask;
+					keys[j] = oldKeys[i];
+					values[j] = oldValues[i];
+				}
+			}
+		}
 	}
 }
\ No newline at end of file
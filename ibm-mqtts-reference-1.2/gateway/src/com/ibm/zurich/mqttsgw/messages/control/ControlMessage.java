@@ -20,6 +20,9 @@ public class ControlMessage {
 	public static final int CHECK_INACTIVITY			= 5;
 	public static final int SEND_KEEP_ALIVE_MSG			= 6;
 	public static final int SHUT_DOWN					= 7;
+	public static final int SEARCHGW_INTERVAL			= 8;
+	public static final int BROKER_KEEP_ALIVE			= 9;
+	public static final int CLIENT_KEEP_ALIVE_TIMEOUT	= 10;
 
 	public ControlMessage(){}
 
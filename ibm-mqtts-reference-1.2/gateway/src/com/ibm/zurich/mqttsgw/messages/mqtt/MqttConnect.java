@@ -51,12 +51,20 @@ public class MqttConnect extends MqttMessage{
 	 * @return A byte array containing the CONNECT message as it should appear on the wire.
 	 */
 	public byte[] toBytes() {
-		int pos = 0; 
-		byte[] data = new byte[MAX_CLIENT_ID_LENGTH + 19]; 
-		data[pos++] = (byte)((msgType << 4) & 0xF0); 
-		byte[] bytestring = Utils.StringToUTF(protocolName);
-		System.arraycopy(bytestring, 0, data, pos, bytestring.length);
-		pos += bytestring.length;
+		byte[] protocolbytes = Utils.StringToUTF(protocolName);
+		byte[] clientbytes = Utils.StringToUTF(clientId);
+		byte[] topicbytes = null;
+		byte[] msgbytes = null;
+		int remainingLength = protocolbytes.length + 4 + clientbytes.length;//version, flags and keep alive
+		if (will) {
+			topicbytes = Utils.StringToUTF(willTopic);
+			msgbytes = Utils.StringToUTF(willMessage);
+			remainingLength += topicbytes.length + msgbytes.length;
+		}
+		byte[] data = allocateMsg((msgType << 4) & 0xF0, remainingLength);
+		int pos = data.length - remainingLength;
+		System.arraycopy(protocolbytes, 0, data, pos, protocolbytes.length);
+		pos += protocolbytes.length;
 		data[pos++] = (byte) protocolVersion;
 
 		byte compSub = ((topicNameCompression) ? (byte) 0x01 : (byte)0x00); // bit 0
@@ -70,21 +78,16 @@ public class MqttConnect extends MqttMessage{
 		data[pos++] = (byte) (keepAlive / 256); // MSB
 		data[pos++] = (byte) (keepAlive % 256); // LSB
 		// Client Id
-		bytestring = Utils.StringToUTF(clientId);
-		System.arraycopy(bytestring, 0, data, pos, bytestring.length);
-		pos += bytestring.length;
+		System.arraycopy(clientbytes, 0, data, pos, clientbytes.length);
+		pos += clientbytes.length;
 		// Check if we want a will
 		if (will) {
 			// Add 'Will' topic
-			byte[] topicbytes = Utils.StringToUTF(willTopic);
+			System.arraycopy(topicbytes, 0, data, pos, topicbytes.length);
+			pos += topicbytes.length;
 			// Add 'Will' data
-			byte[] msgbytes = Utils.StringToUTF(willMessage);
-			data = Utils.concatArray(Utils.concatArray(data,
-					0, pos, topicbytes, 0, topicbytes.length), msgbytes);
-			pos += topicbytes.length + msgbytes.length;
+			System.arraycopy(msgbytes, 0, data, pos, msgbytes.length);
 		}
-		data = Utils.SliceByteArray(data, 0, pos);
-		data = encodeMsgLength(data); // add Remaining length field
 		return data;
 	}
 
@@ -53,27 +53,42 @@ public abstract class MqttMessage {
 	
 	
 	/**
-	 * This method calculates the length of a Mqtt message and encodes it 
-	 * in the fixed header.
-	 */	
-	protected byte[] encodeMsgLength(byte[] data) {		
-		int size = data.length - 1; 
-		int pos = 0;				
-		byte[] tmp = new byte[4]; 
-		// Encode remaining length field in tmp[]
+	 * This method calculates the number of bytes of the Remaining length field
+	 * of a Mqtt message.
+	 * @param remainingLength The number of bytes of the message after the fixed header.
+	 */
+	protected static int msgLengthSize(int remainingLength) {
+		int size = 1;
+		while (remainingLength >= 128) {
+			remainingLength = remainingLength / 128;
+			size++;
+		}
+		return size;
+	}
+
+	/**
+	 * This method allocates a byte array of the exact size of a Mqtt message and
+	 * encodes the fixed header (1st byte and Remaining length field) in it, so that
+	 * the rest of the message can be written directly after it, without copying the
+	 * message again.The rest of the message starts at position
+	 * (data.length - remainingLength).
+	 * @param firstByte The 1st byte of the fixed header (message type and flags).
+	 * @param remainingLength The number of bytes of the message after the fixed header.
+	 */
+	protected static byte[] allocateMsg(int firstByte, int remainingLength) {
+		byte[] data = new byte[1 + msgLengthSize(remainingLength) + remainingLength];
+		data[0] = (byte) firstByte;
+		int pos = 1;
+		int size = remainingLength;
+		// Encode remaining length field
 		do {
 			int digit = size % 128;
 			size = size / 128;
 			if (size > 0) {
 				digit = digit | 0x80;
 			}
-			tmp[pos++]=(byte) digit;
+			data[pos++]=(byte) digit;
 		} while (size > 0);
-		byte[] buffer = new byte[data.length + pos];
-		buffer[0] = data[0];								// Fixed Hdr
-		System.arraycopy(tmp, 0, buffer, 1, pos);			// add the MsgLength bytes
-		System.arraycopy(data,1,buffer,pos+1,data.length-1);// add the rest of Message
-		data = buffer;
 		return data;
 	}
 	
@@ -25,6 +25,9 @@ public class MqttPublish extends MqttMessage{
 	private boolean retain;
 	private String topicName;
 	private int msgId;
+
+	//the topic name as a Mqtt UTF string, if it is already encoded (may be shared, never modified)
+	private byte[] encodedTopicName;
 	private byte[] payload;
 
 	/**
@@ -49,12 +52,13 @@ public class MqttPublish extends MqttMessage{
 		int fixedHeaderLength = (int) (data.length - remainingBytes);//the length of the fixed header
 		topicName = Utils.UTFToString(data, fixedHeaderLength);
 
+		//the length of the encoded topic name (not topicName.length(), which counts characters)
+		int pos = fixedHeaderLength + 2 + ((data[fixedHeaderLength] & 0xFF) << 8) + (data[fixedHeaderLength + 1] & 0xFF);
 		if (qos > 0) {
-			msgId = ((data[fixedHeaderLength + 2 + topicName.length()] & 0xFF) << 8) + (data[fixedHeaderLength + 2 + topicName.length() + 1] & 0xFF);
-			payload = Utils.SliceByteArray(data, fixedHeaderLength + topicName.length() + 4, data.length - (fixedHeaderLength + topicName.length() + 4));
-		} else {
-			payload = Utils.SliceByteArray(data, fixedHeaderLength + topicName.length() + 2, data.length - (fixedHeaderLength + topicName.length() + 2));
+			msgId = ((data[pos] & 0xFF) << 8) + (data[pos + 1] & 0xFF);
+			pos += 2;
 		}
+		payload = Utils.SliceByteArray(data, pos, data.length - pos);
 	}
 
 	/**
@@ -62,23 +66,21 @@ public class MqttPublish extends MqttMessage{
 	 * @return A byte array containing the PUBLISH message as it should appear on the wire.
 	 */
 	public byte[] toBytes() {
-		byte[] data;
-		byte[] byteString = Utils.StringToUTF(topicName);
+		byte[] byteString = (encodedTopicName != null) ? encodedTopicName : Utils.StringToUTF(topicName);
+		int remainingLength = byteString.length + payload.length;
 		if ( qos > 0 ) {
-			data = new byte[byteString.length + 3 + payload.length];
-		} else {
-			// No message id in a QoS 0 message
-			data = new byte[byteString.length + 1 + payload.length];
-		}
+			remainingLength += 2;
+		} // No message id in a QoS 0 message
 
-		data[0] = (byte)((this.msgType << 4) & 0xF0);//msg type
-		byte bdup = (byte) ((dup) ? 0x08 : 0x00);//dup flag
-		byte bqos = (byte) ((qos & 0x03) << 1);//qos
-		byte bret = (byte) ((retain) ? 0x01 : 0x00);//retain
+		int firstByte = (this.msgType << 4) & 0xF0;//msg type
+		int bdup = (dup) ? 0x08 : 0x00;//dup flag
+		int bqos = (qos & 0x03) << 1;//qos
+		int bret = (retain) ? 0x01 : 0x00;//retain
 
-		data[0] = (byte) (data[0] | bqos | bret | bdup);//1st byte completed
+		//1st byte and Remaining Length field
+		byte[] data = allocateMsg(firstByte | bqos | bret | bdup, remainingLength);
 
-		int pos = 1;	
+		int pos = data.length - remainingLength;
 		System.arraycopy(byteString,0,data,pos,byteString.length);//attach the topic name
 		pos+=byteString.length;
 
@@ -86,9 +88,8 @@ public class MqttPublish extends MqttMessage{
 			int msgId = getMsgId();
 			data[pos++] = (byte) (msgId / 256); // MSB
 			data[pos++] = (byte) (msgId % 256); // LSB
-		}  
+		}
 		System.arraycopy(payload,0,data,pos,payload.length);//attach the payload
-		data = encodeMsgLength(data);	// add Remaining Length field
 		return data;
 	}
 
@@ -122,6 +123,18 @@ public class MqttPublish extends MqttMessage{
 
 	public void setTopicName(String topicName) {
 		this.topicName = topicName;
+		this.encodedTopicName = null;
+	}
+
+	/**
+	 * This method sets the topic name together with its encoding, so that it
+	 * is not encoded again when the message is converted to a byte array.
+	 * @param topicName The topic name.
+	 * @param encodedTopicName The topic name as a Mqtt UTF string (length and UTF-8 bytes).
+	 */
+	public void setTopicName(String topicName, byte[] encodedTopicName) {
+		this.topicName = topicName;
+		this.encodedTopicName = encodedTopicName;
 	}
 
 	public int getMsgId() {
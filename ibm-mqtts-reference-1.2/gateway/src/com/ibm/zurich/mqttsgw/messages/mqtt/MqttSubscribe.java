@@ -48,17 +48,14 @@ public class MqttSubscribe extends MqttMessage{
 	 * @return A byte array containing the SUBSCRIBE message as it should appear on the wire.
 	 */
 	public byte[] toBytes() {
-		int length = topicName.length() + 6;//1st byte plus 2 bytes for utf encoding, 2 for msgId and 1 for requested qos
-		byte[] data = new byte[length];
-		data [0] = (byte)((msgType << 4) & 0xF0);	
-		data [0] |= 0x02; //insert qos = 1
-		data [1] = (byte)((msgId >> 8) & 0xFF);
-		data [2] = (byte) (msgId & 0xFF);
-
 		byte[] utfEncodedTopicName = Utils.StringToUTF(topicName);
-		System.arraycopy(utfEncodedTopicName, 0, data, 3, utfEncodedTopicName.length);
-		data[length-1] = (byte)(requestedQoS);//insert requested qos
-		data = encodeMsgLength(data);	// add Remaining Length field
+		int remainingLength = utfEncodedTopicName.length + 3;//2 bytes for msgId and 1 for requested qos
+		byte[] data = allocateMsg(((msgType << 4) & 0xF0) | 0x02, remainingLength);//insert qos = 1
+		int pos = data.length - remainingLength;
+		data [pos++] = (byte)((msgId >> 8) & 0xFF);
+		data [pos++] = (byte) (msgId & 0xFF);
+		System.arraycopy(utfEncodedTopicName, 0, data, pos, utfEncodedTopicName.length);
+		data[data.length-1] = (byte)(requestedQoS);//insert requested qos
 		return data;
 	}
 
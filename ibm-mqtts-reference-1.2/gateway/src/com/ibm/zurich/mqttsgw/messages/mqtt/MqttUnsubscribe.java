@@ -47,16 +47,13 @@ public class MqttUnsubscribe extends MqttMessage{
 	 * @return A byte array containing the UNSUBSCRIBE message as it should appear on the wire.
 	 */
 	public byte[] toBytes() {
-		int length = topicName.length() + 5;//1st byte plus 2 bytes for utf encoding and 2 for msgId
-		byte[] data = new byte[length];
-		data [0] = (byte)((msgType << 4) & 0xF0);	
-		data [0] |= 0x02; //insert qos = 1
-		data [1] = (byte)((msgId >> 8) & 0xFF);
-		data [2] = (byte) (msgId & 0xFF);
-		
 		byte[] utfEncodedTopicName = Utils.StringToUTF(topicName);
-		System.arraycopy(utfEncodedTopicName, 0, data, 3, utfEncodedTopicName.length);
-		data = encodeMsgLength(data);	// add Remaining Length field
+		int remainingLength = utfEncodedTopicName.length + 2;//2 bytes for msgId
+		byte[] data = allocateMsg(((msgType << 4) & 0xF0) | 0x02, remainingLength);//insert qos = 1
+		int pos = data.length - remainingLength;
+		data [pos++] = (byte)((msgId >> 8) & 0xFF);
+		data [pos++] = (byte) (msgId & 0xFF);
+		System.arraycopy(utfEncodedTopicName, 0, data, pos, utfEncodedTopicName.length);
 		return data;
 	}
 
@@ -10,6 +10,8 @@
 
 package com.ibm.zurich.mqttsgw.messages.mqtts;
 
+import java.nio.ByteBuffer;
+
 /**
  * This object represents a Mqtts ADVERTISE message.
  * 
@@ -45,16 +47,22 @@ public class MqttsAdvertise extends MqttsMessage {
 	 * @return A byte array containing the ADVERTISE message as it should appear on the wire.
 	 */
 	public byte[] toBytes() {
-		int length = 5;
-		byte[] data = new byte[length];
-		data[0] = (byte) length;
-		data[1] = (byte) msgType;
-		data[2] = (byte) gwId;
-		data[3] = (byte) ((duration >> 8) & 0xFF);
-		data[4] = (byte) (duration & 0xFF);
+		byte[] data = new byte[5];
+		encodeTo(ByteBuffer.wrap(data));
 		return data;
 	}
 
+	/* (non-Javadoc)
+	 * @see com.ibm.zurich.mqttsgw.messages.mqtts.MqttsMessage#encodeTo(java.nio.ByteBuffer)
+	 */
+	public void encodeTo(ByteBuffer buffer) {
+		buffer.put((byte)5);
+		buffer.put((byte)msgType);
+		buffer.put((byte)gwId);
+		buffer.put((byte)((duration >> 8) & 0xFF));
+		buffer.put((byte)(duration & 0xFF));
+	}
+
 	public int getGwId() {
 		return gwId;
 	}
@@ -0,0 +1,195 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2013 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License v2.0
+ * which is available at:
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *******************************************************************************/
+
+package com.ibm.zurich.mqttsgw.messages.mqtts;
+
+/**
+ * This object is a view of a received Mqtts message in a byte array.It decodes the
+ * fields of the message directly from the array when they are accessed, without
+ * copying the message or creating any other object, and can be reused for the
+ * next message by calling {@link #wrap(byte[], int, int)}.
+ * The view is only valid as long as the array is not modified (usually until the
+ * next datagram is received), so the messages that must be kept are constructed
+ * from it (e.g. {@link MqttsPublish#MqttsPublish(MqttsFlyweight)}).
+ * An object of this class must not be shared by threads.
+ *
+ */
+public class MqttsFlyweight {
+
+	private byte[] buf;
+	private int offset;
+	private int length;
+
+
+	/**
+	 * This method makes this object a view of a Mqtts message.
+	 *
+	 * @param buf The buffer that contains the message.
+	 * @param offset The position of the message in the buffer.
+	 * @param length The number of bytes of the message in the buffer.
+	 * @return This object.
+	 */
+	public MqttsFlyweight wrap(byte[] buf, int offset, int length) {
+		this.buf = buf;
+		this.offset = offset;
+		this.length = length;
+		return this;
+	}
+
+
+	/**
+	 * @return The buffer that contains the message.
+	 */
+	public byte[] getBuffer() {
+		return buf;
+	}
+
+	/**
+	 * @return The position of the message in the buffer.
+	 */
+	public int getOffset() {
+		return offset;
+	}
+
+	/**
+	 * @return The number of bytes of the message in the buffer.
+	 */
+	public int getDataLength() {
+		return length;
+	}
+
+	/**
+	 * @param pos The position of the byte in the message.
+	 * @return The (unsigned) value of the byte.
+	 */
+	public int getByte(int pos) {
+		return buf[offset + pos] & 0xFF;
+	}
+
+	/**
+	 * @param pos The position of the two bytes in the message.
+	 * @return The (unsigned) value of the two bytes (most significant byte first).
+	 */
+	public int getShort(int pos) {
+		return ((buf[offset + pos] & 0xFF) << 8) + (buf[offset + pos + 1] & 0xFF);
+	}
+
+
+	/**
+	 * @return The field "Length" of the message.
+	 */
+	public int getLength() {
+		return getByte(0);
+	}
+
+	public int getMsgType() {
+		return getByte(1);
+	}
+
+	/**
+	 * @return The field "Flags" of a PUBLISH message.
+	 */
+	public int getFlags() {
+		return getByte(2);
+	}
+
+	public boolean isDup() {
+		return (getFlags() & 0x80) != 0;
+	}
+
+	/**
+	 * @return The QoS level of a PUBLISH message (-1, 0, 1 or 2).
+	 */
+	public int getQos() {
+		int qos = (getFlags() & 0x60) >> 5;
+		return qos == 3 ? -1 : qos;
+	}
+
+	public boolean isRetain() {
+		return (getFlags() & 0x10) != 0;
+	}
+
+	public int getTopicIdType() {
+		return getFlags() & 0x03;
+	}
+
+	/**
+	 * @return The field "TopicId" of a PUBLISH, PUBACK, REGISTER or REGACK message or 0
+	 * if the message has no such a field.
+	 */
+	public int getTopicId() {
+		switch (getMsgType()) {
+		case MqttsMessage.PUBLISH:
+			return getShort(3);
+		case MqttsMessage.PUBACK:
+		case MqttsMessage.REGISTER:
+		case MqttsMessage.REGACK:
+			return getShort(2);
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * @return The field "MsgId" of the message or 0 if the message has no such a field.
+	 */
+	public int getMsgId() {
+		switch (getMsgType()) {
+		case MqttsMessage.PUBLISH:
+			return getShort(5);
+		case MqttsMessage.PUBACK:
+		case MqttsMessage.REGISTER:
+		case MqttsMessage.REGACK:
+			return getShort(4);
+		case MqttsMessage.SUBSCRIBE:
+		case MqttsMessage.UNSUBSCRIBE:
+			return getShort(3);
+		case MqttsMessage.PUBCOMP:
+		case MqttsMessage.PUBREC:
+		case MqttsMessage.PUBREL:
+			return getShort(2);
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * @return The field "ReturnCode" of a PUBACK or REGACK message.
+	 */
+	public int getReturnCode() {
+		return getByte(6);
+	}
+
+	/**
+	 * @return The position of the data of a PUBLISH message in the buffer.
+	 */
+	public int getPayloadOffset() {
+		return offset + 7;
+	}
+
+	/**
+	 * @return The length of the data of a PUBLISH message.
+	 */
+	public int getPayloadLength() {
+		return getLength() - 7;
+	}
+
+
+	/**
+	 * This method copies the message from the buffer.
+	 *
+	 * @return A byte array that contains only the message.
+	 */
+	public byte[] toBytes() {
+		byte[] data = new byte[length];
+		System.arraycopy(buf, offset, data, 0, length);
+		return data;
+	}
+}
@@ -10,6 +10,8 @@
 
 package com.ibm.zurich.mqttsgw.messages.mqtts;
 
+import java.nio.ByteBuffer;
+
 /**
  * This object represents a Mqtts GWINFO message.
  * 
@@ -42,13 +44,19 @@ public class MqttsGWInfo extends MqttsMessage {
 	 * @return A byte array containing the GWINFO message as it should appear on the wire.
 	 */	
 	public byte[] toBytes() {
-		int length = 3;
-		byte[] data = new byte[length];
-		data[0] = (byte)length;
-		data[1] = (byte)msgType;
-		data[2] = (byte)gwId;			
+		byte[] data = new byte[3];
+		encodeTo(ByteBuffer.wrap(data));
 		return data;
 	}
+
+	/* (non-Javadoc)
+	 * @see com.ibm.zurich.mqttsgw.messages.mqtts.MqttsMessage#encodeTo(java.nio.ByteBuffer)
+	 */
+	public void encodeTo(ByteBuffer buffer) {
+		buffer.put((byte)3);
+		buffer.put((byte)msgType);
+		buffer.put((byte)gwId);
+	}
 	
 	public int getGwId() {
 		return gwId;
@@ -10,6 +10,8 @@
 
 package com.ibm.zurich.mqttsgw.messages.mqtts;
 
+import java.nio.ByteBuffer;
+
 /**
  * This object represents a Mqtts PINGRESP message.
  * 
@@ -37,10 +39,16 @@ public class MqttsPingResp extends MqttsMessage {
 	 * @return A byte array containing the PINGRESP message as it should appear on the wire.
 	 */	
 	public byte[] toBytes() {
-		int length = 2;
-		byte[] data = new byte[length];
-		data[0] = (byte)length;
-		data[1] = (byte)msgType;		
+		byte[] data = new byte[2];
+		encodeTo(ByteBuffer.wrap(data));
 		return data;
 	}
+
+	/* (non-Javadoc)
+	 * @see com.ibm.zurich.mqttsgw.messages.mqtts.MqttsMessage#encodeTo(java.nio.ByteBuffer)
+	 */
+	public void encodeTo(ByteBuffer buffer) {
+		buffer.put((byte)2);
+		buffer.put((byte)msgType);
+	}
 }
\ No newline at end of file
@@ -10,6 +10,8 @@
 
 package com.ibm.zurich.mqttsgw.messages.mqtts;
 
+import java.nio.ByteBuffer;
+
 /**
  * This object represents a Mqtts PUBCOMP message.
  * 
@@ -37,19 +39,33 @@ public class MqttsPubComp extends MqttsMessage {
 		msgId = ((data[2] & 0xFF) << 8) + (data[3] & 0xFF);
 	}
 	
+	/**
+	 * MqttsPubcomp constructor.Sets the appropriate message type and constructs 
+	 * a Mqtts PUBCOMP message from a view of a received message.
+	 * @param view: The view of the PUBCOMP message.
+	 */
+	public MqttsPubComp(MqttsFlyweight view) {
+		msgType = MqttsMessage.PUBCOMP;
+		msgId = view.getMsgId();
+	}
+	
 	/**
 	 * Method to convert this message to a byte array for transmission.
 	 * @return A byte array containing the PUBCOMP message as it should appear on the wire.
 	 */
 	public byte[] toBytes() {
-		int length = 4;
-		byte[] data = new byte[length];
-		data[0] = (byte)length;   
-		data[1] = (byte)msgType;  
-		data[2] = (byte)((msgId >> 8) & 0xFF);
-		data[3] = (byte)(msgId & 0xFF);	
-		return data;		
+		byte[] data = new byte[4];
+		encodeTo(ByteBuffer.wrap(data));
+		return data;
+	}
 
+	/* (non-Javadoc)
+	 * @see com.ibm.zurich.mqttsgw.messages.mqtts.MqttsMessage#encodeTo(java.nio.ByteBuffer)
+	 */
+	public void encodeTo(ByteBuffer buffer) {
+		buffer.put((byte)4);
+		buffer.put((byte)msgType);
+		buffer.putShort((short)msgId);
 	}
 
 	public int getMsgId() {
@@ -10,6 +10,9 @@
 
 package com.ibm.zurich.mqttsgw.messages.mqtts;
 
+import java.nio.ByteBuffer;
+import com.ibm.zurich.mqttsgw.utils.Utils;
+
 /**
  * This object represents a Mqtts PUBACK message.
  * 
@@ -46,30 +49,50 @@ public class MqttsPuback extends MqttsMessage {
 		if (returnCode == MqttsMessage.RETURN_CODE_INVALID_TOPIC_ID);
 			topicId = ((data[2] & 0xFF) << 8) + (data[3] & 0xFF);
 	}
+
+	/**
+	 * MqttsPuback constructor.Sets the appropriate message type and constructs 
+	 * a Mqtts PUBACK message from a view of a received message.
+	 * @param view: The view of the PUBACK message.
+	 */
+	public MqttsPuback(MqttsFlyweight view) {
+		msgType = MqttsMessage.PUBACK;		
+		msgId = view.getMsgId();
+		returnCode = view.getReturnCode();
+		topicId = view.getTopicId();
+	}
 	
 	/**
 	 * Method to convert this message to a byte array for transmission.
 	 * @return A byte array containing the PUBACK message as it should appear on the wire.
 	 */
 	public byte[] toBytes() {
-		int length = 7;
-		byte[] data = new byte[length];
-		data[0] = (byte)length;   
-		data[1] = (byte)msgType;
-		
-		byteTopicId = new byte[2];
-		if (this.topicId != 0){
-			byteTopicId[0] = (byte)((topicId >> 8) & 0xFF);
-			byteTopicId[1] = (byte) (topicId & 0xFF);
-		}else if(this.shortTopicName != null)
-			byteTopicId = shortTopicName.getBytes();
-		
-		System.arraycopy(byteTopicId, 0, data, 2, byteTopicId.length);	
-		data[4] = (byte)((msgId >> 8) & 0xFF);
-		data[5] = (byte) (msgId & 0xFF);
-		data[6] = (byte)returnCode;		
+		byte[] data = new byte[7];
+		encodeTo(ByteBuffer.wrap(data));
 		return data;
 	}
+
+	/* (non-Javadoc)
+	 * @see com.ibm.zurich.mqttsgw.messages.mqtts.MqttsMessage#encodeTo(java.nio.ByteBuffer)
+	 */
+	public void encodeTo(ByteBuffer buffer) {
+		buffer.put((byte)7);
+		buffer.put((byte)msgType);
+		if (this.topicId != 0)
+			buffer.putShort((short)topicId);
+		else if(this.byteTopicId != null)
+			//the short topic name exactly as the client sent it
+			buffer.put(byteTopicId, 0, 2);
+		else if(this.shortTopicName != null){
+			byte[] shortName = Utils.shortTopicNameToBytes(shortTopicName);
+			if(shortName == null)
+				throw new IllegalArgumentException("Invalid short topic name: " + shortTopicName);
+			buffer.put(shortName);
+		}else
+			buffer.putShort((short)0);
+		buffer.putShort((short)msgId);
+		buffer.put((byte)returnCode);
+	}
 	
 
 	public int getMsgId() {
@@ -102,6 +125,7 @@ public class MqttsPuback extends MqttsMessage {
 
 	public void setShortTopicName(String shortTopicName) {
 		this.shortTopicName = shortTopicName;
+		this.byteTopicId = null;
 	}
 
 	public byte[] getByteTopicId() {
@@ -11,6 +11,7 @@
 package com.ibm.zurich.mqttsgw.messages.mqtts;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import com.ibm.zurich.mqttsgw.utils.Utils;
 
 /**
@@ -76,11 +77,49 @@ public class MqttsPublish extends MqttsMessage {
 		System.arraycopy(data, 7, pubData, 0, plength);				
 	}
 	
+	/**
+	 * MqttsPublish constructor.Sets the appropriate message type and constructs 
+	 * a Mqtts PUBLISH message from a view of a received message (only the data is copied).
+	 * @param view: The view of the PUBLISH message.
+	 */
+	public MqttsPublish(MqttsFlyweight view) {
+		msgType = MqttsMessage.PUBLISH;
+		dup = view.isDup();
+		qos = view.getQos();
+		retain = view.isRetain();
+		topicIdType = view.getTopicIdType();
+		
+		try {
+			if (topicIdType == MqttsMessage.SHORT_TOPIC_NAME){
+				byteTopicId = new byte[2];
+				System.arraycopy(view.getBuffer(), view.getOffset() + 3, byteTopicId, 0, 2);
+				shortTopicName = new String(byteTopicId, Utils.STRING_ENCODING);
+			}else if(topicIdType == MqttsMessage.NORMAL_TOPIC_ID || topicIdType == MqttsMessage.PREDIFINED_TOPIC_ID){
+				topicId = view.getTopicId();
+			}
+		} catch (UnsupportedEncodingException e) {
+			e.printStackTrace();
+		}
+
+		msgId = view.getMsgId();
+		pubData = new byte[view.getPayloadLength()];
+		System.arraycopy(view.getBuffer(), view.getPayloadOffset(), pubData, 0, pubData.length);				
+	}
+	
 	/**
 	 * Method to convert this message to a byte array for transmission.
 	 * @return A byte array containing the PUBLISH message as it should appear on the wire.
 	 */
 	public byte[] toBytes() {
+		byte[] data = new byte[7 + pubData.length];
+		encodeTo(ByteBuffer.wrap(data));
+		return data;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ibm.zurich.mqttsgw.messages.mqtts.MqttsMessage#encodeTo(java.nio.ByteBuffer)
+	 */
+	public void encodeTo(ByteBuffer buffer) {
 		int flags = 0;
 		if(dup) {
 			flags |= 0x80;
@@ -110,24 +149,19 @@ public class MqttsPublish extends MqttsMessage {
 		}
 				
 		int length = 7 + pubData.length;
-		byte[] data = new byte[length];
-		data[0] = (byte)length;   
-		data[1] = (byte)msgType;
-		data[2] = (byte)flags; 
-		
-		byteTopicId = new byte[2];
-		if (topicIdType == MqttsMessage.SHORT_TOPIC_NAME)
-			byteTopicId = shortTopicName.getBytes();
-		else if(topicIdType == MqttsMessage.NORMAL_TOPIC_ID){
-			byteTopicId[0] = (byte)((topicId >> 8) & 0xFF);
-			byteTopicId[1] = (byte) (topicId & 0xFF);
-		}else 
-				throw new IllegalArgumentException("Unknown topic id type: " + topicIdType);
-		System.arraycopy(byteTopicId, 0, data, 3, byteTopicId.length);	
-		data[5] = (byte)((msgId >> 8) & 0xFF);
-		data[6] = (byte) (msgId & 0xFF);
-		System.arraycopy(pubData, 0, data, 7, pubData.length);
-		return data;
+		buffer.put((byte)length);
+		buffer.put((byte)msgType);
+		buffer.put((byte)flags);
+		if (topicIdType == MqttsMessage.SHORT_TOPIC_NAME){
+			//the raw bytes of a received short topic name are written back unchanged
+			byte[] shortName = (byteTopicId != null) ? byteTopicId : Utils.shortTopicNameToBytes(shortTopicName);
+			if(shortName == null || shortName.length != 2)
+				throw new IllegalArgumentException("Invalid short topic name: " + shortTopicName);
+			buffer.put(shortName);
+		}else
+			buffer.putShort((short)topicId);
+		buffer.putShort((short)msgId);
+		buffer.put(pubData);
 	}
 
 	public boolean isDup() {
@@ -200,5 +234,6 @@ public class MqttsPublish extends MqttsMessage {
 
 	public void setShortTopicName(String shortTopicName) {
 		this.shortTopicName = shortTopicName;
+		this.byteTopicId = null;
 	}
 }
\ No newline at end of file
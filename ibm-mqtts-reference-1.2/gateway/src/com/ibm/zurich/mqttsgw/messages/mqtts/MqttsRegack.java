@@ -10,6 +10,8 @@
 
 package com.ibm.zurich.mqttsgw.messages.mqtts;
 
+import java.nio.ByteBuffer;
+
 
 /**
  * This object represents a Mqtts REGACK message.
@@ -42,21 +44,37 @@ public class MqttsRegack extends MqttsMessage {
 		returnCode = (data[6] & 0xFF);
 	}
 
+	/**
+	 * MqttsRegack constructor.Sets the appropriate message type and constructs 
+	 * a Mqtts REGACK message from a view of a received message.
+	 * @param view: The view of the REGACK message.
+	 */
+	public MqttsRegack(MqttsFlyweight view) {
+		msgType = MqttsMessage.REGACK;
+		topicId = view.getTopicId();
+		msgId = view.getMsgId();
+		returnCode = view.getReturnCode();
+	}
+
 	/**
 	 * Method to convert this message to a byte array for transmission.
 	 * @return A byte array containing the REGACK message as it should appear on the wire.
 	 */
-	public byte[] toBytes(){
-		int length = 7;
-		byte[] data = new byte[length];
-		data[0] = (byte)length;   
-		data[1] = (byte)msgType;  
-		data[2] = (byte)((topicId >> 8) & 0xFF);
-		data[3] = (byte)(topicId & 0xFF);
-		data[4] = (byte)((msgId >> 8) & 0xFF);
-		data[5] = (byte)(msgId & 0xFF);
-		data[6] = (byte)(returnCode);		
-		return data;		
+	public byte[] toBytes() {
+		byte[] data = new byte[7];
+		encodeTo(ByteBuffer.wrap(data));
+		return data;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ibm.zurich.mqttsgw.messages.mqtts.MqttsMessage#encodeTo(java.nio.ByteBuffer)
+	 */
+	public void encodeTo(ByteBuffer buffer) {
+		buffer.put((byte)7);
+		buffer.put((byte)msgType);
+		buffer.putShort((short)topicId);
+		buffer.putShort((short)msgId);
+		buffer.put((byte)returnCode);
 	}
 	
 	public int getReturnCode() {
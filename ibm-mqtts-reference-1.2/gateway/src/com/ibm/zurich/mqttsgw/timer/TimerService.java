@@ -10,39 +10,65 @@
 
 package com.ibm.zurich.mqttsgw.timer;
 
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.Vector;
+import java.util.HashMap;
 
 import com.ibm.zurich.mqttsgw.core.Dispatcher;
 import com.ibm.zurich.mqttsgw.messages.Message;
 import com.ibm.zurich.mqttsgw.messages.control.ControlMessage;
-//import com.ibm.zurich.mqttsgw.timer.TimerService.TimeoutTimerTask;
 import com.ibm.zurich.mqttsgw.utils.Address;
 
+/**
+ * This class implements the timeouts of the gateway with a hashed timing wheel.
+ * The wheel is an array of buckets and every bucket holds a doubly linked list of
+ * TimeoutTimerTasks.A thread advances the wheel every {@link #TICK_DURATION} milliseconds
+ * and expires the tasks of the current bucket whose rounds have elapsed.
+ * The tasks are also indexed by address and type of timeout, so both registering and
+ * unregistering a timeout take constant time.
+ *
+ */
+public class TimerService implements Runnable {
+
+	//the duration (in milliseconds) of a tick of the wheel
+	public static final long TICK_DURATION = 100;
+
+	//the number of buckets of the wheel (a power of 2)
+	public static final int WHEEL_SIZE = 512;
+
+	//the number of timeout types per address (see ControlMessage)
+	private static final int MAX_TYPES = 16;
 
-public class TimerService {
-	
 	private static TimerService instance = null;
-	
-	private Timer timer;
+
 	private Dispatcher dispatcher;
-	private Vector<TimeoutTimerTask> timeoutTasks;
+	private Thread timerThread;
+
+	private TimeoutTimerTask[] wheel;
+	private int mask;
+
+	//the number of ticks since the wheel was started
+	private long tick;
+
+	//the registered tasks indexed by address and then by type
+	private HashMap<Address, TimeoutTimerTask[]> timeoutTasks;
 
 
 	/**
 	 * Constructor.
 	 */
 	public TimerService() {
-		timer = new Timer();
-		dispatcher = Dispatcher.getInstance();	
-		timeoutTasks = new Vector<TimeoutTimerTask>();
+		dispatcher = Dispatcher.getInstance();
+		wheel = new TimeoutTimerTask[WHEEL_SIZE];
+		mask = WHEEL_SIZE - 1;
+		tick = 0;
+		timeoutTasks = new HashMap<Address, TimeoutTimerTask[]>();
+		timerThread = new Thread(this, "TimerService");
+		timerThread.start();
 	}
-	
+
 	/**
 	 * This method returns the instance of this object.If there no such an instance
 	 * a new object is created.
-	 * 
+	 *
 	 * @return The instance of this object.
 	 */
 	public static synchronized TimerService getInstance() {
@@ -53,99 +79,206 @@ public class TimerService {
 	}
 
 	/**
-	 * This method schedules a TimeoutTimerTask to the timer for future executions and
-	 * stores it to a list. 
-	 * 
+	 * This method schedules a TimeoutTimerTask for periodic executions.A task that is
+	 * already registered for the same address and type is replaced.
+	 *
 	 * @see TimeoutTimerTask
-	 * 
+	 *
 	 * @param clientAddress The address of the client.
 	 * @param type The type of task/timeout (WAITING_WILLTOPIC, WAITING_WILLMESSAGE, KEEP_ALIVE,etc.).
 	 * @param timeout Expresses the delay and the period (in seconds) of executing the TimeoutTimerTask.
 	 */
 	public void register(Address address, int type, int timeout) {
-		long delay = timeout * 1000;
-		long period = timeout * 1000;
-		
-		TimeoutTimerTask timeoutTimerTask = new TimeoutTimerTask(address,type);
-
-		//put this timeoutTimerTask in a list
-		timeoutTasks.add(timeoutTimerTask);
-		
-		//schedule for future executions
-		timer.scheduleAtFixedRate(timeoutTimerTask, delay, period);		
+		long ticks = (timeout * 1000L + TICK_DURATION - 1) / TICK_DURATION;
+		if (ticks < 1)
+			ticks = 1;
+
+		TimeoutTimerTask timeoutTimerTask = new TimeoutTimerTask(address,type,ticks);
+
+		synchronized (this) {
+			TimeoutTimerTask[] tasks = timeoutTasks.get(address);
+			if (tasks == null) {
+				tasks = new TimeoutTimerTask[MAX_TYPES];
+				timeoutTasks.put(address, tasks);
+			}
+			if (tasks[type] != null)
+				unlink(tasks[type]);
+			tasks[type] = timeoutTimerTask;
+			schedule(timeoutTimerTask);
+		}
 	}
 
 	/**
-	 * This method removes a TimeoutTimerTask from the list and cancels it. 
-	 * 
+	 * This method removes a TimeoutTimerTask from the wheel.
+	 *
 	 * @see TimeoutTimerTask
-	 * 
+	 *
 	 * @param clientAddress The address of the client.
 	 * @param type The type of task/timeout (WAITING_WILLTOPIC, WAITING_WILLMESSAGE, etc.).
 	 */
-	public void unregister(Address address, int type) {
-		for(int i = 0 ; i<timeoutTasks.size(); i++) {
-			TimeoutTimerTask timeout = (TimeoutTimerTask)timeoutTasks.get(i);
-			if(timeout.getAddress().equal(address)) 
-				if (timeout.getType() == type){
-					timeoutTasks.remove(i);
-					timeout.cancel();
-					break;
-				}
-		}
+	public synchronized void unregister(Address address, int type) {
+		TimeoutTimerTask[] tasks = timeoutTasks.get(address);
+		if (tasks == null || tasks[type] == null)
+			return;
+		unlink(tasks[type]);
+		tasks[type] = null;
+		for (int i = 0; i < MAX_TYPES; i++)
+			if (tasks[i] != null)
+				return;
+		timeoutTasks.remove(address);
 	}
-	
+
 	/**
-	 * This method removes a TimeoutTimerTask from the list and cancels it. 
-	 * 
+	 * This method removes all TimeoutTimerTasks of an address from the wheel.
+	 *
 	 * @see TimeoutTimerTask
-	 * 
+	 *
 	 * @param clientAddress The address of the client.
 	 */
-	public void unregister(Address address){
-		for(int i = timeoutTasks.size()-1; i >= 0; i--) {
-			TimeoutTimerTask timeout = (TimeoutTimerTask)timeoutTasks.get(i);
-			if(timeout.getAddress().equal(address)){
-					timeoutTasks.remove(i);
-					timeout.cancel();
+	public synchronized void unregister(Address address){
+		TimeoutTimerTask[] tasks = timeoutTasks.remove(address);
+		if (tasks == null)
+			return;
+		for (int i = 0; i < MAX_TYPES; i++)
+			if (tasks[i] != null)
+				unlink(tasks[i]);
+	}
+
+
+	/* (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	public void run() {
+		long startTime = System.nanoTime();
+		while (true) {
+			//sleep until the deadline of the next tick (fixed rate, like Timer.scheduleAtFixedRate)
+			long deadline = startTime + (tick + 1) * TICK_DURATION * 1000000L;
+			long sleep = (deadline - System.nanoTime()) / 1000000L;
+			if (sleep > 0) {
+				try {
+					Thread.sleep(sleep);
+				} catch (InterruptedException e) {
+					return;
+				}
+				continue;
 			}
-		}		
+
+			TimeoutTimerTask expired = null;
+			synchronized (this) {
+				tick++;
+				TimeoutTimerTask task = wheel[(int)(tick & mask)];
+				while (task != null) {
+					TimeoutTimerTask next = task.next;
+					if (task.remainingRounds > 0) {
+						task.remainingRounds--;
+					} else {
+						//reschedule the task for its next period
+						unlink(task);
+						schedule(task);
+						task.nextExpired = expired;
+						expired = task;
+					}
+					task = next;
+				}
+			}
+
+			//post the control messages outside of the lock
+			while (expired != null) {
+				expired.run();
+				TimeoutTimerTask next = expired.nextExpired;
+				expired.nextExpired = null;
+				expired = next;
+			}
+		}
+	}
+
+
+	/**
+	 * This method puts a task in the bucket where it expires.
+	 *
+	 * @param task The task.
+	 */
+	private void schedule(TimeoutTimerTask task) {
+		long expiration = tick + task.ticks;
+		task.remainingRounds = (task.ticks - 1) / WHEEL_SIZE;
+		task.bucket = (int)(expiration & mask);
+		task.prev = null;
+		task.next = wheel[task.bucket];
+		if (task.next != null)
+			task.next.prev = task;
+		wheel[task.bucket] = task;
+	}
+
+
+	/**
+	 * This method removes a task from its bucket.
+	 *
+	 * @param task The task.
+	 */
+	private void unlink(TimeoutTimerTask task) {
+		if (task.bucket < 0)
+			return;
+		if (task.prev != null)
+			task.prev.next = task.next;
+		else
+			wheel[task.bucket] = task.next;
+		if (task.next != null)
+			task.next.prev = task.prev;
+		task.prev = null;
+		task.next = null;
+		task.bucket = -1;
 	}
-	
+
 
 	/**
 	 * This object represents a TimeoutTimerTask.It is uniquely identified
 	 * by the clientAddress and the type of task/timeout (WAITING_WILLTOPIC, etc.)
 	 *
 	 */
-	 public class TimeoutTimerTask extends TimerTask {
+	 public class TimeoutTimerTask {
 		Address address;
 		int type;
-		
+
+		//the period of the task in ticks
+		long ticks;
+
+		//the number of full turns of the wheel before the task expires
+		long remainingRounds;
+
+		//the bucket of the task (-1 if the task is not in the wheel)
+		int bucket = -1;
+		TimeoutTimerTask prev;
+		TimeoutTimerTask next;
+
+		//links the tasks that expired on the same tick
+		TimeoutTimerTask nextExpired;
+
 		/**
 		* Constructor.
-		* 
+		*
 		* @param clientAddress The address of the client.
 		* @param type The type of task/timeout (WAITING_WILLTOPIC, WAITING_WILLMESSAGE,etc.
+		* @param ticks The period of the task in ticks.
 		*/
-		public TimeoutTimerTask(Address addr, int type) {
+		public TimeoutTimerTask(Address addr, int type, long ticks) {
 			this.address = addr;
 			this.type = type;
+			this.ticks = ticks;
 		}
-		
-		/* (non-Javadoc)
-		 * @see java.util.TimerTask#run()
+
+		/**
+		 * This method puts a control message of the type of this task to the Dispatcher's queue.
 		 */
 		public void run(){
 			//create new control message
 			ControlMessage controlMsg = new ControlMessage();
 			controlMsg.setMsgType(type);
-			
+
 			//create an "internal" message
 			Message msg = new Message(this.address);
 			msg.setType(Message.CONTROL_MSG);
 			msg.setControlMessage(controlMsg);
-			
+
 			//put this message to the Dispatcher's queue
 			dispatcher.putMessage(msg);
         }
@@ -11,6 +11,8 @@
 package com.ibm.zurich.mqttsgw.utils;
 
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
 
 
 /**
@@ -27,10 +29,13 @@ public class ClientAddress extends Address{
 	private int port = 0;
 	private boolean isEncaps;  //whether fw-encapsulation is used by this client or not
 	private byte[] encaps;
+	private int hash;  //cached hash code of the client address bytes
+	private InetSocketAddress socketAddress;  //cached socket address of the forwarder
 
 	
 	public ClientAddress(byte[] addr) {
 		this.clientAddress = addr;
+		this.hash = Arrays.hashCode(addr);
 		this.ipAddress = null;
 		this.port = 0;
 		this.isEncaps = true;
@@ -38,6 +43,7 @@ public class ClientAddress extends Address{
 	
 	public ClientAddress(byte[] addr, InetAddress ipAddr, int port, boolean isencaps, byte[] encaps) {
 		this.clientAddress = addr;
+		this.hash = Arrays.hashCode(addr);
 		this.ipAddress = ipAddr;
 		this.port   = port;
 		this.isEncaps = isencaps;
@@ -62,11 +68,24 @@ public class ClientAddress extends Address{
 	public int getPort() {
 		return this.port;
 	}
+	
+	/**
+	 * @return The IP address and the port of the forwarder as a socket address.
+	 */
+	public InetSocketAddress getSocketAddress() {
+		InetSocketAddress sa = this.socketAddress;
+		if(sa == null) {
+			sa = new InetSocketAddress(this.ipAddress, this.port);
+			this.socketAddress = sa;
+		}
+		return sa;
+	}
 		
 	public void setIPaddress(Address addr) {
 		ClientAddress clientAddr = (ClientAddress) addr;
 		this.ipAddress = clientAddr.ipAddress;
 		this.port   = clientAddr.port;
+		this.socketAddress = clientAddr.socketAddress;
 	}
 
 	public boolean equal(Object o) {
@@ -94,4 +113,22 @@ public class ClientAddress extends Address{
 			return ok;
 		}
 	}
+
+	
+	/* (non-Javadoc)
+	 * The hash code depends only on the client address bytes (the wireless node id),
+	 * as {@link #equal(Object)} does, so that the IP address and port of the forwarder
+	 * can change without changing the hash code.
+	 * @see java.lang.Object#hashCode()
+	 */
+	public int hashCode() {
+		return hash;
+	}
+	
+	/* (non-Javadoc)
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	public boolean equals(Object o) {
+		return equal(o);
+	}
 }
\ No newline at end of file
@@ -107,6 +107,7 @@ public class ConfigurationParser {
 				}					
 			}			
 			GWParameters.setPredefTopicIdTable(table);
+			GWParameters.setPredefinedTopicTable(new PredefinedTopicTable(table, predfTopicIdSize));
 			
 			
 			String sGwId = pr.getProperty("gwId");
@@ -134,6 +135,20 @@ public class ConfigurationParser {
 			}
 			GWParameters.setAdvPeriod(advPeriod);
 
+
+			String ssearch = pr.getProperty("searchGwInterval");
+			int searchGwInterval = 0;
+			if (ssearch != null){
+				try{
+					searchGwInterval = Integer.parseInt(ssearch.trim());
+					if(searchGwInterval < 0)
+						throw new MqttsException("SEARCHGW interval should not be negative");
+				}catch(NumberFormatException e){
+					throw new MqttsException("SEARCHGW interval - Format error "+ e.getMessage());
+				}
+			}
+			GWParameters.setSearchGwInterval(searchGwInterval);
+
 			
 			String skeepalive = pr.getProperty("keepAlivePeriod");
 			if (skeepalive == null)
@@ -175,7 +190,49 @@ public class ConfigurationParser {
 				throw new MqttsException("Waiting time - Format error "+ e.getMessage());				
 			}
 			GWParameters.setWaitingTime(waitingTime);
-			
+
+
+			String sinflight = pr.getProperty("maxInflightPublishes");
+			int maxInflightPublishes = 1;
+			if (sinflight != null){
+				try{
+					maxInflightPublishes = Integer.parseInt(sinflight.trim());
+					if(maxInflightPublishes < 1)
+						throw new MqttsException("Maximum number of in-flight publishes should be greater than 0");
+				}catch(NumberFormatException e){
+					throw new MqttsException("Maximum number of in-flight publishes - Format error "+ e.getMessage());
+				}
+			}
+			GWParameters.setMaxInflightPublishes(maxInflightPublishes);
+
+
+			String sregisters = pr.getProperty("maxPendingRegisters");
+			int maxPendingRegisters = 1;
+			if (sregisters != null){
+				try{
+					maxPendingRegisters = Integer.parseInt(sregisters.trim());
+					if(maxPendingRegisters < 1)
+						throw new MqttsException("Maximum number of pending registers should be greater than 0");
+				}catch(NumberFormatException e){
+					throw new MqttsException("Maximum number of pending registers - Format error "+ e.getMessage());
+				}
+			}
+			GWParameters.setMaxPendingRegisters(maxPendingRegisters);
+
+
+			String squeued = pr.getProperty("maxQueuedPublishes");
+			int maxQueuedPublishes = 1;
+			if (squeued != null){
+				try{
+					maxQueuedPublishes = Integer.parseInt(squeued.trim());
+					if(maxQueuedPublishes < 1)
+						throw new MqttsException("Maximum number of queued publishes should be greater than 0");
+				}catch(NumberFormatException e){
+					throw new MqttsException("Maximum number of queued publishes - Format error "+ e.getMessage());
+				}
+			}
+			GWParameters.setMaxQueuedPublishes(maxQueuedPublishes);
+
 			
 			String smaxlength = pr.getProperty("maxMqttsLength");
 			if (smaxlength == null)
@@ -281,12 +338,203 @@ public class ConfigurationParser {
 			GWParameters.setCkeckingPeriod(checkingPeriod);
 			
 			
+			String slanes = pr.getProperty("dispatcherLanes");
+			int dispatcherLanes = 1;
+			if (slanes != null){
+				try{
+					dispatcherLanes = Integer.parseInt(slanes.trim());
+					if(dispatcherLanes < 1)
+						throw new MqttsException("Number of dispatcher lanes should be greater than 0");
+				}catch(NumberFormatException e){
+					throw new MqttsException("Number of dispatcher lanes - Format error "+ e.getMessage());				
+				}
+			}
+			GWParameters.setDispatcherLanes(dispatcherLanes);
+			
+			
+			String sspins = pr.getProperty("dispatcherSpins");
+			int dispatcherSpins = 0;
+			if (sspins != null){
+				try{
+					dispatcherSpins = Integer.parseInt(sspins.trim());
+					if(dispatcherSpins < 0)
+						throw new MqttsException("Number of dispatcher spins should not be negative");
+				}catch(NumberFormatException e){
+					throw new MqttsException("Number of dispatcher spins - Format error "+ e.getMessage());				
+				}
+			}
+			GWParameters.setDispatcherSpins(dispatcherSpins);
+			
+			
+			String squeuesize = pr.getProperty("dispatcherQueueSize");
+			int dispatcherQueueSize = 10000;
+			if (squeuesize != null){
+				try{
+					dispatcherQueueSize = Integer.parseInt(squeuesize.trim());
+					if(dispatcherQueueSize < 0)
+						throw new MqttsException("Dispatcher queue size should not be negative");
+				}catch(NumberFormatException e){
+					throw new MqttsException("Dispatcher queue size - Format error "+ e.getMessage());				
+				}
+			}
+			GWParameters.setDispatcherQueueSize(dispatcherQueueSize);
+			
+			
+			boolean aggregatingMode = false;
+			String gatewayMode = pr.getProperty("gatewayMode");
+			if (gatewayMode != null) {
+				if (gatewayMode.trim().equalsIgnoreCase("aggregating"))
+					aggregatingMode = true;
+				else if (!gatewayMode.trim().equalsIgnoreCase("transparent"))
+					throw new MqttsException("Gateway mode should be either \"transparent\" or \"aggregating\"");
+			}
+			GWParameters.setAggregatingMode(aggregatingMode);
+			
+			
+			String sbrokercon = pr.getProperty("brokerConnections");
+			int brokerConnections = 1;
+			if (sbrokercon != null){
+				try{
+					brokerConnections = Integer.parseInt(sbrokercon.trim());
+					if(brokerConnections < 1)
+						throw new MqttsException("Number of broker connections should be greater than 0");
+				}catch(NumberFormatException e){
+					throw new MqttsException("Number of broker connections - Format error "+ e.getMessage());				
+				}
+			}
+			GWParameters.setBrokerConnections(brokerConnections);
+			
+			
+			boolean nioBrokerInterface = false;
+			String brokerInterface = pr.getProperty("brokerInterface");
+			if (brokerInterface != null) {
+				if (brokerInterface.trim().equalsIgnoreCase("nio"))
+					nioBrokerInterface = true;
+				else if (!brokerInterface.trim().equalsIgnoreCase("tcp"))
+					throw new MqttsException("Broker interface should be either \"tcp\" or \"nio\"");
+			}
+			GWParameters.setNioBrokerInterface(nioBrokerInterface);
+			
+			
+			boolean localPingResp = false;
+			String pingMode = pr.getProperty("pingMode");
+			if (pingMode != null) {
+				if (pingMode.trim().equalsIgnoreCase("local"))
+					localPingResp = true;
+				else if (!pingMode.trim().equalsIgnoreCase("relay"))
+					throw new MqttsException("Ping mode should be either \"relay\" or \"local\"");
+			}
+			GWParameters.setLocalPingResp(localPingResp);
+			
+			
+			String sbrokerkeepalive = pr.getProperty("brokerKeepAlive");
+			int brokerKeepAlive = 600;
+			if (sbrokerkeepalive != null){
+				try{
+					brokerKeepAlive = Integer.parseInt(sbrokerkeepalive.trim());
+					//the broker must receive a keep alive within 1.5 times this period and the
+					//keep alives are sent on the ticks of the keep alive period of the gateway
+					if(brokerKeepAlive < 2 * keepAlivePeriod)
+						throw new MqttsException("Broker keep alive period should be at least twice the keep alive period");
+				}catch(NumberFormatException e){
+					throw new MqttsException("Broker keep alive period - Format error "+ e.getMessage());				
+				}
+			}
+			GWParameters.setBrokerKeepAlive(brokerKeepAlive);
+			
+			
+			String sselectors = pr.getProperty("brokerSelectors");
+			int brokerSelectors = 1;
+			if (sselectors != null){
+				try{
+					brokerSelectors = Integer.parseInt(sselectors.trim());
+					if(brokerSelectors < 1)
+						throw new MqttsException("Number of broker selectors should be greater than 0");
+				}catch(NumberFormatException e){
+					throw new MqttsException("Number of broker selectors - Format error "+ e.getMessage());				
+				}
+			}
+			GWParameters.setBrokerSelectors(brokerSelectors);
+			
+			
 			String serialUrl = pr.getProperty("serialPortURL");
 			if (serialUrl == null)
 				throw new MqttsException("There is no serial port url defined");		
 			GWParameters.setSerialPortURL(serialUrl);
 
 			
+			String sreceivers = pr.getProperty("udpReceiveThreads");
+			int udpReceiveThreads = 1;
+			if (sreceivers != null){
+				try{
+					udpReceiveThreads = Integer.parseInt(sreceivers.trim());
+					if(udpReceiveThreads < 1)
+						throw new MqttsException("Number of UDP receiving threads should be greater than 0");
+				}catch(NumberFormatException e){
+					throw new MqttsException("Number of UDP receiving threads - Format error "+ e.getMessage());				
+				}
+			}
+			GWParameters.setUdpReceiveThreads(udpReceiveThreads);
+			
+			
+			String sclientlimit = pr.getProperty("clientRateLimit");
+			int clientRateLimit = 0;
+			if (sclientlimit != null){
+				try{
+					clientRateLimit = Integer.parseInt(sclientlimit.trim());
+					if(clientRateLimit < 0)
+						throw new MqttsException("Client rate limit should not be negative");
+				}catch(NumberFormatException e){
+					throw new MqttsException("Client rate limit - Format error "+ e.getMessage());				
+				}
+			}
+			GWParameters.setClientRateLimit(clientRateLimit);
+			
+			
+			String sclientburst = pr.getProperty("clientRateBurst");
+			//by default a client may send the datagrams of one second at once
+			int clientRateBurst = Math.max(clientRateLimit, 1);
+			if (sclientburst != null){
+				try{
+					clientRateBurst = Integer.parseInt(sclientburst.trim());
+					if(clientRateBurst < 1)
+						throw new MqttsException("Client rate burst should be greater than 0");
+				}catch(NumberFormatException e){
+					throw new MqttsException("Client rate burst - Format error "+ e.getMessage());				
+				}
+			}
+			GWParameters.setClientRateBurst(clientRateBurst);
+			
+			
+			String sfwlimit = pr.getProperty("forwarderRateLimit");
+			int forwarderRateLimit = 0;
+			if (sfwlimit != null){
+				try{
+					forwarderRateLimit = Integer.parseInt(sfwlimit.trim());
+					if(forwarderRateLimit < 0)
+						throw new MqttsException("Forwarder rate limit should not be negative");
+				}catch(NumberFormatException e){
+					throw new MqttsException("Forwarder rate limit - Format error "+ e.getMessage());				
+				}
+			}
+			GWParameters.setForwarderRateLimit(forwarderRateLimit);
+			
+			
+			String sfwburst = pr.getProperty("forwarderRateBurst");
+			//by default a forwarder may send the datagrams of one second at once
+			int forwarderRateBurst = Math.max(forwarderRateLimit, 1);
+			if (sfwburst != null){
+				try{
+					forwarderRateBurst = Integer.parseInt(sfwburst.trim());
+					if(forwarderRateBurst < 1)
+						throw new MqttsException("Forwarder rate burst should be greater than 0");
+				}catch(NumberFormatException e){
+					throw new MqttsException("Forwarder rate burst - Format error "+ e.getMessage());				
+				}
+			}
+			GWParameters.setForwarderRateBurst(forwarderRateBurst);
+			
+			
 			String clientIntString = pr.getProperty("clientInterfaces");
 			if (clientIntString == null)
 				throw new MqttsException("There are no client interfaces defined");		
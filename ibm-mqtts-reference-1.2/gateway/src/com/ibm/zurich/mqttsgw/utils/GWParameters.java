@@ -26,6 +26,10 @@ public class GWParameters {
 	
 	//the period (in seconds) of broadcasting the Mqtts ADVERTISE message to the network
 	public static long advPeriod; 
+	
+	//the time (in seconds) during which the Mqtts SEARCHGW messages with the same radius
+	//are answered by a single Mqtts GWINFO broadcast (0 means every one is answered)
+	private static int searchGwInterval = 0;
 
 	//the period (in seconds) of sending the Mqtt PINGRESP message to the broker
 	public static int keepAlivePeriod; 
@@ -36,6 +40,15 @@ public class GWParameters {
 	//maximum time (in seconds) waiting for a message from the client
 	public static int waitingTime;
 	
+	//the maximum number of Mqtts PUBLISH messages with QoS 1 or 2 of a client in progress with the broker
+	private static int maxInflightPublishes = 1;
+	
+	//the maximum number of Mqtts REGISTER messages to a client that wait for a Mqtts REGACK at the same time
+	private static int maxPendingRegisters = 1;
+	
+	//the maximum number of Mqtt PUBLISH messages per topic name that wait for the Mqtts REGACK
+	private static int maxQueuedPublishes = 1;
+	
 	//the maximum number of predefined topic ids
 	private static int predfTopicIdSize;
 	
@@ -73,6 +86,47 @@ public class GWParameters {
 	//themselves from Dispatcher's mapping table if they are inactive for at least handlerTimeout seconds
 	private static long ckeckingPeriod;
 	
+	//the number of lanes (queues and threads) of the Dispatcher
+	private static int dispatcherLanes = 1;
+	
+	//the number of times a Dispatcher lane checks its empty queue before it parks
+	private static int dispatcherSpins = 0;
+	
+	//the capacity of the queue of a Dispatcher lane (0 means unbounded)
+	private static int dispatcherQueueSize = 10000;
+	
+	//whether the gateway runs in aggregating mode (all clients share a pool of broker connections)
+	//or in transparent mode (every client has its own broker connection)
+	private static boolean aggregatingMode = false;
+	
+	//the number of broker connections that are shared by the clients in aggregating mode
+	private static int brokerConnections = 1;
+	
+	//whether the clients use the NIO broker interface (served by a few selector threads)
+	//instead of the TCP broker interface (one reading thread per client)
+	private static boolean nioBrokerInterface = false;
+	
+	//the number of selector threads that serve the NIO broker interfaces
+	private static int brokerSelectors = 1;
+	
+	//whether the gateway answers the Mqtts PINGREQ messages of the clients itself
+	//instead of relaying them to the broker
+	private static boolean localPingResp = false;
+	
+	//the keep alive period (in seconds) of the broker connections of the clients
+	//when the gateway answers the Mqtts PINGREQ messages itself
+	private static int brokerKeepAlive = 600;
+	
+	//the rate limits (datagrams per second, 0 means no limit) and the bursts (datagrams)
+	//of every client and of every forwarder of the UDP client interfaces
+	private static int clientRateLimit = 0;
+	private static int clientRateBurst = 1;
+	private static int forwarderRateLimit = 0;
+	private static int forwarderRateBurst = 1;
+	
+	//the number of threads (and sockets) that receive the datagrams of the NIO UDP client interface
+	private static int udpReceiveThreads = 1;
+	
 	//a String for storing the names of all available client interfaces
 	private static String clientIntString;
 	
@@ -81,6 +135,9 @@ public class GWParameters {
 	
 	//a hashtable for storing predefined topic ids
 	private static Hashtable<?, ?> predefTopicIdTable;
+	
+	//the predefined topic ids shared by all mapping tables
+	private static PredefinedTopicTable predefinedTopicTable;
 
 	
 	//other parameters of the Mqtt CONNECT message that GatewayMsgHandler sends to the broker
@@ -113,6 +170,14 @@ public class GWParameters {
 		GWParameters.advPeriod = advPeriod;
 	}
 
+	public static int getSearchGwInterval() {
+		return searchGwInterval;
+	}
+
+	public static void setSearchGwInterval(int searchGwInterval) {
+		GWParameters.searchGwInterval = searchGwInterval;
+	}
+
 	public static int getMaxRetries() {
 		return maxRetries;
 	}
@@ -129,6 +194,30 @@ public class GWParameters {
 		GWParameters.waitingTime = waitingTime;
 	}
 
+	public static int getMaxInflightPublishes() {
+		return maxInflightPublishes;
+	}
+
+	public static void setMaxInflightPublishes(int maxInflightPublishes) {
+		GWParameters.maxInflightPublishes = maxInflightPublishes;
+	}
+
+	public static int getMaxPendingRegisters() {
+		return maxPendingRegisters;
+	}
+
+	public static void setMaxPendingRegisters(int maxPendingRegisters) {
+		GWParameters.maxPendingRegisters = maxPendingRegisters;
+	}
+
+	public static int getMaxQueuedPublishes() {
+		return maxQueuedPublishes;
+	}
+
+	public static void setMaxQueuedPublishes(int maxQueuedPublishes) {
+		GWParameters.maxQueuedPublishes = maxQueuedPublishes;
+	}
+
 	public static int getPredfTopicIdSize() {
 		return predfTopicIdSize;
 	}
@@ -185,6 +274,118 @@ public class GWParameters {
 		GWParameters.ckeckingPeriod = ckeckingPeriod;
 	}
 
+	public static int getDispatcherLanes() {
+		return dispatcherLanes;
+	}
+
+	public static void setDispatcherLanes(int dispatcherLanes) {
+		GWParameters.dispatcherLanes = dispatcherLanes;
+	}
+
+	public static int getDispatcherSpins() {
+		return dispatcherSpins;
+	}
+
+	public static void setDispatcherSpins(int dispatcherSpins) {
+		GWParameters.dispatcherSpins = dispatcherSpins;
+	}
+
+	public static int getDispatcherQueueSize() {
+		return dispatcherQueueSize;
+	}
+
+	public static void setDispatcherQueueSize(int dispatcherQueueSize) {
+		GWParameters.dispatcherQueueSize = dispatcherQueueSize;
+	}
+
+	public static boolean isAggregatingMode() {
+		return aggregatingMode;
+	}
+
+	public static void setAggregatingMode(boolean aggregatingMode) {
+		GWParameters.aggregatingMode = aggregatingMode;
+	}
+
+	public static int getBrokerConnections() {
+		return brokerConnections;
+	}
+
+	public static void setBrokerConnections(int brokerConnections) {
+		GWParameters.brokerConnections = brokerConnections;
+	}
+
+	public static boolean isNioBrokerInterface() {
+		return nioBrokerInterface;
+	}
+
+	public static void setNioBrokerInterface(boolean nioBrokerInterface) {
+		GWParameters.nioBrokerInterface = nioBrokerInterface;
+	}
+
+	public static boolean isLocalPingResp() {
+		return localPingResp;
+	}
+
+	public static void setLocalPingResp(boolean localPingResp) {
+		GWParameters.localPingResp = localPingResp;
+	}
+
+	public static int getBrokerKeepAlive() {
+		return brokerKeepAlive;
+	}
+
+	public static void setBrokerKeepAlive(int brokerKeepAlive) {
+		GWParameters.brokerKeepAlive = brokerKeepAlive;
+	}
+
+	public static int getBrokerSelectors() {
+		return brokerSelectors;
+	}
+
+	public static void setBrokerSelectors(int brokerSelectors) {
+		GWParameters.brokerSelectors = brokerSelectors;
+	}
+
+	public static int getUdpReceiveThreads() {
+		return udpReceiveThreads;
+	}
+
+	public static void setUdpReceiveThreads(int udpReceiveThreads) {
+		GWParameters.udpReceiveThreads = udpReceiveThreads;
+	}
+
+	public static int getClientRateLimit() {
+		return clientRateLimit;
+	}
+
+	public static void setClientRateLimit(int clientRateLimit) {
+		GWParameters.clientRateLimit = clientRateLimit;
+	}
+
+	public static int getClientRateBurst() {
+		return clientRateBurst;
+	}
+
+	public static void setClientRateBurst(int clientRateBurst) {
+		GWParameters.clientRateBurst = clientRateBurst;
+	}
+
+	public static int getForwarderRateLimit() {
+		return forwarderRateLimit;
+	}
+
+	public static void setForwarderRateLimit(int forwarderRateLimit) {
+		GWParameters.forwarderRateLimit = forwarderRateLimit;
+	}
+
+	public static int getForwarderRateBurst() {
+		return forwarderRateBurst;
+	}
+
+	public static void setForwarderRateBurst(int forwarderRateBurst) {
+		GWParameters.forwarderRateBurst = forwarderRateBurst;
+	}
+
 	public static GatewayAddress getGatewayAddress() {
 		return gatewayAddress;
 	}
@@ -321,6 +522,14 @@ public class GWParameters {
 		GWParameters.predefTopicIdTable = predefTopicIdTable;
 	}
 
+	public static PredefinedTopicTable getPredefinedTopicTable() {
+		return predefinedTopicTable;
+	}
+
+	public static void setPredefinedTopicTable(PredefinedTopicTable predefinedTopicTable) {
+		GWParameters.predefinedTopicTable = predefinedTopicTable;
+	}
+
 	public static String getSerialPortURL() {
 		return serialPortURL;
 	}
@@ -11,6 +11,7 @@
 package com.ibm.zurich.mqttsgw.utils;
 
 import java.net.InetAddress;
+import java.util.Arrays;
 
 
 /**
@@ -84,4 +85,19 @@ public class GatewayAddress extends Address{
 			return ok;
 		}
 	}
+
+	
+	/* (non-Javadoc)
+	 * @see java.lang.Object#hashCode()
+	 */
+	public int hashCode() {
+		return Arrays.hashCode(gatewayAddress);
+	}
+	
+	/* (non-Javadoc)
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	public boolean equals(Object o) {
+		return equal(o);
+	}
 }
\ No newline at end of file
@@ -16,49 +16,88 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.ibm.zurich.mqttsgw.exceptions.MqttsException;
 
+/**
+ * This class is the logger of the gateway.
+ * The messages are put in a bounded queue and are formatted and written by a background
+ * thread, which flushes the output once per batch of messages.If the queue is full, INFO
+ * and WARN messages are dropped (and counted) instead of blocking the caller; ERROR messages
+ * wait (at most {@link #ERROR_TIMEOUT} milliseconds) for free space.A message that cannot be
+ * formatted or written is skipped, so the background thread keeps running.
+ * The parameterized log methods replace every "{}" of the pattern with the next argument
+ * (byte arrays are written in hex) only if the level is enabled, so that disabled levels
+ * cost nothing.The arguments are formatted by the background thread and should therefore
+ * not be modified after the call.
+ *
+ */
 public class GatewayLogger {
-	
+
 	public final static int INFO  = 1;
 	public final static int WARN  = 2;
 	public final static int ERROR = 3;
-	
-	private static int LOG_LEVEL = INFO;
-	
+
+	private static volatile int LOG_LEVEL = INFO;
+
+	//the capacity of the queue of the messages waiting to be written
+	public final static int QUEUE_CAPACITY = 16384;
+
+	//the maximum number of messages written before flushing the output
+	private final static int BATCH_SIZE = 256;
+
+	//the maximum time (in milliseconds) an ERROR message waits for free space in the queue
+	public final static long ERROR_TIMEOUT = 1000;
+
+	private final static ArrayBlockingQueue<LogRecord> queue = new ArrayBlockingQueue<LogRecord>(QUEUE_CAPACITY);
+
+	//the number of messages dropped because the queue was full
+	private final static AtomicLong dropped = new AtomicLong();
+
+	//the number of messages put in the queue and the number of messages written
+	private final static AtomicLong enqueued = new AtomicLong();
+	private static long written = 0;
+
+	private static FileWriter fileWriter;
+	private static PrintWriter printWriter;
+
+	//protects the writers
+	private final static Object writeLock = new Object();
+
+	static {
+		Thread writerThread = new Thread(new LogWriter(), "GatewayLogger");
+		writerThread.setDaemon(true);
+		writerThread.start();
+
+		//write the remaining messages when the gateway exits
+		Runtime.getRuntime().addShutdownHook(new Thread("GatewayLoggerFlush") {
+			public void run() {
+				flush();
+			}
+		});
+	}
+
 
 	public static void info(String msg) {
-		DateFormat dFormat = new SimpleDateFormat("dd MMM yyyy HH:mm:ss z");
-		System.out.println(dFormat.format(new Date())+ "  INFO:  " + msg);
-		if(printWriter != null){
-			printWriter.println(dFormat.format(new Date())+ "  INFO:  " + msg);
-			printWriter.flush();
-		}			
+		enqueue(new LogRecord(INFO, msg, null));
 	}
-	
+
 	public static void warn(String msg) {
-		DateFormat dFormat= new SimpleDateFormat("dd MMM yyyy HH:mm:ss z");
-		System.err.println(dFormat.format(new Date())+ "  WARN:  "+ msg);
-		if(printWriter != null){
-			printWriter.println(dFormat.format(new Date())+ "  WARN:  "+ msg);
-			printWriter.flush();
-		}
+		enqueue(new LogRecord(WARN, msg, null));
 	}
 
-	public static void error(String msg) {	
-		DateFormat dFormat= new SimpleDateFormat("dd MMM yyyy HH:mm:ss z");
-		System.err.println(dFormat.format(new Date())+ "  ERROR: " + msg);
-		if(printWriter != null){
-			printWriter.println(dFormat.format(new Date())+ "  ERROR: " + msg);
-			printWriter.flush();
-		}
+	public static void error(String msg) {
+		enqueue(new LogRecord(ERROR, msg, null));
 	}
 
-	
+
 	public static void log(int logLevel, String msg) {
-		if(logLevel >= LOG_LEVEL) {			
+		if(logLevel >= LOG_LEVEL) {
 			switch (logLevel){
 				case INFO:
 					info(msg);
@@ -74,26 +113,242 @@ public class GatewayLogger {
 		}
 	}
 
-	
+	public static void log(int logLevel, String pattern, Object arg) {
+		if(logLevel >= LOG_LEVEL && logLevel <= ERROR)
+			enqueue(new LogRecord(logLevel, pattern, new Object[] {arg}));
+	}
+
+	public static void log(int logLevel, String pattern, Object arg1, Object arg2) {
+		if(logLevel >= LOG_LEVEL && logLevel <= ERROR)
+			enqueue(new LogRecord(logLevel, pattern, new Object[] {arg1, arg2}));
+	}
+
+	public static void log(int logLevel, String pattern, Object arg1, Object arg2, Object arg3) {
+		if(logLevel >= LOG_LEVEL && logLevel <= ERROR)
+			enqueue(new LogRecord(logLevel, pattern, new Object[] {arg1, arg2, arg3}));
+	}
+
+	public static void log(int logLevel, String pattern, Object arg1, Object arg2, Object arg3, Object... args) {
+		if(logLevel >= LOG_LEVEL && logLevel <= ERROR) {
+			Object[] all = new Object[args.length + 3];
+			all[0] = arg1;
+			all[1] = arg2;
+			all[2] = arg3;
+			System.arraycopy(args, 0, all, 3, args.length);
+			enqueue(new LogRecord(logLevel, pattern, all));
+		}
+	}
+
+
+	/**
+	 * @param logLevel The log level.
+	 * @return True if the messages of this level are logged.
+	 */
+	public static boolean isLoggable(int logLevel) {
+		return logLevel >= LOG_LEVEL;
+	}
+
+
 	public static void setLogLevel(int logLevel) {
 		LOG_LEVEL = logLevel;
 	}
-	
-	
-	private static FileWriter fileWriter;
-	private static PrintWriter printWriter;
-	
+
+
+	/**
+	 * @return The number of messages that were dropped because the queue was full.
+	 */
+	public static long getDroppedMessages() {
+		return dropped.get();
+	}
+
+
 	public static void setLogFile(String file) throws MqttsException {
 		DateFormat dFormat = new SimpleDateFormat("dd MMM yyyy HH:mm:ss z");
-		try {
-			fileWriter = new FileWriter(file);
-			printWriter = new PrintWriter(fileWriter);
-			printWriter.println();
-			printWriter.println(dFormat.format(new Date())+ "  INFO:  -----------------------------------------Mqtts Gateway starting----------------------------------------");
-			printWriter.println(dFormat.format(new Date())+ "  INFO:  Loading Mqtts Gateway parameters....");
-		} catch(IOException e) {
-			e.printStackTrace();
-			throw new MqttsException (e.getMessage());
+		synchronized (writeLock) {
+			try {
+				fileWriter = new FileWriter(file);
+				printWriter = new PrintWriter(fileWriter);
+				printWriter.println();
+				printWriter.println(dFormat.format(new Date())+ "  INFO:  -----------------------------------------Mqtts Gateway starting----------------------------------------");
+				printWriter.println(dFormat.format(new Date())+ "  INFO:  Loading Mqtts Gateway parameters....");
+			} catch(IOException e) {
+				e.printStackTrace();
+				throw new MqttsException (e.getMessage());
+			}
+		}
+	}
+
+
+	/**
+	 * This method waits (at most 2 seconds) until all messages logged so far are written.
+	 */
+	public static void flush() {
+		long target = enqueued.get();
+		long deadline = System.currentTimeMillis() + 2000;
+		synchronized (writeLock) {
+			while (written < target) {
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0)
+					break;
+				try {
+					writeLock.wait(wait);
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+		}
+	}
+
+
+	private static void enqueue(LogRecord record) {
+		if (record.level == ERROR) {
+			//errors are dropped only if the queue stays full
+			try {
+				if (!queue.offer(record, ERROR_TIMEOUT, TimeUnit.MILLISECONDS)) {
+					dropped.incrementAndGet();
+					return;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		} else if (!queue.offer(record)) {
+			dropped.incrementAndGet();
+			return;
+		}
+		enqueued.incrementAndGet();
+	}
+
+
+	/**
+	 * This object represents a message waiting to be written.
+	 */
+	private static class LogRecord {
+		int level;
+		long time;
+		String pattern;
+		Object[] args;
+
+		LogRecord(int level, String pattern, Object[] args) {
+			this.level = level;
+			this.time = System.currentTimeMillis();
+			this.pattern = pattern;
+			this.args = args;
+		}
+
+		/**
+		 * @return The message with the arguments in place of the "{}".
+		 */
+		String format() {
+			if (args == null)
+				return pattern;
+			StringBuilder sb = new StringBuilder(pattern.length() + 32 * args.length);
+			int start = 0;
+			int argIndex = 0;
+			while (argIndex < args.length) {
+				int i = pattern.indexOf("{}", start);
+				if (i < 0)
+					break;
+				sb.append(pattern, start, i);
+				Object arg = args[argIndex++];
+				if (arg instanceof byte[])
+					sb.append(Utils.hexString((byte[])arg));
+				else
+					sb.append(arg);
+				start = i + 2;
+			}
+			sb.append(pattern, start, pattern.length());
+			return sb.toString();
+		}
+	}
+
+
+	/**
+	 * This object represents the background thread that formats and writes the messages.
+	 */
+	private static class LogWriter implements Runnable {
+
+		private DateFormat dFormat = new SimpleDateFormat("dd MMM yyyy HH:mm:ss z");
+
+		//the formatted date of the last second written
+		private long lastSecond = -1;
+		private String lastDate;
+
+		private long lastDropped = 0;
+
+		public void run() {
+			ArrayList<LogRecord> batch = new ArrayList<LogRecord>(BATCH_SIZE);
+			while (true) {
+				try {
+					batch.add(queue.take());
+				} catch (InterruptedException e) {
+					return;
+				}
+				queue.drainTo(batch, BATCH_SIZE - 1);
+
+				synchronized (writeLock) {
+					try {
+						long nowDropped = dropped.get();
+						if (nowDropped != lastDropped) {
+							writeSafely(new LogRecord(WARN, (nowDropped - lastDropped) + " log message(s) dropped, the queue of the logger is full.", null));
+							lastDropped = nowDropped;
+						}
+						for (int i = 0; i < batch.size(); i++)
+							writeSafely(batch.get(i));
+
+						System.out.flush();
+						System.err.flush();
+						if (printWriter != null)
+							printWriter.flush();
+					} finally {
+						written += batch.size();
+						writeLock.notifyAll();
+					}
+				}
+				batch.clear();
+			}
+		}
+
+		/**
+		 * This method writes a message and skips it if it cannot be formatted or written
+		 * (for example if the toString() method of an argument fails).
+		 */
+		private void writeSafely(LogRecord record) {
+			try {
+				write(record);
+			} catch (Throwable t) {
+				try {
+					System.err.println("GatewayLogger - A log message could not be written: " + t);
+				} catch (Throwable ignore) {
+					// nothing more can be done
+				}
+			}
+		}
+
+		private void write(LogRecord record) {
+			long second = record.time / 1000;
+			if (second != lastSecond) {
+				lastDate = dFormat.format(new Date(record.time));
+				lastSecond = second;
+			}
+
+			String line;
+			switch (record.level) {
+			case INFO:
+				line = lastDate + "  INFO:  " + record.format();
+				System.out.println(line);
+				break;
+			case WARN:
+				line = lastDate + "  WARN:  " + record.format();
+				System.err.println(line);
+				break;
+			default:
+				line = lastDate + "  ERROR: " + record.format();
+				System.err.println(line);
+				break;
+			}
+			if (printWriter != null)
+				printWriter.println(line);
 		}
 	}
 }
\ No newline at end of file
@@ -10,44 +10,220 @@
 
 package com.ibm.zurich.mqttsgw.utils;
 
-import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
-public class MsgQueue {	
-	
-	private LinkedList<Object> queue = new LinkedList<Object>();
-	
-	 /**
+/**
+ * This class implements a queue with many writing threads and a single reading thread.
+ * The queue has two lanes: the objects that are added with {@link #addFirst(Object)}
+ * (the control messages) are read before the objects that are added with {@link #addLast(Object)}.
+ * Each lane is a linked list to which the writers append without locking (an atomic swap
+ * of its tail), so the writers never block each other or the reader.
+ * The reader takes the objects one by one ({@link #get()}) or in batches ({@link #get(Object[])});
+ * when the queue is empty it spins for a number of times and then parks until a writer
+ * wakes it up.
+ *
+ */
+public class MsgQueue {
+
+	//the lane of the objects that are added with addFirst() and the lane of the others
+	private final Lane first = new Lane();
+	private final Lane last = new Lane();
+
+	//the number of times the reader checks an empty queue before it parks
+	private final int spins;
+
+	//the reading thread while it is parked (or about to park)
+	private volatile Thread waiter;
+
+
+	/**
+	 * Constructor.The reader parks as soon as it finds the queue empty.
+	 */
+	public MsgQueue() {
+		this(0);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param spins The number of times the reader checks an empty queue before it parks.
+	 */
+	public MsgQueue(int spins) {
+		this.spins = spins;
+	}
+
+	/**
 	 * @param o
 	 */
 	public void addLast(Object o) {
-		synchronized(queue){
-			  queue.add(o);
-			  queue.notify();
-		  }
-	  }
-	  
-	 /**
+		last.add(o);
+		wakeUp();
+	}
+
+	/**
+	 * This method adds an object that is read before all the objects that were
+	 * added with {@link #addLast(Object)} (and after the objects that were already
+	 * added with this method).
+	 *
 	 * @param o
 	 */
 	public void addFirst(Object o) {
-		synchronized(queue){
-			  queue.addFirst(o);
-		      queue.notify();
-		    }
-	  }
-	
+		first.add(o);
+		wakeUp();
+	}
+
+	private void wakeUp() {
+		//the object is already visible to the reader, so if the reader has not
+		//announced itself yet it will find the object before it parks
+		Thread w = waiter;
+		if (w != null)
+			LockSupport.unpark(w);
+	}
+
+	/**
+	 * This method returns the next object of the queue.It blocks while the queue is empty.
+	 * It must be called only by the reading thread.
+	 *
+	 * @return The next object.
+	 * @throws InterruptedException
+	 */
 	public Object get() throws InterruptedException {
-		synchronized(queue){
-			while (queue.isEmpty())
-				queue.wait();
-			return queue.removeFirst();
-	    }
-	}
-	  
-	  /**
+		while (true) {
+			Object o = poll();
+			if (o != null)
+				return o;
+			await();
+		}
+	}
+
+	/**
+	 * This method reads as many objects as fit in the given array.It blocks while the
+	 * queue is empty.It must be called only by the reading thread.
+	 *
+	 * @param batch The array to which the objects are copied.
+	 * @return The number of objects (at least 1).
+	 * @throws InterruptedException
+	 */
+	public int get(Object[] batch) throws InterruptedException {
+		while (true) {
+			int count = 0;
+			Object o;
+			while (count < batch.length && (o = poll()) != null)
+				batch[count++] = o;
+			if (count > 0)
+				return count;
+			await();
+		}
+	}
+
+	/**
+	 * @return The next object or null if the queue is empty.
+	 */
+	private Object poll() {
+		Object o = first.poll();
+		if (o == null)
+			o = last.poll();
+		return o;
+	}
+
+	/**
+	 * This method waits until an object is added to the queue (or the reader is woken
+	 * up for another reason).
+	 *
+	 * @throws InterruptedException
+	 */
+	private void await() throws InterruptedException {
+		for (int i = 0; i < spins; i++) {
+			if (!isEmpty())
+				return;
+		}
+
+		waiter = Thread.currentThread();
+		try {
+			//check again, a writer may have added an object before it could see the waiter
+			while (isEmpty()) {
+				if (Thread.interrupted())
+					throw new InterruptedException();
+				LockSupport.park(this);
+			}
+		} finally {
+			waiter = null;
+		}
+	}
+
+	private boolean isEmpty() {
+		return first.isEmpty() && last.isEmpty();
+	}
+
+	/**
 	 * @return
 	 */
 	public int size(){
-		return queue.size();
+		return first.size() + last.size();
+	}
+
+
+	/**
+	 * This class represents a lane of the queue.The writers append a node by swapping
+	 * the tail and then linking the previous tail to it; the reader follows the links
+	 * from the head.The head is a node whose object has already been read.
+	 */
+	private static class Lane {
+
+		private final AtomicReference<Node> tail;
+		private Node head;
+
+		//the number of objects that were added and the number of objects that were read
+		private final AtomicLong added = new AtomicLong();
+		private volatile long read = 0;
+
+		public Lane() {
+			head = new Node(null);
+			tail = new AtomicReference<Node>(head);
+		}
+
+		public void add(Object o) {
+			Node node = new Node(o);
+			added.incrementAndGet();
+			Node prev = tail.getAndSet(node);
+			prev.next = node;
+		}
+
+		public Object poll() {
+			Node next = head.next;
+			if (next == null) {
+				if (tail.get() == head)
+					return null;
+				//a writer has swapped the tail but not linked its node yet
+				while ((next = head.next) == null)
+					Thread.yield();
+			}
+			Object o = next.value;
+			next.value = null;
+			head = next;
+			read++;
+			return o;
+		}
+
+		public boolean isEmpty() {
+			return head.next == null && tail.get() == head;
+		}
+
+		public int size() {
+			return (int) (added.get() - read);
+		}
+	}
+
+
+	private static class Node {
+
+		private Object value;
+		private volatile Node next;
+
+		public Node(Object value) {
+			this.value = value;
+		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2013 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License v2.0
+ * which is available at:
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *******************************************************************************/
+
+package com.ibm.zurich.mqttsgw.utils;
+
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * This class holds the predefined topic ids of the gateway.
+ * There is only one instance of this class (see {@link GWParameters#getPredefinedTopicTable()}),
+ * which is shared by all mapping tables.It cannot be modified after its creation, so it
+ * can be read by all Dispatcher lanes without synchronization.
+ * The topics (interned in the {@link TopicRegistry}) are stored in an array indexed by topic id.
+ *
+ */
+public class PredefinedTopicTable {
+
+	//the topics indexed by predefined topic id (index 0 is not used)
+	private final TopicRegistry.Topic[] topics;
+
+	//the predefined topic ids indexed by topic name
+	private final HashMap<String, Integer> topicIds;
+
+
+	/**
+	 * Constructor.
+	 *
+	 * @param table The predefined topic ids (topic id - topic name).
+	 * @param predfTopicIdSize The maximum predefined topic id.
+	 */
+	public PredefinedTopicTable(Hashtable<Integer, String> table, int predfTopicIdSize) {
+		TopicRegistry registry = TopicRegistry.getInstance();
+		topics = new TopicRegistry.Topic[predfTopicIdSize + 1];
+		topicIds = new HashMap<String, Integer>(table.size() * 2);
+		Iterator<Map.Entry<Integer, String>> iter = table.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<Integer, String> entry = iter.next();
+			int topicId = entry.getKey().intValue();
+			if (topicId > 0 && topicId <= predfTopicIdSize) {
+				topics[topicId] = registry.intern(entry.getValue());
+				topicIds.put(entry.getValue(), entry.getKey());
+			}
+		}
+	}
+
+
+	/**
+	 * @param topicId The topic id.
+	 * @return The topic or null if the topic id is not a predefined one.
+	 */
+	public TopicRegistry.Topic getTopic(int topicId) {
+		if (topicId <= 0 || topicId >= topics.length)
+			return null;
+		return topics[topicId];
+	}
+
+
+	/**
+	 * @param topicId The topic id.
+	 * @return The topic name or null if the topic id is not a predefined one.
+	 */
+	public String getTopicName(int topicId) {
+		TopicRegistry.Topic topic = getTopic(topicId);
+		return topic == null ? null : topic.getName();
+	}
+
+
+	/**
+	 * @param topicName The topic name.
+	 * @return The predefined topic id or 0 if the topic name is not a predefined one.
+	 */
+	public int getTopicId(String topicName) {
+		Integer topicId = topicIds.get(topicName);
+		return topicId == null ? 0 : topicId.intValue();
+	}
+
+
+	/**
+	 * @return The number of predefined topic ids.
+	 */
+	public int size() {
+		return topicIds.size();
+	}
+}
@@ -0,0 +1,200 @@
+/*******************************************************************************
+ * Copyright (c) 2008, 2013 IBM Corp.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License v2.0
+ * which is available at:
+ *    https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *******************************************************************************/
+
+package com.ibm.zurich.mqttsgw.utils;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class interns the topic names that are used by the clients of the gateway.
+ * Every topic name is stored once, together with its encoding as a Mqtt UTF string,
+ * and gets an ordinal (starting from 1).The mapping tables of the clients store only
+ * ordinals.
+ * Every call of {@link #intern(String)} takes a reference to the topic, which is given
+ * back with {@link #release(int)}.A topic without references is removed and its ordinal
+ * is reused, so the registry holds only the topic names that are in use.
+ * There is only one instance of this class.
+ *
+ */
+public class TopicRegistry {
+
+	private static TopicRegistry instance = null;
+
+	//the topics indexed by topic name
+	private ConcurrentHashMap<String, Topic> topics;
+
+	//the topics indexed by ordinal (index 0 is not used); an ordinal is only known
+	//after a lookup in the map above, which makes the topic visible to the caller
+	private volatile Topic[] ordinals;
+
+	//the number of topics
+	private int size;
+
+	//the ordinals of the removed topics, which are reused before new ones
+	private int[] freeOrdinals;
+	private int freeCount;
+
+	//the highest ordinal that has been used so far
+	private int maxOrdinal;
+
+
+	/**
+	 * Constructor.
+	 */
+	private TopicRegistry() {
+		topics = new ConcurrentHashMap<String, Topic>();
+		ordinals = new Topic[64];
+		size = 0;
+		freeOrdinals = new int[16];
+		freeCount = 0;
+		maxOrdinal = 0;
+	}
+
+
+	/**
+	 * This method returns the instance of this object.If there no such an instance
+	 * a new object is created.
+	 *
+	 * @return The instance of this object.
+	 */
+	public static synchronized TopicRegistry getInstance() {
+		if (instance == null) {
+			instance = new TopicRegistry();
+		}
+		return instance;
+	}
+
+
+	/**
+	 * This method returns the topic of a topic name and takes a reference to it.
+	 * If the topic name is not known a new topic is created.
+	 *
+	 * @param topicName The topic name.
+	 * @return The topic.
+	 */
+	public synchronized Topic intern(String topicName) {
+		Topic topic = topics.get(topicName);
+		if (topic != null) {
+			topic.references++;
+			return topic;
+		}
+
+		int ordinal = (freeCount > 0) ? freeOrdinals[--freeCount] : ++maxOrdinal;
+		topic = new Topic(ordinal, topicName);
+		topic.references = 1;
+		Topic[] o = ordinals;
+		if (ordinal >= o.length) {
+			Topic[] grown = new Topic[o.length * 2];
+			System.arraycopy(o, 0, grown, 0, o.length);
+			o = grown;
+		}
+		o[ordinal] = topic;
+		ordinals = o;
+		size++;
+		topics.put(topicName, topic);
+		return topic;
+	}
+
+
+	/**
+	 * This method gives back a reference that was taken with {@link #intern(String)}.
+	 * The topic is removed when no reference is left.
+	 *
+	 * @param ordinal The ordinal of the topic.
+	 */
+	public synchronized void release(int ordinal) {
+		Topic[] o = ordinals;
+		if (ordinal <= 0 || ordinal >= o.length || o[ordinal] == null)
+			return;
+		Topic topic = o[ordinal];
+		if (--topic.references > 0)
+			return;
+
+		topics.remove(topic.name);
+		o[ordinal] = null;
+		size--;
+		if (freeCount == freeOrdinals.length) {
+			int[] grown = new int[freeOrdinals.length * 2];
+			System.arraycopy(freeOrdinals, 0, grown, 0, freeCount);
+			freeOrdinals = grown;
+		}
+		freeOrdinals[freeCount++] = ordinal;
+	}
+
+
+	/**
+	 * This method does not take a reference, so the topic is valid only as long as
+	 * the caller holds a reference to it.
+	 *
+	 * @param topicName The topic name.
+	 * @return The topic or null if the topic name is not known.
+	 */
+	public Topic lookup(String topicName) {
+		return topics.get(topicName);
+	}
+
+
+	/**
+	 * @param ordinal The ordinal of the topic.
+	 * @return The topic or null if there is no topic with this ordinal.
+	 */
+	public Topic getTopic(int ordinal) {
+		Topic[] o = ordinals;
+		if (ordinal <= 0 || ordinal >= o.length)
+			return null;
+		return o[ordinal];
+	}
+
+
+	/**
+	 * @return The number of topics.
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+
+	/**
+	 * This object represents an interned topic name.It cannot be modified.
+	 *
+	 */
+	public static class Topic {
+
+		private final int ordinal;
+		private final String name;
+
+		//the number of references to this topic (guarded by the registry)
+		private int references;
+
+		//the topic name as a Mqtt UTF string (length and UTF-8 bytes)
+		private final byte[] encodedName;
+
+		private Topic(int ordinal, String name) {
+			this.ordinal = ordinal;
+			this.name = name;
+			this.encodedName = Utils.StringToUTF(name);
+		}
+
+		public int getOrdinal() {
+			return ordinal;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return The topic name as a Mqtt UTF string.The array is shared and must not be modified.
+		 */
+		public byte[] getEncodedName() {
+			return encodedName;
+		}
+	}
+}
@@ -23,6 +23,23 @@ public class Utils {
 	public final static String STRING_ENCODING = "UTF-8";
 	
 	
+	/**
+	 * @param topicName
+	 * @return The 2 bytes of the short topic name, or null if the topic name is not encoded in 2 bytes
+	 */
+	public static byte[] shortTopicNameToBytes(String topicName) {
+		if (topicName == null)
+			return null;
+		try {
+			byte[] utfBytes = topicName.getBytes(STRING_ENCODING);
+			return (utfBytes.length == 2) ? utfBytes : null;
+		} catch(UnsupportedEncodingException e) {
+			GatewayLogger.log(GatewayLogger.ERROR, "Utils - Unsupported string encoding: "+STRING_ENCODING);
+		}
+		return null;
+	}
+	
+	
 	/**
 	 * @param data
 	 * @return
@@ -32,8 +49,8 @@ public class Utils {
 			byte[] utfBytes = data.getBytes(STRING_ENCODING);
 			byte[] retArray = new byte[utfBytes.length+2];
 				
-			retArray[0] = new Integer(utfBytes.length/256).byteValue();
-			retArray[1] = new Integer(utfBytes.length%256).byteValue();
+			retArray[0] = (byte) (utfBytes.length >> 8);
+			retArray[1] = (byte) (utfBytes.length & 0xFF);
 				
 			System.arraycopy( utfBytes, 0, retArray, 2, utfBytes.length);
 			return (retArray);  
@@ -11,6 +11,8 @@
 
 package com.ibm.zurich.mqttsclient.messages.mqtts;
 
+import java.nio.ByteBuffer;
+
 /**
  * This object represents a Mqtts message. It is subclassed
  * to create the appropriate Mqtts Message.
@@ -74,6 +76,16 @@ public abstract class MqttsMessage {
 	 */
 	public abstract byte[] toBytes ();		
 
+	/**
+	 * This method writes the message into a buffer (at its current position) for transmission.
+	 * It is overridden in the subclasses of the messages that are sent often, so that they are
+	 * written without creating a byte array.
+	 * @param buffer The buffer.
+	 */
+	public void encodeTo(ByteBuffer buffer) {
+		buffer.put(toBytes());
+	}
+
 	
 	public int getMsgType() {
 		return msgType;
@@ -10,6 +10,8 @@
 
 package com.ibm.zurich.mqttsclient.messages.mqtts;
 
+import java.nio.ByteBuffer;
+
 /**
  * This object represents a Mqtts PUBREC message.
  * 
@@ -42,13 +44,18 @@ public class MqttsPubRec extends MqttsMessage {
 	 * @return A byte array containing the PUBREC message as it should appear on the wire.
 	 */
 	public byte[] toBytes() {
-		int length = 4;
-		byte[] data = new byte[length];
-		data[0] = (byte)length;   
-		data[1] = (byte)msgType;  
-		data[2] = (byte)((msgId >> 8) & 0xFF);
-		data[3] = (byte)(msgId & 0xFF);	
-		return data;		
+		byte[] data = new byte[4];
+		encodeTo(ByteBuffer.wrap(data));
+		return data;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ibm.zurich.mqttsclient.messages.mqtts.MqttsMessage#encodeTo(java.nio.ByteBuffer)
+	 */
+	public void encodeTo(ByteBuffer buffer) {
+		buffer.put((byte)4);
+		buffer.put((byte)msgType);
+		buffer.putShort((short)msgId);
 	}
 
 	public int getMsgId() {
@@ -10,6 +10,8 @@
 
 package com.ibm.zurich.mqttsclient.messages.mqtts;
 
+import java.nio.ByteBuffer;
+
 /**
  * This object represents a Mqtts PUBACK message.
  * 
@@ -52,24 +54,27 @@ public class MqttsPuback extends MqttsMessage {
 	 * @return A byte array containing the PUBACK message as it should appear on the wire.
 	 */
 	public byte[] toBytes() {
-		int length = 7;
-		byte[] data = new byte[length];
-		data[0] = (byte)length;   
-		data[1] = (byte)msgType;
-		
-		byteTopicId = new byte[2];
-		if (this.topicId != 0){
-			byteTopicId[0] = (byte)((topicId >> 8) & 0xFF);
-			byteTopicId[1] = (byte) (topicId & 0xFF);
-		}else if(this.shortTopicName != null)
-			byteTopicId = shortTopicName.getBytes();
-		
-		System.arraycopy(byteTopicId, 0, data, 2, byteTopicId.length);	
-		data[4] = (byte)((msgId >> 8) & 0xFF);
-		data[5] = (byte) (msgId & 0xFF);
-		data[6] = (byte)returnCode;		
+		byte[] data = new byte[7];
+		encodeTo(ByteBuffer.wrap(data));
 		return data;
 	}
+
+	/* (non-Javadoc)
+	 * @see com.ibm.zurich.mqttsclient.messages.mqtts.MqttsMessage#encodeTo(java.nio.ByteBuffer)
+	 */
+	public void encodeTo(ByteBuffer buffer) {
+		buffer.put((byte)7);
+		buffer.put((byte)msgType);
+		if (this.topicId != 0)
+			buffer.putShort((short)topicId);
+		else if(this.shortTopicName != null){
+			buffer.put((byte)shortTopicName.charAt(0));
+			buffer.put((byte)shortTopicName.charAt(1));
+		}else
+			buffer.putShort((short)0);
+		buffer.putShort((short)msgId);
+		buffer.put((byte)returnCode);
+	}
 	
 
 	public int getMsgId() {
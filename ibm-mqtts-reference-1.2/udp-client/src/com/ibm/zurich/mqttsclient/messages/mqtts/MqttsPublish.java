@@ -10,6 +10,7 @@
 package com.ibm.zurich.mqttsclient.messages.mqtts;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import com.ibm.zurich.mqttsclient.utils.Utils;
 
 /**
@@ -80,6 +81,15 @@ public class MqttsPublish extends MqttsMessage {
 	 * @return A byte array containing the PUBLISH message as it should appear on the wire.
 	 */
 	public byte[] toBytes() {
+		byte[] data = new byte[7 + pubData.length];
+		encodeTo(ByteBuffer.wrap(data));
+		return data;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ibm.zurich.mqttsclient.messages.mqtts.MqttsMessage#encodeTo(java.nio.ByteBuffer)
+	 */
+	public void encodeTo(ByteBuffer buffer) {
 		int flags = 0;
 		if(dup) {
 			flags |= 0x80;
@@ -109,24 +119,16 @@ public class MqttsPublish extends MqttsMessage {
 		}
 				
 		int length = 7 + pubData.length;
-		byte[] data = new byte[length];
-		data[0] = (byte)length;   
-		data[1] = (byte)msgType;
-		data[2] = (byte)flags; 
-		
-		byteTopicId = new byte[2];
-		if (topicIdType == MqttsMessage.SHORT_TOPIC_NAME)
-			byteTopicId = shortTopicName.getBytes();
-		else if(topicIdType == MqttsMessage.NORMAL_TOPIC_ID){
-			byteTopicId[0] = (byte)((topicId >> 8) & 0xFF);
-			byteTopicId[1] = (byte) (topicId & 0xFF);
-		}else 
-				throw new IllegalArgumentException("Unknown topic id type: " + topicIdType);
-		System.arraycopy(byteTopicId, 0, data, 3, byteTopicId.length);	
-		data[5] = (byte)((msgId >> 8) & 0xFF);
-		data[6] = (byte) (msgId & 0xFF);
-		System.arraycopy(pubData, 0, data, 7, pubData.length);
-		return data;
+		buffer.put((byte)length);
+		buffer.put((byte)msgType);
+		buffer.put((byte)flags);
+		if (topicIdType == MqttsMessage.SHORT_TOPIC_NAME){
+			buffer.put((byte)shortTopicName.charAt(0));
+			buffer.put((byte)shortTopicName.charAt(1));
+		}else
+			buffer.putShort((short)topicId);
+		buffer.putShort((short)msgId);
+		buffer.put(pubData);
 	}
 
 	public boolean isDup() {
@@ -10,6 +10,8 @@
 
 package com.ibm.zurich.mqttsclient.messages.mqtts;
 
+import java.nio.ByteBuffer;
+
 
 /**
  * This object represents a Mqtts REGACK message.
@@ -46,17 +48,21 @@ public class MqttsRegack extends MqttsMessage {
 	 * Method to convert this message to a byte array for transmission.
 	 * @return A byte array containing the REGACK message as it should appear on the wire.
 	 */
-	public byte[] toBytes(){
-		int length = 7;
-		byte[] data = new byte[length];
-		data[0] = (byte)length;   
-		data[1] = (byte)msgType;  
-		data[2] = (byte)((topicId >> 8) & 0xFF);
-		data[3] = (byte)(topicId & 0xFF);
-		data[4] = (byte)((msgId >> 8) & 0xFF);
-		data[5] = (byte)(msgId & 0xFF);
-		data[6] = (byte)(returnCode);		
-		return data;		
+	public byte[] toBytes() {
+		byte[] data = new byte[7];
+		encodeTo(ByteBuffer.wrap(data));
+		return data;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.ibm.zurich.mqttsclient.messages.mqtts.MqttsMessage#encodeTo(java.nio.ByteBuffer)
+	 */
+	public void encodeTo(ByteBuffer buffer) {
+		buffer.put((byte)7);
+		buffer.put((byte)msgType);
+		buffer.putShort((short)topicId);
+		buffer.putShort((short)msgId);
+		buffer.put((byte)returnCode);
 	}
 	
 	public int getReturnCode() {
@@ -14,6 +14,7 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 
 import com.ibm.zurich.mqttsclient.exceptions.MqttsException;
 import com.ibm.zurich.mqttsclient.messages.Message;
@@ -49,6 +50,7 @@ public class UDPInterface implements Runnable {
 	
 	private final static int MAXUDPSIZE=65536;
 	private final static int MINUDPSIZE=16; // assumed to be a "sane" value...
+	private final static int MAXENCAPSSIZE=3+16+2; // encapsulation header with an IPv6 address and a port
 	public final static boolean ENCAPS=false;  //use forwarder encapsulation or not
 	
 	private DatagramSocket udpSocket;
@@ -57,6 +59,10 @@ public class UDPInterface implements Runnable {
 	private MsgQueue queue;
 	private ClientParameters clientParms;
 	private byte[] recData;
+	
+	//the buffer and the packet that are used for sending the messages
+	private ByteBuffer sendBuffer;
+	private DatagramPacket sendPacket;
 
 
 	public void initialize(MsgQueue queue, ClientParameters clientParms) throws MqttsException {
@@ -75,6 +81,8 @@ public class UDPInterface implements Runnable {
 				throw new IllegalArgumentException("Maximum packet size should be larger than "+MINUDPSIZE);
 			}
 			recData = new byte[this.clientParms.getMaxMqttsLength()];
+			sendBuffer = ByteBuffer.allocate(Math.max(this.clientParms.getMaxMqttsLength(), 255) + MAXENCAPSSIZE);
+			sendPacket = new DatagramPacket(sendBuffer.array(), 0);
 
 			//create thread for reading
 			this.readThread = new Thread (this, "UDPInterface");
@@ -329,8 +337,9 @@ public class UDPInterface implements Runnable {
 		ClientLogger.log(ClientLogger.INFO, "UDPInterface - Mqtts message \"" + msgType+"\" put in queue.");
 	}
 
-	public void sendMsg(MqttsMessage msg) {
+	public synchronized void sendMsg(MqttsMessage msg) {
 		try {
+			sendBuffer.clear();
 
 //old encapsulation spec v1.1			
 //			//cll: temp modification for testing reasons
@@ -366,20 +375,18 @@ public class UDPInterface implements Runnable {
 				System.arraycopy(ipAddr, 0, wirelessNodeId, 0, ipAddr.length);
 				System.arraycopy(port, 0, wirelessNodeId, ipAddr.length, port.length);
 
-				byte[] wireMsg = msg.toBytes();
-				byte[] data = new byte[wireMsg.length + wirelessNodeId.length + 3];
-				data[0] = (byte)(wirelessNodeId.length+3);
-				data[1] = (byte)0xFE;
-				data[3] = 0x00;
-				System.arraycopy(wirelessNodeId, 0, data, 3, wirelessNodeId.length);
-				System.arraycopy(wireMsg,  0, data, wirelessNodeId.length + 3, wireMsg.length);
-				DatagramPacket packet = new DatagramPacket(data, data.length, clientParms.getGatewayAddress(), clientParms.getGatewayPort());
-				udpSocket.send(packet);
-			} else {  //no encapsulation
-				byte[] wireMsg = msg.toBytes();			
-				DatagramPacket packet = new DatagramPacket(wireMsg, wireMsg.length, clientParms.getGatewayAddress(), clientParms.getGatewayPort());
-				udpSocket.send(packet);
-			}
+				sendBuffer.put((byte)(wirelessNodeId.length+3));
+				sendBuffer.put((byte)0xFE);
+				sendBuffer.put((byte)0x00);
+				sendBuffer.put(wirelessNodeId);
+			} //else no encapsulation
+
+			//write the message after the encapsulation header (if any) and send the buffer
+			msg.encodeTo(sendBuffer);
+			sendPacket.setLength(sendBuffer.position());
+			sendPacket.setAddress(clientParms.getGatewayAddress());
+			sendPacket.setPort(clientParms.getGatewayPort());
+			udpSocket.send(sendPacket);
 		} catch (IOException e) {
 			e.printStackTrace();
 			ClientLogger.log(ClientLogger.ERROR, "UDPInterface - Error while writing on the UDP socket.");